@@ -26,13 +26,17 @@ import gr.iti.mklab.focused.crawler.bolts.media.RedisBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.StatusCheckBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.VisualClustererBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.VisualIndexerBolt;
-import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleExtractionBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleParserBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.MediaExtractionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.TextIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.URLExpansionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageDeserializationBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageFetcherBolt;
 import gr.iti.mklab.focused.crawler.config.CrawlerConfiguration;
+import gr.iti.mklab.focused.crawler.spouts.Deserializer;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
+import gr.iti.mklab.focused.crawler.spouts.RedisStreamSpout;
+import gr.iti.mklab.focused.crawler.serialization.KryoSerializers;
 
 
 /**
@@ -87,6 +91,15 @@ public class Crawler {
         Config conf = new Config();
         conf.setDebug(false);
         
+        // Kryo serializers for the tuple payloads, no fallback to Java serialization
+        KryoSerializers.register(conf);
+        
+        // Only effective with reliable spouts (redis.mode = streams)
+        String maxSpoutPending = config.getParameter("topology.maxSpoutPending");
+        if(maxSpoutPending != null) {
+        	conf.setMaxSpoutPending(Integer.parseInt(maxSpoutPending));
+        }
+        
         if(!local) {
         	logger.info("Submit topology to Storm cluster");
 			try {
@@ -125,6 +138,13 @@ public class Crawler {
 		String redisHost = config.getParameter("redis.hostname");
 		String webPagesChannel = config.getParameter("redis.webPagesChannel");
 		String mediaItemsChannel = config.getParameter("redis.mediaItemsChannel");
+		String redisMode = config.getParameter("redis.mode");
+		String consumerGroup = config.getParameter("redis.consumerGroup");
+		if(consumerGroup == null) {
+			consumerGroup = "Crawler";
+		}
+		int spouts = config.getParameter("redis.spouts") == null ? 1 : Integer.parseInt(config.getParameter("redis.spouts"));
+		boolean deserializeAtSource = Boolean.parseBoolean(config.getParameter("redis.deserialize"));
 		
 		// MongoDB
 		String mongodbHostname = config.getParameter("mongodb.hostname");
@@ -160,25 +180,46 @@ public class Crawler {
 		BaseRichSpout miSpout;
 		IRichBolt wpDeserializer;
 		IRichBolt miDeserializer;
-		IRichBolt urlExpander, articleExtraction, mediaExtraction, textIndexer;
+		IRichBolt urlExpander, pageFetcher, articleExtraction, mediaExtraction, textIndexer;
 		IRichBolt miStatusChecker, visualIndexer, mediaTextIndexer, clusterer, mediaUpdater;
 		IRichBolt redisBolt;
 		
-		wpSpout = new RedisSpout(redisHost, 6379, webPagesChannel);
-		miSpout = new RedisSpout(redisHost, 6379, mediaItemsChannel);
+		// Decode JSON in the spouts, no deserialization bolts
+		Deserializer wpDeserializerAtSource = deserializeAtSource ? Deserializer.webPages(webPagesChannel) : null;
+		Deserializer miDeserializerAtSource = deserializeAtSource ? Deserializer.mediaItems() : null;
+		
+		if("streams".equals(redisMode)) {
+			wpSpout = new RedisStreamSpout(redisHost, 6379, webPagesChannel, consumerGroup)
+				.setDeserializer(wpDeserializerAtSource);
+			miSpout = new RedisStreamSpout(redisHost, 6379, mediaItemsChannel, consumerGroup)
+				.setDeserializer(miDeserializerAtSource);
+		}
+		else {
+			wpSpout = new RedisSpout(redisHost, 6379, webPagesChannel)
+				.setDeserializer(wpDeserializerAtSource);
+			miSpout = new RedisSpout(redisHost, 6379, mediaItemsChannel)
+				.setDeserializer(miDeserializerAtSource);
+			spouts = 1;
+		}
 			
 		wpDeserializer = new WebPageDeserializationBolt(webPagesChannel);
 		miDeserializer = new MediaItemDeserializationBolt(mediaItemsChannel);
 		
 		// Web Pages Bolts
-		urlExpander = new URLExpansionBolt(webPagesChannel);
-		articleExtraction = new ArticleExtractionBolt(24);
+		urlExpander = new URLExpansionBolt(webPagesChannel)
+			.setResolutionCache(redisHost, 6379);
+		pageFetcher = new WebPageFetcherBolt()
+			.setValidatorCache(redisHost, 6379);
+		articleExtraction = new ArticleParserBolt()
+			.setValidatorCache(redisHost, 6379)
+			.setExtractionCache(redisHost, 6379);
 		mediaExtraction = new MediaExtractionBolt();
 		textIndexer = new TextIndexerBolt(textIndexService);
 			
 		// Media Items Bolts
 		miStatusChecker = new StatusCheckBolt(redisHost);
-		visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile);
+		visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile)
+			.setValidatorCache(redisHost, 6379);
 		mediaUpdater = new MediaUpdaterBolt(mongodbHostname, mediaItemsDB, streamUsersDB);
 		mediaTextIndexer = new MediaTextIndexerBolt(mediaTextIndexService);	
 		clusterer = new VisualClustererBolt(redisHost, mediaTextIndexService);
@@ -188,20 +229,33 @@ public class Crawler {
 		TopologyBuilder builder = new TopologyBuilder();
 		
 		// Input in topology
-		builder.setSpout("wpSpout", wpSpout, 1);
-		builder.setSpout("miSpout", miSpout, 1);
+		builder.setSpout("wpSpout", wpSpout, spouts);
+		builder.setSpout("miSpout", miSpout, spouts);
 		
 		// Web Pages Bolts
-		builder.setBolt("wpDeserializer", wpDeserializer, 2).shuffleGrouping("wpSpout");
-		builder.setBolt("expander", urlExpander, 8).shuffleGrouping("wpDeserializer");
-		builder.setBolt("articleExtraction", articleExtraction, 1).shuffleGrouping("expander", "webpage");
+		String wpSource = "wpSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("wpDeserializer", wpDeserializer, 2).shuffleGrouping("wpSpout");
+			wpSource = "wpDeserializer";
+		}
+		builder.setBolt("expander", urlExpander, 8).shuffleGrouping(wpSource);
+		// fetching is bound by the network and extraction by the cores, each scales on its own
+		int workers = config.getParameter("topology.workers") == null ? 1 : Integer.parseInt(config.getParameter("topology.workers"));
+		int fetchers = config.getParameter("topology.fetchers") == null ? workers : Integer.parseInt(config.getParameter("topology.fetchers"));
+		int extractors = config.getParameter("topology.extractors") == null ? workers : Integer.parseInt(config.getParameter("topology.extractors"));
+		builder.setBolt("pageFetcher", pageFetcher, fetchers).shuffleGrouping("expander", "webpage");
+		builder.setBolt("articleExtraction", articleExtraction, extractors).localOrShuffleGrouping("pageFetcher");
 		builder.setBolt("mediaExtraction", mediaExtraction, 1).shuffleGrouping("expander", "media");
 		builder.setBolt("textIndexer", textIndexer, 1).shuffleGrouping("articleExtraction", "webpage");
 
 		// Media Items Bolts
-		builder.setBolt("miDeserializer", miDeserializer, 2).shuffleGrouping("miSpout");
+		String miSource = "miSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("miDeserializer", miDeserializer, 2).shuffleGrouping("miSpout");
+			miSource = "miDeserializer";
+		}
 		builder.setBolt("miStatusChecker", miStatusChecker, 1)
-			.shuffleGrouping("miDeserializer")
+			.shuffleGrouping(miSource)
 			.shuffleGrouping("articleExtraction", "media")
 			.shuffleGrouping("mediaExtraction", "media");
 	
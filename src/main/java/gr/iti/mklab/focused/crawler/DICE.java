@@ -25,6 +25,7 @@ import gr.iti.mklab.focused.crawler.bolts.webpages.URLExpansionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageDeserializationBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPagesUpdaterBolt;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
+import gr.iti.mklab.focused.crawler.serialization.KryoSerializers;
 
 
 public class DICE {
@@ -73,6 +74,9 @@ public class DICE {
         Config conf = new Config();
         conf.setDebug(false);
         
+        // Kryo serializers for the tuple payloads, no fallback to Java serialization
+        KryoSerializers.register(conf);
+        
         if(!local) {
         	System.out.println("Submit topology to Storm cluster");
 			try {
@@ -123,7 +127,8 @@ public class DICE {
 		try {
 			wpSpout = new RedisSpout(redisHost, redisPort, webPagesChannel);
 			wpDeserializer = new WebPageDeserializationBolt(webPagesChannel);
-			urlExpander = new URLExpansionBolt(webPagesChannel);
+			urlExpander = new URLExpansionBolt(webPagesChannel)
+				.setResolutionCache(redisHost, redisPort);
 			
 			//articleExtraction = new ArticleExtractionBolt(24);
 			//mediaExtraction = new MediaExtractionBolt();
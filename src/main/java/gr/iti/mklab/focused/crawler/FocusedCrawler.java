@@ -18,13 +18,18 @@ import org.apache.storm.topology.base.BaseRichSpout;
 
 import gr.iti.mklab.focused.crawler.bolts.media.MediaTextIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.MediaUpdaterBolt;
-import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleExtractionBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleParserBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.MediaExtractionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.TextIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.URLExpansionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageDeserializationBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageFetcherBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPagesUpdaterBolt;
+import gr.iti.mklab.focused.crawler.spouts.Deserializer;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
+import gr.iti.mklab.focused.crawler.spouts.ReplaySpout;
+import gr.iti.mklab.focused.crawler.spouts.RedisStreamSpout;
+import gr.iti.mklab.focused.crawler.serialization.KryoSerializers;
 
 
 public class FocusedCrawler {
@@ -73,6 +78,28 @@ public class FocusedCrawler {
         Config conf = new Config();
         conf.setDebug(false);
         
+        // Kryo serializers for the tuple payloads, no fallback to Java serialization
+        KryoSerializers.register(conf);
+        
+        // Fetch engine of the workers (async, virtual or threads), see FetchEngine
+        conf.put("fetch.mode", config.getString("fetch.mode", "async"));
+        conf.put("fetch.maxInFlight", config.getInt("fetch.maxInFlight", 2048));
+        conf.put("fetch.maxPerRoute", config.getInt("fetch.maxPerRoute", 10));
+        conf.put("fetch.threads", config.getInt("fetch.threads", 24));
+        
+        // robots.txt of the hosts, cached in the workers and in Redis, see RobotsService
+        conf.put("robots.enabled", config.getBoolean("robots.enabled", true));
+        conf.put("robots.agent", config.getString("robots.agent", "focusedcrawler"));
+        conf.put("robots.ttl.hours", config.getInt("robots.ttlHours", 24));
+        conf.put("robots.redis.host", config.getString("redis.hostname", "xxx.xxx.xxx.xxx"));
+        conf.put("robots.redis.port", config.getInt("redis.port", 6379));
+        
+        // Only effective with reliable spouts (redis.mode = streams)
+        int maxSpoutPending = config.getInt("topology.maxSpoutPending", 0);
+        if(maxSpoutPending > 0) {
+        	conf.setMaxSpoutPending(maxSpoutPending);
+        }
+        
         if(!local) {
         	System.out.println("Submit topology to Storm cluster");
 			try {
@@ -103,6 +130,10 @@ public class FocusedCrawler {
 		String redisHost = config.getString("redis.hostname", "xxx.xxx.xxx.xxx");
 		int redisPort = config.getInt("redis.port", 6379);
 		String webPagesChannel = config.getString("redis.webPagesChannel", "webpages");
+		String redisMode = config.getString("redis.mode", "pubsub");
+		String consumerGroup = config.getString("redis.consumerGroup", "FocusedCrawler");
+		int spouts = config.getInt("redis.spouts", 1);
+		boolean deserializeAtSource = config.getBoolean("redis.deserialize", false);
 		
 		String mongodbHostname = config.getString("mongodb.hostname", "xxx.xxx.xxx.xxx");
 		String mediaItemsDB = config.getString("mongodb.mediaItemsDB", "Prototype");
@@ -117,14 +148,42 @@ public class FocusedCrawler {
 		
 		BaseRichSpout wpSpout;
 		IRichBolt wpDeserializer, mediaUpdater, urlExpander, mediaTextIndexer;
-		IRichBolt articleExtraction, mediaExtraction, webPageUpdater, textIndexer;
+		IRichBolt pageFetcher, articleExtraction, mediaExtraction, webPageUpdater, textIndexer;
+		
+		// Decode JSON in the spout, no deserialization bolt
+		Deserializer wpDeserializerAtSource = deserializeAtSource ? Deserializer.webPages(webPagesChannel) : null;
 		
 		try {
-			wpSpout = new RedisSpout(redisHost, redisPort, webPagesChannel);
+			if(redisMode.equals("streams")) {
+				wpSpout = new RedisStreamSpout(redisHost, redisPort, webPagesChannel, consumerGroup)
+					.setDeserializer(wpDeserializerAtSource);
+			}
+			else if(redisMode.equals("replay")) {
+				wpSpout = new ReplaySpout(config.getString("replay.path"), webPagesChannel)
+					.setRate(config.getDouble("replay.rate", 0))
+					.setBurst(config.getInt("replay.burst", 0))
+					.setLoop(config.getBoolean("replay.loop", false))
+					.setShuffle(config.getBoolean("replay.shuffle", false))
+					.setDeserializer(wpDeserializerAtSource);
+				spouts = 1;
+			}
+			else {
+				wpSpout = new RedisSpout(redisHost, redisPort, webPagesChannel)
+					.setDeserializer(wpDeserializerAtSource);
+				spouts = 1;
+			}
 			wpDeserializer = new WebPageDeserializationBolt(webPagesChannel);
-			urlExpander = new URLExpansionBolt(webPagesChannel);
+			urlExpander = new URLExpansionBolt(webPagesChannel)
+				.setResolutionCache(redisHost, redisPort);
 			
-			articleExtraction = new ArticleExtractionBolt(24);
+			// fetched pages in local WARC files, for the WarcReextractor, if a directory is set
+			String warcDirectory = config.getString("warc.directory", "");
+			pageFetcher = new WebPageFetcherBolt()
+				.setValidatorCache(redisHost, redisPort)
+				.setWarcCapture(warcDirectory.isEmpty() ? null : warcDirectory);
+			articleExtraction = new ArticleParserBolt()
+				.setValidatorCache(redisHost, redisPort)
+				.setExtractionCache(redisHost, redisPort);
 			mediaExtraction = new MediaExtractionBolt();
 			webPageUpdater = new WebPagesUpdaterBolt(mongodbHostname, webPagesDB);
 			textIndexer = new TextIndexerBolt(textIndexService);
@@ -138,14 +197,23 @@ public class FocusedCrawler {
 		
 		// Create topology 
 		TopologyBuilder builder = new TopologyBuilder();
-		builder.setSpout("wpSpout", wpSpout, 1);
+		builder.setSpout("wpSpout", wpSpout, spouts);
 				
-		builder.setBolt("WpDeserializer", wpDeserializer, 4).shuffleGrouping("wpSpout");
-		builder.setBolt("expander", urlExpander, 8).shuffleGrouping("WpDeserializer");
+		String wpSource = "wpSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("WpDeserializer", wpDeserializer, 4).shuffleGrouping("wpSpout");
+			wpSource = "WpDeserializer";
+		}
+		builder.setBolt("expander", urlExpander, 8).shuffleGrouping(wpSource);
 				
 				
-		builder.setBolt("articleExtraction", articleExtraction, 1)
+		// fetching is bound by the network and extraction by the cores, each scales on its own,
+		// and a page is extracted in the worker that fetched it if there is an extractor there
+		int workers = config.getInt("topology.workers", 4);
+		builder.setBolt("pageFetcher", pageFetcher, config.getInt("topology.fetchers", workers))
 			.shuffleGrouping("expander", "webpage");
+		builder.setBolt("articleExtraction", articleExtraction, config.getInt("topology.extractors", workers))
+			.localOrShuffleGrouping("pageFetcher");
 		builder.setBolt("mediaExtraction", mediaExtraction, 1)
 			.shuffleGrouping("expander", "media");
 				
@@ -11,6 +11,7 @@ import gr.iti.mklab.focused.crawler.bolts.items.EventDetectionBolt;
 import gr.iti.mklab.focused.crawler.bolts.items.ItemDeserializationBolt;
 import gr.iti.mklab.focused.crawler.bolts.items.PosTaggingBolt;
 import gr.iti.mklab.focused.crawler.bolts.items.TokenizationBolt;
+import gr.iti.mklab.focused.crawler.spouts.Deserializer;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
 
 import org.apache.storm.Config;
@@ -91,6 +92,7 @@ public class SocialMediaMonitor {
 		int redisPort = config.getInt("redis.port", 6379);
 		
 		String itemsChannel = config.getString("redis.itemsChannel", "items");
+		boolean deserializeAtSource = config.getBoolean("redis.deserialize", false);
 		
 		String nerModel = config.getString("ner.model", "english.all.3class.distsim.crf.ser.gz");
 		String POSModel = config.getString("pos.model", "english-left3words-distsim.tagger");
@@ -99,7 +101,8 @@ public class SocialMediaMonitor {
 		IRichBolt entityExtractor, posTagger;
 		IRichBolt itemDeserializer, tokenizer, eventDetector;	
 		try {
-			itemsSpout = new RedisSpout(redisHost, redisPort, itemsChannel);
+			itemsSpout = new RedisSpout(redisHost, redisPort, itemsChannel)
+				.setDeserializer(deserializeAtSource ? Deserializer.items() : null);
 			itemDeserializer = new ItemDeserializationBolt(itemsChannel);
 
 			entityExtractor = new EntityExtractionBolt(nerModel);
@@ -118,8 +121,12 @@ public class SocialMediaMonitor {
 		TopologyBuilder builder = new TopologyBuilder();
 		builder.setSpout("itemsSpout", itemsSpout, 1);
 				
-		builder.setBolt("itemDeserializer", itemDeserializer, 4).shuffleGrouping("itemsSpout");
-		builder.setBolt("entityExtractor", entityExtractor, 4).shuffleGrouping("itemDeserializer");
+		String itemsSource = "itemsSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("itemDeserializer", itemDeserializer, 4).shuffleGrouping("itemsSpout");
+			itemsSource = "itemDeserializer";
+		}
+		builder.setBolt("entityExtractor", entityExtractor, 4).shuffleGrouping(itemsSource);
 		builder.setBolt("posTagger", posTagger, 4).shuffleGrouping("entityExtractor");
 		builder.setBolt("tokenizer", tokenizer, 8).shuffleGrouping("entityExtractor");
 		
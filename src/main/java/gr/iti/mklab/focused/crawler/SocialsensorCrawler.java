@@ -10,13 +10,17 @@ import gr.iti.mklab.focused.crawler.bolts.media.MediaItemDeserializationBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.MediaTextIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.MediaUpdaterBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.VisualIndexerBolt;
-import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleExtractionBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.ArticleParserBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.MediaExtractionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.TextIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.URLExpansionBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageDeserializationBolt;
+import gr.iti.mklab.focused.crawler.bolts.webpages.WebPageFetcherBolt;
 import gr.iti.mklab.focused.crawler.bolts.webpages.WebPagesUpdaterBolt;
+import gr.iti.mklab.focused.crawler.spouts.Deserializer;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
+import gr.iti.mklab.focused.crawler.spouts.RedisStreamSpout;
+import gr.iti.mklab.focused.crawler.serialization.KryoSerializers;
 
 import org.apache.storm.Config;
 import org.apache.storm.LocalCluster;
@@ -75,6 +79,15 @@ public class SocialsensorCrawler {
         Config conf = new Config();
         conf.setDebug(false);
         
+        // Kryo serializers for the tuple payloads, no fallback to Java serialization
+        KryoSerializers.register(conf);
+        
+        // Only effective with reliable spouts (redis.mode = streams)
+        int maxSpoutPending = config.getInt("topology.maxSpoutPending", 0);
+        if(maxSpoutPending > 0) {
+        	conf.setMaxSpoutPending(maxSpoutPending);
+        }
+        
         if(!local) {
         	logger.info("Submit topology to Storm cluster");
 			try {
@@ -113,6 +126,10 @@ public class SocialsensorCrawler {
 		
 		String webPagesChannel = config.getString("redis.webPagesChannel");
 		String mediaItemsChannel = config.getString("redis.mediaItemsChannel");
+		String redisMode = config.getString("redis.mode", "pubsub");
+		String consumerGroup = config.getString("redis.consumerGroup", "SocialsensorCrawler");
+		int spouts = config.getInt("redis.spouts", 1);
+		boolean deserializeAtSource = config.getBoolean("redis.deserialize", false);
 		
 		String mongodbHostname = config.getString("mongodb.hostname");
 		String mediaItemsDB = config.getString("mongodb.mediaItemsDB");
@@ -144,25 +161,46 @@ public class SocialsensorCrawler {
 		// Initialize spouts and bolts
 		BaseRichSpout wpSpout, miSpout;
 		IRichBolt wpDeserializer, miDeserializer;
-		IRichBolt urlExpander, articleExtraction, mediaExtraction;
+		IRichBolt urlExpander, pageFetcher, articleExtraction, mediaExtraction;
 		IRichBolt mediaUpdater, webPageUpdater, textIndexer;
 		IRichBolt visualIndexer, mediaTextIndexer;
 		
-		wpSpout = new RedisSpout(redisHost, redisPort, webPagesChannel);
-		miSpout = new RedisSpout(redisHost, redisPort, mediaItemsChannel);
+		// Decode JSON in the spouts, no deserialization bolts
+		Deserializer wpDeserializerAtSource = deserializeAtSource ? Deserializer.webPages(webPagesChannel) : null;
+		Deserializer miDeserializerAtSource = deserializeAtSource ? Deserializer.mediaItems() : null;
+		
+		if(redisMode.equals("streams")) {
+			wpSpout = new RedisStreamSpout(redisHost, redisPort, webPagesChannel, consumerGroup)
+				.setDeserializer(wpDeserializerAtSource);
+			miSpout = new RedisStreamSpout(redisHost, redisPort, mediaItemsChannel, consumerGroup)
+				.setDeserializer(miDeserializerAtSource);
+		}
+		else {
+			wpSpout = new RedisSpout(redisHost, redisPort, webPagesChannel)
+				.setDeserializer(wpDeserializerAtSource);
+			miSpout = new RedisSpout(redisHost, redisPort, mediaItemsChannel)
+				.setDeserializer(miDeserializerAtSource);
+			spouts = 1;
+		}
 			
 		wpDeserializer = new WebPageDeserializationBolt(webPagesChannel);
 		miDeserializer = new MediaItemDeserializationBolt(mediaItemsChannel);
 		
 		// Web Pages Bolts
-		urlExpander = new URLExpansionBolt("webpages");
-		articleExtraction = new ArticleExtractionBolt(24);
+		urlExpander = new URLExpansionBolt("webpages")
+			.setResolutionCache(redisHost, redisPort);
+		pageFetcher = new WebPageFetcherBolt()
+			.setValidatorCache(redisHost, redisPort);
+		articleExtraction = new ArticleParserBolt()
+			.setValidatorCache(redisHost, redisPort)
+			.setExtractionCache(redisHost, redisPort);
 		mediaExtraction = new MediaExtractionBolt();
 		webPageUpdater = new WebPagesUpdaterBolt(mongodbHostname, webPagesDB);
 		textIndexer = new TextIndexerBolt(textIndexService);
 			
 		// Media Items Bolts
-		visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile);
+		visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile)
+			.setValidatorCache(redisHost, redisPort);
 		//clusterer = new ClustererBolt(mongodbHostname, mediaItemsDB, mediaItemsCollection, visualIndexHostname, visualIndexCollection, mediaTextIndexService);
 		mediaUpdater = new MediaUpdaterBolt(mongodbHostname, mediaItemsDB, streamUsersDB);
 		mediaTextIndexer = new MediaTextIndexerBolt(mediaTextIndexService);
@@ -171,13 +209,22 @@ public class SocialsensorCrawler {
 		TopologyBuilder builder = new TopologyBuilder();
 		
 		// Input in topology
-		builder.setSpout("wpSpout", wpSpout, 1);
-		builder.setSpout("miSpout", miSpout, 1);
+		builder.setSpout("wpSpout", wpSpout, spouts);
+		builder.setSpout("miSpout", miSpout, spouts);
 		
 		// Web Pages Bolts
-		builder.setBolt("wpDeserializer", wpDeserializer, 2).shuffleGrouping("wpSpout");
-		builder.setBolt("expander", urlExpander, 8).shuffleGrouping("wpDeserializer");
-		builder.setBolt("articleExtraction", articleExtraction, 1).shuffleGrouping("expander", "webpage");
+		String wpSource = "wpSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("wpDeserializer", wpDeserializer, 2).shuffleGrouping("wpSpout");
+			wpSource = "wpDeserializer";
+		}
+		builder.setBolt("expander", urlExpander, 8).shuffleGrouping(wpSource);
+		// fetching is bound by the network and extraction by the cores, each scales on its own
+		int workers = config.getInt("topology.workers", 2);
+		builder.setBolt("pageFetcher", pageFetcher, config.getInt("topology.fetchers", workers))
+			.shuffleGrouping("expander", "webpage");
+		builder.setBolt("articleExtraction", articleExtraction, config.getInt("topology.extractors", workers))
+			.localOrShuffleGrouping("pageFetcher");
 		builder.setBolt("mediaExtraction", mediaExtraction, 1).shuffleGrouping("expander", "media");
 		builder.setBolt("webPageUpdater", webPageUpdater, 1)
 			.shuffleGrouping("articleExtraction", "webpage")
@@ -185,9 +232,13 @@ public class SocialsensorCrawler {
 		builder.setBolt("textIndexer", textIndexer, 1).shuffleGrouping("articleExtraction", "webpage");
 
 		// Media Items Bolts
-		builder.setBolt("miDeserializer", miDeserializer, 2).shuffleGrouping("miSpout");
+		String miSource = "miSpout";
+		if(!deserializeAtSource) {
+			builder.setBolt("miDeserializer", miDeserializer, 2).shuffleGrouping("miSpout");
+			miSource = "miDeserializer";
+		}
         builder.setBolt("vIndexer", visualIndexer, 16)
-        	.shuffleGrouping("miDeserializer")
+        	.shuffleGrouping(miSource)
 			.shuffleGrouping("articleExtraction", "media")
 			.shuffleGrouping("mediaExtraction", "media");
         builder.setBolt("mediaupdater", mediaUpdater, 1).shuffleGrouping("vIndexer");
@@ -13,6 +13,9 @@ import gr.iti.mklab.focused.crawler.bolts.media.MediaUpdaterBolt;
 import gr.iti.mklab.focused.crawler.bolts.media.VisualIndexerBolt;
 import gr.iti.mklab.focused.crawler.bolts.metrics.MediaCounterBolt;
 import gr.iti.mklab.focused.crawler.spouts.RedisSpout;
+import gr.iti.mklab.focused.crawler.spouts.ReplaySpout;
+import gr.iti.mklab.focused.crawler.spouts.RedisStreamSpout;
+import gr.iti.mklab.focused.crawler.serialization.KryoSerializers;
 
 import org.apache.storm.Config;
 import org.apache.storm.LocalCluster;
@@ -78,6 +81,15 @@ public class VisualIndexer {
         Config conf = new Config();
         conf.setDebug(false);
         
+        // Kryo serializers for the tuple payloads, no fallback to Java serialization
+        KryoSerializers.register(conf);
+        
+        // Only effective with reliable spouts (redis.mode = streams)
+        int maxSpoutPending = config.getInt("topology.maxSpoutPending", 0);
+        if(maxSpoutPending > 0) {
+        	conf.setMaxSpoutPending(maxSpoutPending);
+        }
+        
         if(!local) {
         	System.out.println("Submit topology to Storm cluster");
 			try {
@@ -108,6 +120,9 @@ public class VisualIndexer {
 		String redisHost = config.getString("redis.hostname", "xxx.xxx.xxx.xxx");
 		int redisPort = config.getInt("redis.port", 6379);
 		String redisMediaChannel = config.getString("redis.mediaItemsChannel", "media");
+		String redisMode = config.getString("redis.mode", "pubsub");
+		String consumerGroup = config.getString("redis.consumerGroup", "VisualIndexer");
+		int spouts = config.getInt("redis.spouts", 1);
 		
 		String mongodbHostname = config.getString("mongodb.hostname", "xxx.xxx.xxx.xxx");
 		String mediaItemsDB = config.getString("mongodb.mediaItemsDB", "Prototype");
@@ -140,11 +155,26 @@ public class VisualIndexer {
 		IRichBolt mediaTextIndexer, clusterer;
 		
 		try {
-			miSpout = new RedisSpout(redisHost, redisPort, redisMediaChannel);	
+			if(redisMode.equals("streams")) {
+				miSpout = new RedisStreamSpout(redisHost, redisPort, redisMediaChannel, consumerGroup);
+			}
+			else if(redisMode.equals("replay")) {
+				miSpout = new ReplaySpout(config.getString("replay.path"), redisMediaChannel)
+					.setRate(config.getDouble("replay.rate", 0))
+					.setBurst(config.getInt("replay.burst", 0))
+					.setLoop(config.getBoolean("replay.loop", false))
+					.setShuffle(config.getBoolean("replay.shuffle", false));
+				spouts = 1;
+			}
+			else {
+				miSpout = new RedisSpout(redisHost, redisPort, redisMediaChannel);
+				spouts = 1;
+			}
 			miRanker = new MediaRankerBolt(redisMediaChannel);
 			
 			mediaCounter = new MediaCounterBolt(mongodbHostname, "Prototype");
-			visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile);
+			visualIndexer = new VisualIndexerBolt(visualIndexHostname, visualIndexCollection, codebookFiles, pcaFile)
+				.setValidatorCache(redisHost, redisPort);
 			clusterer = new ClustererBolt(mongodbHostname, mediaItemsDB, mediaItemsCollection, clustersDB, clustersCollection, visualIndexHostname, visualIndexCollection, mediaTextIndexService);
 			
 			mediaUpdater = new MediaUpdaterBolt(mongodbHostname, mediaItemsDB, streamUsersDB);
@@ -156,7 +186,7 @@ public class VisualIndexer {
 		
 		// Create topology 
 		TopologyBuilder builder = new TopologyBuilder();
-		builder.setSpout("miInjector", miSpout, 1);
+		builder.setSpout("miInjector", miSpout, spouts);
 				
 		builder.setBolt("miRanker", miRanker, 4).shuffleGrouping("miInjector");
 
@@ -1,26 +1,23 @@
 package gr.iti.mklab.focused.crawler.bolts;
 
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
+import gr.iti.mklab.focused.crawler.fetch.FetchCallback;
+import gr.iti.mklab.focused.crawler.fetch.FetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.FetchRequest;
+import gr.iti.mklab.focused.crawler.fetch.FetchResult;
+import gr.iti.mklab.focused.crawler.store.BlobStore;
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.framework.common.domain.WebPage;
 
-import java.io.InputStream;
-import java.net.URI;
-import java.util.ArrayList;
+import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -29,7 +26,6 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
-import org.apache.storm.utils.Utils;
 
 public class FetcherBolt extends BaseRichBolt {
 
@@ -41,28 +37,27 @@ public class FetcherBolt extends BaseRichBolt {
 	private Logger _logger;
 	
 	private OutputCollector _collector;
-	private HttpClient _httpclient;
 	
-	private PoolingHttpClientConnectionManager _cm;
+	private FetchEngine _engine;
 	
-	private int numOfFetchers = 24;
+	// tuples of this executor between execute() and their ack
+	private int maxInFlight = 256;
+	private Semaphore _inFlight;
 	
-	private BlockingQueue<WebPage> _queue;
-	private BlockingQueue<Pair<WebPage, byte[]>> _tupleQueue;
-
-	private RequestConfig _requestConfig;
+	private HandOffQueue<Pair<WebPage, ContentHandle>> _tupleQueue;
+	
+	private BlobStore _store;
 
 	private long receivedTuples = 0;
 	
 	private Thread _emitter;
-	private List<Thread> _fetchers;
 	
 	public FetcherBolt() {
 
 	}
 	
-	public FetcherBolt(int numOfFetchers) {
-		this.numOfFetchers = numOfFetchers;
+	public FetcherBolt(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
 	}
 	
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -77,163 +72,129 @@ public class FetcherBolt extends BaseRichBolt {
 		
 		_collector = collector;
 		
-		_queue = new LinkedBlockingQueue<WebPage>();
-		_tupleQueue =  new LinkedBlockingQueue<Pair<WebPage, byte[]>>();
+		// fetched content is kept in the worker and emitted as a handle, held until the consumer
+		// releases it or the tuple has been garbage collected
+		_store = BlobStore.getInstance(conf);
+		context.registerMetric("content_store", _store.getMetric(), 60);
 		
-		_cm = new PoolingHttpClientConnectionManager();
-		_cm.setMaxTotal(numOfFetchers);
-		_cm.setDefaultMaxPerRoute(10);
-
-		_httpclient = HttpClients.custom()
-		        .setConnectionManager(_cm)
-		        .build();
+		// never full, as each queued tuple holds a permit of _inFlight
+		_tupleQueue = new HandOffQueue<Pair<WebPage, ContentHandle>>(maxInFlight);
+		_tupleQueue.registerMetrics(context, "emit_queue", 60);
+		
+		// requests of all the bolts of the worker go through the same engine
+		_engine = FetchEngine.getInstance(conf);
+		context.registerMetric("fetch_engine", _engine.getMetric(), 60);
+		context.registerMetric("compression", _engine.getCompressionMetric(), 60);
+		context.registerMetric("dns_cache", DnsCache.getInstance(conf).getMetric(), 60);
+		if(_engine.getRobots() != null) {
+			context.registerMetric("robots", _engine.getRobots().getMetric(), 60);
+		}
+		context.registerMetric("body_reader", BodyReader.getInstance(conf).getMetric(), 60);
 		
-		// Set timeout parameters for Http requests
-		_requestConfig = RequestConfig.custom()
-		        .setSocketTimeout(30000)
-		        .setConnectTimeout(30000)
-		        .build();
+		_inFlight = new Semaphore(maxInFlight);
 	    
 	    _emitter = new Thread(new Emitter(_collector, _tupleQueue));
 	    _emitter.start();
-	    
-	    _fetchers = new ArrayList<Thread>(numOfFetchers);
-	    for(int i=0;i<numOfFetchers; i++) {
-	    	Thread fetcher = new Thread(new HttpFetcher(_queue));
-	    	fetcher.start();
-	    	
-	    	_fetchers.add(fetcher);
-	    }
 	}
 
-	public void execute(Tuple tuple) {
+	public void execute(final Tuple tuple) {
 		receivedTuples++;
-		WebPage webPage = (WebPage) tuple.getValueByField("webPage");
-		try {
-			if(webPage != null) {
-				_queue.put(webPage);
+		final WebPage webPage = (WebPage) tuple.getValueByField("webPage");
+		if(webPage == null) {
+			synchronized(_collector) {
+				_collector.ack(tuple);
 			}
+			return;
+		}
+		
+		// released by the emitter after the ack
+		try {
+			_inFlight.acquire();
 		} catch (InterruptedException e) {
 			_logger.error(e);
+			synchronized(_collector) {
+				_collector.fail(tuple);
+			}
+			return;
+		}
+		
+		final String expandedUrl = webPage.getExpandedUrl();
+		if(expandedUrl==null || expandedUrl.length()>300) {
+			_tupleQueue.put(tuple, Pair.of(webPage, ContentHandle.EMPTY));
+			return;
+		}
+		
+		FetchRequest request;
+		try {
+			request = FetchRequest.get(expandedUrl).accept(ContentType.TEXT_HTML.getMimeType());
+		} catch (URISyntaxException e) {
+			_logger.error("for " + expandedUrl, e);
+			_tupleQueue.put(tuple, Pair.of(webPage, ContentHandle.EMPTY));
+			return;
 		}
+		
+		_engine.fetch(request, new FetchCallback() {
+			public void completed(FetchResult result) {
+				if(!result.isAccepted()) {
+					_logger.error("URL: " + expandedUrl + 
+							"   Not supported mime type: " + result.getMimeType());
+					
+					_tupleQueue.put(tuple, Pair.of(webPage, ContentHandle.EMPTY));
+				}
+				else {
+					_tupleQueue.put(tuple, Pair.of(webPage, _store.put(result.getContent())));
+				}
+			}
+
+			public void failed(FetchRequest request, Exception e) {
+				_logger.error("for " + expandedUrl + ": " + e);
+				_tupleQueue.put(tuple, Pair.of(webPage, ContentHandle.EMPTY));
+			}
+		});
 	}   
 	
 	private class Emitter implements Runnable {
 
 		private OutputCollector _collector;
-		private BlockingQueue<Pair<WebPage, byte[]>> _tupleQueue;
+		private HandOffQueue<Pair<WebPage, ContentHandle>> _tupleQueue;
 		
 		private int mediaTuples = 0, webPagesTuples = 0;
 		
-		public Emitter(OutputCollector collector, BlockingQueue<Pair<WebPage, byte[]>> tupleQueue) {
+		public Emitter(OutputCollector collector, HandOffQueue<Pair<WebPage, ContentHandle>> tupleQueue) {
 			_collector = collector;
 			_tupleQueue = tupleQueue;
 		}
 		
 		public void run() {
 			while(true) {
-				Pair<?, ?> obj = _tupleQueue.poll();
-				if(obj != null) {
-					synchronized(_collector) {
+				List<HandOffQueue.Entry<Pair<WebPage, ContentHandle>>> batch;
+				try {
+					batch = _tupleQueue.take(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<Pair<WebPage, ContentHandle>> entry : batch) {
+						Pair<?, ?> obj = entry.getValue();
 						if(MediaItem.class.isInstance(obj.getLeft())) {
 							mediaTuples++;
-							_collector.emit(MEDIA_STREAM, new Values(obj.getLeft(), obj.getRight()));
+							_collector.emit(MEDIA_STREAM, entry.getAnchor(), new Values(obj.getLeft(), obj.getRight()));
 						}
 						else if(WebPage.class.isInstance(obj.getLeft())) {
 							webPagesTuples++;
-							_collector.emit(WEBPAGE_STREAM, new Values(obj.getLeft(), obj.getRight()));
+							_collector.emit(WEBPAGE_STREAM, entry.getAnchor(), new Values(obj.getLeft(), obj.getRight()));
 						}
+						_collector.ack(entry.getAnchor());
 					}
 				}
-				else {
-					Utils.sleep(500);
-				}
+				_inFlight.release(batch.size());
 				
 				if((mediaTuples%100==0 || webPagesTuples%100==0) && (mediaTuples!=0 || webPagesTuples!=0)) {
 					_logger.info(receivedTuples + " tuples received, " + mediaTuples + " media tuples emmited, " + 
 							webPagesTuples + " web page tuples emmited");
-					_logger.info(getWorkingFetchers() + " fetchers out of " + numOfFetchers + " are working.");
-				}
-			}
-		}
-	}
-	
-	private int getWorkingFetchers() {
-		int working = 0;
-		for(Thread fetcher : _fetchers) {
-			if(fetcher.isAlive())
-				working++;
-		}
-		return working;
-	}
-	
-	private class HttpFetcher implements Runnable {
-
-		private BlockingQueue<WebPage> queue;
-		
-		public HttpFetcher(BlockingQueue<WebPage> _queue) {
-			this.queue = _queue;
-		}
-		
-		public void run() {
-			while(true) {
-				
-				WebPage webPage = null;
-				try {
-					webPage = queue.take();
-				} catch (Exception e) {
-					_logger.error(e);
-					continue;
-				}
-				
-				if(webPage == null) {
-					continue;
+					_logger.info((maxInFlight - _inFlight.availablePermits()) + " tuples in flight out of " + maxInFlight + ".");
 				}
-				
-				String expandedUrl = webPage.getExpandedUrl();
-				if(expandedUrl==null || expandedUrl.length()>300) {
-					_tupleQueue.add(Pair.of(webPage, new byte[0]));
-					continue;
-				}
-				
-				HttpGet httpget = null;
-				try {
-					
-					URI uri = new URI(expandedUrl
-							.replaceAll(" ", "%20")
-							.replaceAll("\\|", "%7C")
-							);
-					
-					httpget = new HttpGet(uri);
-					httpget.setConfig(_requestConfig);
-					HttpResponse response = _httpclient.execute(httpget);
-					
-					HttpEntity entity = response.getEntity();
-					ContentType contentType = ContentType.get(entity);
-	
-					if(!contentType.getMimeType().equals(ContentType.TEXT_HTML.getMimeType())) {
-						_logger.error("URL: " + webPage.getExpandedUrl() + 
-								"   Not supported mime type: " + contentType.getMimeType());
-						
-						_tupleQueue.add(Pair.of(webPage, new byte[0]));
-						
-						continue;
-					}
-					
-					InputStream input = entity.getContent();
-					byte[] content = IOUtils.toByteArray(input);
-					
-					_tupleQueue.add(Pair.of(webPage, content));
-					
-				} catch (Exception e) {
-					_logger.error("for " + expandedUrl, e);
-					_tupleQueue.add(Pair.of(webPage, new byte[0]));
-				}
-				finally {
-					if(httpget != null)
-						httpget.abort();
-				}
-				
 			}
 		}
 	}
@@ -0,0 +1,218 @@
+package gr.iti.mklab.focused.crawler.bolts;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Hands values over from the threads of a bolt (fetch callbacks, workers) to the thread
+ *	that emits them. Each value travels with the input tuple it derives from, so that the
+ *	emitter can anchor the output and ack the input.
+ *
+ *	The emitter blocks in take() until a value arrives and gets everything that is queued
+ *	at that point, up to a batch size. The time values spend in the queue is reported by the
+ *	metric registered with registerMetrics().
+ *
+ *	A queue with a capacity blocks put() while it is full, so that a slow consumer slows
+ *	down execute() and, as the consumer acks the inputs only after it is done with them,
+ *	topology.max.spout.pending throttles the spouts. offer() gives up after a timeout
+ *	instead, the value is counted as dropped and the caller should fail its input.
+ */
+public class HandOffQueue<T> {
+
+	private final BlockingQueue<Entry<T>> queue;
+	
+	// free slots of a bounded queue, null if unbounded
+	private final Semaphore space;
+
+	private final AtomicLong handedOff = new AtomicLong(0);
+	private final AtomicLong waitTime = new AtomicLong(0);
+	private final AtomicLong maxWaitTime = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong blockedTime = new AtomicLong(0);
+
+	public static class Entry<T> {
+
+		private final Tuple anchor;
+		private final T value;
+		private final long queued = System.currentTimeMillis();
+
+		Entry(Tuple anchor, T value) {
+			this.anchor = anchor;
+			this.value = value;
+		}
+
+		/**
+		 * The input tuple of the value, null for values without input.
+		 */
+		public Tuple getAnchor() {
+			return anchor;
+		}
+
+		public T getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Values are taken in the order they are put.
+	 */
+	public HandOffQueue() {
+		this(0);
+	}
+
+	/**
+	 * Values are taken in the order they are put, at most capacity of them are queued (0 for no limit).
+	 */
+	public HandOffQueue(int capacity) {
+		queue = new LinkedBlockingQueue<Entry<T>>();
+		space = capacity > 0 ? new Semaphore(capacity) : null;
+	}
+
+	/**
+	 * Values are taken in the order of the comparator, smallest first.
+	 */
+	public HandOffQueue(Comparator<? super T> comparator) {
+		this(0, comparator);
+	}
+
+	/**
+	 * Values are taken in the order of the comparator, at most capacity of them are queued (0 for no limit).
+	 */
+	public HandOffQueue(int capacity, final Comparator<? super T> comparator) {
+		queue = new PriorityBlockingQueue<Entry<T>>(64, new Comparator<Entry<T>>() {
+			public int compare(Entry<T> e1, Entry<T> e2) {
+				return comparator.compare(e1.value, e2.value);
+			}
+		});
+		space = capacity > 0 ? new Semaphore(capacity) : null;
+	}
+
+	/**
+	 * Queues a value, waiting while the queue is full.
+	 */
+	public void put(Tuple anchor, T value) {
+		if(space != null && !space.tryAcquire()) {
+			long started = System.currentTimeMillis();
+			space.acquireUninterruptibly();
+			blockedTime.addAndGet(System.currentTimeMillis() - started);
+		}
+		queue.add(new Entry<T>(anchor, value));
+	}
+
+	/**
+	 * Queues a value, waiting at most timeout while the queue is full. Returns false if the value was dropped.
+	 */
+	public boolean offer(Tuple anchor, T value, long timeout, TimeUnit unit) throws InterruptedException {
+		if(space != null && !space.tryAcquire()) {
+			long started = System.currentTimeMillis();
+			boolean acquired = space.tryAcquire(timeout, unit);
+			blockedTime.addAndGet(System.currentTimeMillis() - started);
+			if(!acquired) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		queue.add(new Entry<T>(anchor, value));
+		return true;
+	}
+
+	/**
+	 * Waits for the next value and returns it together with the values queued after it, at most batchSize.
+	 */
+	public List<Entry<T>> take(int batchSize) throws InterruptedException {
+		List<Entry<T>> batch = new ArrayList<Entry<T>>(Math.min(batchSize, 64));
+		batch.add(queue.take());
+		queue.drainTo(batch, batchSize - 1);
+
+		return handOff(batch);
+	}
+
+	/**
+	 * Waits for the next value, then keeps collecting values for at most lingerMs or until there are batchSize of them.
+	 * The values of the batch count against the capacity until it is returned.
+	 */
+	public List<Entry<T>> take(int batchSize, long lingerMs) throws InterruptedException {
+		List<Entry<T>> batch = new ArrayList<Entry<T>>(Math.min(batchSize, 64));
+		batch.add(queue.take());
+
+		long deadline = System.currentTimeMillis() + lingerMs;
+		while(batch.size() < batchSize) {
+			queue.drainTo(batch, batchSize - batch.size());
+			long remaining = deadline - System.currentTimeMillis();
+			if(batch.size() >= batchSize || remaining <= 0) {
+				break;
+			}
+
+			Entry<T> entry = queue.poll(remaining, TimeUnit.MILLISECONDS);
+			if(entry == null) {
+				break;
+			}
+			batch.add(entry);
+		}
+
+		return handOff(batch);
+	}
+
+	private List<Entry<T>> handOff(List<Entry<T>> batch) {
+		if(space != null) {
+			space.release(batch.size());
+		}
+
+		long now = System.currentTimeMillis();
+		long total = 0, max = 0;
+		for(Entry<T> entry : batch) {
+			long wait = now - entry.queued;
+			total += wait;
+			max = Math.max(max, wait);
+		}
+
+		handedOff.addAndGet(batch.size());
+		waitTime.addAndGet(total);
+		if(max > maxWaitTime.get()) {
+			maxWaitTime.set(max);
+		}
+		return batch;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Registers a metric with the depth of the queue, the mean and max time that values wait in it,
+	 * the values dropped by offer() and the time producers were blocked on a full queue.
+	 */
+	public void registerMetrics(TopologyContext context, String name, int timeBucketSizeInSecs) {
+		context.registerMetric(name, new IMetric() {
+			public Object getValueAndReset() {
+				long count = handedOff.getAndSet(0);
+				long wait = waitTime.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("depth", (long) queue.size());
+				values.put("handed_off", count);
+				values.put("wait_ms", count == 0 ? 0d : (double) wait / count);
+				values.put("max_wait_ms", maxWaitTime.getAndSet(0));
+				values.put("dropped", dropped.getAndSet(0));
+				values.put("blocked_ms", blockedTime.getAndSet(0));
+				return values;
+			}
+		}, timeBucketSizeInSecs);
+	}
+
+}
@@ -38,15 +38,27 @@ public class ItemDeserializationBolt extends BaseRichBolt {
 	}
 
 	public void execute(Tuple input) {
+		Item item = null;
 		try {
 			String json = input.getStringByField(inputField);
 			if(json != null) {
-				Item item = Item.toObject(json, Item.class);
-				_collector.emit(tuple(item));
+				item = Item.toObject(json, Item.class);
 			}
 		} catch(Exception e) {
 			_logger.error("Exception: "+e.getMessage());
 		}
+		
+		// Anchored to the input, so that the entry is acked at the source once the whole tree is done.
+		// Malformed messages are acked as well, a replay would fail in the same way
+		try {
+			if(item != null) {
+				_collector.emit(input, tuple(item));
+			}
+			_collector.ack(input);
+		} catch(Exception e) {
+			_logger.error("Failed to emit: " + e.getMessage());
+			_collector.fail(input);
+		}
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
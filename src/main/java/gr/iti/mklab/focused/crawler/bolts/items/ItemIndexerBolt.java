@@ -1,5 +1,6 @@
 package gr.iti.mklab.focused.crawler.bolts.items;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.client.search.solr.SolrItemHandler;
 import gr.iti.mklab.framework.client.search.solr.beans.ItemBean;
 import gr.iti.mklab.framework.common.domain.Item;
@@ -7,7 +8,7 @@ import gr.iti.mklab.framework.common.domain.Item;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -29,7 +30,9 @@ public class ItemIndexerBolt extends BaseRichBolt {
 	private String _service;
 	private SolrItemHandler _solrItemHandler;
 
-	private ArrayBlockingQueue<Item> queue;
+	private OutputCollector _collector;
+	
+	private HandOffQueue<Item> queue;
 	
 	public ItemIndexerBolt(String service) {
 		this._service = service;
@@ -43,7 +46,11 @@ public class ItemIndexerBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		_logger = Logger.getLogger(ItemIndexerBolt.class);
 		
-		queue = new ArrayBlockingQueue<Item>(5000);
+		_collector = collector;
+		
+		queue = new HandOffQueue<Item>(5000);
+		queue.registerMetrics(context, "index_queue", 60);
+		
 		try {
 			_solrItemHandler = SolrItemHandler.getInstance(_service);
 		} catch (Exception e) {
@@ -60,34 +67,45 @@ public class ItemIndexerBolt extends BaseRichBolt {
 		try {
 			Item mediaItem = (Item) tuple.getValueByField("Item");
 		
-			if(mediaItem == null || _solrItemHandler == null)
+			if(mediaItem != null && _solrItemHandler != null) {
+				// acked by the indexer, failed if the indexer does not keep up
+				if(!queue.offer(tuple, mediaItem, 10, TimeUnit.SECONDS)) {
+					_logger.error("Index queue is full, item " + mediaItem.getId() + " dropped");
+					synchronized(_collector) {
+						_collector.fail(tuple);
+					}
+				}
 				return;
-			
-			queue.add(mediaItem);
+			}
 		}
 		catch(Exception ex) {
 			ex.printStackTrace();
 			_logger.error(ex);
-		}		
+		}
+		
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
 	}
  
 	public class TextIndexer implements Runnable {
 		public void run() {
 			while(true) {
+				List<HandOffQueue.Entry<Item>> items;
+				try {
+					items = queue.take(5000, 60 * 1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				boolean inserted = false;
 				try {
-					Thread.sleep(60 * 1000);
-
-					List<Item> items = new ArrayList<Item>();
-					synchronized(queue) {
-						queue.drainTo(items);
-					}
-					
 					List<ItemBean> itemBeans = new ArrayList<ItemBean>();
-					for(Item item : items) {
-						ItemBean itemBean = new ItemBean(item);
+					for(HandOffQueue.Entry<Item> item : items) {
+						ItemBean itemBean = new ItemBean(item.getValue());
 						itemBeans.add(itemBean);
 					}
-					boolean inserted = _solrItemHandler.insert(itemBeans);
+					inserted = _solrItemHandler.insert(itemBeans);
 					
 					if(inserted) {
 						_logger.info(items.size() + " items indexed in Solr");
@@ -97,7 +115,17 @@ public class ItemIndexerBolt extends BaseRichBolt {
 					}
 				} catch (Exception e) {
 					_logger.error(e);
-					continue;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<Item> item : items) {
+						if(inserted) {
+							_collector.ack(item.getAnchor());
+						}
+						else {
+							_collector.fail(item.getAnchor());
+						}
+					}
 				}
 			}
 		}
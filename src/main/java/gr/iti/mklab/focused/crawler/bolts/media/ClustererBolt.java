@@ -5,9 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
@@ -17,6 +15,7 @@ import org.mongodb.morphia.dao.BasicDAO;
 import org.mongodb.morphia.query.Query;
 import org.mongodb.morphia.query.UpdateOperations;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.client.mongo.DAOFactory;
 import gr.iti.mklab.framework.client.search.visual.VisualIndexClient;
 import gr.iti.mklab.framework.client.search.visual.VisualIndexResponse;
@@ -49,7 +48,10 @@ public class ClustererBolt extends BaseRichBolt {
 	private BasicDAO<MediaItem, String> _mediaItemDAO = null;
 	private BasicDAO<Cluster, String> _mediaClusterDAO = null;
 
-	private Queue<Pair<?, ?>> _mQ = new LinkedBlockingQueue<Pair<?, ?>>();
+	private OutputCollector _collector;
+	
+	// media items waiting for the clusterer, acked once they are assigned to a cluster
+	private HandOffQueue<Pair<String, String>> _mQ;
 
 	private Map<String, String> newClusters = new HashMap<String, String>();
 	private Map<String, String> existingClusters = new HashMap<String, String>();
@@ -99,6 +101,11 @@ public class ClustererBolt extends BaseRichBolt {
 		
 		logger = Logger.getLogger(ClustererBolt.class);
 		
+		_collector = collector;
+		
+		_mQ = new HandOffQueue<Pair<String, String>>(10000);
+		_mQ.registerMetrics(context, "cluster_queue", 60);
+		
 		try {
 			DAOFactory daoFactory = new DAOFactory();
 			
@@ -127,57 +134,59 @@ public class ClustererBolt extends BaseRichBolt {
 		try {
 			MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
 			
-			if(mediaItem == null)
-				return;
-			
-			String id = mediaItem.getId();
-			
-			VisualIndexResponse response = _visualIndex.getSimilarImages(id, threshold);
+			if(mediaItem != null) {
+				String id = mediaItem.getId();
+				
+				VisualIndexResponse response = _visualIndex.getSimilarImages(id, threshold);
 			
-			List<JsonResult> results = response.getResults();
-			String nearestId = null;
-			for(JsonResult result : results) {
-				nearestId = result.getId();
-				if(id.equals(nearestId)) {
-					continue;
+				List<JsonResult> results = response.getResults();
+				String nearestId = null;
+				for(JsonResult result : results) {
+					nearestId = result.getId();
+					if(id.equals(nearestId)) {
+						continue;
+					}
 				}
+				
+				// waits while the clusterer is behind
+				_mQ.put(tuple, Pair.of(id, nearestId));
+				return;
 			}
-			_mQ.offer(Pair.of(id, nearestId));
-			
 		}
 		catch(Exception e) {
 			logger.error(e);
 		}
 		
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
 	}   
 	
 	public class Clusterer implements Runnable {
 
-		private Queue<Pair<?, ?>> queue;
+		private HandOffQueue<Pair<String, String>> queue;
 		
-		public Clusterer(Queue<Pair<?, ?>> queue) {
+		public Clusterer(HandOffQueue<Pair<String, String>> queue) {
 			this.queue = queue;
 		}
 		
 		public void run() {
 			
 			while(true) {
-				Pair<?, ?> pair = queue.poll();
-				if(pair == null) {
-					// Sleep one second
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e) {
-						logger.error(e);
-					}
+				List<HandOffQueue.Entry<Pair<String, String>>> pairs;
+				try {
+					pairs = queue.take(100);
+				} catch (InterruptedException e) {
+					return;
 				}
-				else {
-					String id = (String) pair.getLeft();
-					Object nearestId = pair.getRight();
+				
+				for(HandOffQueue.Entry<Pair<String, String>> pair : pairs) {
+					String id = pair.getValue().getLeft();
+					String nearestId = pair.getValue().getRight();
 					
 					if(nearestId != null) {
 						synchronized(existingClusters) {
-							existingClusters.put(id, (String) nearestId);
+							existingClusters.put(id, nearestId);
 						}
 					}
 					else {
@@ -188,6 +197,12 @@ public class ClustererBolt extends BaseRichBolt {
 						}
 					}
 				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<Pair<String, String>> pair : pairs) {
+						_collector.ack(pair.getAnchor());
+					}
+				}
 			}
 		}
 		
@@ -12,17 +12,20 @@ import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 
+import gr.iti.mklab.focused.crawler.fetch.BlockingFetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
 import gr.iti.mklab.focused.crawler.models.ImageVector;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.visual.aggregation.VladAggregatorMultipleVocabularies;
@@ -54,6 +57,8 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 	private CloseableHttpClient _httpclient;
 
 	private RequestConfig _requestConfig;
+	
+	private BodyReader _reader;
 
 	private static int[] numCentroids = { 128, 128, 128, 128 };
 	private static int targetLengthMax = 1024;
@@ -83,12 +88,18 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 		_logger = Logger.getLogger(FeatureExtractorBolt.class);
 		
 		_collector = collector;
+		
+		_reader = BodyReader.getInstance(stormConf);
+		context.registerMetric("body_reader", _reader.getMetric(), 60);
+		
+		DnsCache dns = DnsCache.getInstance(stormConf);
+		context.registerMetric("dns_cache", dns.getMetric(), 60);
 
 		_requestConfig = RequestConfig.custom()
 		        .setSocketTimeout(30000)
 		        .setConnectTimeout(30000)
 		        .build();
-		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		PoolingHttpClientConnectionManager cm = BlockingFetchEngine.newConnectionManager(dns);
 		_httpclient = HttpClients.custom()
 		        .setConnectionManager(cm)
 		        .build();
@@ -96,9 +107,12 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 
 	public void execute(Tuple tuple) {
 		MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
-		if(mediaItem == null)
+		if(mediaItem == null) {
+			_collector.ack(tuple);
 			return;
+		}
 		
+		// the item goes on without a vector if the fetch or the extraction fails
 		HttpGet httpget = null;
 		ImageVector imageVector = null;
 		try {
@@ -118,8 +132,6 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 				_logger.error("Failed fetch media item " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, imageVector));
-				
 				return;
 			}
 			
@@ -128,13 +140,12 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 				_logger.error("Entity is null for " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, imageVector));
-				
 				return;
 			}
 			
+			// capped at fetch.maxBytes.image, oversized images are not downloaded
 			InputStream input = entity.getContent();
-			byte[] imageContent = IOUtils.toByteArray(input);
+			byte[] imageContent = _reader.read(input, ContentType.getOrDefault(entity).getMimeType(), entity.getContentLength());
 			
 			BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageContent));
 		
@@ -154,16 +165,26 @@ public class FeatureExtractorBolt extends BaseRichBolt {
 				
 				imageVector = new ImageVector(id, url, vector);				
 			}
-			_collector.emit(tuple(mediaItem, imageVector));
-			
 		} 
 		catch (Exception e) {
 			_logger.error(e);
-			_collector.emit(tuple(mediaItem, imageVector));
 		}
 		finally {
 			if(httpget != null)
 				httpget.abort();
+			emit(tuple, mediaItem, imageVector);
+		}
+	}
+
+	// anchored to the input, that is acked once the item is handed off
+	private void emit(Tuple input, MediaItem mediaItem, ImageVector imageVector) {
+		try {
+			_collector.emit(input, tuple(mediaItem, imageVector));
+			_collector.ack(input);
+		}
+		catch(Exception e) {
+			_logger.error("Failed to emit " + mediaItem.getId() + ": " + e.getMessage());
+			_collector.fail(input);
 		}
 	}
 
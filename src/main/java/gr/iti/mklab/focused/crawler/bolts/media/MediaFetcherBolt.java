@@ -1,16 +1,20 @@
 package gr.iti.mklab.focused.crawler.bolts.media;
 
+import gr.iti.mklab.focused.crawler.fetch.BlockingFetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
+import gr.iti.mklab.focused.crawler.store.BlobStore;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 
 import java.io.InputStream;
 import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
@@ -36,6 +40,10 @@ public class MediaFetcherBolt extends BaseRichBolt {
 
 	private RequestConfig _requestConfig;
 	
+	private BodyReader _reader;
+	
+	private BlobStore _store;
+	
 	public MediaFetcherBolt() throws Exception {
 
 	}
@@ -46,13 +54,24 @@ public class MediaFetcherBolt extends BaseRichBolt {
 		_logger = Logger.getLogger(MediaFetcherBolt.class);
 		
 		_collector = collector;
+		
+		_reader = BodyReader.getInstance(stormConf);
+		context.registerMetric("body_reader", _reader.getMetric(), 60);
+		
+		DnsCache dns = DnsCache.getInstance(stormConf);
+		context.registerMetric("dns_cache", dns.getMetric(), 60);
 
+		// image bytes are kept in the worker and emitted as a handle, held until the consumer
+		// releases it or the tuple has been garbage collected
+		_store = BlobStore.getInstance(stormConf);
+		context.registerMetric("content_store", _store.getMetric(), 60);
+		
 		_requestConfig = RequestConfig.custom()
 		        .setSocketTimeout(30000)
 		        .setConnectTimeout(30000)
 		        .build();
 		
-		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		PoolingHttpClientConnectionManager cm = BlockingFetchEngine.newConnectionManager(dns);
 		_httpclient = HttpClients.custom()
 		        .setConnectionManager(cm)
 		        .build();
@@ -60,9 +79,13 @@ public class MediaFetcherBolt extends BaseRichBolt {
 
 	public void execute(Tuple tuple) {
 		MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
-		if(mediaItem == null)
+		if(mediaItem == null) {
+			_collector.ack(tuple);
 			return;
+		}
 		
+		// the item goes on without content if the fetch fails
+		Object imageContent = null;
 		HttpGet httpget = null;
 		try {
 			String id = mediaItem.getId();
@@ -81,8 +104,6 @@ public class MediaFetcherBolt extends BaseRichBolt {
 				_logger.error("Failed fetch media item " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, null));
-				
 				return;
 			}
 			
@@ -91,25 +112,35 @@ public class MediaFetcherBolt extends BaseRichBolt {
 				_logger.error("Entity is null for " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, null));
-				
 				return;
 			}
 			
+			// capped at fetch.maxBytes.image, oversized images are not downloaded
 			InputStream input = entity.getContent();
-			byte[] imageContent = IOUtils.toByteArray(input);
-			
-			_collector.emit(tuple(mediaItem, imageContent));
+			byte[] bytes = _reader.read(input, ContentType.getOrDefault(entity).getMimeType(), entity.getContentLength());
 			
+			imageContent = _store.put(bytes);
 		} 
 		catch (Exception e) {
 			_logger.error(e);
-			_collector.emit(tuple(mediaItem, null));
 		}
 		finally {
 			if(httpget != null) {
 				httpget.abort();
 			}
+			emit(tuple, mediaItem, imageContent);
+		}
+	}
+
+	// anchored to the input, that is acked once the item is handed off
+	private void emit(Tuple input, MediaItem mediaItem, Object imageContent) {
+		try {
+			_collector.emit(input, tuple(mediaItem, imageContent));
+			_collector.ack(input);
+		}
+		catch(Exception e) {
+			_logger.error("Failed to emit " + mediaItem.getId() + ": " + e.getMessage());
+			_collector.fail(input);
 		}
 	}
 
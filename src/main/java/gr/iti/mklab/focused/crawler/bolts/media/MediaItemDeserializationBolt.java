@@ -40,14 +40,24 @@ public class MediaItemDeserializationBolt extends BaseRichBolt {
 	}
 
 	public void execute(Tuple input) {
+		MediaItem mediaItem = null;
 		try {
 			String json = input.getStringByField(inputField);
-			MediaItem mediaItem = MediaItem.toObject(json, MediaItem.class);
+			mediaItem = MediaItem.toObject(json, MediaItem.class);
+		} catch(Exception e) {
+			_logger.error("Exception: "+e.getMessage());
+		}
+		
+		// Anchored to the input, so that the entry is acked at the source once the whole tree is done.
+		// Malformed messages are acked as well, a replay would fail in the same way
+		try {
 			if(mediaItem != null) {
-				_collector.emit(tuple(mediaItem));
+				_collector.emit(input, tuple(mediaItem));
 			}
+			_collector.ack(input);
 		} catch(Exception e) {
-				_logger.error("Exception: "+e.getMessage());
+			_logger.error("Failed to emit: " + e.getMessage());
+			_collector.fail(input);
 		}
 	}
 
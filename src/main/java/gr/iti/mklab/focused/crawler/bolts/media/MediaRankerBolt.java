@@ -44,7 +44,7 @@ public class MediaRankerBolt extends BaseRichBolt {
 		double sharesScore = 1 - Math.exp(-0.05 * shares);
 		sharesScore = (sharesScore + 1) / 2;
 		
-		_collector.emit(new Values(mediaItem, sharesScore));
+		_collector.emit(tuple, new Values(mediaItem, sharesScore));
         _collector.ack(tuple);
         
 	}   
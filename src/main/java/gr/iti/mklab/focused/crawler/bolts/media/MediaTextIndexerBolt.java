@@ -1,5 +1,6 @@
 package gr.iti.mklab.focused.crawler.bolts.media;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.client.search.solr.SolrMediaItemHandler;
 import gr.iti.mklab.framework.client.search.solr.beans.MediaItemBean;
 import gr.iti.mklab.framework.common.domain.MediaItem;
@@ -7,7 +8,7 @@ import gr.iti.mklab.framework.common.domain.MediaItem;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -31,7 +32,9 @@ public class MediaTextIndexerBolt extends BaseRichBolt {
 
 	private SolrMediaItemHandler _solrMediaHandler;
 
-	private ArrayBlockingQueue<MediaItem> queue;
+	private OutputCollector _collector;
+	
+	private HandOffQueue<MediaItem> queue;
 	
 	public MediaTextIndexerBolt(String service) {
 		this.service = service;
@@ -45,7 +48,11 @@ public class MediaTextIndexerBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		logger = Logger.getLogger(MediaTextIndexerBolt.class);
 		
-		queue = new ArrayBlockingQueue<MediaItem>(5000);
+		_collector = collector;
+		
+		queue = new HandOffQueue<MediaItem>(5000);
+		queue.registerMetrics(context, "index_queue", 60);
+		
 		try {
 			_solrMediaHandler = SolrMediaItemHandler.getInstance(service);
 		} catch (Exception e) {
@@ -63,38 +70,47 @@ public class MediaTextIndexerBolt extends BaseRichBolt {
 		try {
 			MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
 		
-			if(mediaItem == null || _solrMediaHandler == null)
+			if(mediaItem != null && _solrMediaHandler != null) {
+				// acked by the indexer, failed if the indexer does not keep up
+				if(!queue.offer(tuple, mediaItem, 10, TimeUnit.SECONDS)) {
+					logger.error("Index queue is full, media item " + mediaItem.getId() + " dropped");
+					synchronized(_collector) {
+						_collector.fail(tuple);
+					}
+				}
 				return;
-			
-			queue.add(mediaItem);
+			}
 		}
 		catch(Exception ex) {
 			ex.printStackTrace();
 			logger.error(ex);
 		}
 		
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
 	}
  
 	public class TextIndexer implements Runnable {
 
 		public void run() {
 			while(true) {
+				// Just wait 15 seconds to collect a batch
+				List<HandOffQueue.Entry<MediaItem>> mItems;
+				try {
+					mItems = queue.take(5000, 15 * 1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				boolean inserted = false;
 				try {
-					// Just wait 15 seconds
-					Thread.sleep(15 * 1000);
-
-					List<MediaItem> mItems = new ArrayList<MediaItem>();
-					queue.drainTo(mItems);
-					
-					if(mItems.isEmpty())
-						continue;
-					
 					List<MediaItemBean> miBeans = new ArrayList<MediaItemBean>();
-					for(MediaItem mi : mItems) {
-						miBeans.add(new MediaItemBean(mi));
+					for(HandOffQueue.Entry<MediaItem> mi : mItems) {
+						miBeans.add(new MediaItemBean(mi.getValue()));
 					}
 
-					boolean inserted = _solrMediaHandler.insert(miBeans);
+					inserted = _solrMediaHandler.insert(miBeans);
 					
 					if(inserted) {
 						logger.info(mItems.size() + " media items indexed in Solr.");
@@ -104,7 +120,17 @@ public class MediaTextIndexerBolt extends BaseRichBolt {
 					}
 				} catch (Exception e) {
 					logger.error(e);
-					continue;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<MediaItem> mi : mItems) {
+						if(inserted) {
+							_collector.ack(mi.getAnchor());
+						}
+						else {
+							_collector.fail(mi.getAnchor());
+						}
+					}
 				}
 			}
 		}
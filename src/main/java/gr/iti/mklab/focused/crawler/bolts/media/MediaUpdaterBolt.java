@@ -35,7 +35,7 @@ public class MediaUpdaterBolt extends BaseRichBolt {
 	
 	private BasicDAO<MediaItem, String> _mediaItemDAO;
 	private BasicDAO<StreamUser, String> _streamUsersDAO;
-	//private OutputCollector _collector;
+	private OutputCollector _collector;
 
 	private long received = 0;
 	private long newMedia=0, existedMedia = 0;
@@ -55,13 +55,12 @@ public class MediaUpdaterBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		
 		_logger = Logger.getLogger(MediaUpdaterBolt.class);
+		_collector = collector;
 		try {
 			DAOFactory daoFactory = new DAOFactory();
 			
 			_mediaItemDAO = daoFactory.getDAO(_mongodbHostname, _mediaItemsDB, MediaItem.class);
 			_streamUsersDAO = daoFactory.getDAO(_mongodbHostname, _streamUsersDB, StreamUser.class);
-			
-			//_collector = collector;
 		} catch (Exception e) {
 			_logger.error(e);
 		}
@@ -77,8 +76,10 @@ public class MediaUpdaterBolt extends BaseRichBolt {
 			}
 				
 			MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
-				if(mediaItem == null)
+				if(mediaItem == null) {
+					_collector.ack(tuple);
 					return;
+				}
 			
 				String mId = mediaItem.getId();
 				
@@ -125,11 +126,17 @@ public class MediaUpdaterBolt extends BaseRichBolt {
 					}
 				}
 				
+				_collector.ack(tuple);
 			}
 			catch(Exception e) {
 				_logger.error(e);
+				// replayed, the update is idempotent
+				_collector.fail(tuple);
 			}
 		}
+		else {
+			_collector.ack(tuple);
+		}
 	}   
 	
 }
\ No newline at end of file
@@ -23,6 +23,8 @@ public class RedisBolt extends BaseRichBolt {
 	 */
 	private static final long serialVersionUID = 1L;
 	
+	private OutputCollector _collector;
+	
 	private Jedis publisherJedis;
 	private String host, channel;
 
@@ -39,6 +41,7 @@ public class RedisBolt extends BaseRichBolt {
 		JedisPoolConfig poolConfig = new JedisPoolConfig();
         JedisPool jedisPool = new JedisPool(poolConfig, host, 6379, 0);
 		
+        _collector = collector;
         publisherJedis = jedisPool.getResource();
         logger = Logger.getLogger(RedisBolt.class);
 	}
@@ -53,6 +56,8 @@ public class RedisBolt extends BaseRichBolt {
 		catch(Exception e) {
 			logger.error(e);
 		}
+		// a notification, not worth a replay of the media item
+		_collector.ack(input);
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -50,26 +50,34 @@ public class StatusCheckBolt extends BaseRichBolt {
 	@Override
 	public void execute(Tuple tuple) {
 		
+		Jedis jedis = null;
 		try {
 			MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
 			if(mediaItem == null) {
+				collector.ack(tuple);
 				return;
 			}
 			
-			Jedis jedis = _pool.getResource();
+			jedis = _pool.getResource();
 		
 			String mId = mediaItem.getId();
 			String value = jedis.hget(mId, "STATUS");
 			
 			if(value == null) {
-				collector.emit(tuple(mediaItem));
+				collector.emit(tuple, tuple(mediaItem));
 				jedis.hset(mId, "STATUS", "INJECTED");
 			}
-		
-			_pool.returnResource(jedis);
+			collector.ack(tuple);
 		}
 		catch(Exception e) {
+			// replayed, the status of the item may not be known yet
 			_logger.error(e);
+			collector.fail(tuple);
+		}
+		finally {
+			if(jedis != null) {
+				jedis.close();
+			}
 		}
 	}
 
@@ -1,15 +1,14 @@
 package gr.iti.mklab.focused.crawler.bolts.media;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
@@ -39,7 +38,10 @@ public class VisualClustererBolt extends BaseRichBolt {
 	private String redisHost;
 	private String solrHost;
 	
-	private Queue<Pair<?, ?>> _mQ = new LinkedBlockingQueue<Pair<?, ?>>();
+	private OutputCollector _collector;
+	
+	// media items waiting for the clusterer, acked once their cluster is stored in redis
+	private HandOffQueue<Pair<String, String>> _mQ;
 	private Map<String, String> clusters = new ConcurrentHashMap<String, String>();
 	
 	private Jedis jedis;
@@ -58,6 +60,11 @@ public class VisualClustererBolt extends BaseRichBolt {
 		
 		logger = Logger.getLogger(VisualClustererBolt.class);
 		
+		_collector = collector;
+		
+		_mQ = new HandOffQueue<Pair<String, String>>(10000);
+		_mQ.registerMetrics(context, "cluster_queue", 60);
+		
 		try {
 			
 			JedisPool pool = new JedisPool(new JedisPoolConfig(), redisHost);
@@ -80,62 +87,75 @@ public class VisualClustererBolt extends BaseRichBolt {
 		try {
 			MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
 			
-			if(mediaItem == null)
+			if(mediaItem != null) {
+				String id = mediaItem.getId();
+	
+				String nearestId =  tuple.getStringByField("nearestMediaItem");
+				
+				// waits while the clusterer is behind
+				_mQ.put(tuple, Pair.of(id, nearestId));
 				return;
-			
-			String id = mediaItem.getId();
-
-			String nearestId =  tuple.getStringByField("nearestMediaItem");
-			
-			_mQ.offer(Pair.of(id, nearestId));
-		
+			}
 		}
 		catch(Exception e) {
 			logger.error(e);
 		}
 		
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
 	}   
 	
 	public class Clusterer implements Runnable {
 
-		private Queue<Pair<?, ?>> queue;
+		private HandOffQueue<Pair<String, String>> queue;
 		
-		public Clusterer(Queue<Pair<?, ?>> queue) {
+		public Clusterer(HandOffQueue<Pair<String, String>> queue) {
 			this.queue = queue;
 		}
 		
 		public void run() {
 			
 			while(true) {
-				Pair<?, ?> pair = queue.poll();
-				if(pair == null) {
-					// Sleep one second
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e) {
-						logger.error(e);
-					}
+				List<HandOffQueue.Entry<Pair<String, String>>> pairs;
+				try {
+					pairs = queue.take(100);
+				} catch (InterruptedException e) {
+					return;
 				}
-				else {
-					String id = (String) pair.getLeft();
-					Object nearestId = pair.getRight();
+				
+				for(HandOffQueue.Entry<Pair<String, String>> pair : pairs) {
+					String id = pair.getValue().getLeft();
+					String nearestId = pair.getValue().getRight();
 					
-					String clusterId = null;
-					if(nearestId != null) {
-						clusterId = jedis.hget((String) nearestId, "CLUSTER");
-						if(clusterId == null) {
+					try {
+						String clusterId = null;
+						if(nearestId != null) {
+							clusterId = jedis.hget(nearestId, "CLUSTER");
+							if(clusterId == null) {
+								clusterId = UUID.randomUUID().toString();
+							}
+						}
+						else {
+							// Create new Cluster
 							clusterId = UUID.randomUUID().toString();
 						}
+						
+						
+						if(clusterId != null) {
+							jedis.hset(id, "CLUSTER", clusterId);
+							clusters.put(id, clusterId);
+						}
+						
+						synchronized(_collector) {
+							_collector.ack(pair.getAnchor());
+						}
 					}
-					else {
-						// Create new Cluster
-						clusterId = UUID.randomUUID().toString();
-					}
-					
-					
-					if(clusterId != null) {
-						jedis.hset(id, "CLUSTER", clusterId);
-						clusters.put(id, clusterId);
+					catch(Exception e) {
+						logger.error(e);
+						synchronized(_collector) {
+							_collector.fail(pair.getAnchor());
+						}
 					}
 				}
 			}
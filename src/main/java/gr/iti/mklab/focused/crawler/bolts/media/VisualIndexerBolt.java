@@ -5,21 +5,32 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 
+import com.google.gson.Gson;
+
+import gr.iti.mklab.focused.crawler.fetch.BlockingFetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
 import gr.iti.mklab.focused.crawler.models.ImageVector;
+import gr.iti.mklab.focused.crawler.utils.ValidatorCache;
 import gr.iti.mklab.framework.client.search.visual.VisualIndexClient;
 import gr.iti.mklab.framework.client.search.visual.VisualIndexResponse;
 import gr.iti.mklab.framework.common.domain.MediaItem;
@@ -56,6 +67,17 @@ public class VisualIndexerBolt extends BaseRichBolt {
 	private CloseableHttpClient _httpclient;
 
 	private RequestConfig _requestConfig;
+	
+	private BodyReader _reader;
+	
+	// validators of fetched images, with the vector and the nearest image found for them
+	private boolean useValidatorCache = false;
+	private String cacheHost = null;
+	private int cachePort = 6379;
+	private ValidatorCache _validators = null;
+	private long sharedLookupTimeout = 100;
+	
+	private static final Gson gson = new Gson();
 
 	private static int[] numCentroids = { 128, 128, 128, 128 };
 	private static int targetLengthMax = 1024;
@@ -83,19 +105,43 @@ public class VisualIndexerBolt extends BaseRichBolt {
 		
 	}
 	
+	/**
+	 * Fetches images seen before with a conditional GET, and re-uses their vector if they
+	 * have not changed, i.e. on a 304 or on a 200 with the same content. Validators are
+	 * cached in the worker and in the given Redis.
+	 */
+	public VisualIndexerBolt setValidatorCache(String redisHost, int redisPort) {
+		this.cacheHost = redisHost;
+		this.cachePort = redisPort;
+		this.useValidatorCache = true;
+		return this;
+	}
+	
 	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context,
 			OutputCollector collector) {
 		
 		_logger = Logger.getLogger(VisualIndexerBolt.class);
 		
 		_collector = collector;
+		
+		_reader = BodyReader.getInstance(stormConf);
+		context.registerMetric("body_reader", _reader.getMetric(), 60);
+		
+		DnsCache dns = DnsCache.getInstance(stormConf);
+		context.registerMetric("dns_cache", dns.getMetric(), 60);
+		
+		if(useValidatorCache) {
+			_validators = ValidatorCache.getInstance("images", cacheHost, cachePort);
+			context.registerMetric("validator_cache", _validators.getMetric(), 60);
+		}
+		
 		_visualIndex = new VisualIndexClient(_webServiceHost, _indexCollection);
 
 		_requestConfig = RequestConfig.custom()
 		        .setSocketTimeout(30000)
 		        .setConnectTimeout(30000)
 		        .build();
-		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		PoolingHttpClientConnectionManager cm = BlockingFetchEngine.newConnectionManager(dns);
 		_httpclient = HttpClients.custom()
 		        .setConnectionManager(cm)
 		        .build();
@@ -103,9 +149,12 @@ public class VisualIndexerBolt extends BaseRichBolt {
 
 	public void execute(Tuple tuple) {
 		MediaItem mediaItem = (MediaItem) tuple.getValueByField("MediaItem");
-		if(mediaItem == null)
+		if(mediaItem == null) {
+			_collector.ack(tuple);
 			return;
+		}
 		
+		// the item goes on without a vector if the fetch, the extraction or the indexing fails
 		ImageVector imageVector = null;
 		String nearestMediaItem = null;
 		
@@ -118,17 +167,43 @@ public class VisualIndexerBolt extends BaseRichBolt {
 			
 			httpget = new HttpGet(url.replaceAll(" ", "%20"));
 			httpget.setConfig(_requestConfig);
+			
+			ValidatorCache.Validators cached = _validators == null ? null : _validators.get(url);
+			if(cached == null && _validators != null && _validators.isShared()) {
+				cached = getShared(url);
+			}
+			if(cached != null && cached.getResult() != null) {
+				if(cached.getETag() != null) {
+					httpget.setHeader(HttpHeaders.IF_NONE_MATCH, cached.getETag());
+				}
+				if(cached.getLastModified() != null) {
+					httpget.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+				}
+			}
+			
 			HttpResponse response = _httpclient.execute(httpget);
 			
 			StatusLine status = response.getStatusLine();
 			int code = status.getStatusCode();
 			
+			if(code == 304 && cached != null) {
+				// the image has not changed and is already indexed
+				_validators.notModified();
+				
+				IndexedImage indexed = gson.fromJson(cached.getResult(), IndexedImage.class);
+				if(mediaItem.getWidth()==null && mediaItem.getHeight()==null && indexed.width > 0) {
+					mediaItem.setSize(indexed.width, indexed.height);
+				}
+				imageVector = new ImageVector(id, url, indexed.vector);
+				nearestMediaItem = indexed.nearest;
+				
+				return;
+			}
+			
 			if(code<200 || code>=300) {
 				_logger.error("Failed fetch media item " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, imageVector, nearestMediaItem));
-				
 				return;
 			}
 			
@@ -137,13 +212,32 @@ public class VisualIndexerBolt extends BaseRichBolt {
 				_logger.error("Entity is null for " + id + ". URL=" + url +  
 						". Http code: " + code + " Error: " + status.getReasonPhrase());
 				
-				_collector.emit(tuple(mediaItem, imageVector, nearestMediaItem));
-				
 				return;
 			}
 			
+			// capped at fetch.maxBytes.image, oversized images are not downloaded
 			InputStream input = entity.getContent();
-			byte[] imageContent = IOUtils.toByteArray(input);
+			byte[] imageContent = _reader.read(input, ContentType.getOrDefault(entity).getMimeType(), entity.getContentLength());
+			
+			Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+			Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+			String digest = _validators == null ? null : ValidatorCache.digest(imageContent);
+			
+			if(cached != null && cached.getResult() != null && digest.equals(cached.getDigest())) {
+				// the server ignored the conditional GET, but the image has not changed
+				_validators.notModified();
+				_validators.put(url, new ValidatorCache.Validators(etag == null ? null : etag.getValue(), 
+						lastModified == null ? null : lastModified.getValue(), digest, cached.getResult()));
+				
+				IndexedImage indexed = gson.fromJson(cached.getResult(), IndexedImage.class);
+				if(mediaItem.getWidth()==null && mediaItem.getHeight()==null && indexed.width > 0) {
+					mediaItem.setSize(indexed.width, indexed.height);
+				}
+				imageVector = new ImageVector(id, url, indexed.vector);
+				nearestMediaItem = indexed.nearest;
+				
+				return;
+			}
 			
 			BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageContent));
 		
@@ -170,20 +264,51 @@ public class VisualIndexerBolt extends BaseRichBolt {
 					nearestMediaItem = nearestMediaItems.get(0).getId();
 				}
 				
+				if(_validators != null) {
+					IndexedImage indexed = new IndexedImage(vector, nearestMediaItem, image.getWidth(), image.getHeight());
+					_validators.put(url, new ValidatorCache.Validators(etag == null ? null : etag.getValue(), 
+							lastModified == null ? null : lastModified.getValue(), digest, gson.toJson(indexed)));
+				}
+				
 				
 			}
-			
-			_collector.emit(tuple(mediaItem, imageVector, nearestMediaItem));
-			
 		} 
 		catch (Exception e) {
 			_logger.error(e);
-			_collector.emit(tuple(mediaItem, imageVector, nearestMediaItem));
 		}
 		finally {
 			if(httpget != null) {
 				httpget.abort();
 			}
+			emit(tuple, mediaItem, imageVector, nearestMediaItem);
+		}
+	}
+
+	/**
+	 * The validators of a url in the shared tier of the cache. The image is fetched on the
+	 * executor thread anyway, so it waits for the lookup, for sharedLookupTimeout at most.
+	 */
+	private ValidatorCache.Validators getShared(String url) throws InterruptedException {
+		final AtomicReference<ValidatorCache.Validators> shared = new AtomicReference<ValidatorCache.Validators>();
+		final CountDownLatch done = new CountDownLatch(1);
+		_validators.getShared(url, new ValidatorCache.Lookup() {
+			public void completed(ValidatorCache.Validators validators) {
+				shared.set(validators);
+				done.countDown();
+			}
+		});
+		return done.await(sharedLookupTimeout, TimeUnit.MILLISECONDS) ? shared.get() : null;
+	}
+	
+	// anchored to the input, that is acked once the item is handed off
+	private void emit(Tuple input, MediaItem mediaItem, ImageVector imageVector, String nearestMediaItem) {
+		try {
+			_collector.emit(input, tuple(mediaItem, imageVector, nearestMediaItem));
+			_collector.ack(input);
+		}
+		catch(Exception e) {
+			_logger.error("Failed to emit " + mediaItem.getId() + ": " + e.getMessage());
+			_collector.fail(input);
 		}
 	}
 
@@ -191,4 +316,21 @@ public class VisualIndexerBolt extends BaseRichBolt {
 		declarer.declare(new Fields("MediaItem", "ImageVector", "nearestMediaItem"));
 	}
 	
+	/**
+	 * What is cached for an indexed image.
+	 */
+	private static class IndexedImage {
+		
+		double[] vector;
+		String nearest;
+		int width, height;
+		
+		IndexedImage(double[] vector, String nearest, int width, int height) {
+			this.vector = vector;
+			this.nearest = nearest;
+			this.width = width;
+			this.height = height;
+		}
+	}
+	
 }
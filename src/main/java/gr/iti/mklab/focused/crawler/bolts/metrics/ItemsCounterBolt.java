@@ -38,6 +38,8 @@ public class ItemsCounterBolt extends BaseRichBolt {
 	private String mongodbName;
 
 	private Logger logger;
+	
+	private OutputCollector _collector;
 
 	public ItemsCounterBolt(String mongoHostName, String mongodbName) {
 		this.mongoHostName = mongoHostName;
@@ -48,6 +50,7 @@ public class ItemsCounterBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		
 		logger = Logger.getLogger(ItemsCounterBolt.class);
+		_collector = collector;
 		
 		MongoClient client = new MongoClient(mongoHostName);
 		MongoDatabase db  = client.getDatabase(mongodbName);
@@ -61,6 +64,7 @@ public class ItemsCounterBolt extends BaseRichBolt {
 	public void execute(Tuple input) {
 		
 		Item item = (Item) input.getValueByField("Item");
+		_collector.ack(input);
 		if(item == null) {
 			return;
 		}
@@ -43,6 +43,8 @@ public class MediaCounterBolt extends BaseRichBolt {
 
 	private Logger logger;
 	
+	private OutputCollector _collector;
+	
 
 	public MediaCounterBolt(String mongoHostName, String mongodbName) {
 		this.mongoHostName = mongoHostName;
@@ -53,6 +55,7 @@ public class MediaCounterBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		
 		logger = Logger.getLogger(MediaCounterBolt.class);
+		_collector = collector;
 		
 		MongoClient client = new MongoClient(mongoHostName);
 		MongoDatabase db  = client.getDatabase(mongodbName);
@@ -65,6 +68,7 @@ public class MediaCounterBolt extends BaseRichBolt {
 
 	public void execute(Tuple input) {
 		MediaItem mediaItem = (MediaItem) input.getValueByField("MediaItem");
+		_collector.ack(input);
 		if(mediaItem == null)
 			return;
 		
@@ -15,15 +15,15 @@ public class MongoStorageBolt extends BaseRichBolt {
 	 */
 	private static final long serialVersionUID = -2613697672344106360L;
 
+	private OutputCollector _collector;
+	
 	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context,
 			OutputCollector collector) {
-		
-		
+		_collector = collector;
 	}
 
 	public void execute(Tuple input) {
-		
-		
+		_collector.ack(input);
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -4,24 +4,18 @@ import static org.apache.storm.utils.Utils.tuple;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -29,23 +23,25 @@ import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.apache.storm.utils.Utils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
-import org.xml.sax.InputSource;
 
-import de.l3s.boilerpipe.BoilerpipeExtractor;
-import de.l3s.boilerpipe.BoilerpipeProcessingException;
 import de.l3s.boilerpipe.document.TextDocument;
-import de.l3s.boilerpipe.document.TextDocumentStatistics;
-import de.l3s.boilerpipe.estimators.SimpleEstimator;
-import de.l3s.boilerpipe.extractors.CommonExtractors;
-import de.l3s.boilerpipe.sax.BoilerpipeSAXInput;
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
+import gr.iti.mklab.focused.crawler.fetch.FetchCallback;
+import gr.iti.mklab.focused.crawler.fetch.FetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.FetchRequest;
+import gr.iti.mklab.focused.crawler.fetch.FetchResult;
 import gr.iti.mklab.focused.crawler.models.Article;
-import gr.iti.mklab.focused.crawler.utils.Image;
-import gr.iti.mklab.focused.crawler.utils.ImageExtractor;
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+import gr.iti.mklab.focused.crawler.utils.ParsedHtml;
+import gr.iti.mklab.focused.crawler.utils.ExtractionCache;
+import gr.iti.mklab.focused.crawler.utils.ValidatorCache;
+import gr.iti.mklab.focused.crawler.utils.WarcWriter;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.framework.common.domain.WebPage;
 
@@ -59,36 +55,101 @@ public class ArticleExtractionBolt extends BaseRichBolt {
 	private Logger _logger;
 	
 	private OutputCollector _collector;
-	private HttpClient _httpclient;
+	private FetchEngine _engine;
 	
-	private BoilerpipeExtractor _extractor, _articleExtractor;
-	private ImageExtractor _imageExtractor;
-	private SimpleEstimator _estimator;
+	private ArticleExtractor _articleExtractor;
 	
 	private int minDim = 200;
 	private int minArea = 200 * 200;
 	private int maxUrlLength = 500;
 	
-	private PoolingHttpClientConnectionManager _cm;
+	// pages of this executor between execute() and their ack
+	private int maxInFlight = 256;
+	private Semaphore _inFlight;
 	
-	private int numOfFetchers = 24;
+	private int numOfParsers = Runtime.getRuntime().availableProcessors();
 	
-	private BlockingQueue<WebPage> _queue;
-	private BlockingQueue<Object> _tupleQueue;
+	private HandOffQueue<Pair<WebPage, FetchResult>> _fetched;
+	
+	// the tuples emitted for each input, none if the page failed
+	private HandOffQueue<List<Object>> _tupleQueue;
+
+	// validators of fetched pages, with the result extracted from them
+	private boolean useValidatorCache = false;
+	private String cacheHost = null;
+	private int cachePort = 6379;
+	private ValidatorCache _validators = null;
+	
+	// results by content, for pages with the same content as a page extracted before
+	private boolean useExtractionCache = false;
+	private String extractionCacheHost = null;
+	private int extractionCachePort = 6379;
+	
+	// digests of the pages that missed the shared tier, queued again to be extracted
+	private Map<Tuple, Long> _missed = new ConcurrentHashMap<Tuple, Long>();
 
-	private RequestConfig _requestConfig;
+	// fetched responses are written in WARC files there, if set
+	private String warcDirectory = null;
+	private WarcWriter _warc = null;
 
 	private long receivedTuples = 0;
 	
 	private Thread _emitter;
-	private List<Thread> _fetchers;
+	private List<Thread> _parsers;
 	
 	public ArticleExtractionBolt() {
 
 	}
 	
-	public ArticleExtractionBolt(int numOfFetchers) {
-		this.numOfFetchers = numOfFetchers;
+	public ArticleExtractionBolt(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * Fetches pages seen before with a conditional GET, and re-uses their extraction if
+	 * they have not changed. Validators are cached in the worker and in the given Redis.
+	 */
+	public ArticleExtractionBolt setValidatorCache(String redisHost, int redisPort) {
+		this.cacheHost = redisHost;
+		this.cachePort = redisPort;
+		this.useValidatorCache = true;
+		return this;
+	}
+	
+	/**
+	 * Extracts the copies of a page under other urls once, with a cache of the results by
+	 * content in the worker and in the given Redis.
+	 */
+	public ArticleExtractionBolt setExtractionCache(String redisHost, int redisPort) {
+		this.extractionCacheHost = redisHost;
+		this.extractionCachePort = redisPort;
+		this.useExtractionCache = true;
+		return this;
+	}
+	
+	/**
+	 * Writes the fetched pages in WARC files in the given local directory, to extract them again 
+	 * with the {@link WarcReextractor} without fetching them.
+	 */
+	public ArticleExtractionBolt setWarcCapture(String directory) {
+		this.warcDirectory = directory;
+		return this;
+	}
+	
+	/**
+	 * Least width and height of the images of an article.
+	 */
+	public ArticleExtractionBolt setMinDim(int minDim) {
+		this.minDim = minDim;
+		return this;
+	}
+	
+	/**
+	 * Least area of the images of an article.
+	 */
+	public ArticleExtractionBolt setMinArea(int minArea) {
+		this.minArea = minArea;
+		return this;
 	}
 	
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -99,376 +160,360 @@ public class ArticleExtractionBolt extends BaseRichBolt {
 	public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, 
 			OutputCollector collector) {
 		
-		_logger = Logger.getLogger(ArticleExtractionBolt.class);
+		prepareExtraction();
 		
 		_collector = collector;
 		
-		_queue = new LinkedBlockingQueue<WebPage>();
-		_tupleQueue =  new LinkedBlockingQueue<Object>();
+		// never full, as each queued page holds a permit of _inFlight
+		_fetched = new HandOffQueue<Pair<WebPage, FetchResult>>(maxInFlight);
+		_fetched.registerMetrics(context, "parse_queue", 60);
 		
-		_cm = new PoolingHttpClientConnectionManager();
-		_cm.setMaxTotal(numOfFetchers);
-		_cm.setDefaultMaxPerRoute(10);
-
-		_httpclient = HttpClients.custom()
-		        .setConnectionManager(_cm)
-		        .build();
+		_tupleQueue = new HandOffQueue<List<Object>>(maxInFlight);
+		_tupleQueue.registerMetrics(context, "emit_queue", 60);
 		
-		// Set timeout parameters for Http requests
-		_requestConfig = RequestConfig.custom()
-		        .setSocketTimeout(30000)
-		        .setConnectTimeout(30000)
-		        .build();
-
-		_articleExtractor = CommonExtractors.ARTICLE_EXTRACTOR;
-	    _extractor = CommonExtractors.ARTICLE_EXTRACTOR;
-	    // The use of Canola extractor increases recall of the returned media items but decreases precision.
-	    //_extractor = CommonExtractors.CANOLA_EXTRACTOR;
-	    
-	    _imageExtractor = ImageExtractor.INSTANCE;
-	    
-	    // Quality estimator of the article extraction process
-	    _estimator = SimpleEstimator.INSTANCE;	
+		// requests of all the bolts of the worker go through the same engine
+		_engine = FetchEngine.getInstance(conf);
+		context.registerMetric("fetch_engine", _engine.getMetric(), 60);
+		context.registerMetric("compression", _engine.getCompressionMetric(), 60);
+		context.registerMetric("dns_cache", DnsCache.getInstance(conf).getMetric(), 60);
+		if(_engine.getRobots() != null) {
+			context.registerMetric("robots", _engine.getRobots().getMetric(), 60);
+		}
+		context.registerMetric("body_reader", BodyReader.getInstance(conf).getMetric(), 60);
+		
+		_inFlight = new Semaphore(maxInFlight);
+		
+		context.registerMetric("extraction", getExtractionStats().getMetric(), 60);
+		
+		if(useExtractionCache) {
+			ExtractionCache cache = ExtractionCache.getInstance("pages", extractionCacheHost, extractionCachePort);
+			_articleExtractor.setCache(cache);
+			context.registerMetric("extraction_cache", cache.getMetric(), 60);
+		}
+		
+		if(useValidatorCache) {
+			_validators = ValidatorCache.getInstance("pages", cacheHost, cachePort);
+			context.registerMetric("validator_cache", _validators.getMetric(), 60);
+		}
+		
+		if(warcDirectory != null) {
+			_warc = WarcWriter.getInstance(warcDirectory);
+			context.registerMetric("warc", _warc.getMetric(), 60);
+		}
 	    
 	    _emitter = new Thread(new Emitter(_collector, _tupleQueue));
 	    _emitter.start();
 	    
-	    _fetchers = new ArrayList<Thread>(numOfFetchers);
-	    for(int i=0;i<numOfFetchers; i++) {
-	    	Thread fetcher = new Thread(new HttpFetcher(_queue));
-	    	fetcher.start();
+	    // parsing is CPU bound and stays out of the threads of the engine
+	    _parsers = new ArrayList<Thread>(numOfParsers);
+	    for(int i=0;i<numOfParsers; i++) {
+	    	Thread parser = new Thread(new Parser(_fetched));
+	    	parser.start();
+	    	getExtractionStats().watch(parser);
 	    	
-	    	_fetchers.add(fetcher);
+	    	_parsers.add(parser);
 	    }
 	}
 
-	public void execute(Tuple tuple) {
+	public void execute(final Tuple tuple) {
 		receivedTuples++;
-		WebPage webPage = (WebPage) tuple.getValueByField("webPage");
+		final WebPage webPage = (WebPage) tuple.getValueByField("webPage");
+		if(webPage == null) {
+			ack(tuple);
+			return;
+		}
+		
+		final String expandedUrl = webPage.getExpandedUrl();
+		if(expandedUrl==null || expandedUrl.length()>300) {
+			//_tupleQueue.add(webPage);
+			ack(tuple);
+			return;
+		}
+		
+		FetchRequest request;
 		try {
-			if(webPage != null) {
-				_queue.put(webPage);
-			}
+			request = FetchRequest.get(expandedUrl).accept(ContentType.TEXT_HTML.getMimeType());
+		} catch (URISyntaxException e) {
+			_logger.error("for " + expandedUrl, e);
+			ack(tuple);
+			return;
+		}
+		
+		// released by the emitter after the ack
+		try {
+			_inFlight.acquire();
 		} catch (InterruptedException e) {
 			_logger.error(e);
+			synchronized(_collector) {
+				_collector.fail(tuple);
+			}
+			return;
+		}
+		
+		ValidatorCache.Validators cached = _validators == null ? null : _validators.get(expandedUrl);
+		if(cached != null || _validators == null || !_validators.isShared()) {
+			fetch(tuple, webPage, request, cached);
+			return;
 		}
+		
+		// the request is submitted from the reader thread of the cache
+		final FetchRequest uncached = request;
+		_validators.getShared(expandedUrl, new ValidatorCache.Lookup() {
+			public void completed(ValidatorCache.Validators shared) {
+				fetch(tuple, webPage, uncached, shared);
+			}
+		});
+	}
+	
+	private void fetch(final Tuple tuple, final WebPage webPage, FetchRequest request, 
+			final ValidatorCache.Validators cached) {
+		
+		final String expandedUrl = webPage.getExpandedUrl();
+		if(cached != null && cached.getResult() != null) {
+			request.conditional(cached.getETag(), cached.getLastModified());
+		}
+		
+		_engine.fetch(request, new FetchCallback() {
+			public void completed(FetchResult result) {
+				if(result.isNotModified() && cached != null) {
+					_validators.notModified();
+					_tupleQueue.put(tuple, rebind(webPage, cached));
+					return;
+				}
+				
+				if(!result.isAccepted()) {
+					_logger.error("URL: " + expandedUrl + 
+							"   Not supported mime type: " + result.getMimeType());
+					
+					//_tupleQueue.add(webPage);
+					_tupleQueue.put(tuple, Collections.emptyList());
+					return;
+				}
+				if(_warc != null) {
+					_warc.capture(result);
+				}
+				_fetched.put(tuple, Pair.of(webPage, result));
+			}
+
+			public void failed(FetchRequest request, Exception e) {
+				_logger.error("for " + expandedUrl + ": " + e);
+				//_tupleQueue.add(webPage);
+				_tupleQueue.put(tuple, Collections.emptyList());
+			}
+		});
 	}   
 	
+	/**
+	 * The tuples of a page that has not changed since its cached extraction.
+	 */
+	private List<Object> rebind(WebPage webPage, ValidatorCache.Validators cached) {
+		List<Object> tuples = new ArrayList<Object>();
+		try {
+			List<MediaItem> mediaItems = ExtractionResult.fromJSONString(cached.getResult()).bindTo(webPage);
+			tuples.add(webPage);
+			tuples.addAll(mediaItems);
+		}
+		catch(Exception e) {
+			_logger.error("for " + webPage.getExpandedUrl(), e);
+		}
+		return tuples;
+	}
+	
+	private void ack(Tuple tuple) {
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
+	}
+	
 	private class Emitter implements Runnable {
 
 		private OutputCollector _collector;
-		private BlockingQueue<Object> _tupleQueue;
+		private HandOffQueue<List<Object>> _tupleQueue;
 		
 		private int mediaTuples = 0, webPagesTuples = 0;
 		
-		public Emitter(OutputCollector collector, BlockingQueue<Object> tupleQueue) {
+		public Emitter(OutputCollector collector, HandOffQueue<List<Object>> tupleQueue) {
 			_collector = collector;
 			_tupleQueue = tupleQueue;
 		}
 		
 		public void run() {
 			while(true) {
-				Object obj = _tupleQueue.poll();
-				if(obj != null) {
-					synchronized(_collector) {
-						if(MediaItem.class.isInstance(obj)) {
-							mediaTuples++;
-							_collector.emit(MEDIA_STREAM, tuple(obj));
-						}
-						else if(WebPage.class.isInstance(obj)) {
-							webPagesTuples++;
-							_collector.emit(WEBPAGE_STREAM, tuple(obj));
+				List<HandOffQueue.Entry<List<Object>>> batch;
+				try {
+					batch = _tupleQueue.take(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<List<Object>> entry : batch) {
+						for(Object obj : entry.getValue()) {
+							if(MediaItem.class.isInstance(obj)) {
+								mediaTuples++;
+								_collector.emit(MEDIA_STREAM, entry.getAnchor(), tuple(obj));
+							}
+							else if(WebPage.class.isInstance(obj)) {
+								webPagesTuples++;
+								_collector.emit(WEBPAGE_STREAM, entry.getAnchor(), tuple(obj));
+							}
 						}
+						_collector.ack(entry.getAnchor());
 					}
 				}
-				else {
-					Utils.sleep(500);
-				}
+				_inFlight.release(batch.size());
 				
 				if((mediaTuples%100==0 || webPagesTuples%100==0) && (mediaTuples!=0 || webPagesTuples!=0)) {
 					_logger.info(receivedTuples + " tuples received, " + mediaTuples + " media tuples emmited, " + 
 							webPagesTuples + " web page tuples emmited");
-					_logger.info(getWorkingFetchers() + " fetchers out of " + numOfFetchers + " are working.");
+					_logger.info((maxInFlight - _inFlight.availablePermits()) + " pages in flight out of " + maxInFlight + ", " 
+							+ _fetched.size() + " waiting to be parsed.");
 				}
 			}
 		}
 	}
 	
-	private int getWorkingFetchers() {
-		int working = 0;
-		for(Thread fetcher : _fetchers) {
-			if(fetcher.isAlive())
-				working++;
-		}
-		return working;
-	}
-	
-	private class HttpFetcher implements Runnable {
+	private class Parser implements Runnable {
 
-		private BlockingQueue<WebPage> queue;
+		private HandOffQueue<Pair<WebPage, FetchResult>> queue;
 		
-		public HttpFetcher(BlockingQueue<WebPage> _queue) {
+		public Parser(HandOffQueue<Pair<WebPage, FetchResult>> _queue) {
 			this.queue = _queue;
 		}
 		
 		public void run() {
 			while(true) {
 				
-				WebPage webPage = null;
+				HandOffQueue.Entry<Pair<WebPage, FetchResult>> fetched = null;
 				try {
-					webPage = queue.take();
-				} catch (Exception e) {
-					_logger.error(e);
-					continue;
+					fetched = queue.take(1).get(0);
+				} catch (InterruptedException e) {
+					return;
 				}
 				
-				if(webPage == null) {
+				final Tuple anchor = fetched.getAnchor();
+				final WebPage webPage = fetched.getValue().getLeft();
+				final FetchResult response = fetched.getValue().getRight();
+				
+				// the cache is looked up first, and Redis by the thread of the cache
+				Long digest = _missed.remove(anchor);
+				if(digest == null && _articleExtractor.getCache() != null) {
+					try {
+						lookup(fetched);
+					} catch (Exception e) {
+						_logger.error("for " + webPage.getExpandedUrl(), e);
+						_tupleQueue.put(anchor, Collections.emptyList());
+					}
 					continue;
 				}
 				
-				String expandedUrl = webPage.getExpandedUrl();
-				if(expandedUrl==null || expandedUrl.length()>300) {
+				List<Object> tuples = Collections.emptyList();
+				try {
+					tuples = tuples(webPage, response, 
+							_articleExtractor.extract(webPage, response.getContent(), digest == null ? 0 : digest));
+				} catch (Exception e) {
+					_logger.error("for " + webPage.getExpandedUrl(), e);
 					//_tupleQueue.add(webPage);
-					continue;
+				}
+				finally {
+					_tupleQueue.put(anchor, tuples);
 				}
 				
-				HttpGet httpget = null;
-				try {
-					
-					URI uri = new URI(expandedUrl
-							.replaceAll(" ", "%20")
-							.replaceAll("\\|", "%7C")
-							);
-					
-					httpget = new HttpGet(uri);
-					httpget.setConfig(_requestConfig);
-					HttpResponse response = _httpclient.execute(httpget);
-					
-					HttpEntity entity = response.getEntity();
-					ContentType contentType = ContentType.get(entity);
-	
-					if(!contentType.getMimeType().equals(ContentType.TEXT_HTML.getMimeType())) {
-						_logger.error("URL: " + webPage.getExpandedUrl() + 
-								"   Not supported mime type: " + contentType.getMimeType());
-						
-						//_tupleQueue.add(webPage);
-						
-						continue;
+			}
+		}
+		
+		private void lookup(final HandOffQueue.Entry<Pair<WebPage, FetchResult>> fetched) {
+			final WebPage webPage = fetched.getValue().getLeft();
+			final FetchResult response = fetched.getValue().getRight();
+			final long digest = ExtractionCache.digest(response.getContent());
+			
+			_articleExtractor.lookup(webPage, digest, new ExtractionCache.Lookup() {
+				public void completed(ExtractionResult cached) {
+					if(cached == null) {
+						_missed.put(fetched.getAnchor(), digest);
+						queue.put(fetched.getAnchor(), fetched.getValue());
+						return;
 					}
 					
-					InputStream input = entity.getContent();
-					byte[] content = IOUtils.toByteArray(input);
-					
-					List<MediaItem> mediaItems = new ArrayList<MediaItem>();
-					boolean parsed = parseWebPage(webPage, content, mediaItems);
-					if(parsed) { 
-						_tupleQueue.add(webPage);
-						for(MediaItem mItem : mediaItems) {
-							_tupleQueue.add(mItem);
-						}
+					List<Object> tuples = Collections.emptyList();
+					try {
+						tuples = tuples(webPage, response, cached);
+					} catch (Exception e) {
+						_logger.error("for " + webPage.getExpandedUrl(), e);
 					}
-					else {
-						_logger.error("Parsing of " + expandedUrl + " failed.");
-						//_tupleQueue.add(webPage);
+					finally {
+						_tupleQueue.put(fetched.getAnchor(), tuples);
 					}
-				} catch (Exception e) {
-					_logger.error("for " + expandedUrl, e);
-					//_tupleQueue.add(webPage);
-				}
-				finally {
-					if(httpget != null)
-						httpget.abort();
 				}
+			});
+		}
+		
+		private List<Object> tuples(WebPage webPage, FetchResult response, ExtractionResult extracted) throws Exception {
+			List<Object> tuples = new ArrayList<Object>();
+			if(extracted != null) { 
+				tuples.add(webPage);
+				tuples.addAll(extracted.bindTo(webPage));
 				
+				if(_validators != null) {
+					// unchanged content is found by its digest in the extraction cache
+					_validators.put(webPage.getExpandedUrl(), new ValidatorCache.Validators(response.getETag(), 
+							response.getLastModified(), null, extracted.toJSONString()));
+				}
+			}
+			else {
+				_logger.error("Parsing of " + webPage.getExpandedUrl() + " failed.");
+				//_tupleQueue.add(webPage);
 			}
+			return tuples;
 		}
 	}
 	
+	/**
+	 * Sets up the extractor, for extract() to be used outside of a topology. It is stateless,
+	 * and the parsers share it without locks.
+	 */
+	public void prepareExtraction() {
+		_logger = Logger.getLogger(ArticleExtractionBolt.class);
+		
+		_articleExtractor = new ArticleExtractor(minDim, minArea, maxUrlLength);
+	}
+	
+	/**
+	 * Metric with the time of the phases of extract(), and the lock contention and CPU time of the parsers.
+	 */
+	public ExtractionStats getExtractionStats() {
+		return _articleExtractor.getStats();
+	}
+	
 	public boolean parseWebPage(WebPage webPage, byte[] content, List<MediaItem> mediaItems) {  
-	  	try { 
-	  		String base = webPage.getExpandedUrl();
-	  		
-	  		InputSource articelIS1 = new InputSource(new ByteArrayInputStream(content));
-	  		InputSource articelIS2 = new InputSource(new ByteArrayInputStream(content));
-	  		
-		  	TextDocument document = null, imgDoc = null;
-
-	  		document = new BoilerpipeSAXInput(articelIS1).getTextDocument();
-	  		imgDoc = new BoilerpipeSAXInput(articelIS2).getTextDocument();
-	  		
-	  		TextDocumentStatistics dsBefore = new TextDocumentStatistics(document, false);
-	  		synchronized(_articleExtractor) {
-	  			_articleExtractor.process(document);
-	  		}
-	  		synchronized(_extractor) {
-	  			_extractor.process(imgDoc);
-	  		}
-	  		TextDocumentStatistics dsAfter = new TextDocumentStatistics(document, false);
-	  		
-	  		boolean isLowQuality = true;
-	  		synchronized(_estimator) {
-	  			isLowQuality = _estimator.isLowQuality(dsBefore, dsAfter);
-	  		}
-	  	
-	  		String title = document.getTitle();
-	  		
-	  		if(title == null)
-	  			return false;
-	  		
-	  		String text = document.getText(true, false);
-
-	  		webPage.setTitle(title);
-	  		webPage.setText(text);
-	  		webPage.setArticle(!isLowQuality);
-	  		
-	  		mediaItems.addAll(extractArticleImages(imgDoc, webPage, base, content));		
-	  		webPage.setMedia(mediaItems.size());
-	  		
-	  		List<String> mediaIds = new ArrayList<String>();
-	  		for(MediaItem mediaItem : mediaItems) {
-	  			mediaIds.add(mediaItem.getId());
-	  		}
-	  		webPage.setMediaIds(mediaIds.toArray(new String[mediaIds.size()]));
-	  		
-	  		if(mediaItems.size() > 0) {
-	  			MediaItem mediaItem = mediaItems.get(0);
-	  			webPage.setMediaThumbnail(mediaItem.getUrl());
-	  		}
-	  		
+		ExtractionResult extracted = extract(webPage, content);
+		if(extracted == null) {
+			return false;
+		}
+		
+		try {
+			mediaItems.addAll(extracted.bindTo(webPage));
 			return true;
-			
-	  	} catch(Exception ex) {
+		} catch(Exception ex) {
 	  		_logger.error(ex);
 	  		return false;
 	  	}
 	}
+	
+	/**
+	 * Extracts the article and its images from the content of a page, null if it fails.
+	 */
+	public ExtractionResult extract(WebPage webPage, byte[] content) {  
+		return _articleExtractor.extract(webPage, content);
+	}
 
 	public Article getArticle(WebPage webPage, byte[] content) {  
-		
-		String base = webPage.getExpandedUrl();
-		
-	  	try { 
-	  		InputSource articelIS1 = new InputSource(new ByteArrayInputStream(content));
-	  		InputSource articelIS2 = new InputSource(new ByteArrayInputStream(content));
-		  	TextDocument document = null, imgDoc = null;
-
-	  		document = new BoilerpipeSAXInput(articelIS1).getTextDocument();
-	  		imgDoc = new BoilerpipeSAXInput(articelIS2).getTextDocument();
-	  		
-	  		TextDocumentStatistics dsBefore = new TextDocumentStatistics(document, false);
-	  		synchronized(_articleExtractor) {
-	  			_articleExtractor.process(document);
-	  		}
-	  		synchronized(_extractor) {
-	  			_extractor.process(imgDoc);
-	  		}
-	  		TextDocumentStatistics dsAfter = new TextDocumentStatistics(document, false);
-	  		
-	  		boolean isLowQuality = true;
-	  		synchronized(_estimator) {
-	  			isLowQuality = _estimator.isLowQuality(dsBefore, dsAfter);
-	  		}
-	  	
-	  		String title = document.getTitle();
-	  		String text = document.getText(true, false);
-	  		
-	  		Article article = new Article(title, text);
-	  		article.setLowQuality(isLowQuality);
-	  		
-	  		List<MediaItem> mediaItems = extractArticleImages(imgDoc, webPage, base, content);		
-	  		//List<MediaItem> mediaItems = extractAllImages(base, title, webPage, pageHash, content);
-	  		
-	  		for(MediaItem mItem : mediaItems) {
-	  			article.addMediaItem(mItem);
-	  		}
-			return article;
-			
-	  	} catch(Exception ex) {
-	  		_logger.error(ex);
-	  		return null;
-	  	}
+		return _articleExtractor.getArticle(webPage, content);
 	}
 	
-	public List<MediaItem> extractArticleImages(TextDocument document, WebPage webPage, String base, byte[] content) 
-			throws IOException, BoilerpipeProcessingException {
-		
-		List<MediaItem> mediaItems = new ArrayList<MediaItem>();
-		
-		InputSource imageslIS = new InputSource(new ByteArrayInputStream(content));
-  		
-  		List<Image> detectedImages;
-  		synchronized(_imageExtractor) {
-  			detectedImages = _imageExtractor.process(document, imageslIS);
-  		}
-  		
-  		for(Image image  : detectedImages) {
-  			Integer w = -1, h = -1;
-  			try {
-  				String width = image.getWidth().replaceAll("%", "");
-  				String height = image.getHeight().replaceAll("%", "");
-  	
-  				w = Integer.parseInt(width);
-  				h = Integer.parseInt(height);
-  			}
-  			catch(Exception e) {
-  				// filter images without size
-  				continue;
-  			}
-  			
-  			// filter small images
-  			if(image.getArea() < minArea || w < minDim  || h < minDim) 
-				continue;
-
-			String src = image.getSrc();
-			URL url = null;
-			try {
-				url = new URL(new URL(base), src);
-				
-				if(url.toString().length() > maxUrlLength)
-					continue;
-				
-				if(src.endsWith(".gif") || url.getPath().endsWith(".gif"))
-					continue;
-				
-			} catch (Exception e) {
-				_logger.error("Error for " + src + " in " + base);
-				continue;
-			}
-			
-			String alt = image.getAlt();
-			if(alt == null) {
-				alt = webPage.getTitle();
-				if(alt == null)
-					continue;
-			}
-			
-			MediaItem mediaItem = new MediaItem(url);
-			
-			// Create image unique id. Is this a good practice? 
-			int imageHash = (url.hashCode() & 0x7FFFFFFF);
-			
-			mediaItem.setId("Web#" + imageHash);
-			mediaItem.setSource("Web");
-			mediaItem.setType("image");
-			mediaItem.setThumbnail(url.toString());
-			
-			mediaItem.setPageUrl(base.toString());
-			mediaItem.setReference(webPage.getReference());
-			
-			mediaItem.setShares((long)webPage.getShares());
-			
-			mediaItem.setTitle(alt.trim());
-			mediaItem.setDescription(webPage.getTitle());
-			
-			if(w != -1 && h != -1) 
-				mediaItem.setSize(w, h);
-			
-			if(webPage.getDate() != null)
-				mediaItem.setPublicationTime(webPage.getDate().getTime());
-			
-			mediaItems.add(mediaItem);
-		}
-  		return mediaItems;
+	public List<MediaItem> extractArticleImages(TextDocument document, ParsedHtml html, WebPage webPage, String base) 
+			throws IOException {
+		return _articleExtractor.extractArticleImages(document, html, webPage, base);
 	}
 	
 	
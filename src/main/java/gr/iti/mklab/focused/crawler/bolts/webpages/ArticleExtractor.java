@@ -0,0 +1,325 @@
+package gr.iti.mklab.focused.crawler.bolts.webpages;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.InputSource;
+
+import de.l3s.boilerpipe.BoilerpipeExtractor;
+import de.l3s.boilerpipe.BoilerpipeProcessingException;
+import de.l3s.boilerpipe.document.TextDocument;
+import de.l3s.boilerpipe.document.TextDocumentStatistics;
+import de.l3s.boilerpipe.estimators.SimpleEstimator;
+import de.l3s.boilerpipe.extractors.CommonExtractors;
+import gr.iti.mklab.focused.crawler.models.Article;
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+import gr.iti.mklab.focused.crawler.models.ExtractionResult.ArticleImage;
+import gr.iti.mklab.focused.crawler.utils.ExtractionCache;
+import gr.iti.mklab.focused.crawler.utils.Image;
+import gr.iti.mklab.focused.crawler.utils.ImageExtractor;
+import gr.iti.mklab.focused.crawler.utils.ParsedHtml;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Extracts the article of a page and the images enclosed by it, from a single parse of
+ *	the page. The extractors are stateless, so one instance is shared by any number of
+ *	threads without locks. Used by the {@link ArticleExtractionBolt}, the extraction stage
+ *	{@link ArticleParserBolt} and the {@link WarcReextractor}.
+ */
+public class ArticleExtractor {
+
+	private Logger _logger = Logger.getLogger(ArticleExtractor.class);
+	
+	private BoilerpipeExtractor _extractor, _articleExtractor;
+	private ImageExtractor _imageExtractor;
+	private SimpleEstimator _estimator;
+	
+	private ExtractionStats _stats = new ExtractionStats();
+	
+	// results by content, for the copies of a page under other urls
+	private ExtractionCache _cache = null;
+	
+	private final int minDim;
+	private final int minArea;
+	private final int maxUrlLength;
+	
+	/**
+	 * @param minDim		least width and height of the images of an article
+	 * @param minArea		least area of the images of an article
+	 * @param maxUrlLength	images with longer urls are skipped
+	 */
+	public ArticleExtractor(int minDim, int minArea, int maxUrlLength) {
+		this.minDim = minDim;
+		this.minArea = minArea;
+		this.maxUrlLength = maxUrlLength;
+		
+		_articleExtractor = CommonExtractors.ARTICLE_EXTRACTOR;
+	    _extractor = CommonExtractors.ARTICLE_EXTRACTOR;
+	    // The use of Canola extractor increases recall of the returned media items but decreases precision.
+	    //_extractor = CommonExtractors.CANOLA_EXTRACTOR;
+	    
+	    _imageExtractor = ImageExtractor.INSTANCE;
+	    
+	    // Quality estimator of the article extraction process
+	    _estimator = SimpleEstimator.INSTANCE;	
+	}
+	
+	/**
+	 * Re-uses the result of content extracted before, in a page with another url, instead of
+	 * extracting it again.
+	 */
+	public ArticleExtractor setCache(ExtractionCache cache) {
+		_cache = cache;
+		return this;
+	}
+	
+	/**
+	 * The cache of the results, null if there is none.
+	 */
+	public ExtractionCache getCache() {
+		return _cache;
+	}
+	
+	/**
+	 * Time of the phases of extract(), and the lock contention and CPU time of the threads that are watched.
+	 */
+	public ExtractionStats getStats() {
+		return _stats;
+	}
+	
+	/**
+	 * Extracts the article and its images from the content of a page, null if it fails. Only
+	 * the local tier of the cache is looked up, the shared one with lookup().
+	 */
+	public ExtractionResult extract(WebPage webPage, byte[] content) {  
+		long digest = 0;
+		if(_cache != null) {
+			digest = ExtractionCache.digest(content);
+			ExtractionResult cached = _cache.get(digest, webPage.getExpandedUrl());
+			if(cached != null) {
+				_stats.cached();
+				return cached;
+			}
+		}
+		return extract(webPage, content, digest);
+	}
+	
+	/**
+	 * Looks up the result of content with the given digest in the cache, for a page, without
+	 * blocking. Calls back at once with the result of the local tier, else with the result of
+	 * the shared tier from the thread of the cache, or with null if there is none. Content the
+	 * local tier holds for a page with another base is not looked up in the shared tier.
+	 */
+	public void lookup(WebPage webPage, long digest, final ExtractionCache.Lookup lookup) {
+		ExtractionResult cached = _cache == null ? null : _cache.get(digest, webPage.getExpandedUrl());
+		// a local result for another base is the one the shared tier would return as well
+		if(cached != null || _cache == null || !_cache.isShared() || _cache.containsLocal(digest)) {
+			if(cached != null) {
+				_stats.cached();
+			}
+			lookup.completed(cached);
+			return;
+		}
+		
+		_cache.getShared(digest, webPage.getExpandedUrl(), new ExtractionCache.Lookup() {
+			public void completed(ExtractionResult result) {
+				if(result != null) {
+					_stats.cached();
+				}
+				lookup.completed(result);
+			}
+		});
+	}
+	
+	/**
+	 * Extracts the article and its images from content with the given digest, that missed the
+	 * cache, and caches the result. Null if it fails.
+	 */
+	public ExtractionResult extract(WebPage webPage, byte[] content, long digest) {  
+	  	try { 
+	  		String base = webPage.getExpandedUrl();
+	  		
+	  		Extraction extraction = process(content);
+	  		
+	  		String title = extraction.document.getTitle();
+	  		
+	  		if(title == null) {
+	  			_stats.failed();
+	  			return null;
+	  		}
+	  		
+	  		String text = extraction.document.getText(true, false);
+
+	  		long started = System.nanoTime();
+	  		ExtractionResult extracted = new ExtractionResult(title, text, !extraction.isLowQuality);
+	  		List<String> relative = new ArrayList<String>();
+	  		for(ArticleImage image : detectArticleImages(extraction.imgDoc, extraction.html, base, title, relative)) {
+	  			extracted.addImage(image);
+	  		}
+	  		_stats.record(extraction.parseTime, extraction.extractTime, System.nanoTime() - started);
+	  		
+	  		if(_cache != null) {
+	  			boolean relativeQueries = false;
+	  			for(String src : relative) {
+	  				relativeQueries |= src.startsWith("?") || src.startsWith("#");
+	  			}
+	  			_cache.put(digest, base, !relative.isEmpty(), relativeQueries, extracted);
+	  		}
+	  		
+			return extracted;
+			
+	  	} catch(Exception ex) {
+	  		_stats.failed();
+	  		_logger.error(ex);
+	  		return null;
+	  	}
+	}
+
+	public Article getArticle(WebPage webPage, byte[] content) {  
+		
+		String base = webPage.getExpandedUrl();
+		
+	  	try { 
+	  		Extraction extraction = process(content);
+	  	
+	  		String title = extraction.document.getTitle();
+	  		String text = extraction.document.getText(true, false);
+	  		
+	  		Article article = new Article(title, text);
+	  		article.setLowQuality(extraction.isLowQuality);
+	  		
+	  		List<MediaItem> mediaItems = extractArticleImages(extraction.imgDoc, extraction.html, webPage, base);		
+	  		//List<MediaItem> mediaItems = extractAllImages(base, title, webPage, pageHash, content);
+	  		
+	  		for(MediaItem mItem : mediaItems) {
+	  			article.addMediaItem(mItem);
+	  		}
+			return article;
+			
+	  	} catch(Exception ex) {
+	  		_logger.error(ex);
+	  		return null;
+	  	}
+	}
+	
+	/**
+	 * A page parsed once, with the document processed by the article extractor and the one 
+	 * processed by the extractor of the images, the same if the two extractors are the same.
+	 */
+	private static class Extraction {
+		
+		ParsedHtml html;
+		TextDocument document, imgDoc;
+		boolean isLowQuality;
+		
+		// in nanoseconds
+		long parseTime, extractTime;
+	}
+	
+	private Extraction process(byte[] content) throws BoilerpipeProcessingException {
+		Extraction extraction = new Extraction();
+		
+		long started = System.nanoTime();
+		extraction.html = ParsedHtml.parse(new InputSource(new ByteArrayInputStream(content)));
+		extraction.document = extraction.html.getDocument();
+		
+		long parsed = System.nanoTime();
+		extraction.parseTime = parsed - started;
+		
+		// a copy for the image extractor, before the article extractor changes the document
+		extraction.imgDoc = _extractor == _articleExtractor ? extraction.document : extraction.document.clone();
+		
+  		TextDocumentStatistics dsBefore = new TextDocumentStatistics(extraction.document, false);
+  		_articleExtractor.process(extraction.document);
+  		if(extraction.imgDoc != extraction.document) {
+  			_extractor.process(extraction.imgDoc);
+  		}
+  		TextDocumentStatistics dsAfter = new TextDocumentStatistics(extraction.document, false);
+  		
+  		extraction.isLowQuality = _estimator.isLowQuality(dsBefore, dsAfter);
+  		
+  		extraction.extractTime = System.nanoTime() - parsed;
+  		return extraction;
+	}
+	
+	public List<MediaItem> extractArticleImages(TextDocument document, ParsedHtml html, WebPage webPage, String base) 
+			throws IOException {
+		
+		List<MediaItem> mediaItems = new ArrayList<MediaItem>();
+		for(ArticleImage image : detectArticleImages(document, html, base, webPage.getTitle(), null)) {
+			mediaItems.add(image.toMediaItem(webPage));
+		}
+		return mediaItems;
+	}
+	
+	/**
+	 * The images of the article that are large enough, with the title of the page as alt text if they have none.
+	 * The sources of those that are large enough and relative to the url of the page are added to relative, if not null.
+	 */
+	private List<ArticleImage> detectArticleImages(TextDocument document, ParsedHtml html, String base, String title, 
+			List<String> relative) throws IOException {
+		
+		List<ArticleImage> images = new ArrayList<ArticleImage>();
+  		
+  		List<Image> detectedImages = _imageExtractor.process(document, html);
+  		
+  		for(Image image  : detectedImages) {
+  			Integer w = -1, h = -1;
+  			try {
+  				String width = image.getWidth().replaceAll("%", "");
+  				String height = image.getHeight().replaceAll("%", "");
+  	
+  				w = Integer.parseInt(width);
+  				h = Integer.parseInt(height);
+  			}
+  			catch(Exception e) {
+  				// filter images without size
+  				continue;
+  			}
+  			
+  			// filter small images
+  			if(image.getArea() < minArea || w < minDim  || h < minDim) 
+				continue;
+
+			String src = image.getSrc();
+			URL url = null;
+			try {
+				url = new URL(new URL(base), src);
+				if(relative != null && !url.toString().equals(src)) {
+					relative.add(src);
+				}
+				
+				if(url.toString().length() > maxUrlLength)
+					continue;
+				
+				if(src.endsWith(".gif") || url.getPath().endsWith(".gif"))
+					continue;
+				
+			} catch (Exception e) {
+				_logger.error("Error for " + src + " in " + base);
+				if(relative != null) {
+					relative.add(src);
+				}
+				continue;
+			}
+			
+			String alt = image.getAlt();
+			if(alt == null) {
+				alt = title;
+				if(alt == null)
+					continue;
+			}
+			
+			images.add(new ArticleImage(url.toString(), alt, w, h));
+		}
+  		return images;
+	}
+
+}
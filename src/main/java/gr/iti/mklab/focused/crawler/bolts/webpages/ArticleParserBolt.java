@@ -0,0 +1,381 @@
+package gr.iti.mklab.focused.crawler.bolts.webpages;
+
+import static org.apache.storm.utils.Utils.tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
+import gr.iti.mklab.focused.crawler.utils.ExtractionCache;
+import gr.iti.mklab.focused.crawler.utils.ValidatorCache;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	The extraction stage of a page, after the {@link WebPageFetcherBolt}: extracts the
+ *	article and its images from the content of the handle, on a fork-join pool with a
+ *	thread per core, and emits them like the {@link ArticleExtractionBolt}. Connected to
+ *	the fetch stage with a local or shuffle grouping, the handle is read from the store of
+ *	the same worker without the content going over the network.
+ *
+ *	With the shared tier of an extraction cache, a page is looked up in Redis by the thread
+ *	of the cache and extracted by a parser once the lookup misses, no parser waits for Redis.
+ */
+public class ArticleParserBolt extends BaseRichBolt {
+
+	private static final long serialVersionUID = -8201733427930158384L;
+
+	public static String MEDIA_STREAM = ArticleExtractionBolt.MEDIA_STREAM;
+	public static String WEBPAGE_STREAM = ArticleExtractionBolt.WEBPAGE_STREAM;
+
+	private Logger _logger;
+
+	private OutputCollector _collector;
+
+	private ArticleExtractor _extractor;
+
+	private int minDim = 200;
+	private int minArea = 200 * 200;
+	private int maxUrlLength = 500;
+
+	// pages of this executor between execute() and their ack
+	private int maxInFlight = 256;
+	private Semaphore _inFlight;
+
+	private int numOfParsers = Runtime.getRuntime().availableProcessors();
+	private ForkJoinPool _parsers;
+
+	// the tuples emitted for each input, none if the page failed
+	private HandOffQueue<List<Object>> _tupleQueue;
+
+	// the extracted results are cached with the validators of their page
+	private boolean useValidatorCache = false;
+	private String cacheHost = null;
+	private int cachePort = 6379;
+	private ValidatorCache _validators = null;
+
+	// results by content, for pages with the same content as a page extracted before
+	private boolean useExtractionCache = false;
+	private String extractionCacheHost = null;
+	private int extractionCachePort = 6379;
+
+	private long receivedTuples = 0;
+
+	private Thread _emitter;
+
+	public ArticleParserBolt() {
+
+	}
+
+	public ArticleParserBolt(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Caches the result of each page with its validators, for the fetch stage to re-use it
+	 * when the page has not changed. Must be the same cache as the one of the fetch stage.
+	 */
+	public ArticleParserBolt setValidatorCache(String redisHost, int redisPort) {
+		this.cacheHost = redisHost;
+		this.cachePort = redisPort;
+		this.useValidatorCache = true;
+		return this;
+	}
+
+	/**
+	 * Extracts the copies of a page under other urls once, with a cache of the results by
+	 * content in the worker and in the given Redis.
+	 */
+	public ArticleParserBolt setExtractionCache(String redisHost, int redisPort) {
+		this.extractionCacheHost = redisHost;
+		this.extractionCachePort = redisPort;
+		this.useExtractionCache = true;
+		return this;
+	}
+
+	/**
+	 * Least width and height of the images of an article.
+	 */
+	public ArticleParserBolt setMinDim(int minDim) {
+		this.minDim = minDim;
+		return this;
+	}
+
+	/**
+	 * Least area of the images of an article.
+	 */
+	public ArticleParserBolt setMinArea(int minArea) {
+		this.minArea = minArea;
+		return this;
+	}
+
+	/**
+	 * Number of threads that extract pages, one per core by default.
+	 */
+	public ArticleParserBolt setParsers(int numOfParsers) {
+		this.numOfParsers = numOfParsers;
+		return this;
+	}
+
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    	declarer.declareStream(MEDIA_STREAM, new Fields("MediaItem"));
+    	declarer.declareStream(WEBPAGE_STREAM, new Fields("WebPage"));
+    }
+
+	public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+			OutputCollector collector) {
+
+		_logger = Logger.getLogger(ArticleParserBolt.class);
+
+		_collector = collector;
+
+		_extractor = new ArticleExtractor(minDim, minArea, maxUrlLength);
+		context.registerMetric("extraction", _extractor.getStats().getMetric(), 60);
+
+		if(useExtractionCache) {
+			ExtractionCache cache = ExtractionCache.getInstance("pages", extractionCacheHost, extractionCachePort);
+			_extractor.setCache(cache);
+			context.registerMetric("extraction_cache", cache.getMetric(), 60);
+		}
+
+		_tupleQueue = new HandOffQueue<List<Object>>(maxInFlight);
+		_tupleQueue.registerMetrics(context, "emit_queue", 60);
+
+		_inFlight = new Semaphore(maxInFlight);
+
+		if(useValidatorCache) {
+			_validators = ValidatorCache.getInstance("pages", cacheHost, cachePort);
+		}
+
+		// FIFO scheduling of the submitted pages, as they never fork
+		_parsers = new ForkJoinPool(numOfParsers, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread parser = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				_extractor.getStats().watch(parser);
+				return parser;
+			}
+		}, null, true);
+
+	    _emitter = new Thread(new Emitter(_collector, _tupleQueue));
+	    _emitter.start();
+	}
+
+	public void execute(final Tuple tuple) {
+		receivedTuples++;
+		final WebPage webPage = (WebPage) tuple.getValueByField("WebPage");
+		final ContentHandle content = (ContentHandle) tuple.getValueByField("Content");
+		final String validators = tuple.getStringByField("Validators");
+		if(webPage == null || content == null) {
+			ack(tuple);
+			return;
+		}
+
+		// released by the emitter after the ack
+		try {
+			_inFlight.acquire();
+		} catch (InterruptedException e) {
+			_logger.error(e);
+			content.release();
+			synchronized(_collector) {
+				_collector.fail(tuple);
+			}
+			return;
+		}
+
+		_parsers.execute(new Parse(tuple, webPage, content, validators));
+	}
+
+	/**
+	 * The extraction of a page on the parsers. With an extraction cache it runs in two steps:
+	 * the content is read and looked up in the cache, and if it misses, extracted by a parser
+	 * again when the lookup calls back.
+	 */
+	private class Parse implements Runnable, ExtractionCache.Lookup {
+
+		private final Tuple tuple;
+		private final WebPage webPage;
+		private final ContentHandle content;
+		private final String json;
+
+		// set by the first step
+		private ValidatorCache.Validators validators = null;
+		private byte[] bytes = null;
+		private long digest = 0;
+
+		Parse(Tuple tuple, WebPage webPage, ContentHandle content, String validators) {
+			this.tuple = tuple;
+			this.webPage = webPage;
+			this.content = content;
+			this.json = validators;
+		}
+
+		public void run() {
+			List<Object> tuples = Collections.emptyList();
+			try {
+				tuples = parse();
+			} catch (Exception e) {
+				_logger.error("for " + webPage.getExpandedUrl(), e);
+			}
+			finally {
+				if(tuples != null) {
+					_tupleQueue.put(tuple, tuples);
+				}
+			}
+		}
+
+		/**
+		 * Called back with the cached result, or null to extract the page.
+		 */
+		public void completed(ExtractionResult cached) {
+			if(cached == null) {
+				_parsers.execute(this);
+				return;
+			}
+
+			List<Object> tuples = Collections.emptyList();
+			try {
+				tuples = tuples(cached);
+			} catch (Exception e) {
+				_logger.error("for " + webPage.getExpandedUrl(), e);
+			}
+			finally {
+				_tupleQueue.put(tuple, tuples);
+			}
+		}
+
+		/**
+		 * The tuples of the page: the cached result if the page has not changed, else the result
+		 * extracted from its content, none if the fetch or the extraction failed. Null if they
+		 * are left to the callback of the cache.
+		 */
+		private List<Object> parse() throws Exception {
+			if(bytes != null) {
+				return tuples(_extractor.extract(webPage, bytes, digest));
+			}
+
+			List<Object> tuples = new ArrayList<Object>();
+			validators = ValidatorCache.Validators.fromJSONString(json);
+			if(content.isEmpty()) {
+				if(validators != null && validators.getResult() != null) {
+					tuples.add(webPage);
+					tuples.addAll(ExtractionResult.fromJSONString(validators.getResult()).bindTo(webPage));
+				}
+				return tuples;
+			}
+
+			try {
+				bytes = content.getBytes();
+			}
+			finally {
+				content.release();
+			}
+			if(bytes == null) {
+				_logger.error("Content of " + webPage.getExpandedUrl() + " has been evicted from the store.");
+				return tuples;
+			}
+
+			if(_extractor.getCache() == null) {
+				return tuples(_extractor.extract(webPage, bytes, digest));
+			}
+			digest = ExtractionCache.digest(bytes);
+			_extractor.lookup(webPage, digest, this);
+			return null;
+		}
+
+		private List<Object> tuples(ExtractionResult extracted) throws Exception {
+			List<Object> tuples = new ArrayList<Object>();
+			if(extracted == null) {
+				_logger.error("Parsing of " + webPage.getExpandedUrl() + " failed.");
+				return tuples;
+			}
+
+			tuples.add(webPage);
+			tuples.addAll(extracted.bindTo(webPage));
+
+			if(_validators != null && validators != null) {
+				// unchanged content is found by its digest in the extraction cache
+				_validators.put(webPage.getExpandedUrl(), new ValidatorCache.Validators(validators.getETag(),
+						validators.getLastModified(), null, extracted.toJSONString()));
+			}
+			return tuples;
+		}
+	}
+
+	private void ack(Tuple tuple) {
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
+	}
+
+	@Override
+	public void cleanup() {
+		_emitter.interrupt();
+		_parsers.shutdownNow();
+	}
+
+	private class Emitter implements Runnable {
+
+		private OutputCollector _collector;
+		private HandOffQueue<List<Object>> _tupleQueue;
+
+		private int mediaTuples = 0, webPagesTuples = 0;
+
+		public Emitter(OutputCollector collector, HandOffQueue<List<Object>> tupleQueue) {
+			_collector = collector;
+			_tupleQueue = tupleQueue;
+		}
+
+		public void run() {
+			while(true) {
+				List<HandOffQueue.Entry<List<Object>>> batch;
+				try {
+					batch = _tupleQueue.take(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<List<Object>> entry : batch) {
+						for(Object obj : entry.getValue()) {
+							if(MediaItem.class.isInstance(obj)) {
+								mediaTuples++;
+								_collector.emit(MEDIA_STREAM, entry.getAnchor(), tuple(obj));
+							}
+							else if(WebPage.class.isInstance(obj)) {
+								webPagesTuples++;
+								_collector.emit(WEBPAGE_STREAM, entry.getAnchor(), tuple(obj));
+							}
+						}
+						_collector.ack(entry.getAnchor());
+					}
+				}
+				_inFlight.release(batch.size());
+
+				if((mediaTuples%100==0 || webPagesTuples%100==0) && (mediaTuples!=0 || webPagesTuples!=0)) {
+					_logger.info(receivedTuples + " tuples received, " + mediaTuples + " media tuples emmited, " +
+							webPagesTuples + " web page tuples emmited");
+					_logger.info((maxInFlight - _inFlight.availablePermits()) + " pages in flight out of " + maxInFlight + ", "
+							+ _parsers.getQueuedSubmissionCount() + " waiting to be parsed.");
+				}
+			}
+		}
+	}
+
+}
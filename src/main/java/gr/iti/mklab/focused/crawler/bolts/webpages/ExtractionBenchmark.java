@@ -0,0 +1,241 @@
+package gr.iti.mklab.focused.crawler.bolts.webpages;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.xml.sax.InputSource;
+
+import de.l3s.boilerpipe.BoilerpipeExtractor;
+import de.l3s.boilerpipe.document.TextDocument;
+import de.l3s.boilerpipe.document.TextDocumentStatistics;
+import de.l3s.boilerpipe.estimators.SimpleEstimator;
+import de.l3s.boilerpipe.extractors.CommonExtractors;
+import de.l3s.boilerpipe.sax.BoilerpipeSAXInput;
+import gr.iti.mklab.focused.crawler.utils.Image;
+import gr.iti.mklab.focused.crawler.utils.ImageExtractor;
+import gr.iti.mklab.focused.crawler.utils.ParsedHtml;
+import gr.iti.mklab.focused.crawler.utils.WarcReader;
+
+/**
+ *	Compares, on one thread, the extraction of the article and its images from pages parsed
+ *	three times, as the {@link ArticleExtractionBolt} used to do (a text document for the
+ *	article, one for the images and a third parse by the {@link ImageExtractor}), with the
+ *	single pass of {@link ParsedHtml}. It prints pages per second per core for each, and
+ *	checks that both find the same title, text and images. Then it runs the single pass on
+ *	a number of threads that share the extractors without locks, and checks that they find
+ *	the same results as one thread.
+ *
+ *	The pages are the html responses of the WARC files of a directory, e.g. captured by the
+ *	bolt, or generated article pages if none is given.
+ *
+ *	Usage: ExtractionBenchmark [WARC directory|-] [pages (2000)] [rounds (5)] [threads (cores)]
+ */
+public class ExtractionBenchmark {
+
+	private static final BoilerpipeExtractor EXTRACTOR = CommonExtractors.ARTICLE_EXTRACTOR;
+
+	public static void main(String[] args) throws Exception {
+		String directory = args.length > 0 && !args[0].equals("-") ? args[0] : null;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		List<byte[]> pages = directory == null ? generatePages(count) : readPages(new File(directory), count);
+		long bytes = 0;
+		for(byte[] page : pages) {
+			bytes += page.length;
+		}
+		System.out.println(pages.size() + " pages, " + (bytes / pages.size() / 1024) + " KB on average");
+
+		int mismatches = 0;
+		for(byte[] page : pages) {
+			if(!threePasses(page).equals(singlePass(page))) {
+				mismatches++;
+			}
+		}
+		System.out.println(mismatches + " pages with different results");
+
+		// warm up the JIT
+		run(pages, false, 1);
+		run(pages, true, 1);
+
+		System.out.println(String.format("%-16s %10s %16s", "mode", "seconds", "pages/sec/core"));
+		for(int round = 0; round < rounds; round++) {
+			print("three passes", run(pages, false, 1), pages.size());
+			print("single pass", run(pages, true, 1), pages.size());
+		}
+
+		List<String> expected = new ArrayList<String>(pages.size());
+		for(byte[] page : pages) {
+			expected.add(singlePass(page));
+		}
+		double seconds = runParallel(pages, expected, threads, rounds);
+		System.out.println(String.format("%-16s %10.2f %16.1f   %d threads, %.1f pages/sec, %d pages with different results",
+				"single pass", seconds, pages.size() * rounds * threads / seconds / threads, threads,
+				pages.size() * rounds * threads / seconds, parallelMismatches.get()));
+	}
+
+	// results of the threads that differ from those of one thread
+	private static final AtomicInteger parallelMismatches = new AtomicInteger(0);
+
+	/**
+	 * Each thread extracts all the pages the given number of times. Returns the time it took.
+	 */
+	private static double runParallel(final List<byte[]> pages, final List<String> expected, int threads, final int times) 
+			throws InterruptedException {
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for(int t = 0; t < threads; t++) {
+			final int offset = t * pages.size() / threads;
+			workers.add(new Thread(new Runnable() {
+				public void run() {
+					for(int i = 0; i < times * pages.size(); i++) {
+						// the threads start at different pages
+						int page = (offset + i) % pages.size();
+						try {
+							if(!singlePass(pages.get(page)).equals(expected.get(page))) {
+								parallelMismatches.incrementAndGet();
+							}
+						} catch (Exception e) {
+							parallelMismatches.incrementAndGet();
+						}
+					}
+				}
+			}));
+		}
+
+		long start = System.nanoTime();
+		for(Thread worker : workers) {
+			worker.start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	private static void print(String mode, double seconds, int pages) {
+		System.out.println(String.format("%-16s %10.2f %16.1f", mode, seconds, pages / seconds));
+	}
+
+	private static double run(List<byte[]> pages, boolean single, int times) throws Exception {
+		long start = System.nanoTime();
+		for(int i = 0; i < times; i++) {
+			for(byte[] page : pages) {
+				if(single) {
+					singlePass(page);
+				}
+				else {
+					threePasses(page);
+				}
+			}
+		}
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * The extraction as ArticleExtractionBolt did it before the single pass.
+	 */
+	private static String threePasses(byte[] content) throws Exception {
+		TextDocument document = new BoilerpipeSAXInput(new InputSource(new ByteArrayInputStream(content))).getTextDocument();
+		TextDocument imgDoc = new BoilerpipeSAXInput(new InputSource(new ByteArrayInputStream(content))).getTextDocument();
+
+		TextDocumentStatistics dsBefore = new TextDocumentStatistics(document, false);
+		EXTRACTOR.process(document);
+		EXTRACTOR.process(imgDoc);
+		TextDocumentStatistics dsAfter = new TextDocumentStatistics(document, false);
+		boolean isLowQuality = SimpleEstimator.INSTANCE.isLowQuality(dsBefore, dsAfter);
+
+		List<Image> images = ImageExtractor.INSTANCE.process(imgDoc, new InputSource(new ByteArrayInputStream(content)));
+		return toString(document, isLowQuality, images);
+	}
+
+	private static String singlePass(byte[] content) throws Exception {
+		ParsedHtml html = ParsedHtml.parse(new InputSource(new ByteArrayInputStream(content)));
+		TextDocument document = html.getDocument();
+
+		TextDocumentStatistics dsBefore = new TextDocumentStatistics(document, false);
+		EXTRACTOR.process(document);
+		TextDocumentStatistics dsAfter = new TextDocumentStatistics(document, false);
+		boolean isLowQuality = SimpleEstimator.INSTANCE.isLowQuality(dsBefore, dsAfter);
+
+		List<Image> images = ImageExtractor.INSTANCE.process(document, html);
+		return toString(document, isLowQuality, images);
+	}
+
+	private static String toString(TextDocument document, boolean isLowQuality, List<Image> images) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(document.getTitle()).append('\n').append(document.getText(true, false)).append('\n').append(isLowQuality);
+		for(Image image : images) {
+			sb.append('\n').append(image.getSrc()).append(' ').append(image.getWidth()).append('x').append(image.getHeight());
+		}
+		return sb.toString();
+	}
+
+	private static List<byte[]> readPages(File directory, int count) throws Exception {
+		List<byte[]> pages = new ArrayList<byte[]>();
+		for(File file : WarcReextractor.listFiles(directory)) {
+			WarcReader warc = new WarcReader(new GZIPInputStream(new FileInputStream(file)));
+			try {
+				WarcReader.Record record;
+				while(pages.size() < count && (record = warc.next()) != null) {
+					byte[] html = WarcReextractor.getHtml(record);
+					if(html != null) {
+						pages.add(html);
+					}
+				}
+			}
+			finally {
+				warc.close();
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * News article pages of about 12 KB, with navigation, scripts, a sidebar and images in and out of the article.
+	 */
+	private static List<byte[]> generatePages(int count) throws Exception {
+		List<byte[]> pages = new ArrayList<byte[]>(count);
+		for(int i = 0; i < count; i++) {
+			StringBuilder html = new StringBuilder();
+			html.append("<html><head><title>Article ").append(i).append(" | News</title>");
+			html.append("<script>var ads = [").append(i).append("]; function track() { return ads.length; }</script>");
+			html.append("<style>body { font-family: sans-serif; }</style></head><body>");
+
+			html.append("<div id=\"nav\"><ul>");
+			for(int j = 0; j < 30; j++) {
+				html.append("<li><a href=\"/section/").append(j).append("\">Section ").append(j).append("</a></li>");
+			}
+			html.append("</ul><img src=\"/logo.png\" width=\"300\" height=\"300\"></div>");
+
+			html.append("<div id=\"article\"><h1>Article ").append(i).append("</h1>");
+			for(int p = 0; p < 40; p++) {
+				html.append("<p>Paragraph ").append(p).append(" of article ").append(i)
+					.append(" reports on the events of the day in some detail, with quotes from the people")
+					.append(" involved and the background that readers need, across several sentences of text.");
+				html.append(" <a href=\"/related/").append(p).append("\">related story</a>.</p>");
+				if(p % 10 == 3) {
+					html.append("<img src=\"/images/").append(i).append('-').append(p)
+						.append(".jpg\" width=\"640\" height=\"480\" alt=\"Photo ").append(p).append("\">");
+				}
+			}
+			html.append("</div>");
+
+			html.append("<div id=\"sidebar\">");
+			for(int j = 0; j < 20; j++) {
+				html.append("<div><a href=\"/story/").append(j).append("\"><img src=\"/thumbs/").append(j)
+					.append(".jpg\" width=\"120\" height=\"90\">Story ").append(j).append("</a></div>");
+			}
+			html.append("</div><div id=\"footer\">Copyright News</div></body></html>");
+
+			pages.add(html.toString().getBytes("UTF-8"));
+		}
+		return pages;
+	}
+
+}
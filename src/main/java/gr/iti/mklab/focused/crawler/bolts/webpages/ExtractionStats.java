@@ -0,0 +1,146 @@
+package gr.iti.mklab.focused.crawler.bolts.webpages;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Time spent in the phases of the extraction of pages (parse, article extraction and
+ *	quality estimation, images), and the lock contention and CPU time of the threads that
+ *	extract them, from the ThreadMXBean. Blocked time near zero, with CPU time growing with
+ *	the number of threads, means that extraction scales with cores.
+ */
+public class ExtractionStats {
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final List<Watched> watched = new CopyOnWriteArrayList<Watched>();
+
+	private final AtomicLong pages = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong cached = new AtomicLong(0);
+	private final AtomicLong parseTime = new AtomicLong(0);
+	private final AtomicLong extractTime = new AtomicLong(0);
+	private final AtomicLong imagesTime = new AtomicLong(0);
+	private final AtomicLong maxTime = new AtomicLong(0);
+
+	/**
+	 * A thread, with its counters at the last report.
+	 */
+	private static class Watched {
+
+		final long id;
+
+		long blockedCount = 0;
+		long blockedTime = 0;
+		long cpuTime = 0;
+
+		Watched(long id) {
+			this.id = id;
+		}
+	}
+
+	public ExtractionStats() {
+		if(threads.isThreadContentionMonitoringSupported()) {
+			threads.setThreadContentionMonitoringEnabled(true);
+		}
+	}
+
+	/**
+	 * Adds a thread that extracts pages to the contention and CPU time of the metric.
+	 */
+	public void watch(Thread thread) {
+		watched.add(new Watched(thread.getId()));
+	}
+
+	/**
+	 * Records a page, with the time of each phase in nanoseconds.
+	 */
+	public void record(long parse, long extract, long images) {
+		pages.incrementAndGet();
+		parseTime.addAndGet(parse);
+		extractTime.addAndGet(extract);
+		imagesTime.addAndGet(images);
+
+		long total = parse + extract + images;
+		long max;
+		while(total > (max = maxTime.get()) && !maxTime.compareAndSet(max, total));
+	}
+
+	public void failed() {
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * Counts a page that re-used the result of the same content, without being extracted.
+	 */
+	public void cached() {
+		cached.incrementAndGet();
+	}
+
+	/**
+	 * Metric with the pages extracted, failed and found in the cache, the mean time of each phase and the max time
+	 * of a page in milliseconds, and the times the watched threads blocked on a lock, the time
+	 * they spent blocked and their CPU time in the interval.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long count = pages.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("pages", count);
+				values.put("failed", failed.getAndSet(0));
+				values.put("cached", cached.getAndSet(0));
+				values.put("parse_ms", mean(parseTime.getAndSet(0), count));
+				values.put("extract_ms", mean(extractTime.getAndSet(0), count));
+				values.put("images_ms", mean(imagesTime.getAndSet(0), count));
+				values.put("max_ms", maxTime.getAndSet(0) / 1e6);
+
+				long blockedCount = 0, blockedTime = 0, cpuTime = 0;
+				for(Watched thread : watched) {
+					ThreadInfo info = threads.getThreadInfo(thread.id);
+					if(info == null) {
+						// ended
+						watched.remove(thread);
+						continue;
+					}
+
+					blockedCount += info.getBlockedCount() - thread.blockedCount;
+					thread.blockedCount = info.getBlockedCount();
+
+					// -1 if contention monitoring is not supported
+					if(info.getBlockedTime() >= 0) {
+						blockedTime += info.getBlockedTime() - thread.blockedTime;
+						thread.blockedTime = info.getBlockedTime();
+					}
+
+					long cpu = threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(thread.id) : -1;
+					if(cpu >= 0) {
+						cpuTime += cpu - thread.cpuTime;
+						thread.cpuTime = cpu;
+					}
+				}
+				values.put("threads", (long) watched.size());
+				values.put("blocked_count", blockedCount);
+				values.put("blocked_ms", blockedTime);
+				values.put("cpu_ms", cpuTime / 1000000);
+				return values;
+			}
+		};
+	}
+
+	private static double mean(long nanos, long count) {
+		return count == 0 ? 0d : nanos / 1e6 / count;
+	}
+
+}
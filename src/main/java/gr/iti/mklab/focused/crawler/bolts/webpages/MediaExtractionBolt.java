@@ -81,8 +81,12 @@ public class MediaExtractionBolt extends BaseRichBolt {
 		
 		WebPage webPage = (WebPage) tuple.getValueByField("webPage");
 		
-		if(webPage == null)
+		if(webPage == null) {
+			synchronized(_collector) {
+				_collector.ack(tuple);
+			}
 			return;
+		}
 		
 		String expandedUrl = webPage.getExpandedUrl();
 		
@@ -99,21 +103,23 @@ public class MediaExtractionBolt extends BaseRichBolt {
 			synchronized(_collector) {
 				if(mediaItem != null) { 
 					//webPage.setStatus(SUCCESS);
-					_collector.emit(WEBPAGE_STREAM, tuple(webPage));
-					_collector.emit(MEDIA_STREAM, tuple(mediaItem));
+					_collector.emit(WEBPAGE_STREAM, tuple, tuple(webPage));
+					_collector.emit(MEDIA_STREAM, tuple, tuple(mediaItem));
 				}
 				else {
 					logger.error(webPage.getExpandedUrl() + " failed due to null media item");
 					//webPage.setStatus(FAILED);
-					_collector.emit(WEBPAGE_STREAM, tuple(webPage));
+					_collector.emit(WEBPAGE_STREAM, tuple, tuple(webPage));
 				}
+				_collector.ack(tuple);
 			}
 		} catch (Exception e) {
 			logger.error(webPage.getExpandedUrl() + " failed due to exception");
 			logger.error(e);
 			synchronized(_collector) {
 				//webPage.setStatus(FAILED);
-				_collector.emit(WEBPAGE_STREAM, tuple(webPage));
+				_collector.emit(WEBPAGE_STREAM, tuple, tuple(webPage));
+				_collector.ack(tuple);
 			}
 		}
 
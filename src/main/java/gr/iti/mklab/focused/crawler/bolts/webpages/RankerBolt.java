@@ -2,9 +2,10 @@ package gr.iti.mklab.focused.crawler.bolts.webpages;
 
 import static org.apache.storm.utils.Utils.tuple;
 
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
@@ -13,8 +14,8 @@ import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.apache.storm.utils.Utils;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.common.domain.WebPage;
 
 
@@ -30,7 +31,7 @@ public class RankerBolt extends BaseRichBolt {
 	private static long avgTimeDiff = 10 * 60 * 1000; // 10 minutes 
 	
 	private OutputCollector _collector;
-	private PriorityQueue<WebPage> _queue;
+	private HandOffQueue<WebPage> _queue;
 
 	private String inputField;
 
@@ -41,13 +42,15 @@ public class RankerBolt extends BaseRichBolt {
 	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context,
 			OutputCollector collector) {
 		this._collector = collector;
-		this._queue = new PriorityQueue<WebPage>();
+		this._queue = new HandOffQueue<WebPage>(Comparator.<WebPage>naturalOrder());
+		this._queue.registerMetrics(context, "rank_queue", 60);
 		
 		logger = Logger.getLogger(RankerBolt.class);
 		
 		Thread[] threads = new Thread[4];
 		for(int i=0; i<4; i++) {
 			threads[i] = new Thread(new RankerThread(_queue));
+			threads[i].setDaemon(true);
 			threads[i].start();
 		}
 	}
@@ -62,13 +65,16 @@ public class RankerBolt extends BaseRichBolt {
 				double score = getScore(webPage);
 				webPage.setScore(score);
 			
-				synchronized(_queue) {
-					_queue.offer(webPage);
-				}
+				_queue.put(input, webPage);
+				return;
 			}
 		} catch(Exception e) {
 				logger.error("Exception: "+e.getMessage());
 		}
+		
+		synchronized(_collector) {
+			_collector.ack(input);
+		}
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -93,33 +99,27 @@ public class RankerBolt extends BaseRichBolt {
 	
 	class RankerThread extends Thread {
 
-		PriorityQueue<WebPage> queue;
+		HandOffQueue<WebPage> queue;
 		
-		public RankerThread(PriorityQueue<WebPage> queue) {	
+		public RankerThread(HandOffQueue<WebPage> queue) {	
 			this.queue = queue;
 		}
 
 		public void run() {
 			while(true) {
+				List<HandOffQueue.Entry<WebPage>> ranked;
 				try {
-					WebPage rankedWebPage = null;
-					synchronized(_queue) {
-						rankedWebPage = queue.poll();
-					}
-					
-					if(rankedWebPage == null) {
-						Utils.sleep(500);
-					}
-					else {
-
-						synchronized(_collector) {
-							_collector.emit(tuple(rankedWebPage));
-						}
-					}
+					ranked = queue.take(100);
 				}
-				catch(Exception e) {
-					Utils.sleep(500);
-					continue;
+				catch(InterruptedException e) {
+					return;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<WebPage> entry : ranked) {
+						_collector.emit(entry.getAnchor(), tuple(entry.getValue()));
+						_collector.ack(entry.getAnchor());
+					}
 				}
 			}
 		};
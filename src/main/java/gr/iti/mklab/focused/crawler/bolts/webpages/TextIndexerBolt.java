@@ -1,5 +1,6 @@
 package gr.iti.mklab.focused.crawler.bolts.webpages;
 
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
 import gr.iti.mklab.framework.client.search.solr.SolrWebPageHandler;
 import gr.iti.mklab.framework.client.search.solr.beans.WebPageBean;
 import gr.iti.mklab.framework.common.domain.WebPage;
@@ -7,7 +8,7 @@ import gr.iti.mklab.framework.common.domain.WebPage;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
@@ -28,7 +29,9 @@ public class TextIndexerBolt extends BaseRichBolt {
 	private String _indexService;
 	private SolrWebPageHandler _solrWebPageHandler = null;
 	
-	private ArrayBlockingQueue<WebPage> _queue;
+	private OutputCollector _collector;
+	
+	private HandOffQueue<WebPage> _queue;
 	
 	public TextIndexerBolt(String indexService) {
 		this._indexService = indexService;
@@ -41,7 +44,10 @@ public class TextIndexerBolt extends BaseRichBolt {
 	public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
 		logger = Logger.getLogger(TextIndexerBolt.class);
 		
-		_queue = new ArrayBlockingQueue<WebPage>(10000);
+		_collector = collector;
+		
+		_queue = new HandOffQueue<WebPage>(10000);
+		_queue.registerMetrics(context, "index_queue", 60);
 		
 		logger.info("Connect to " + _indexService);
 		_solrWebPageHandler = SolrWebPageHandler.getInstance(_indexService);
@@ -55,36 +61,49 @@ public class TextIndexerBolt extends BaseRichBolt {
 			WebPage webPage = (WebPage) tuple.getValueByField("WebPage");
 			
 			if(webPage != null && _solrWebPageHandler != null) {
-				_queue.add(webPage);
+				// acked by the indexer, failed if the indexer does not keep up
+				if(!_queue.offer(tuple, webPage, 10, TimeUnit.SECONDS)) {
+					logger.error("Index queue is full, web page " + webPage.getUrl() + " dropped");
+					fail(tuple);
+				}
+				return;
 			}
 		}
 		catch(Exception ex) {
 			logger.error(ex);
 		}
+		
+		synchronized(_collector) {
+			_collector.ack(tuple);
+		}
+	}
+	
+	private void fail(Tuple tuple) {
+		synchronized(_collector) {
+			_collector.fail(tuple);
+		}
 	}
 
 	public class TextIndexer implements Runnable {
 
 		public void run() {
 			while(true) {
+				// Just wait 10 seconds to collect a batch
+				List<HandOffQueue.Entry<WebPage>> webPages;
+				try {
+					webPages = _queue.take(10000, 10 * 1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				boolean inserted = false;
 				try {
-					// Just wait 10 seconds
-					Thread.sleep(10 * 1000);
-
-					List<WebPage> webPages = new ArrayList<WebPage>();
-					_queue.drainTo(webPages);
-					
-					if(webPages.isEmpty()) {
-						logger.info("There are no web pages to index. Wait some more time.");
-						continue;
-					}
-					
 					List<WebPageBean> beans = new ArrayList<WebPageBean>();
-					for(WebPage wp : webPages) {
-						beans.add(new WebPageBean(wp));
+					for(HandOffQueue.Entry<WebPage> wp : webPages) {
+						beans.add(new WebPageBean(wp.getValue()));
 					}
 					
-					boolean inserted = _solrWebPageHandler.insert(beans);
+					inserted = _solrWebPageHandler.insert(beans);
 					
 					if(inserted) {
 						logger.info(webPages.size() + " web pages indexed in Solr");
@@ -94,7 +113,17 @@ public class TextIndexerBolt extends BaseRichBolt {
 					}
 				} catch (Exception e) {
 					logger.error(e);
-					continue;
+				}
+				
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<WebPage> wp : webPages) {
+						if(inserted) {
+							_collector.ack(wp.getAnchor());
+						}
+						else {
+							_collector.fail(wp.getAnchor());
+						}
+					}
 				}
 			}
 		}
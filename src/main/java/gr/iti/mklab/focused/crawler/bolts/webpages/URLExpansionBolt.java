@@ -1,44 +1,103 @@
 package gr.iti.mklab.focused.crawler.bolts.webpages;
 
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
+import gr.iti.mklab.focused.crawler.utils.ResolutionCache;
 import gr.iti.mklab.framework.common.domain.WebPage;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.Proxy;
-import java.net.URL;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
 import static org.apache.storm.utils.Utils.tuple;
+import org.apache.storm.metric.api.CountMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.apache.storm.utils.Utils;
 
+/**
+ *	Expands the (short) urls of the web pages by following their redirects, and emits the
+ *	pages on the media or webpage stream depending on the domain of the expanded url.
+ *
+ *	Expansions are asynchronous: each hop is a HEAD request on a non-blocking client with
+ *	pooled keep-alive connections, and the page is emitted from the callback of the last hop.
+ *	A hop refused with a client error other than 404 or 410 is asked again with a GET, as some
+ *	servers do not answer HEAD requests. After max_redirects hops the last location is emitted.
+ *	Up to maxInFlight expansions run at the same time, execute() blocks when all of them are taken.
+ *	Input tuples are acked when their expansion completes.
+ *
+ *	With a resolution cache, urls known in the worker are emitted without any request, the
+ *	others are looked up in the shared tier of the cache before their first hop, and tuples
+ *	with a url that is already being expanded wait for that expansion. Only failures that
+ *	would happen again are cached: a missing page (404, 410), a redirect loop or an invalid
+ *	url, not timeouts, failed connections or other errors. Host names are resolved by the
+ *	{@link DnsCache} of the worker.
+ */
 public class URLExpansionBolt extends BaseRichBolt {
 
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = -5514715036795163046L;
 	private static int max_redirects = 4;
-	
+
 	private Logger logger;
 	private OutputCollector _collector;
-	
+
 	private Set<String> socialMediaTargets = new HashSet<String>();
 	private String inputField;
-	
+
+	private int maxInFlight = 256;
+	private int maxPerHost = 16;
+	private int timeout = 2000;
+
+	private CloseableHttpAsyncClient _client;
+	private Semaphore _inFlight;
+
+	private boolean useCache = false;
+	private String cacheHost = null;
+	private int cachePort = 6379;
+
+	private ResolutionCache _cache = null;
+	private Map<String, Expansion> _expansions;
+
+	private CountMetric _expanded, _failed, _coalesced;
+
 	public URLExpansionBolt(String inputField) throws Exception {
-		
+
 		this.inputField = inputField;
-		
+
 		socialMediaTargets.add("vimeo.com");
 		socialMediaTargets.add("instagram.com");
 		socialMediaTargets.add("www.youtube.com");
@@ -46,90 +105,393 @@ public class URLExpansionBolt extends BaseRichBolt {
 		socialMediaTargets.add("dailymotion.com");
 		socialMediaTargets.add("www.facebook.com");
 	}
-	
+
+	/**
+	 * Number of expansions in progress per executor.
+	 */
+	public URLExpansionBolt setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/**
+	 * Number of pooled connections per host.
+	 */
+	public URLExpansionBolt setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+		return this;
+	}
+
+	/**
+	 * Caches the expansions in the worker and in a hash of the given Redis, shared by all workers.
+	 */
+	public URLExpansionBolt setResolutionCache(String redisHost, int redisPort) {
+		this.cacheHost = redisHost;
+		this.cachePort = redisPort;
+		this.useCache = true;
+		return this;
+	}
+
+	/**
+	 * Connect and read timeout of each hop, in milliseconds.
+	 */
+	public URLExpansionBolt setTimeout(int timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
 	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context,
 			OutputCollector collector) {
-		
+
 		logger = Logger.getLogger(URLExpansionBolt.class);
-		
+
 		this._collector = collector;
+
+		_inFlight = new Semaphore(maxInFlight);
+
+		_expanded = context.registerMetric("expanded", new CountMetric(), 60);
+		_failed = context.registerMetric("expansion_failures", new CountMetric(), 60);
+		_coalesced = context.registerMetric("coalesced", new CountMetric(), 60);
+
+		_expansions = new HashMap<String, Expansion>();
+		if(useCache) {
+			_cache = ResolutionCache.getInstance(cacheHost, cachePort);
+			context.registerMetric("resolution_cache", _cache.getMetric(), 60);
+		}
+
+		DnsCache dns = DnsCache.getInstance(stormConf);
+		context.registerMetric("dns_cache", dns.getMetric(), 60);
+
+		try {
+			IOReactorConfig ioConfig = IOReactorConfig.custom()
+					.setIoThreadCount(2)
+					.setConnectTimeout(timeout)
+					.setSoTimeout(timeout)
+					.build();
+
+			PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(
+					new DefaultConnectingIOReactor(ioConfig), ManagedNHttpClientConnectionFactory.INSTANCE, dns);
+			cm.setMaxTotal(maxInFlight);
+			cm.setDefaultMaxPerRoute(maxPerHost);
+
+			// redirects are followed by the callbacks, so that each hop is a HEAD request
+			RequestConfig requestConfig = RequestConfig.custom()
+					.setConnectTimeout(timeout)
+					.setSocketTimeout(timeout)
+					.setRedirectsEnabled(false)
+					.build();
+
+			_client = HttpAsyncClients.custom()
+					.setConnectionManager(cm)
+					.setDefaultRequestConfig(requestConfig)
+					.build();
+			_client.start();
+		} catch (IOReactorException e) {
+			logger.error("Failed to start the http client", e);
+			throw new RuntimeException(e);
+		}
 	}
 
-	public void execute(Tuple tuple) {	
+	public void execute(Tuple tuple) {
 		WebPage webPage = (WebPage) tuple.getValueByField(inputField);
-		if(webPage != null) {
+		if(webPage == null || webPage.getUrl() == null) {
+			synchronized(_collector) {
+				_collector.ack(tuple);
+			}
+			return;
+		}
+
+		String url = webPage.getUrl();
+		if(_cache != null) {
+			String expandedUrl = _cache.get(url);
+			if(expandedUrl != null) {
+				emit(tuple, webPage, ResolutionCache.UNRESOLVED.equals(expandedUrl) ? null : expandedUrl);
+				return;
+			}
+		}
+
+		try {
+			_inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			synchronized(_collector) {
+				_collector.fail(tuple);
+			}
+			return;
+		}
+
+		Expansion expansion;
+		synchronized(_expansions) {
+			// the same url is already being expanded for another tuple
+			expansion = _expansions.get(url);
+			if(expansion != null) {
+				expansion.add(tuple, webPage);
+				_coalesced.incr();
+				_inFlight.release();
+				return;
+			}
+
+			expansion = new Expansion(url);
+			expansion.add(tuple, webPage);
+			_expansions.put(url, expansion);
+		}
+		expansion.start();
+	}
+
+	private void emit(Tuple tuple, WebPage webPage, String expandedUrl) {
+		String domain = null;
+		if(expandedUrl != null) {
 			try {
-				String url = webPage.getUrl();
-				String expandedUrl = expand(url);
-				
-				if(expandedUrl != null) {
-					try {
-						URL temp = new URL(expandedUrl);
-						String domain = temp.getHost();
-					
-						webPage.setExpandedUrl(expandedUrl);
-						webPage.setDomain(domain);
-						
-						logger.info(url + " => " + expandedUrl + "\t domain: " + domain);
-						
-						synchronized(_collector) {
-							if(socialMediaTargets.contains(domain)) {
-								_collector.emit("media", tuple(webPage));
-							}
-							else {
-								_collector.emit("webpage", tuple(webPage));
-							}
-						}
-					}
-					catch(Exception e) {
-						//webPage.setStatus("failed");
-						//_collector.emit("update", tuple(webPage));
-						logger.error(e);
-					}
-				}
-				else {
-					//webPage.setStatus("failed");
-					//_collector.emit("update", tuple(webPage));
-				}
-			} catch (Exception e) {
-				//webPage.setStatus("failed");
-				//_collector.emit("update", tuple(webPage));
-				logger.error(e);
+				domain = URI.create(expandedUrl).getHost();
+			}
+			catch(IllegalArgumentException e) {
+				logger.error("Invalid expanded url " + expandedUrl);
 			}
 		}
-		else {
-			Utils.sleep(50);
+
+		if(domain == null) {
+			synchronized(_collector) {
+				_failed.incr();
+				_collector.ack(tuple);
+			}
+			return;
+		}
+
+		webPage.setExpandedUrl(expandedUrl);
+		webPage.setDomain(domain);
+
+		logger.info(webPage.getUrl() + " => " + expandedUrl + "\t domain: " + domain);
+
+		synchronized(_collector) {
+			_expanded.incr();
+			if(socialMediaTargets.contains(domain)) {
+				_collector.emit("media", tuple, tuple(webPage));
+			}
+			else {
+				_collector.emit("webpage", tuple, tuple(webPage));
+			}
+			_collector.ack(tuple);
 		}
 	}
-	
+
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
 		declarer.declareStream("media", new Fields("webPage"));
 		declarer.declareStream("webpage", new Fields("webPage"));
 	}
 
-	public static String expand(String shortUrl) throws IOException {
-		int redirects = 0;
-		HttpURLConnection connection;
-		while(true && redirects < max_redirects) {
+	@Override
+	public void cleanup() {
+		try {
+			_client.close();
+		} catch (IOException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * The redirect chain of one url, shared by the tuples that carry it while it is in progress.
+	 * Hops after the first one run on the I/O threads of the client.
+	 */
+	private class Expansion implements FutureCallback<HttpResponse> {
+
+		private String url;
+		private List<Tuple> tuples = new ArrayList<Tuple>(1);
+		private List<WebPage> webPages = new ArrayList<WebPage>(1);
+
+		private URI current;
+		private Set<URI> visited = new HashSet<URI>();
+		private int redirects = 0;
+		private boolean get = false;
+
+		public Expansion(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * Called holding the lock of _expansions.
+		 */
+		public void add(Tuple tuple, WebPage webPage) {
+			tuples.add(tuple);
+			webPages.add(webPage);
+		}
+
+		/**
+		 * Looks up the url in the shared tier of the cache first, if any.
+		 */
+		public void start() {
+			if(_cache == null || !_cache.isShared()) {
+				expand();
+				return;
+			}
+
+			_cache.getShared(url, new ResolutionCache.Lookup() {
+				public void completed(String expandedUrl) {
+					if(expandedUrl == null) {
+						expand();
+					}
+					else {
+						finish(ResolutionCache.UNRESOLVED.equals(expandedUrl) ? null : expandedUrl);
+					}
+				}
+			});
+		}
+
+		private void expand() {
 			try {
-				URL url = new URL(shortUrl);
-				connection = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY); 
-				connection.setInstanceFollowRedirects(false);
-				connection.setReadTimeout(2000);
-				connection.connect();
-				String expandedURL = connection.getHeaderField("Location");
-				if(expandedURL == null) {
-					return shortUrl;
+				current = URI.create(url);
+				visited.add(current);
+				request();
+			}
+			catch(Exception e) {
+				logger.error("Cannot expand " + url + ": " + e.getMessage());
+				done(null, e instanceof IllegalArgumentException);
+			}
+		}
+
+		private void request() {
+			if(get) {
+				_client.execute(HttpAsyncMethods.create(new HttpGet(current)), new DiscardingConsumer(), this);
+			}
+			else {
+				_client.execute(new HttpHead(current), this);
+			}
+		}
+
+		public void completed(HttpResponse response) {
+			int status = response.getStatusLine().getStatusCode();
+			if(status == 404 || status == 410) {
+				logger.error("Failed to expand " + url + " at " + current + ": " + response.getStatusLine());
+				done(null, true);
+				return;
+			}
+
+			if(status >= 400 && status < 500) {
+				if(!get && status != 429) {
+					// the server may refuse HEAD requests only
+					get = true;
+					retry();
+					return;
 				}
-				else {
-					shortUrl = expandedURL;
-					redirects++;
-				}    
+				// the answer may be different next time, emit the url reached so far but do not cache it
+				logger.error("Stop the expansion of " + url + " at " + current + ": " + response.getStatusLine());
+				done(current, false);
+				return;
+			}
+
+			Header location = response.getFirstHeader("Location");
+			if(status < 300 || status >= 400 || location == null) {
+				// an error of the server may be temporary, the url is emitted but not cached
+				done(current, status < 500);
+				return;
+			}
+
+			URI next;
+			try {
+				// Location may be relative to the url of the request
+				next = current.resolve(location.getValue().trim());
+			}
+			catch(IllegalArgumentException e) {
+				logger.error("Invalid redirect from " + current + ": " + location.getValue());
+				done(current, true);
+				return;
+			}
+
+			current = next;
+			if(!visited.add(current)) {
+				logger.error("Redirect loop in the expansion of " + url + " at " + current);
+				done(null, true);
+				return;
+			}
+			if(++redirects >= max_redirects) {
+				// the location is not requested, as in the blocking expansion
+				logger.info("Stop the expansion of " + url + " after " + redirects + " redirects");
+				done(current, true);
+				return;
+			}
+
+			get = false;
+			retry();
+		}
+
+		private void retry() {
+			try {
+				request();
 			}
 			catch(Exception e) {
-				return null;
+				logger.error("Cannot expand " + current + ": " + e.getMessage());
+				done(null, e instanceof IllegalArgumentException);
+			}
+		}
+
+		public void failed(Exception e) {
+			logger.error("Failed to expand " + url + " at " + current + ": " + e.getMessage());
+			done(null, false);
+		}
+
+		public void cancelled() {
+			done(null, false);
+		}
+
+		/**
+		 * The end of the redirect chain, cached if the outcome would be the same next time.
+		 */
+		private void done(URI expanded, boolean definitive) {
+			String expandedUrl = expanded == null || expanded.getHost() == null ? null : expanded.toString();
+			if(_cache != null && definitive) {
+				_cache.put(url, expandedUrl);
+			}
+			finish(expandedUrl);
+		}
+
+		private void finish(String expandedUrl) {
+			try {
+				synchronized(_expansions) {
+					_expansions.remove(url);
+				}
+
+				for(int i = 0; i < tuples.size(); i++) {
+					emit(tuples.get(i), webPages.get(i), expandedUrl);
+				}
+			}
+			finally {
+				_inFlight.release();
 			}
 		}
-		return shortUrl;
-    }
+	}
+
+	/**
+	 * Keeps the head of a GET response and drops its body as it arrives, instead of buffering it.
+	 */
+	private static class DiscardingConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+		private HttpResponse response;
+		private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			buffer.clear();
+			while(decoder.read(buffer) > 0) {
+				buffer.clear();
+			}
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+		}
+
+		@Override
+		protected HttpResponse buildResult(HttpContext context) {
+			return response;
+		}
+
+		@Override
+		protected void releaseResources() {
+			buffer = null;
+		}
+	}
 }
@@ -0,0 +1,366 @@
+package gr.iti.mklab.focused.crawler.bolts.webpages;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+import gr.iti.mklab.focused.crawler.utils.WarcReader;
+import gr.iti.mklab.focused.crawler.utils.WarcWriter;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Runs the extraction of the {@link ArticleExtractor} again on the pages captured in
+ *	WARC files by a {@link WarcWriter}, without fetching them, e.g. to try other image
+ *	thresholds on a past crawl.
+ *
+ *	The files are memory-mapped and the records are read at the offsets of their index, by
+ *	a thread per core. Files without an index, or written by other crawlers, are read in
+ *	sequence. Only the 2xx html responses are extracted. The result of every page that is
+ *	extracted is written as a line of JSON {url, result}, and the totals and pages per
+ *	second are printed at the end.
+ *
+ *	Usage: WarcReextractor directory|file output.jsonl [minDim (200)] [minArea (40000)] [threads (cores)]
+ */
+public class WarcReextractor {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static Logger logger = Logger.getLogger(WarcReextractor.class);
+
+	private final ArticleExtractor extractor;
+	private final Writer output;
+
+	private final AtomicLong records = new AtomicLong(0);
+	private final AtomicLong extracted = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong images = new AtomicLong(0);
+	private final AtomicLong bytes = new AtomicLong(0);
+
+	public WarcReextractor(ArticleExtractor extractor, Writer output) {
+		this.extractor = extractor;
+		this.output = output;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.out.println("Usage: WarcReextractor directory|file output.jsonl [minDim] [minArea] [threads]");
+			return;
+		}
+
+		int minDim = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int minArea = args.length > 3 ? Integer.parseInt(args[3]) : 200 * 200;
+		ArticleExtractor extractor = new ArticleExtractor(minDim, minArea, 500);
+
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		Writer output = new OutputStreamWriter(new FileOutputStream(args[1]), UTF8);
+		WarcReextractor reextractor = new WarcReextractor(extractor, output);
+
+		long started = System.currentTimeMillis();
+		try {
+			reextractor.run(listFiles(new File(args[0])), threads);
+		}
+		finally {
+			output.close();
+		}
+		double seconds = (System.currentTimeMillis() - started) / 1000d;
+
+		System.out.println(reextractor.records + " records, " + reextractor.extracted + " pages extracted, "
+				+ reextractor.failed + " failed, " + reextractor.images + " images");
+		System.out.println(String.format("%.1f seconds, %.1f pages/sec, %.1f MB/sec", seconds,
+				reextractor.records.get() / seconds, reextractor.bytes.get() / seconds / 1024 / 1024));
+	}
+
+	/**
+	 * The WARC files of a directory, in order, or the file itself. Files still being written are included.
+	 */
+	public static List<File> listFiles(File file) {
+		List<File> files = new ArrayList<File>();
+		if(file.isFile()) {
+			files.add(file);
+			return files;
+		}
+
+		File[] children = file.listFiles();
+		if(children == null) {
+			return files;
+		}
+		Arrays.sort(children);
+		for(File child : children) {
+			String name = child.getName();
+			if(child.isFile() && (name.endsWith(WarcWriter.EXTENSION) || name.endsWith(WarcWriter.EXTENSION + WarcWriter.OPEN_EXTENSION))) {
+				files.add(child);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Extracts the pages of the files on the given number of threads, and waits for them.
+	 */
+	public void run(List<File> files, int threads) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for(File file : files) {
+				submit(file, executor);
+			}
+		}
+		finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+	}
+
+	private void submit(final File file, ExecutorService executor) throws IOException {
+		if(file.length() > Integer.MAX_VALUE) {
+			// too large to map, e.g. the files of other crawlers
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						readAll(new FileInputStream(file));
+					} catch (IOException e) {
+						logger.error("Failed to read " + file + ": " + e.getMessage());
+					}
+				}
+			});
+			return;
+		}
+		
+		final MappedByteBuffer mapped;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the channel is closed
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close();
+		}
+
+		File index = getIndex(file);
+		if(!index.exists()) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						readAll(new ByteBufferInputStream(mapped.duplicate()));
+					} catch (IOException e) {
+						logger.error("Failed to read " + file + ": " + e.getMessage());
+					}
+				}
+			});
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), UTF8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				// url, status, mime type, offset, length
+				final String[] fields = line.split("\t");
+				if(fields.length < 5 || !isHtml(Integer.parseInt(fields[1]), fields[2])) {
+					continue;
+				}
+
+				final long offset = Long.parseLong(fields[3]);
+				final long length = Long.parseLong(fields[4]);
+				if(offset + length > mapped.capacity()) {
+					// the rest of a file that is being written
+					break;
+				}
+
+				executor.execute(new Runnable() {
+					public void run() {
+						ByteBuffer member = mapped.duplicate();
+						member.position((int) offset);
+						member.limit((int) (offset + length));
+						try {
+							WarcReader warc = new WarcReader(new GZIPInputStream(new ByteBufferInputStream(member), 8192));
+							WarcReader.Record record = warc.next();
+							if(record != null) {
+								process(record);
+							}
+						} catch (IOException e) {
+							logger.error("Failed to read " + fields[0] + " at " + offset + " in " + file + ": " + e.getMessage());
+						}
+					}
+				});
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private void readAll(InputStream input) throws IOException {
+		WarcReader warc = new WarcReader(new GZIPInputStream(input, 64 * 1024));
+		try {
+			WarcReader.Record record;
+			while((record = warc.next()) != null) {
+				process(record);
+			}
+		}
+		finally {
+			warc.close();
+		}
+	}
+
+	/**
+	 * Extracts the page of a response record and writes its result.
+	 */
+	private void process(WarcReader.Record record) throws IOException {
+		byte[] html = getHtml(record);
+		if(html == null) {
+			return;
+		}
+
+		records.incrementAndGet();
+		bytes.addAndGet(html.length);
+
+		String url = record.getTargetURI();
+		WebPage webPage = new WebPage();
+		webPage.setExpandedUrl(url);
+
+		ExtractionResult result = extractor.extract(webPage, html);
+		if(result == null) {
+			failed.incrementAndGet();
+			return;
+		}
+		extracted.incrementAndGet();
+		images.addAndGet(result.getImages().size());
+
+		JsonObject line = new JsonObject();
+		line.addProperty("url", url);
+		line.add("result", new JsonParser().parse(result.toJSONString()));
+		synchronized(output) {
+			output.write(line.toString());
+			output.write('\n');
+		}
+	}
+
+	/**
+	 * The body of a response record, if it is a 2xx html page, else null.
+	 */
+	static byte[] getHtml(WarcReader.Record record) {
+		if(!"response".equals(record.getType())) {
+			return null;
+		}
+		
+		byte[] block = record.getContent();
+		int bodyStart = indexOfBody(block);
+		if(bodyStart < 0) {
+			return null;
+		}
+
+		String headers = new String(block, 0, bodyStart, UTF8);
+		if(!isHtml(getStatus(headers), getContentType(headers))) {
+			return null;
+		}
+		return Arrays.copyOfRange(block, bodyStart, block.length);
+	}
+
+	private static boolean isHtml(int status, String mimeType) {
+		return status >= 200 && status < 300 && mimeType != null && mimeType.toLowerCase().contains("html");
+	}
+
+	/**
+	 * Where the body starts, after the blank line that ends the headers, -1 if there is none.
+	 */
+	private static int indexOfBody(byte[] block) {
+		for(int i = 0; i + 3 < block.length; i++) {
+			if(block[i] == '\r' && block[i + 1] == '\n' && block[i + 2] == '\r' && block[i + 3] == '\n') {
+				return i + 4;
+			}
+		}
+		return -1;
+	}
+
+	private static int getStatus(String headers) {
+		String[] statusLine = headers.substring(0, Math.max(0, headers.indexOf('\r'))).split(" ");
+		try {
+			return statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : -1;
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String getContentType(String headers) {
+		for(String line : headers.split("\r\n")) {
+			if(line.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+				return line.substring(13).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The index written next to a WARC file, for files that are closed or still being written.
+	 */
+	private static File getIndex(File file) {
+		String name = file.getName();
+		if(name.endsWith(WarcWriter.OPEN_EXTENSION)) {
+			name = name.substring(0, name.length() - WarcWriter.OPEN_EXTENSION.length());
+			return new File(file.getParentFile(), name + WarcWriter.INDEX_EXTENSION + WarcWriter.OPEN_EXTENSION);
+		}
+		return new File(file.getParentFile(), name + WarcWriter.INDEX_EXTENSION);
+	}
+
+	/**
+	 * Reads the remaining bytes of a buffer, without copying them first.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
@@ -39,16 +39,26 @@ public class WebPageDeserializationBolt extends BaseRichBolt {
 	}
 
 	public void execute(Tuple input) {
+		WebPage webPage = null;
 		try {
 			String json = input.getStringByField(inputField);
-			WebPage webPage = WebPage.toObject(json, WebPage.class);
-			if(webPage != null) {
-				_collector.emit(tuple(webPage));
-			}
+			webPage = WebPage.toObject(json, WebPage.class);
 		} catch(Exception e) {
 			e.printStackTrace();
 			_logger.error("Exception: "+e.getMessage());
 		}
+		
+		// Anchored to the input, so that the entry is acked at the source once the whole tree is done.
+		// Malformed messages are acked as well, a replay would fail in the same way
+		try {
+			if(webPage != null) {
+				_collector.emit(input, tuple(webPage));
+			}
+			_collector.ack(input);
+		} catch(Exception e) {
+			_logger.error("Failed to emit: " + e.getMessage());
+			_collector.fail(input);
+		}
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -1,26 +1,25 @@
 package gr.iti.mklab.focused.crawler.bolts.webpages;
 
 import static org.apache.storm.utils.Utils.tuple;
+import gr.iti.mklab.focused.crawler.bolts.HandOffQueue;
+import gr.iti.mklab.focused.crawler.fetch.BodyReader;
+import gr.iti.mklab.focused.crawler.fetch.DnsCache;
+import gr.iti.mklab.focused.crawler.fetch.FetchCallback;
+import gr.iti.mklab.focused.crawler.fetch.FetchEngine;
+import gr.iti.mklab.focused.crawler.fetch.FetchRequest;
+import gr.iti.mklab.focused.crawler.fetch.FetchResult;
+import gr.iti.mklab.focused.crawler.store.BlobStore;
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
+import gr.iti.mklab.focused.crawler.utils.ValidatorCache;
+import gr.iti.mklab.focused.crawler.utils.WarcWriter;
 import gr.iti.mklab.framework.common.domain.WebPage;
 
-import java.io.InputStream;
-import java.net.URI;
-import java.util.ArrayList;
+import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 
 import org.apache.storm.task.OutputCollector;
@@ -29,8 +28,17 @@ import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.apache.storm.utils.Utils;
 
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	The fetch stage of a page: emits the page with a handle of its content in the
+ *	{@link BlobStore} of the worker, and the validators of the response as JSON, for the 
+ *	extraction stage {@link ArticleParserBolt} to run with its own parallelism. Pages that
+ *	failed or were not answered with a 2xx status are emitted with an empty handle and no
+ *	validators, and pages that have not changed since their cached extraction with an empty
+ *	handle and the cached validators. Only 2xx responses are stored, captured and extracted.
+ */
 public class WebPageFetcherBolt extends BaseRichBolt {
 
 	private static final long serialVersionUID = -2548434425109192911L;
@@ -38,35 +46,62 @@ public class WebPageFetcherBolt extends BaseRichBolt {
 	private Logger _logger;
 	
 	private OutputCollector _collector;
-	private HttpClient _httpclient;
 	
-	private PoolingHttpClientConnectionManager _cm;
+	private FetchEngine _engine;
 	
-	private int numOfFetchers = 24;
+	// tuples of this executor between execute() and their ack
+	private int maxInFlight = 256;
+	private Semaphore _inFlight;
 	
-	private BlockingQueue<WebPage> _queue;
-	private BlockingQueue<Pair<WebPage, byte[]>> _tupleQueue;
+	// the values of the tuple emitted for each input
+	private HandOffQueue<List<Object>> _tupleQueue;
+	
+	private BlobStore _store;
+	
+	// validators of fetched pages, with the result extracted from them
+	private boolean useValidatorCache = false;
+	private String cacheHost = null;
+	private int cachePort = 6379;
+	private ValidatorCache _validators = null;
 
-	private RequestConfig _requestConfig;
+	// fetched responses are written in WARC files there, if set
+	private String warcDirectory = null;
+	private WarcWriter _warc = null;
 
 	private long receivedTuples = 0;
 	
 	private Thread _emitter;
-	private List<Thread> _fetchers;
 	
 	public WebPageFetcherBolt() {
 
 	}
 	
-	public WebPageFetcherBolt(int numOfFetchers) {
-		this.numOfFetchers = numOfFetchers;
+	public WebPageFetcherBolt(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * Fetches pages seen before with a conditional GET. The validators are cached in the
+	 * worker and in the given Redis, by the extraction stage along with their result.
+	 */
+	public WebPageFetcherBolt setValidatorCache(String redisHost, int redisPort) {
+		this.cacheHost = redisHost;
+		this.cachePort = redisPort;
+		this.useValidatorCache = true;
+		return this;
+	}
+	
+	/**
+	 * Writes the fetched pages in WARC files in the given local directory, to extract them again 
+	 * with the {@link WarcReextractor} without fetching them.
+	 */
+	public WebPageFetcherBolt setWarcCapture(String directory) {
+		this.warcDirectory = directory;
+		return this;
 	}
 	
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-    	//declarer.declareStream(MEDIA_STREAM, new Fields("MediaItem", "ImageContent"));
-    	//declarer.declareStream(WEBPAGE_STREAM, new Fields("WebPage", "webPageContent"));
-    	
-    	declarer.declare(new Fields("WebPage", "Content"));
+    	declarer.declare(new Fields("WebPage", "Content", "Validators"));
     }
 
 	public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, 
@@ -76,165 +111,171 @@ public class WebPageFetcherBolt extends BaseRichBolt {
 		
 		_collector = collector;
 		
-		_queue = new LinkedBlockingQueue<WebPage>();
-		_tupleQueue =  new LinkedBlockingQueue<Pair<WebPage, byte[]>>();
+		// fetched content is kept in the worker and emitted as a handle
+		_store = BlobStore.getInstance(conf);
+		context.registerMetric("content_store", _store.getMetric(), 60);
 		
-		_cm = new PoolingHttpClientConnectionManager();
-		_cm.setMaxTotal(numOfFetchers);
-		_cm.setDefaultMaxPerRoute(10);
-
-		_httpclient = HttpClients.custom()
-		        .setConnectionManager(_cm)
-		        .build();
-		
-		// Set timeout parameters for Http requests
-		_requestConfig = RequestConfig.custom()
-		        .setSocketTimeout(30000)
-		        .setConnectTimeout(30000)
-		        .build();
+		// never full, as each queued tuple holds a permit of _inFlight
+		_tupleQueue = new HandOffQueue<List<Object>>(maxInFlight);
+		_tupleQueue.registerMetrics(context, "emit_queue", 60);
+		
+		// requests of all the bolts of the worker go through the same engine
+		_engine = FetchEngine.getInstance(conf);
+		context.registerMetric("fetch_engine", _engine.getMetric(), 60);
+		context.registerMetric("compression", _engine.getCompressionMetric(), 60);
+		context.registerMetric("dns_cache", DnsCache.getInstance(conf).getMetric(), 60);
+		if(_engine.getRobots() != null) {
+			context.registerMetric("robots", _engine.getRobots().getMetric(), 60);
+		}
+		context.registerMetric("body_reader", BodyReader.getInstance(conf).getMetric(), 60);
+		
+		_inFlight = new Semaphore(maxInFlight);
+		
+		if(useValidatorCache) {
+			_validators = ValidatorCache.getInstance("pages", cacheHost, cachePort);
+			context.registerMetric("validator_cache", _validators.getMetric(), 60);
+		}
+		
+		if(warcDirectory != null) {
+			_warc = WarcWriter.getInstance(warcDirectory);
+			context.registerMetric("warc", _warc.getMetric(), 60);
+		}
 	    
 	    _emitter = new Thread(new Emitter(_collector, _tupleQueue));
 	    _emitter.start();
-	    
-	    _fetchers = new ArrayList<Thread>(numOfFetchers);
-	    for(int i=0;i<numOfFetchers; i++) {
-	    	Thread fetcher = new Thread(new HttpFetcher(_queue));
-	    	fetcher.start();
-	    	
-	    	_fetchers.add(fetcher);
-	    }
 	}
 
-	public void execute(Tuple tuple) {
+	public void execute(final Tuple tuple) {
 		receivedTuples++;
-		WebPage webPage = (WebPage) tuple.getValueByField("webPage");
-		try {
-			if(webPage != null) {
-				_queue.put(webPage);
+		final WebPage webPage = (WebPage) tuple.getValueByField("webPage");
+		if(webPage == null) {
+			synchronized(_collector) {
+				_collector.ack(tuple);
 			}
+			return;
+		}
+		
+		// released by the emitter after the ack
+		try {
+			_inFlight.acquire();
 		} catch (InterruptedException e) {
 			_logger.error(e);
+			synchronized(_collector) {
+				_collector.fail(tuple);
+			}
+			return;
 		}
-	}   
-	
-	private class Emitter implements Runnable {
-
-		private OutputCollector _collector;
-		private BlockingQueue<Pair<WebPage, byte[]>> _tupleQueue;
 		
-		private int mediaTuples = 0, webPagesTuples = 0;
+		final String expandedUrl = webPage.getExpandedUrl();
+		if(expandedUrl==null || expandedUrl.length()>300) {
+			_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, null));
+			return;
+		}
 		
-		public Emitter(OutputCollector collector, BlockingQueue<Pair<WebPage, byte[]>> tupleQueue) {
-			_collector = collector;
-			_tupleQueue = tupleQueue;
+		FetchRequest request;
+		try {
+			request = FetchRequest.get(expandedUrl).accept(ContentType.TEXT_HTML.getMimeType());
+		} catch (URISyntaxException e) {
+			_logger.error("for " + expandedUrl, e);
+			_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, null));
+			return;
 		}
 		
-		public void run() {
-			while(true) {
-				Pair<?, ?> obj = _tupleQueue.poll();
-				if(obj != null) {
-					synchronized(_collector) {
-						_collector.emit(tuple(obj.getLeft(), obj.getRight()));
-						
-						//if(MediaItem.class.isInstance(obj)) {
-						//	mediaTuples++;
-						//	_collector.emit(MEDIA_STREAM, tuple(obj));
-						//}
-						//else if(WebPage.class.isInstance(obj)) {
-						//	webPagesTuples++;
-						//	_collector.emit(WEBPAGE_STREAM, tuple(obj));
-						//}
-					}
-				}
-				else {
-					Utils.sleep(500);
-				}
-				
-				if((mediaTuples%100==0 || webPagesTuples%100==0) && (mediaTuples!=0 || webPagesTuples!=0)) {
-					_logger.info(receivedTuples + " tuples received, " + mediaTuples + " media tuples emmited, " + 
-							webPagesTuples + " web page tuples emmited");
-					_logger.info(getWorkingFetchers() + " fetchers out of " + numOfFetchers + " are working.");
-				}
-			}
+		ValidatorCache.Validators cached = _validators == null ? null : _validators.get(expandedUrl);
+		if(cached != null || _validators == null || !_validators.isShared()) {
+			fetch(tuple, webPage, request, cached);
+			return;
 		}
+		
+		// the request is submitted from the reader thread of the cache
+		final FetchRequest uncached = request;
+		_validators.getShared(expandedUrl, new ValidatorCache.Lookup() {
+			public void completed(ValidatorCache.Validators shared) {
+				fetch(tuple, webPage, uncached, shared);
+			}
+		});
 	}
 	
-	private int getWorkingFetchers() {
-		int working = 0;
-		for(Thread fetcher : _fetchers) {
-			if(fetcher.isAlive())
-				working++;
+	private void fetch(final Tuple tuple, final WebPage webPage, FetchRequest request, 
+			final ValidatorCache.Validators cached) {
+		
+		final String expandedUrl = webPage.getExpandedUrl();
+		if(cached != null && cached.getResult() != null) {
+			request.conditional(cached.getETag(), cached.getLastModified());
 		}
-		return working;
-	}
+		
+		_engine.fetch(request, new FetchCallback() {
+			public void completed(FetchResult result) {
+				if(result.isNotModified() && cached != null) {
+					_validators.notModified();
+					_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, cached.toJSONString()));
+				}
+				else if(result.getStatus() < 200 || result.getStatus() >= 300) {
+					_logger.info("URL: " + expandedUrl + "   Status: " + result.getStatus());
+					
+					_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, null));
+				}
+				else if(!result.isAccepted()) {
+					_logger.error("URL: " + expandedUrl + 
+							"   Not supported mime type: " + result.getMimeType());
+					
+					_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, null));
+				}
+				else {
+					if(_warc != null) {
+						_warc.capture(result);
+					}
+					
+					// the digest and the result are added by the extraction stage
+					String validators = new ValidatorCache.Validators(result.getETag(), 
+							result.getLastModified(), null, null).toJSONString();
+					_tupleQueue.put(tuple, tuple(webPage, _store.put(result.getContent()), validators));
+				}
+			}
+
+			public void failed(FetchRequest request, Exception e) {
+				_logger.error("for " + expandedUrl + ": " + e);
+				_tupleQueue.put(tuple, tuple(webPage, ContentHandle.EMPTY, null));
+			}
+		});
+	}   
 	
-	private class HttpFetcher implements Runnable {
+	private class Emitter implements Runnable {
 
-		private BlockingQueue<WebPage> queue;
+		private OutputCollector _collector;
+		private HandOffQueue<List<Object>> _tupleQueue;
+		
+		private long emittedTuples = 0;
 		
-		public HttpFetcher(BlockingQueue<WebPage> _queue) {
-			this.queue = _queue;
+		public Emitter(OutputCollector collector, HandOffQueue<List<Object>> tupleQueue) {
+			_collector = collector;
+			_tupleQueue = tupleQueue;
 		}
 		
 		public void run() {
 			while(true) {
-				
-				WebPage webPage = null;
+				List<HandOffQueue.Entry<List<Object>>> batch;
 				try {
-					webPage = queue.take();
-				} catch (Exception e) {
-					_logger.error(e);
-					continue;
-				}
-				
-				if(webPage == null) {
-					continue;
-				}
-				
-				String expandedUrl = webPage.getExpandedUrl();
-				if(expandedUrl==null || expandedUrl.length()>300) {
-					_tupleQueue.add(Pair.of(webPage, new byte[0]));
-					continue;
+					batch = _tupleQueue.take(100);
+				} catch (InterruptedException e) {
+					return;
 				}
 				
-				HttpGet httpget = null;
-				try {
-					
-					URI uri = new URI(expandedUrl
-							.replaceAll(" ", "%20")
-							.replaceAll("\\|", "%7C")
-							);
-					
-					httpget = new HttpGet(uri);
-					httpget.setConfig(_requestConfig);
-					HttpResponse response = _httpclient.execute(httpget);
-					
-					HttpEntity entity = response.getEntity();
-					ContentType contentType = ContentType.get(entity);
-	
-					if(!contentType.getMimeType().equals(ContentType.TEXT_HTML.getMimeType())) {
-						_logger.error("URL: " + webPage.getExpandedUrl() + 
-								"   Not supported mime type: " + contentType.getMimeType());
-						
-						_tupleQueue.add(Pair.of(webPage, new byte[0]));
-						
-						continue;
+				synchronized(_collector) {
+					for(HandOffQueue.Entry<List<Object>> entry : batch) {
+						_collector.emit(entry.getAnchor(), entry.getValue());
+						_collector.ack(entry.getAnchor());
 					}
-					
-					InputStream input = entity.getContent();
-					byte[] content = IOUtils.toByteArray(input);
-					
-					_tupleQueue.add(Pair.of(webPage, content));
-					
-				} catch (Exception e) {
-					_logger.error("for " + expandedUrl, e);
-					_tupleQueue.add(Pair.of(webPage, new byte[0]));
-				}
-				finally {
-					if(httpget != null)
-						httpget.abort();
 				}
+				_inFlight.release(batch.size());
 				
+				// every 100 pages
+				long emitted = emittedTuples;
+				emittedTuples += batch.size();
+				if(emittedTuples / 100 > emitted / 100) {
+					_logger.info(receivedTuples + " tuples received, " + emittedTuples + " web page tuples emmited");
+					_logger.info((maxInFlight - _inFlight.availablePermits()) + " tuples in flight out of " + maxInFlight + ".");
+				}
 			}
 		}
 	}
@@ -25,6 +25,8 @@ public class WebPagesUpdaterBolt extends BaseRichBolt {
 	
 	private Logger logger;
 	
+	private OutputCollector _collector;
+	
 	private String mongodbHostname;
 	private String webPagesDB;
 	
@@ -46,6 +48,7 @@ public class WebPagesUpdaterBolt extends BaseRichBolt {
 			OutputCollector collector) {
 		
 		logger = Logger.getLogger(WebPagesUpdaterBolt.class);
+		_collector = collector;
 		try {
 			_webPageDAO = new DAOFactory().getDAO(mongodbHostname, webPagesDB, WebPage.class);
 		} catch (Exception e) {
@@ -64,8 +67,10 @@ public class WebPagesUpdaterBolt extends BaseRichBolt {
 			
 			WebPage webPage = (WebPage) tuple.getValueByField("WebPage");
 		
-			if(webPage == null || _webPageDAO == null)
+			if(webPage == null || _webPageDAO == null) {
+				_collector.ack(tuple);
 				return;
+			}
 				
 			Query<WebPage> query = _webPageDAO.createQuery();
 			query.filter("url", webPage.getUrl());
@@ -90,10 +95,13 @@ public class WebPagesUpdaterBolt extends BaseRichBolt {
 				// Insert new web page (this should never happen in production)
 				_webPageDAO.save(webPage);
 			}
-		
+			
+			_collector.ack(tuple);
 		}
 		catch(Exception ex) {
 			logger.error(ex);
+			// replayed, the update is idempotent
+			_collector.fail(tuple);
 		}
 		
 	}
@@ -0,0 +1,249 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Fetch engine on a non-blocking http client. The requests of all the bolts of the worker
+ *	share a pool of keep-alive connections, with at most maxPerRoute connections per host,
+ *	and a few I/O threads serve all of them.
+ *
+ *	The content of a response is not downloaded if the request does not accept its mime type,
+ *	and is read only up to the cap of the {@link BodyReader}. Compressed content is decoded
+ *	as it arrives, on the I/O threads.
+ */
+public class AsyncFetchEngine extends FetchEngine {
+
+	private final PoolingNHttpClientConnectionManager cm;
+	private final CloseableHttpAsyncClient client;
+
+	public AsyncFetchEngine(int maxInFlight, int maxPerRoute, int timeout, HostScheduler scheduler, DnsCache dns, 
+			BodyReader reader) {
+		super(maxInFlight, scheduler, dns, reader);
+
+		try {
+			IOReactorConfig ioConfig = IOReactorConfig.custom()
+					.setIoThreadCount(Runtime.getRuntime().availableProcessors())
+					.setConnectTimeout(timeout)
+					.setSoTimeout(timeout)
+					.build();
+
+			// names are resolved on the thread that leases the connection, mostly from the cache
+			DnsResolver resolver = dns != null ? dns : SystemDefaultDnsResolver.INSTANCE;
+			cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig), 
+					ManagedNHttpClientConnectionFactory.INSTANCE, resolver);
+			cm.setMaxTotal(maxInFlight);
+			cm.setDefaultMaxPerRoute(maxPerRoute);
+		} catch (IOReactorException e) {
+			logger.error("Failed to start the I/O reactor", e);
+			throw new RuntimeException(e);
+		}
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setSocketTimeout(timeout)
+				.setConnectTimeout(timeout)
+				.build();
+
+		client = HttpAsyncClients.custom()
+				.setConnectionManager(cm)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+		client.start();
+	}
+
+	@Override
+	protected void execute(final FetchRequest request, final FetchCallback callback) {
+		final ContentConsumer consumer = new ContentConsumer(request, reader, compression);
+		client.execute(HttpAsyncMethods.create(toHttpGet(request)), consumer, new FutureCallback<FetchResult>() {
+			public void completed(FetchResult result) {
+				callback.completed(result);
+			}
+
+			public void failed(Exception e) {
+				FetchResult result = consumer.getEarlyResult();
+				if(result != null) {
+					callback.completed(result);
+				}
+				else {
+					callback.failed(request, e);
+				}
+			}
+
+			public void cancelled() {
+				callback.failed(request, new CancellationException());
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		try {
+			client.close();
+		} catch (IOException e) {
+			logger.error(e);
+		}
+	}
+
+	@Override
+	protected void addMetrics(Map<String, Object> values) {
+		PoolStats stats = cm.getTotalStats();
+		values.put("connections_leased", (long) stats.getLeased());
+		values.put("connections_available", (long) stats.getAvailable());
+		values.put("connections_pending", (long) stats.getPending());
+	}
+
+	/**
+	 * Collects the content of a response. Responses that the request does not accept are
+	 * aborted as soon as their headers arrive, the connection is closed instead of reading the content.
+	 * Responses over the cap are aborted at the cap and complete with the truncated content.
+	 */
+	private static class ContentConsumer extends AbstractAsyncResponseConsumer<FetchResult> {
+
+		private final FetchRequest request;
+		private final BodyReader reader;
+		private final CompressionStats compression;
+		private final long started = System.currentTimeMillis();
+
+		private HttpResponse response;
+		private int status;
+		private String mimeType = null;
+		private String charset = null;
+		private String encoding = null;
+
+		private BodyReader.Body body = null;
+		private ContentInflater inflater = null;
+
+		// result of a response that was aborted, as not accepted or truncated
+		private volatile FetchResult early = null;
+
+		ContentConsumer(FetchRequest request, BodyReader reader, CompressionStats compression) {
+			this.request = request;
+			this.reader = reader;
+			this.compression = compression;
+		}
+
+		FetchResult getEarlyResult() {
+			return early;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			this.response = response;
+			status = response.getStatusLine().getStatusCode();
+			encoding = getContentEncoding(response);
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+			if(contentType != null) {
+				mimeType = contentType.getMimeType();
+				charset = contentType.getCharset() == null ? null : contentType.getCharset().name();
+			}
+
+			if(!request.accepts(mimeType)) {
+				early = withResponse(new FetchResult(request, status, mimeType, charset, null, System.currentTimeMillis() - started), 
+						response);
+				throw new IOException("Not accepted mime type " + mimeType);
+			}
+
+			inflater = ContentInflater.forEncoding(encoding);
+			body = reader.open(mimeType, entity.getContentLength());
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			if(inflater != null) {
+				if(inflater.inflate(asChannel(decoder), body)) {
+					return;
+				}
+			}
+			else {
+				ByteBuffer buffer;
+				while((buffer = body.buffer()) != null) {
+					if(decoder.read(buffer) <= 0) {
+						return;
+					}
+				}
+				if(decoder.isCompleted()) {
+					return;
+				}
+			}
+
+			body.setTruncated();
+			early = withResponse(new FetchResult(request, status, mimeType, charset, body.toByteArray(), true, 
+					System.currentTimeMillis() - started), response);
+			throw new IOException("Content of " + request + " truncated at " + body.size() + " bytes");
+		}
+
+		@Override
+		protected FetchResult buildResult(HttpContext context) {
+			byte[] bytes = null;
+			if(status != 304 && request.accepts(mimeType)) {
+				bytes = body == null ? new byte[0] : body.toByteArray();
+			}
+			return withResponse(new FetchResult(request, status, mimeType, charset, bytes, System.currentTimeMillis() - started), 
+					response);
+		}
+
+		@Override
+		protected void releaseResources() {
+			if(body != null) {
+				long wire = inflater == null ? body.size() : inflater.getWireBytes();
+				long decoded = inflater == null ? body.size() : inflater.getDecodedBytes();
+				compression.record(request.getUri().getHost(), encoding, wire, decoded);
+
+				body.close();
+				body = null;
+			}
+			if(inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+			response = null;
+		}
+
+		private static ReadableByteChannel asChannel(final ContentDecoder decoder) {
+			return new ReadableByteChannel() {
+				public int read(ByteBuffer dst) throws IOException {
+					return decoder.read(dst);
+				}
+
+				public boolean isOpen() {
+					return true;
+				}
+
+				public void close() {
+
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.pool.PoolStats;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Fetch engine on the blocking http client, with one thread per request in flight.
+ *
+ *	With virtual threads each request runs on a new virtual thread, and the number of
+ *	requests in flight is bounded only by maxInFlight. Virtual threads need a JVM that
+ *	has them (21 or later), on older ones the engine falls back to a pool of platform threads.
+ *	With platform threads the pool has a fixed number of threads, and at most as many
+ *	requests are in flight.
+ *
+ *	The client does not decode compressed content itself, the engine decodes it while reading
+ *	so that the cap of the {@link BodyReader} applies to the decoded content and the bytes on
+ *	the wire are counted.
+ */
+public class BlockingFetchEngine extends FetchEngine {
+
+	private final PoolingHttpClientConnectionManager cm;
+	private final CloseableHttpClient client;
+	private final RequestConfig requestConfig;
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	/**
+	 * Engine on virtual threads, or on a pool of platform threads if they are not available.
+	 */
+	public static BlockingFetchEngine virtual(int maxInFlight, int maxPerRoute, int timeout, int threads, HostScheduler scheduler,
+			DnsCache dns, BodyReader reader) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if(executor == null) {
+			return new BlockingFetchEngine(threads, maxPerRoute, timeout, Executors.newFixedThreadPool(threads), false, scheduler, 
+					dns, reader);
+		}
+		return new BlockingFetchEngine(maxInFlight, maxPerRoute, timeout, executor, true, scheduler, dns, reader);
+	}
+
+	/**
+	 * Engine on a pool of platform threads.
+	 */
+	public static BlockingFetchEngine threads(int threads, int maxPerRoute, int timeout, HostScheduler scheduler, 
+			DnsCache dns, BodyReader reader) {
+		return new BlockingFetchEngine(threads, maxPerRoute, timeout, Executors.newFixedThreadPool(threads), false, scheduler, 
+				dns, reader);
+	}
+
+	/**
+	 * Connection manager of a blocking client for http and https, that resolves host names with the given resolver.
+	 */
+	public static PoolingHttpClientConnectionManager newConnectionManager(DnsResolver dns) {
+		return new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", SSLConnectionSocketFactory.getSocketFactory())
+				.build(), dns != null ? dns : SystemDefaultDnsResolver.INSTANCE);
+	}
+
+	private BlockingFetchEngine(int maxInFlight, int maxPerRoute, int timeout, ExecutorService executor, boolean virtual,
+			HostScheduler scheduler, DnsCache dns, BodyReader reader) {
+		super(maxInFlight, scheduler, dns, reader);
+
+		this.executor = executor;
+		this.virtual = virtual;
+
+		cm = newConnectionManager(dns);
+		cm.setMaxTotal(maxInFlight);
+		cm.setDefaultMaxPerRoute(maxPerRoute);
+
+		client = HttpClients.custom()
+		        .setConnectionManager(cm)
+		        .disableContentCompression()
+		        .build();
+
+		requestConfig = RequestConfig.custom()
+		        .setSocketTimeout(timeout)
+		        .setConnectTimeout(timeout)
+		        .build();
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor(), looked up at runtime as the code is compiled for older JVMs.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e) {
+			return null;
+		}
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	@Override
+	protected void execute(final FetchRequest request, final FetchCallback callback) {
+		executor.execute(new Runnable() {
+			public void run() {
+				long started = System.currentTimeMillis();
+
+				HttpGet httpget = toHttpGet(request);
+				httpget.setConfig(requestConfig);
+
+				FetchResult result;
+				try {
+					HttpResponse response = client.execute(httpget);
+					int status = response.getStatusLine().getStatusCode();
+
+					String mimeType = null, charset = null;
+					HttpEntity entity = response.getEntity();
+					ContentType contentType = entity == null ? null : ContentType.get(entity);
+					if(contentType != null) {
+						mimeType = contentType.getMimeType();
+						charset = contentType.getCharset() == null ? null : contentType.getCharset().name();
+					}
+
+					byte[] content = null;
+					boolean truncated = false;
+					if(status != 304 && request.accepts(mimeType)) {
+						content = new byte[0];
+						if(entity != null) {
+							String encoding = getContentEncoding(response);
+							ContentInflater inflater = ContentInflater.forEncoding(encoding);
+							BodyReader.Body body = reader.open(mimeType, entity.getContentLength());
+							try {
+								if(inflater != null) {
+									if(!inflater.inflate(Channels.newChannel(entity.getContent()), body)) {
+										body.setTruncated();
+									}
+								}
+								else {
+									body.readFrom(entity.getContent());
+								}
+								content = body.toByteArray();
+								truncated = body.isTruncated();
+							}
+							finally {
+								long wire = inflater == null ? body.size() : inflater.getWireBytes();
+								long decoded = inflater == null ? body.size() : inflater.getDecodedBytes();
+								compression.record(request.getUri().getHost(), encoding, wire, decoded);
+
+								body.close();
+								if(inflater != null) {
+									inflater.end();
+								}
+							}
+						}
+					}
+
+					result = withResponse(new FetchResult(request, status, mimeType, charset, content, truncated,
+							System.currentTimeMillis() - started), response);
+				}
+				catch(Exception e) {
+					callback.failed(request, e);
+					return;
+				}
+				finally {
+					// releases the connection, closes it if the content was not read
+					httpget.abort();
+				}
+
+				// outside of the try, an exception of the callback must not fail the request a second time
+				callback.completed(result);
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		executor.shutdownNow();
+		try {
+			client.close();
+		} catch (IOException e) {
+			logger.error(e);
+		}
+	}
+
+	@Override
+	protected void addMetrics(Map<String, Object> values) {
+		PoolStats stats = cm.getTotalStats();
+		values.put("connections_leased", (long) stats.getLeased());
+		values.put("connections_available", (long) stats.getAvailable());
+		values.put("connections_pending", (long) stats.getPending());
+	}
+
+}
@@ -0,0 +1,263 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Reads response bodies with a cap on their size, that depends on the content type.
+ *	A response that declares a Content-Length over the cap is not read at all, one without
+ *	Content-Length is truncated at the cap.
+ *
+ *	Bodies are read in chunks taken from a pool of buffers and copied once into an array
+ *	of their exact size, so a page costs one allocation instead of a growing array. The
+ *	chunks go back to the pool when the body is closed.
+ *
+ *	One reader per worker, created by the first getInstance() call with the settings:
+ *	fetch.maxBytes (5 MB) for any content type, fetch.maxBytes.text (2 MB) for text/*,
+ *	fetch.maxBytes.image (10 MB) for image/*, fetch.buffer.kb (64), fetch.buffer.pooled (256)
+ *	and fetch.buffer.direct (false) for buffers outside the heap.
+ */
+public class BodyReader {
+
+	private static BodyReader instance = null;
+
+	private final int defaultLimit;
+	private final Map<String, Integer> limits = new HashMap<String, Integer>();
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger(0);
+
+	private final AtomicLong bodies = new AtomicLong(0);
+	private final AtomicLong bytesRead = new AtomicLong(0);
+	private final AtomicLong truncated = new AtomicLong(0);
+	private final AtomicLong tooLarge = new AtomicLong(0);
+	private final AtomicLong allocated = new AtomicLong(0);
+
+	public static synchronized BodyReader getInstance(@SuppressWarnings("rawtypes") Map conf) {
+		if(instance == null) {
+			instance = new BodyReader(FetchEngine.getInt(conf, "fetch.maxBytes", 5 * 1024 * 1024),
+					FetchEngine.getInt(conf, "fetch.buffer.kb", 64) * 1024,
+					FetchEngine.getInt(conf, "fetch.buffer.pooled", 256),
+					conf != null && "true".equals(String.valueOf(conf.get("fetch.buffer.direct"))));
+
+			instance.setLimit("text/", FetchEngine.getInt(conf, "fetch.maxBytes.text", 2 * 1024 * 1024));
+			instance.setLimit("image/", FetchEngine.getInt(conf, "fetch.maxBytes.image", 10 * 1024 * 1024));
+		}
+		return instance;
+	}
+
+	public BodyReader(int defaultLimit, int bufferSize, int maxPooled, boolean direct) {
+		this.defaultLimit = defaultLimit;
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * Sets the cap of the content types that start with the given prefix, e.g. text/ or image/jpeg.
+	 */
+	public synchronized BodyReader setLimit(String mimePrefix, int maxBytes) {
+		limits.put(mimePrefix, maxBytes);
+		return this;
+	}
+
+	/**
+	 * The cap of a content type, from the longest prefix that matches it.
+	 */
+	public synchronized int getLimit(String mimeType) {
+		int limit = defaultLimit, matched = -1;
+		if(mimeType != null) {
+			for(Map.Entry<String, Integer> e : limits.entrySet()) {
+				if(mimeType.startsWith(e.getKey()) && e.getKey().length() > matched) {
+					matched = e.getKey().length();
+					limit = e.getValue();
+				}
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Starts a body. Fails if the declared length (negative if unknown) is over the cap of the content type.
+	 */
+	public Body open(String mimeType, long contentLength) throws IOException {
+		int limit = getLimit(mimeType);
+		if(contentLength > limit) {
+			tooLarge.incrementAndGet();
+			throw new IOException("Content-Length " + contentLength + " is over the limit of " + limit
+					+ " bytes for " + mimeType);
+		}
+		bodies.incrementAndGet();
+		return new Body(limit);
+	}
+
+	/**
+	 * Reads a body from a stream, up to the cap of its content type.
+	 */
+	public byte[] read(InputStream input, String mimeType, long contentLength) throws IOException {
+		Body body = open(mimeType, contentLength);
+		try {
+			body.readFrom(input);
+			return body.toByteArray();
+		}
+		finally {
+			body.close();
+		}
+	}
+
+	private ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if(buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	private void release(ByteBuffer buffer) {
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pool.add(buffer);
+	}
+
+	/**
+	 * A body being read. Callers fill the buffers returned by buffer() until it returns null,
+	 * and close the body when done with it.
+	 */
+	public class Body {
+
+		private final int limit;
+
+		private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		private ByteBuffer current = null;
+		private int full = 0;
+
+		private boolean truncated = false;
+
+		Body(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * A buffer to read the next bytes into, null once the body has reached its cap.
+		 */
+		public ByteBuffer buffer() {
+			if(current != null && !current.hasRemaining()) {
+				full += current.position();
+				current = null;
+			}
+
+			int left = limit - size();
+			if(left <= 0) {
+				return null;
+			}
+
+			if(current == null) {
+				current = acquire();
+				chunks.add(current);
+			}
+			current.limit(Math.min(current.capacity(), current.position() + left));
+			return current;
+		}
+
+		/**
+		 * Reads a stream to its end, or to the cap of the body.
+		 */
+		public void readFrom(InputStream input) throws IOException {
+			ReadableByteChannel channel = Channels.newChannel(input);
+			ByteBuffer buffer;
+			while((buffer = buffer()) != null) {
+				if(channel.read(buffer) < 0) {
+					return;
+				}
+			}
+
+			if(input.read() >= 0) {
+				setTruncated();
+			}
+		}
+
+		public int size() {
+			return full + (current == null ? 0 : current.position());
+		}
+
+		/**
+		 * Marks the body as cut at its cap, the response had more content.
+		 */
+		public void setTruncated() {
+			if(!truncated) {
+				truncated = true;
+				BodyReader.this.truncated.incrementAndGet();
+			}
+		}
+
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		public byte[] toByteArray() {
+			byte[] bytes = new byte[size()];
+			int offset = 0;
+			for(ByteBuffer chunk : chunks) {
+				ByteBuffer read = chunk.duplicate();
+				read.flip();
+				int length = read.remaining();
+				read.get(bytes, offset, length);
+				offset += length;
+			}
+			return bytes;
+		}
+
+		/**
+		 * Returns the buffers of the body to the pool.
+		 */
+		public void close() {
+			bytesRead.addAndGet(size());
+			for(ByteBuffer chunk : chunks) {
+				release(chunk);
+			}
+			chunks.clear();
+			current = null;
+			full = 0;
+		}
+	}
+
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("bodies", bodies.getAndSet(0));
+				values.put("bytes_read", bytesRead.getAndSet(0));
+				values.put("truncated", truncated.getAndSet(0));
+				values.put("too_large", tooLarge.getAndSet(0));
+				values.put("buffers_allocated", allocated.getAndSet(0));
+				values.put("buffers_pooled", (long) pooled.get());
+				return values;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,131 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Bytes on the wire and decoded bytes of the responses of a {@link FetchEngine}, in total
+ *	and per host. The metric reports the hosts that saved the most bytes in the interval.
+ */
+public class CompressionStats {
+
+	private final int topHosts;
+
+	private volatile ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+	private static class Host {
+
+		final String name;
+
+		final AtomicLong responses = new AtomicLong(0);
+		final AtomicLong compressed = new AtomicLong(0);
+		final AtomicLong wireBytes = new AtomicLong(0);
+		final AtomicLong decodedBytes = new AtomicLong(0);
+
+		Host(String name) {
+			this.name = name;
+		}
+
+		long saved() {
+			return decodedBytes.get() - wireBytes.get();
+		}
+	}
+
+	/**
+	 * @param topHosts	number of hosts reported by the metric
+	 */
+	public CompressionStats(int topHosts) {
+		this.topHosts = topHosts;
+	}
+
+	/**
+	 * Records a response of the host, with its content encoding (null for none).
+	 */
+	public void record(String host, String encoding, long wireBytes, long decodedBytes) {
+		if(host == null) {
+			host = "unknown";
+		}
+
+		ConcurrentHashMap<String, Host> current = hosts;
+		Host stats = current.get(host);
+		if(stats == null) {
+			Host created = new Host(host);
+			stats = current.putIfAbsent(host, created);
+			if(stats == null) {
+				stats = created;
+			}
+		}
+
+		stats.responses.incrementAndGet();
+		if(!ContentInflater.isIdentity(encoding)) {
+			stats.compressed.incrementAndGet();
+		}
+		stats.wireBytes.addAndGet(wireBytes);
+		stats.decodedBytes.addAndGet(decodedBytes);
+	}
+
+	/**
+	 * Metric with the responses, wire and decoded bytes, the ratio of decoded to wire bytes
+	 * and the bytes saved, in total and for the top hosts by bytes saved.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				Map<String, Host> interval = hosts;
+				hosts = new ConcurrentHashMap<String, Host>();
+
+				long responses = 0, compressed = 0, wire = 0, decoded = 0;
+				List<Host> all = new ArrayList<Host>(interval.values());
+				for(Host host : all) {
+					responses += host.responses.get();
+					compressed += host.compressed.get();
+					wire += host.wireBytes.get();
+					decoded += host.decodedBytes.get();
+				}
+
+				Collections.sort(all, new Comparator<Host>() {
+					public int compare(Host h1, Host h2) {
+						return Long.compare(h2.saved(), h1.saved());
+					}
+				});
+
+				Map<String, Object> top = new HashMap<String, Object>();
+				for(Host host : all.subList(0, Math.min(topHosts, all.size()))) {
+					if(host.saved() <= 0) {
+						break;
+					}
+					Map<String, Object> values = new HashMap<String, Object>();
+					values.put("responses", host.responses.get());
+					values.put("ratio", ratio(host.decodedBytes.get(), host.wireBytes.get()));
+					values.put("bytes_saved", host.saved());
+					top.put(host.name, values);
+				}
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("responses", responses);
+				values.put("compressed", compressed);
+				values.put("wire_bytes", wire);
+				values.put("decoded_bytes", decoded);
+				values.put("ratio", ratio(decoded, wire));
+				values.put("bytes_saved", decoded - wire);
+				values.put("hosts", top);
+				return values;
+			}
+		};
+	}
+
+	private static double ratio(long decoded, long wire) {
+		return wire == 0 ? 1d : (double) decoded / wire;
+	}
+
+}
@@ -0,0 +1,234 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Decodes a gzip or deflate response body as it arrives, straight into the buffers of a
+ *	{@link BodyReader.Body}. The compressed content is never held in full, and the cap of
+ *	the body applies to the decoded content.
+ *
+ *	Deflate is accepted both with the zlib wrapper of the spec and raw, as some servers send it.
+ *	The gzip trailer is not verified. Call end() when done, the inflater holds native memory.
+ */
+public class ContentInflater {
+
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	private final boolean gzip;
+
+	private Inflater inflater = null;
+
+	// bytes of the header, until it is complete
+	private byte[] header = new byte[0];
+
+	private final byte[] input = new byte[8192];
+	private final byte[] output = new byte[8192];
+
+	private long wireBytes = 0;
+
+	/**
+	 * True if the content encoding (gzip, x-gzip or deflate) can be decoded.
+	 */
+	public static boolean supports(String encoding) {
+		return "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)
+				|| "deflate".equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * True if the content encoding is none or identity.
+	 */
+	public static boolean isIdentity(String encoding) {
+		return encoding == null || encoding.isEmpty() || "identity".equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * An inflater for the content encoding, null if the content is not encoded. Fails if
+	 * the encoding is not supported.
+	 */
+	public static ContentInflater forEncoding(String encoding) throws IOException {
+		if(isIdentity(encoding)) {
+			return null;
+		}
+		if(!supports(encoding)) {
+			throw new IOException("Unsupported content encoding " + encoding);
+		}
+		return new ContentInflater(encoding);
+	}
+
+	public ContentInflater(String encoding) {
+		this.gzip = !"deflate".equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * Reads what the channel has and decodes it into the body. Returns false if the body reached
+	 * its cap before the end of the content, true when the channel has nothing more to read for now.
+	 */
+	public boolean inflate(ReadableByteChannel channel, BodyReader.Body body) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(input);
+		while(true) {
+			if(!drain(body)) {
+				return false;
+			}
+
+			buffer.clear();
+			int n = channel.read(buffer);
+			if(n <= 0) {
+				return true;
+			}
+			wireBytes += n;
+
+			if(inflater == null || !inflater.finished()) {
+				// the bytes after the end of the stream, e.g. the gzip trailer, are read and dropped
+				feed(input, n);
+			}
+		}
+	}
+
+	/**
+	 * Compressed bytes read so far.
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Decoded bytes so far.
+	 */
+	public long getDecodedBytes() {
+		return inflater == null ? 0 : inflater.getBytesWritten();
+	}
+
+	public boolean isFinished() {
+		return inflater != null && inflater.finished();
+	}
+
+	public void end() {
+		if(inflater != null) {
+			inflater.end();
+		}
+	}
+
+	private void feed(byte[] bytes, int length) throws IOException {
+		if(inflater != null) {
+			inflater.setInput(bytes, 0, length);
+			return;
+		}
+
+		int offset = header.length;
+		header = Arrays.copyOf(header, offset + length);
+		System.arraycopy(bytes, 0, header, offset, length);
+
+		int headerLength;
+		if(gzip) {
+			headerLength = gzipHeaderLength(header);
+			if(headerLength < 0) {
+				return;
+			}
+			inflater = new Inflater(true);
+		}
+		else {
+			if(header.length < 2) {
+				return;
+			}
+			// zlib header: deflate method and a checksum that is a multiple of 31
+			int cmf = header[0] & 0xff, flg = header[1] & 0xff;
+			boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+			inflater = new Inflater(!zlib);
+			headerLength = 0;
+		}
+
+		inflater.setInput(header, headerLength, header.length - headerLength);
+	}
+
+	/**
+	 * Decodes the pending input into the body. False if the body is full and the content goes on.
+	 */
+	private boolean drain(BodyReader.Body body) throws IOException {
+		if(inflater == null) {
+			return true;
+		}
+
+		try {
+			while(true) {
+				ByteBuffer out = body.buffer();
+				if(out == null) {
+					return inflater.finished();
+				}
+
+				int n;
+				if(out.hasArray()) {
+					n = inflater.inflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+					out.position(out.position() + n);
+				}
+				else {
+					n = inflater.inflate(output, 0, Math.min(output.length, out.remaining()));
+					out.put(output, 0, n);
+				}
+
+				if(n == 0) {
+					if(inflater.finished() || inflater.needsInput()) {
+						return true;
+					}
+					if(inflater.needsDictionary()) {
+						throw new IOException("Deflate content needs a preset dictionary");
+					}
+				}
+			}
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Invalid compressed content: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Length of the gzip header (RFC 1952) at the start of the bytes, -1 if they do not hold all of it yet.
+	 */
+	private static int gzipHeaderLength(byte[] bytes) throws IOException {
+		if(bytes.length < 10) {
+			return -1;
+		}
+		if((bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b || bytes[2] != 8) {
+			throw new IOException("Content is not in gzip format");
+		}
+
+		int flags = bytes[3] & 0xff;
+		int position = 10;
+		if((flags & 4) != 0) {
+			// FEXTRA
+			if(bytes.length < position + 2) {
+				return -1;
+			}
+			position += 2 + ((bytes[position] & 0xff) | ((bytes[position + 1] & 0xff) << 8));
+		}
+		if((flags & 8) != 0) {
+			// FNAME
+			position = skipString(bytes, position);
+		}
+		if((flags & 16) != 0 && position >= 0) {
+			// FCOMMENT
+			position = skipString(bytes, position);
+		}
+		if((flags & 2) != 0 && position >= 0) {
+			// FHCRC
+			position += 2;
+		}
+		return position < 0 || position > bytes.length ? -1 : position;
+	}
+
+	private static int skipString(byte[] bytes, int position) {
+		for(int i = position; i < bytes.length; i++) {
+			if(bytes[i] == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,270 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Resolves host names for the http clients of a worker, and caches the addresses for
+ *	dns.ttl.ms (300000) and the names that do not resolve for dns.negativeTtl.ms (60000).
+ *
+ *	Lookups run on a pool of dns.threads (8) resolver threads, and concurrent lookups of
+ *	the same name wait for the same one. prefetch() starts the lookup of a name that is
+ *	about to be fetched without waiting for it, e.g. when its request is queued, and names
+ *	that are used in the last tenth of their TTL are looked up again in the background, so
+ *	that the clients find most names in the cache.
+ *
+ *	One cache per worker, created by the first getInstance() call.
+ */
+public class DnsCache implements DnsResolver {
+
+	private static DnsCache instance = null;
+
+	private static final int CAPACITY = 50000;
+
+	private Logger logger = Logger.getLogger(DnsCache.class);
+
+	private final long ttl;
+	private final long negativeTtl;
+
+	private final Map<String, Entry> cache;
+	private final ConcurrentHashMap<String, FutureTask<Entry>> lookups = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+	private final ExecutorService resolvers;
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong negativeHits = new AtomicLong(0);
+	private final AtomicLong prefetches = new AtomicLong(0);
+	private final AtomicLong refreshes = new AtomicLong(0);
+	private final AtomicLong resolved = new AtomicLong(0);
+	private final AtomicLong lookupTime = new AtomicLong(0);
+	private final AtomicLong maxLookupTime = new AtomicLong(0);
+
+	private static class Entry {
+
+		final String host;
+		final InetAddress[] addresses;
+		final long expires;
+		final long refreshAfter;
+
+		Entry(String host, InetAddress[] addresses, long ttl) {
+			long now = System.currentTimeMillis();
+			this.host = host;
+			this.addresses = addresses;
+			this.expires = now + ttl;
+			this.refreshAfter = now + ttl - ttl / 10;
+		}
+
+		InetAddress[] get() throws UnknownHostException {
+			if(addresses == null) {
+				throw new UnknownHostException(host);
+			}
+			return addresses;
+		}
+	}
+
+	public static synchronized DnsCache getInstance(@SuppressWarnings("rawtypes") Map conf) {
+		if(instance == null) {
+			instance = new DnsCache(FetchEngine.getInt(conf, "dns.ttl.ms", 300000),
+					FetchEngine.getInt(conf, "dns.negativeTtl.ms", 60000),
+					FetchEngine.getInt(conf, "dns.threads", 8));
+		}
+		return instance;
+	}
+
+	@SuppressWarnings("serial")
+	public DnsCache(long ttl, long negativeTtl, int threads) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		cache = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > CAPACITY;
+			}
+		};
+
+		resolvers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dns-resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * The addresses of a host, from the cache or from a lookup it waits for.
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		requests.incrementAndGet();
+
+		String name = host.toLowerCase();
+		Entry entry = getCached(name);
+		if(entry != null) {
+			if(entry.addresses == null) {
+				negativeHits.incrementAndGet();
+			}
+			else {
+				hits.incrementAndGet();
+			}
+
+			if(entry.refreshAfter <= System.currentTimeMillis() && lookup(name)) {
+				refreshes.incrementAndGet();
+			}
+			return entry.get();
+		}
+
+		try {
+			return lookupTask(name).get().get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException(host + ": interrupted");
+		}
+		catch(ExecutionException e) {
+			throw new UnknownHostException(host + ": " + e.getCause());
+		}
+	}
+
+	/**
+	 * Starts the lookup of a host that is not in the cache, without waiting for it.
+	 */
+	public void prefetch(String host) {
+		if(host == null || host.isEmpty()) {
+			return;
+		}
+
+		String name = host.toLowerCase();
+		if(getCached(name) == null && lookup(name)) {
+			prefetches.incrementAndGet();
+		}
+	}
+
+	public void close() {
+		resolvers.shutdownNow();
+	}
+
+	private Entry getCached(String name) {
+		synchronized(cache) {
+			Entry entry = cache.get(name);
+			if(entry != null && entry.expires <= System.currentTimeMillis()) {
+				cache.remove(name);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Starts a lookup of the host if none is running. Returns true if it started one.
+	 */
+	private boolean lookup(String name) {
+		if(lookups.containsKey(name)) {
+			return false;
+		}
+		FutureTask<Entry> task = newTask(name);
+		if(lookups.putIfAbsent(name, task) != null) {
+			return false;
+		}
+		resolvers.execute(task);
+		return true;
+	}
+
+	/**
+	 * The running lookup of the host, or a new one.
+	 */
+	private FutureTask<Entry> lookupTask(String name) {
+		FutureTask<Entry> task = lookups.get(name);
+		if(task != null) {
+			return task;
+		}
+
+		task = newTask(name);
+		FutureTask<Entry> running = lookups.putIfAbsent(name, task);
+		if(running != null) {
+			return running;
+		}
+		resolvers.execute(task);
+		return task;
+	}
+
+	private FutureTask<Entry> newTask(final String name) {
+		return new FutureTask<Entry>(new Callable<Entry>() {
+			public Entry call() {
+				long started = System.currentTimeMillis();
+				Entry entry;
+				try {
+					entry = new Entry(name, InetAddress.getAllByName(name), ttl);
+				}
+				catch(UnknownHostException e) {
+					logger.debug("Cannot resolve " + name);
+					entry = new Entry(name, null, negativeTtl);
+				}
+
+				long elapsed = System.currentTimeMillis() - started;
+				resolved.incrementAndGet();
+				lookupTime.addAndGet(elapsed);
+				if(elapsed > maxLookupTime.get()) {
+					maxLookupTime.set(elapsed);
+				}
+
+				synchronized(cache) {
+					cache.put(name, entry);
+				}
+				lookups.remove(name);
+				return entry;
+			}
+		});
+	}
+
+	/**
+	 * Metric with the requests, the hits and hit rate of the cache, the lookups started by
+	 * prefetch and by refresh, and the mean and max time of the lookups.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long total = requests.getAndSet(0);
+				long positive = hits.getAndSet(0);
+				long negative = negativeHits.getAndSet(0);
+				long lookupsDone = resolved.getAndSet(0);
+				long time = lookupTime.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("requests", total);
+				values.put("hits", positive);
+				values.put("negative_hits", negative);
+				values.put("misses", total - positive - negative);
+				values.put("hit_rate", total == 0 ? 0d : (double) (positive + negative) / total);
+				values.put("prefetches", prefetches.getAndSet(0));
+				values.put("refreshes", refreshes.getAndSet(0));
+				values.put("lookups", lookupsDone);
+				values.put("lookup_ms", lookupsDone == 0 ? 0d : (double) time / lookupsDone);
+				values.put("max_lookup_ms", maxLookupTime.getAndSet(0));
+				synchronized(cache) {
+					values.put("size", (long) cache.size());
+				}
+				return values;
+			}
+		};
+	}
+
+}
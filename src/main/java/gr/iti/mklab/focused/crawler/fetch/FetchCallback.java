@@ -0,0 +1,13 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+/**
+ *	Completion of a fetch. The methods are called by the threads of the engine and should
+ *	only hand the result over, e.g. to a queue of the bolt.
+ */
+public interface FetchCallback {
+
+	public void completed(FetchResult result);
+
+	public void failed(FetchRequest request, Exception e);
+
+}
@@ -0,0 +1,376 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Fetches urls for the bolts of a worker. The bolts submit requests with a callback and
+ *	the engine runs at most maxInFlight of them at the same time, the rest wait in the
+ *	queues of their hosts in a {@link HostScheduler}.
+ *
+ *	One engine per worker, created by the first getInstance() call with the settings:
+ *	fetch.maxInFlight (2048), fetch.maxPerRoute (10) and fetch.timeout.ms (30000). Hosts
+ *	start with fetch.host.initial (2) requests in flight, up to fetch.maxPerRoute, and the
+ *	requests to a host start at most every fetch.host.delay.ms (500, about 2 per second),
+ *	up to fetch.host.maxDelay.ms (60000) after backoffs. Responses slower than fetch.host.slow.ms (10000) count as errors.
+ *	Host names are resolved by the {@link DnsCache} of the worker, that starts looking up
+ *	the host of a request as soon as it is queued. With robots.enabled, requests are checked
+ *	against the robots.txt of their host by a {@link RobotsService} before they are queued.
+ *	fetch.mode selects the implementation: async (default) for {@link AsyncFetchEngine},
+ *	virtual or threads for {@link BlockingFetchEngine} on virtual threads or on a pool of
+ *	fetch.threads (24) platform threads. Bodies are read by the {@link BodyReader} of the worker.
+ *
+ *	Requests accept gzip and deflate content, that is decoded as it arrives by a {@link ContentInflater}.
+ */
+public abstract class FetchEngine {
+
+	private static FetchEngine instance = null;
+
+	protected Logger logger = Logger.getLogger(getClass());
+
+	private final int maxInFlight;
+	private final Semaphore permits;
+
+	protected final BodyReader reader;
+
+	protected final CompressionStats compression = new CompressionStats(20);
+
+	protected final HostScheduler scheduler;
+
+	// null for the resolver of the JVM
+	protected final DnsCache dns;
+
+	// null if robots.txt is not checked
+	private RobotsService robots = null;
+
+	// dispatches the requests of delayed hosts when their delay passes
+	private final ScheduledExecutorService timer;
+	private final Runnable wakeUp;
+	private final AtomicLong wakeUpAt = new AtomicLong(0);
+
+	private final AtomicLong submitted = new AtomicLong(0);
+	private final AtomicLong completed = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong notModified = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong disallowed = new AtomicLong(0);
+	private final AtomicLong bytes = new AtomicLong(0);
+	private final AtomicLong elapsed = new AtomicLong(0);
+
+	public static synchronized FetchEngine getInstance(@SuppressWarnings("rawtypes") Map conf) {
+		if(instance == null) {
+			int maxInFlight = getInt(conf, "fetch.maxInFlight", 2048);
+			int maxPerRoute = getInt(conf, "fetch.maxPerRoute", 10);
+			int timeout = getInt(conf, "fetch.timeout.ms", 30000);
+			int threads = getInt(conf, "fetch.threads", 24);
+
+			HostScheduler scheduler = new HostScheduler(getInt(conf, "fetch.host.initial", 2), maxPerRoute, 
+					getInt(conf, "fetch.host.delay.ms", 500), getInt(conf, "fetch.host.maxDelay.ms", 60000), 
+					getInt(conf, "fetch.host.slow.ms", 10000));
+
+			DnsCache dns = DnsCache.getInstance(conf);
+			BodyReader reader = BodyReader.getInstance(conf);
+
+			Object mode = conf == null ? null : conf.get("fetch.mode");
+			if("virtual".equals(mode)) {
+				BlockingFetchEngine engine = BlockingFetchEngine.virtual(maxInFlight, maxPerRoute, timeout, threads, scheduler, dns, reader);
+				if(!engine.isVirtual()) {
+					engine.logger.warn("Virtual threads are not available, fetching with " + threads + " threads");
+				}
+				instance = engine;
+			}
+			else if("threads".equals(mode)) {
+				instance = BlockingFetchEngine.threads(threads, maxPerRoute, timeout, scheduler, dns, reader);
+			}
+			else {
+				instance = new AsyncFetchEngine(maxInFlight, maxPerRoute, timeout, scheduler, dns, reader);
+			}
+
+			if(conf != null && "true".equals(String.valueOf(conf.get("robots.enabled")))) {
+				instance.robots = RobotsService.create(instance, conf);
+				scheduler.setDelays(instance.robots);
+			}
+		}
+		return instance;
+	}
+
+	protected static int getInt(@SuppressWarnings("rawtypes") Map conf, String name, int defaultValue) {
+		Object value = conf == null ? null : conf.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value.toString());
+	}
+
+	protected FetchEngine(int maxInFlight, HostScheduler scheduler, DnsCache dns, BodyReader reader) {
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+		this.scheduler = scheduler;
+		this.dns = dns;
+		this.reader = reader;
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fetch-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		wakeUp = new Runnable() {
+			public void run() {
+				wakeUpAt.set(0);
+				dispatch();
+			}
+		};
+	}
+
+	public HostScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * The robots.txt service of the engine, null if robots.txt is not checked.
+	 */
+	public RobotsService getRobots() {
+		return robots;
+	}
+
+	/**
+	 * Submits a request, without blocking. The callback is called once, from a thread of the engine.
+	 */
+	public void fetch(final FetchRequest request, final FetchCallback callback) {
+		submitted.incrementAndGet();
+		if(dns != null) {
+			dns.prefetch(request.getUri().getHost());
+		}
+
+		if(robots == null || RobotsService.isRobotsRequest(request)) {
+			queue(request, callback);
+			return;
+		}
+
+		robots.whenLoaded(request.getUri(), new Runnable() {
+			public void run() {
+				if(robots.isAllowed(request.getUri())) {
+					queue(request, callback);
+				}
+				else {
+					disallowed.incrementAndGet();
+					callback.failed(request, new RobotsService.DisallowedException(request.getUri()));
+				}
+			}
+		});
+	}
+
+	private void queue(FetchRequest request, FetchCallback callback) {
+		scheduler.add(request, callback);
+		dispatch();
+	}
+
+	/**
+	 * Runs a request. Implementations call the callback exactly once.
+	 */
+	protected abstract void execute(FetchRequest request, FetchCallback callback) throws Exception;
+
+	public void close() {
+		timer.shutdownNow();
+		if(robots != null) {
+			robots.close();
+		}
+	}
+
+	private void dispatch() {
+		while(true) {
+			if(!permits.tryAcquire()) {
+				// the next completion dispatches the queued requests
+				return;
+			}
+
+			HostScheduler.Task task = scheduler.next();
+			if(task == null) {
+				permits.release();
+				if(scheduler.hasReady()) {
+					// a request was queued meanwhile
+					continue;
+				}
+
+				long readyTime = scheduler.nextReadyTime();
+				if(readyTime > 0) {
+					wakeUp(readyTime);
+				}
+				return;
+			}
+			start(task);
+		}
+	}
+
+	/**
+	 * Dispatches again at the given time, unless a dispatch is already due earlier.
+	 */
+	private void wakeUp(long time) {
+		long current = wakeUpAt.get();
+		while(current == 0 || time < current) {
+			if(wakeUpAt.compareAndSet(current, time)) {
+				timer.schedule(wakeUp, Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				return;
+			}
+			current = wakeUpAt.get();
+		}
+	}
+
+	private void start(final HostScheduler.Task task) {
+		final long started = System.currentTimeMillis();
+		// the engines call back once per request, the flag makes sure the task and its permit are not released twice
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		FetchCallback callback = new FetchCallback() {
+			public void completed(FetchResult result) {
+				if(!finished.compareAndSet(false, true)) {
+					logger.error("Fetch of " + task.request.getUri() + " completed after it had finished");
+					return;
+				}
+
+				if(result.isNotModified()) {
+					notModified.incrementAndGet();
+				}
+				else if(result.isAccepted()) {
+					completed.incrementAndGet();
+					bytes.addAndGet(result.getContent().length);
+				}
+				else {
+					rejected.incrementAndGet();
+				}
+				elapsed.addAndGet(result.getElapsed());
+
+				int status = result.getStatus();
+				scheduler.finished(task, result.getElapsed(), status == 429 || status >= 500);
+
+				try {
+					task.callback.completed(result);
+				}
+				finally {
+					done();
+				}
+			}
+
+			public void failed(FetchRequest request, Exception e) {
+				if(!finished.compareAndSet(false, true)) {
+					logger.error("Fetch of " + request.getUri() + " failed after it had finished", e);
+					return;
+				}
+
+				failed.incrementAndGet();
+				scheduler.finished(task, System.currentTimeMillis() - started, true);
+				try {
+					task.callback.failed(request, e);
+				}
+				finally {
+					done();
+				}
+			}
+		};
+
+		try {
+			execute(task.request, callback);
+		}
+		catch(Exception e) {
+			callback.failed(task.request, e);
+		}
+	}
+
+	private void done() {
+		permits.release();
+		dispatch();
+	}
+
+	/**
+	 * The http request for a fetch request, with the conditional headers if it has validators.
+	 */
+	protected static HttpGet toHttpGet(FetchRequest request) {
+		HttpGet httpget = new HttpGet(request.getUri());
+		httpget.setHeader(HttpHeaders.ACCEPT_ENCODING, ContentInflater.ACCEPT_ENCODING);
+		if(request.getIfNoneMatch() != null) {
+			httpget.setHeader(HttpHeaders.IF_NONE_MATCH, request.getIfNoneMatch());
+		}
+		if(request.getIfModifiedSince() != null) {
+			httpget.setHeader(HttpHeaders.IF_MODIFIED_SINCE, request.getIfModifiedSince());
+		}
+		return httpget;
+	}
+
+	/**
+	 * Sets the status line, the headers and the validators of the response on the result.
+	 */
+	protected static FetchResult withResponse(FetchResult result, HttpResponse response) {
+		Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+		Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+		result.setValidators(etag == null ? null : etag.getValue(), lastModified == null ? null : lastModified.getValue());
+		result.setResponse(response.getStatusLine(), response.getAllHeaders());
+		return result;
+	}
+
+	/**
+	 * The Content-Encoding of a response, null if it has none.
+	 */
+	protected static String getContentEncoding(HttpResponse response) {
+		Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+		return encoding == null ? null : encoding.getValue().trim();
+	}
+
+	/**
+	 * Adds the metrics of the implementation.
+	 */
+	protected void addMetrics(Map<String, Object> values) {
+
+	}
+
+	/**
+	 * Metric with the state of the engine, registered by the bolts that use it.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long responses = completed.getAndSet(0);
+				long notAccepted = rejected.getAndSet(0);
+				long unchanged = notModified.getAndSet(0);
+				long all = responses + notAccepted + unchanged;
+				long time = elapsed.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("queued", (long) scheduler.size());
+				values.put("in_flight", (long) (maxInFlight - permits.availablePermits()));
+				values.put("submitted", submitted.getAndSet(0));
+				values.put("completed", responses);
+				values.put("rejected", notAccepted);
+				values.put("not_modified", unchanged);
+				values.put("failed", failed.getAndSet(0));
+				values.put("disallowed", disallowed.getAndSet(0));
+				values.put("bytes", bytes.getAndSet(0));
+				values.put("fetch_ms", all == 0 ? 0d : (double) time / all);
+				scheduler.addMetrics(values);
+				addMetrics(values);
+				return values;
+			}
+		};
+	}
+
+	/**
+	 * Metric with the compression of the responses, in total and for the hosts that save the most bytes.
+	 */
+	public IMetric getCompressionMetric() {
+		return compression.getMetric();
+	}
+
+}
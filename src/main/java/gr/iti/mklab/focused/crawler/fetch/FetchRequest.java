@@ -0,0 +1,75 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ *	A GET request submitted to a {@link FetchEngine}.
+ */
+public class FetchRequest {
+
+	private final URI uri;
+	private String accept = null;
+
+	private String ifNoneMatch = null;
+	private String ifModifiedSince = null;
+
+	public FetchRequest(URI uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * Request for a url as found in pages and messages, that may contain spaces and pipes.
+	 */
+	public static FetchRequest get(String url) throws URISyntaxException {
+		return new FetchRequest(new URI(url
+				.replaceAll(" ", "%20")
+				.replaceAll("\\|", "%7C")
+				));
+	}
+
+	/**
+	 * Accept only responses with a mime type that starts with the given prefix, e.g. text/html
+	 * or image/. The content of other responses is not downloaded.
+	 */
+	public FetchRequest accept(String mimeType) {
+		this.accept = mimeType;
+		return this;
+	}
+
+	/**
+	 * Makes the request conditional on the validators of a previous response, the server
+	 * answers 304 if the content has not changed since then.
+	 */
+	public FetchRequest conditional(String etag, String lastModified) {
+		this.ifNoneMatch = etag;
+		this.ifModifiedSince = lastModified;
+		return this;
+	}
+
+	public URI getUri() {
+		return uri;
+	}
+
+	public String getAccept() {
+		return accept;
+	}
+
+	public String getIfNoneMatch() {
+		return ifNoneMatch;
+	}
+
+	public String getIfModifiedSince() {
+		return ifModifiedSince;
+	}
+
+	public boolean accepts(String mimeType) {
+		return accept == null || (mimeType != null && mimeType.startsWith(accept));
+	}
+
+	@Override
+	public String toString() {
+		return uri.toString();
+	}
+
+}
@@ -0,0 +1,119 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import org.apache.http.Header;
+import org.apache.http.StatusLine;
+
+/**
+ *	The response to a {@link FetchRequest}. The content is null if the response was not
+ *	accepted by the request or not modified, and truncated if it was over the cap of the
+ *	{@link BodyReader}.
+ */
+public class FetchResult {
+
+	private final FetchRequest request;
+
+	private final int status;
+	private final String mimeType;
+	private final String charset;
+	private final byte[] content;
+	private final boolean truncated;
+
+	private final long elapsed;
+
+	private String etag = null;
+	private String lastModified = null;
+
+	private StatusLine statusLine = null;
+	private Header[] headers = new Header[0];
+
+	public FetchResult(FetchRequest request, int status, String mimeType, String charset, byte[] content, long elapsed) {
+		this(request, status, mimeType, charset, content, false, elapsed);
+	}
+
+	public FetchResult(FetchRequest request, int status, String mimeType, String charset, byte[] content, 
+			boolean truncated, long elapsed) {
+		this.request = request;
+		this.status = status;
+		this.mimeType = mimeType;
+		this.charset = charset;
+		this.content = content;
+		this.truncated = truncated;
+		this.elapsed = elapsed;
+	}
+
+	public FetchRequest getRequest() {
+		return request;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * The response to a conditional request for content that has not changed.
+	 */
+	public boolean isNotModified() {
+		return status == 304;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	void setValidators(String etag, String lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * The status line of the response, null if the result was not built from one.
+	 */
+	public StatusLine getStatusLine() {
+		return statusLine;
+	}
+
+	/**
+	 * The headers of the response as received, e.g. with the Content-Encoding of the content
+	 * before it was decoded.
+	 */
+	public Header[] getHeaders() {
+		return headers;
+	}
+
+	void setResponse(StatusLine statusLine, Header[] headers) {
+		this.statusLine = statusLine;
+		this.headers = headers;
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Time from the submission of the request to the end of the response, in milliseconds.
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public boolean isAccepted() {
+		return content != null;
+	}
+
+}
@@ -0,0 +1,303 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Orders the requests of a {@link FetchEngine} by host. Each host has its own queue, and
+ *	the hosts that can be fetched take turns, so that a host with many urls does not hold
+ *	back the others. A host can be fetched if the time since the start of its last request
+ *	is at least its delay and it has less requests in flight than its limit. The delay spaces
+ *	the starts of the requests whatever the limit, so the minimum delay caps the rate of a
+ *	host: 500 ms, the default of the engine, is about 2 requests per second.
+ *
+ *	The limit and the delay of a host adapt to its responses: a success raises the limit
+ *	by 1/limit up to maxPerHost and shortens the delay down to its minimum, while an error
+ *	(failure, 429 or 5xx) or a response slower than slowMs halves the limit and doubles the
+ *	delay up to maxDelay.
+ *
+ *	The state of a host is dropped when it is idle and the scheduler holds more than MAX_HOSTS
+ *	hosts. The delay a host must keep, e.g. the crawl-delay of its robots.txt, is not part of
+ *	that state: it comes from the {@link Delays} of the scheduler, when the host is created again.
+ */
+public class HostScheduler {
+
+	private static final int MAX_HOSTS = 10000;
+
+	// delay of a host after its first backoff, if its minimum delay is shorter
+	private static final long BACKOFF_MS = 1000;
+
+	private final int initialPerHost;
+	private final int maxPerHost;
+	private final long minDelay;
+	private final long maxDelay;
+	private final long slowMs;
+
+	private final Map<String, Host> hosts;
+
+	// hosts that can be fetched now, in turn
+	private final ArrayDeque<Host> ready = new ArrayDeque<Host>();
+
+	// hosts waiting for their delay to pass
+	private final PriorityQueue<Host> delayed = new PriorityQueue<Host>(64, new Comparator<Host>() {
+		public int compare(Host h1, Host h2) {
+			return Long.compare(h1.nextAllowed, h2.nextAllowed);
+		}
+	});
+
+	private Delays delays = null;
+
+	private int queued = 0;
+	private long backoffs = 0;
+
+	/**
+	 * A request waiting in the queue of its host.
+	 */
+	static class Task {
+
+		final FetchRequest request;
+		final FetchCallback callback;
+		final String host;
+
+		Task(FetchRequest request, FetchCallback callback, String host) {
+			this.request = request;
+			this.callback = callback;
+			this.host = host;
+		}
+	}
+
+	/**
+	 * The least delay of a host, that outlives the state of the host in the scheduler.
+	 */
+	public interface Delays {
+
+		/**
+		 * The least time between two requests to the host, 0 if it has none of its own.
+		 */
+		long getDelay(String host);
+	}
+
+	private static class Host {
+
+		final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+
+		int active = 0;
+		double limit;
+
+		long minDelay;
+		long delay;
+		long nextAllowed = 0;
+
+		double latency = -1;
+
+		// in ready or delayed
+		boolean scheduled = false;
+
+		Host(int limit, long minDelay) {
+			this.limit = limit;
+			this.minDelay = minDelay;
+			this.delay = minDelay;
+		}
+
+		boolean isIdle() {
+			return tasks.isEmpty() && active == 0;
+		}
+	}
+
+	/**
+	 * @param initialPerHost	requests in flight per host to start with
+	 * @param maxPerHost		most requests in flight per host
+	 * @param minDelay			least time between the starts of two requests to a host, in milliseconds
+	 * @param maxDelay			most time between the starts of two requests to a host after backoffs
+	 * @param slowMs			responses slower than this count as errors
+	 */
+	@SuppressWarnings("serial")
+	public HostScheduler(int initialPerHost, int maxPerHost, long minDelay, long maxDelay, long slowMs) {
+		this.initialPerHost = Math.max(1, Math.min(initialPerHost, maxPerHost));
+		this.maxPerHost = maxPerHost;
+		this.minDelay = minDelay;
+		this.maxDelay = Math.max(minDelay, maxDelay);
+		this.slowMs = slowMs;
+
+		// keeps what was learned about recent hosts, forgets idle ones
+		hosts = new LinkedHashMap<String, Host>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+				return size() > MAX_HOSTS && eldest.getValue().isIdle();
+			}
+		};
+	}
+
+	/**
+	 * Queues a request in the queue of its host.
+	 */
+	public synchronized Task add(FetchRequest request, FetchCallback callback) {
+		String name = getHost(request);
+		Task task = new Task(request, callback, name);
+
+		Host host = getOrCreate(name);
+		host.tasks.add(task);
+		queued++;
+
+		schedule(host, System.currentTimeMillis());
+		return task;
+	}
+
+	/**
+	 * The next request to start, from the next host in turn that can be fetched now, or null if there is none.
+	 */
+	public synchronized Task next() {
+		long now = System.currentTimeMillis();
+		promote(now);
+
+		Host host = ready.poll();
+		if(host == null) {
+			return null;
+		}
+		host.scheduled = false;
+
+		Task task = host.tasks.poll();
+		queued--;
+		host.active++;
+		host.nextAllowed = now + host.delay;
+
+		schedule(host, now);
+		return task;
+	}
+
+	/**
+	 * True if a request can be started now.
+	 */
+	public synchronized boolean hasReady() {
+		promote(System.currentTimeMillis());
+		return !ready.isEmpty();
+	}
+
+	/**
+	 * When the next delayed host can be fetched, 0 if no host is waiting for its delay.
+	 */
+	public synchronized long nextReadyTime() {
+		Host host = delayed.peek();
+		return host == null ? 0 : host.nextAllowed;
+	}
+
+	/**
+	 * Records the end of a request started by next(), and adapts the limit and delay of its host.
+	 */
+	public synchronized void finished(Task task, long elapsed, boolean error) {
+		Host host = hosts.get(task.host);
+		if(host == null) {
+			return;
+		}
+
+		host.active--;
+		host.latency = host.latency < 0 ? elapsed : 0.8 * host.latency + 0.2 * elapsed;
+
+		if(error || elapsed > slowMs) {
+			host.limit = Math.max(1, host.limit / 2);
+			host.delay = Math.min(maxDelay, Math.max(2 * host.delay, Math.max(host.minDelay, BACKOFF_MS)));
+			backoffs++;
+		}
+		else {
+			host.limit = Math.min(maxPerHost, host.limit + 1 / host.limit);
+			host.delay = Math.max(host.minDelay, host.delay - host.delay / 10);
+		}
+
+		schedule(host, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the least time between two requests to a host, e.g. the crawl-delay of its robots.txt.
+	 * It cannot be shorter than the minimum delay of the scheduler. It holds until the state of
+	 * the host is dropped, the delays of the scheduler should also have it to outlive that.
+	 */
+	public synchronized void setDelay(String name, long delay) {
+		setMinDelay(getOrCreate(name.toLowerCase()), delay);
+	}
+
+	/**
+	 * Where the delays of hosts come from when their state is created, e.g. the robots.txt
+	 * of the hosts. Called with the lock of the scheduler held.
+	 */
+	public synchronized HostScheduler setDelays(Delays delays) {
+		this.delays = delays;
+		return this;
+	}
+
+	public synchronized int size() {
+		return queued;
+	}
+
+	/**
+	 * Adds the state of the scheduler to the metric of the engine.
+	 */
+	public synchronized void addMetrics(Map<String, Object> values) {
+		int maxQueue = 0, active = 0;
+		double limits = 0;
+		for(Host host : hosts.values()) {
+			maxQueue = Math.max(maxQueue, host.tasks.size());
+			if(!host.isIdle()) {
+				active++;
+				limits += host.limit;
+			}
+		}
+
+		values.put("hosts", (long) active);
+		values.put("hosts_ready", (long) ready.size());
+		values.put("hosts_delayed", (long) delayed.size());
+		values.put("host_queue_max", (long) maxQueue);
+		values.put("host_limit_mean", active == 0 ? 0d : limits / active);
+		values.put("backoffs", backoffs);
+		backoffs = 0;
+	}
+
+	private Host getOrCreate(String name) {
+		Host host = hosts.get(name);
+		if(host == null) {
+			host = new Host(initialPerHost, minDelay);
+			hosts.put(name, host);
+			if(delays != null) {
+				setMinDelay(host, delays.getDelay(name));
+			}
+		}
+		return host;
+	}
+
+	private void setMinDelay(Host host, long delay) {
+		host.minDelay = Math.max(minDelay, delay);
+		host.delay = Math.max(host.delay, host.minDelay);
+	}
+
+	/**
+	 * Puts a host in ready or delayed, if it has requests and is under its limit.
+	 */
+	private void schedule(Host host, long now) {
+		if(host.scheduled || host.tasks.isEmpty() || host.active >= (int) host.limit) {
+			return;
+		}
+		host.scheduled = true;
+		if(host.nextAllowed <= now) {
+			ready.add(host);
+		}
+		else {
+			delayed.add(host);
+		}
+	}
+
+	private void promote(long now) {
+		while(!delayed.isEmpty() && delayed.peek().nextAllowed <= now) {
+			ready.add(delayed.poll());
+		}
+	}
+
+	private static String getHost(FetchRequest request) {
+		String host = request.getUri().getHost();
+		return host == null ? "" : host.toLowerCase();
+	}
+
+}
@@ -0,0 +1,286 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	The rules of a robots.txt (RFC 9309) that apply to an agent, in a trie of their path
+ *	patterns. A path is allowed unless the longest pattern that matches it is a disallow
+ *	rule, allow wins between patterns of the same length. Patterns may contain * for any
+ *	sequence of characters and end with $ to match the end of the path.
+ *
+ *	Only the rules of the agent are kept: the group of the agent if the file has one, else
+ *	the group of *. They can be written in a compact form, e.g. to cache them.
+ */
+public class RobotsRules {
+
+	public static final RobotsRules ALLOW_ALL = new RobotsRules();
+	public static final RobotsRules DISALLOW_ALL = new RobotsRules();
+
+	static {
+		DISALLOW_ALL.add(false, "/");
+	}
+
+	private final Node root = new Node();
+
+	// in the order they were added, to write them out
+	private final List<String> rules = new ArrayList<String>();
+
+	private long crawlDelay = 0;
+
+	/**
+	 * A node of the trie. Children are kept in small arrays, most nodes have one.
+	 */
+	private static class Node {
+
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+
+		// length of the allow and disallow patterns that end here, -1 if none
+		int allow = -1;
+		int disallow = -1;
+
+		// the same for patterns that end here with $
+		int allowAtEnd = -1;
+		int disallowAtEnd = -1;
+
+		Node child(char key) {
+			for(int i = 0; i < keys.length; i++) {
+				if(keys[i] == key) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char key) {
+			Node node = child(key);
+			if(node == null) {
+				node = new Node();
+
+				char[] k = new char[keys.length + 1];
+				Node[] c = new Node[children.length + 1];
+				System.arraycopy(keys, 0, k, 0, keys.length);
+				System.arraycopy(children, 0, c, 0, children.length);
+				k[keys.length] = key;
+				c[children.length] = node;
+				keys = k;
+				children = c;
+			}
+			return node;
+		}
+	}
+
+	/**
+	 * The rules of a robots.txt that apply to the given agent token. A group applies if one
+	 * of its user-agent lines is the whole token, compared case-insensitively.
+	 */
+	public static RobotsRules parse(String content, String agent) {
+		RobotsRules forAgent = new RobotsRules();
+		RobotsRules forAll = new RobotsRules();
+		boolean agentFound = false;
+
+		String token = agent == null ? null : agent.toLowerCase();
+
+		// the groups that the current lines belong to
+		boolean inAgent = false, inAll = false;
+		boolean readingAgents = false;
+
+		for(String line : content.split("\r\n|\r|\n")) {
+			int comment = line.indexOf('#');
+			if(comment >= 0) {
+				line = line.substring(0, comment);
+			}
+
+			int colon = line.indexOf(':');
+			if(colon < 0) {
+				continue;
+			}
+			String field = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+
+			if(field.equals("user-agent")) {
+				if(!readingAgents) {
+					// a new group starts
+					inAgent = false;
+					inAll = false;
+					readingAgents = true;
+				}
+
+				String name = value.toLowerCase();
+				if(name.equals("*")) {
+					inAll = true;
+				}
+				else if(token != null && token.equals(name)) {
+					inAgent = true;
+					agentFound = true;
+				}
+				continue;
+			}
+			readingAgents = false;
+
+			if(field.equals("allow") || field.equals("disallow")) {
+				// an empty disallow allows everything
+				if(value.isEmpty()) {
+					continue;
+				}
+				boolean allow = field.equals("allow");
+				if(inAgent) {
+					forAgent.add(allow, value);
+				}
+				if(inAll) {
+					forAll.add(allow, value);
+				}
+			}
+			else if(field.equals("crawl-delay")) {
+				try {
+					long delay = (long) (Double.parseDouble(value) * 1000);
+					if(inAgent) {
+						forAgent.crawlDelay = delay;
+					}
+					if(inAll) {
+						forAll.crawlDelay = delay;
+					}
+				}
+				catch(NumberFormatException e) {
+					// ignored, as any line that cannot be parsed
+				}
+			}
+		}
+
+		return agentFound ? forAgent : forAll;
+	}
+
+	/**
+	 * Rules written by toCompactString().
+	 */
+	public static RobotsRules fromCompactString(String compact) {
+		RobotsRules robotsRules = new RobotsRules();
+		for(String line : compact.split("\n")) {
+			if(line.length() < 2) {
+				continue;
+			}
+			switch(line.charAt(0)) {
+				case 'A':
+					robotsRules.add(true, line.substring(1));
+					break;
+				case 'D':
+					robotsRules.add(false, line.substring(1));
+					break;
+				case 'C':
+					robotsRules.crawlDelay = Long.parseLong(line.substring(1));
+					break;
+				default:
+			}
+		}
+		return robotsRules;
+	}
+
+	/**
+	 * The rules one per line, A or D followed by the pattern, and C followed by the crawl-delay.
+	 */
+	public String toCompactString() {
+		StringBuilder sb = new StringBuilder();
+		if(crawlDelay > 0) {
+			sb.append('C').append(crawlDelay).append('\n');
+		}
+		for(String rule : rules) {
+			sb.append(rule).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private void add(boolean allow, String pattern) {
+		rules.add((allow ? "A" : "D") + pattern);
+
+		boolean atEnd = pattern.endsWith("$");
+		String path = atEnd ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+		Node node = root;
+		char previous = 0;
+		for(int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if(c == '*' && previous == '*') {
+				continue;
+			}
+			node = node.addChild(c);
+			previous = c;
+		}
+
+		int length = pattern.length();
+		if(atEnd) {
+			if(allow) {
+				node.allowAtEnd = Math.max(node.allowAtEnd, length);
+			}
+			else {
+				node.disallowAtEnd = Math.max(node.disallowAtEnd, length);
+			}
+		}
+		else {
+			if(allow) {
+				node.allow = Math.max(node.allow, length);
+			}
+			else {
+				node.disallow = Math.max(node.disallow, length);
+			}
+		}
+	}
+
+	/**
+	 * Whether a path (with its query) may be fetched.
+	 */
+	public boolean isAllowed(String path) {
+		if(path == null || path.isEmpty()) {
+			path = "/";
+		}
+		if(path.equals("/robots.txt")) {
+			return true;
+		}
+
+		// longest allow and disallow patterns that match
+		int[] longest = {-1, -1};
+		match(root, path, 0, longest);
+		return longest[0] >= longest[1];
+	}
+
+	/**
+	 * Least time between two requests, in milliseconds, 0 if none is set.
+	 */
+	public long getCrawlDelay() {
+		return crawlDelay;
+	}
+
+	public int size() {
+		return rules.size();
+	}
+
+	private static void match(Node node, String path, int position, int[] longest) {
+		// patterns without $ match any path they are a prefix of
+		longest[0] = Math.max(longest[0], node.allow);
+		longest[1] = Math.max(longest[1], node.disallow);
+		if(position == path.length()) {
+			longest[0] = Math.max(longest[0], node.allowAtEnd);
+			longest[1] = Math.max(longest[1], node.disallowAtEnd);
+		}
+
+		Node any = node.child('*');
+		if(any != null) {
+			for(int i = position; i <= path.length(); i++) {
+				match(any, path, i, longest);
+			}
+		}
+
+		if(position < path.length()) {
+			char c = path.charAt(position);
+			if(c != '*') {
+				Node next = node.child(c);
+				if(next != null) {
+					match(next, path, position + 1, longest);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,421 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Checks requests against the robots.txt of their host before the {@link FetchEngine}
+ *	queues them. The robots.txt of a host is fetched once, through the engine, and parsed
+ *	into {@link RobotsRules} that are cached in the worker and in Redis, shared by all
+ *	workers, for robots.ttl.hours (24). The crawl-delay of a host, up to 60 seconds,
+ *	becomes its delay in the {@link HostScheduler} of the engine, for as long as its rules
+ *	are cached, also after the scheduler has dropped the host.
+ *
+ *	A missing robots.txt (4xx) allows everything. A robots.txt that cannot be fetched
+ *	(5xx, network error) disallows everything for robots.errorTtl.minutes (10).
+ *
+ *	Created by the engine when robots.enabled is true, with the settings robots.agent
+ *	(focusedcrawler), the token of the groups to follow besides *, and robots.redis.host
+ *	and robots.redis.port for the shared tier.
+ */
+public class RobotsService implements HostScheduler.Delays {
+
+	private static final int CAPACITY = 20000;
+	private static final long MAX_CRAWL_DELAY = 60000;
+
+	private Logger logger = Logger.getLogger(RobotsService.class);
+
+	private final FetchEngine engine;
+	private final String agent;
+
+	private final long ttl;
+	private final long errorTtl;
+
+	private final Map<String, Entry> local;
+
+	// entries of the hosts with a crawl-delay, by host name
+	private final Map<String, Entry> delayed;
+
+	// hosts whose robots.txt is being loaded, with the requests that wait for it
+	private final Map<String, List<Runnable>> loading = new HashMap<String, List<Runnable>>();
+
+	private JedisPool pool = null;
+	private ExecutorService redisExecutor = null;
+
+	private final AtomicLong checks = new AtomicLong(0);
+	private final AtomicLong disallowed = new AtomicLong(0);
+	private final AtomicLong checkTime = new AtomicLong(0);
+	private final AtomicLong localHits = new AtomicLong(0);
+	private final AtomicLong redisHits = new AtomicLong(0);
+	private final AtomicLong fetched = new AtomicLong(0);
+	private final AtomicLong errors = new AtomicLong(0);
+
+	private static class Entry {
+
+		final RobotsRules rules;
+		final long expires;
+
+		Entry(RobotsRules rules, long expires) {
+			this.rules = rules;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Thrown, to the callback of a request, for urls that the robots.txt of their host disallows.
+	 */
+	public static class DisallowedException extends IOException {
+
+		private static final long serialVersionUID = 2290187353126212342L;
+
+		public DisallowedException(URI uri) {
+			super("Disallowed by robots.txt: " + uri);
+		}
+	}
+
+	static RobotsService create(FetchEngine engine, @SuppressWarnings("rawtypes") Map conf) {
+		Object agent = conf.get("robots.agent");
+		RobotsService robots = new RobotsService(engine, agent == null ? "focusedcrawler" : agent.toString(),
+				FetchEngine.getInt(conf, "robots.ttl.hours", 24) * 3600 * 1000L,
+				FetchEngine.getInt(conf, "robots.errorTtl.minutes", 10) * 60 * 1000L);
+
+		Object redisHost = conf.get("robots.redis.host");
+		if(redisHost != null) {
+			robots.connect(redisHost.toString(), FetchEngine.getInt(conf, "robots.redis.port", 6379));
+		}
+		return robots;
+	}
+
+	@SuppressWarnings("serial")
+	public RobotsService(FetchEngine engine, String agent, long ttl, long errorTtl) {
+		this.engine = engine;
+		this.agent = agent;
+		this.ttl = ttl;
+		this.errorTtl = errorTtl;
+
+		local = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > CAPACITY;
+			}
+		};
+		delayed = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > CAPACITY;
+			}
+		};
+	}
+
+	/**
+	 * Adds the shared tier, keys robots:scheme://host:port in the given Redis. Redis is read
+	 * and written by a thread of the service, never by the threads of the engine.
+	 */
+	public void connect(String redisHost, int redisPort) {
+		pool = new JedisPool(new JedisPoolConfig(), redisHost, redisPort);
+		redisExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "robots-redis");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs admit once the rules of the host of the uri are known, right away if they are cached.
+	 */
+	public void whenLoaded(URI uri, Runnable admit) {
+		final String site = getSite(uri);
+		if(getCached(site) != null) {
+			localHits.incrementAndGet();
+			admit.run();
+			return;
+		}
+
+		synchronized(loading) {
+			List<Runnable> waiting = loading.get(site);
+			if(waiting != null) {
+				waiting.add(admit);
+				return;
+			}
+
+			// the rules may have been loaded meanwhile
+			if(getCached(site) != null) {
+				admit.run();
+				return;
+			}
+
+			waiting = new ArrayList<Runnable>();
+			waiting.add(admit);
+			loading.put(site, waiting);
+		}
+
+		if(redisExecutor != null) {
+			redisExecutor.execute(new Runnable() {
+				public void run() {
+					RobotsRules rules = getShared(site);
+					if(rules != null) {
+						redisHits.incrementAndGet();
+						loaded(site, rules, ttl, false);
+					}
+					else {
+						fetch(site);
+					}
+				}
+			});
+		}
+		else {
+			fetch(site);
+		}
+	}
+
+	/**
+	 * The rules of the host of a uri, null if they are not loaded.
+	 */
+	public RobotsRules getRules(URI uri) {
+		return getCached(getSite(uri));
+	}
+
+	/**
+	 * Whether the uri may be fetched, by the rules of its host. Urls of hosts that are not loaded are allowed.
+	 */
+	public boolean isAllowed(URI uri) {
+		long started = System.nanoTime();
+
+		RobotsRules rules = getCached(getSite(uri));
+		boolean allowed = rules == null || rules.isAllowed(getPath(uri));
+
+		checks.incrementAndGet();
+		checkTime.addAndGet(System.nanoTime() - started);
+		if(!allowed) {
+			disallowed.incrementAndGet();
+		}
+		return allowed;
+	}
+
+	/**
+	 * The crawl-delay of a host, capped to 60 seconds, while its rules are cached.
+	 */
+	public long getDelay(String host) {
+		synchronized(local) {
+			Entry entry = delayed.get(host);
+			if(entry == null) {
+				return 0;
+			}
+			if(entry.expires <= System.currentTimeMillis()) {
+				delayed.remove(host);
+				return 0;
+			}
+			return Math.min(MAX_CRAWL_DELAY, entry.rules.getCrawlDelay());
+		}
+	}
+
+	/**
+	 * Whether a request is for a robots.txt, that is never checked.
+	 */
+	public static boolean isRobotsRequest(FetchRequest request) {
+		return "/robots.txt".equals(request.getUri().getPath());
+	}
+
+	private void fetch(final String site) {
+		FetchRequest request;
+		try {
+			request = new FetchRequest(new URI(site + "/robots.txt")).accept("text/");
+		}
+		catch(Exception e) {
+			loaded(site, RobotsRules.ALLOW_ALL, errorTtl, false);
+			return;
+		}
+
+		engine.fetch(request, new FetchCallback() {
+			public void completed(FetchResult result) {
+				fetched.incrementAndGet();
+
+				int status = result.getStatus();
+				if(status >= 200 && status < 300) {
+					RobotsRules rules = RobotsRules.ALLOW_ALL;
+					if(result.isAccepted()) {
+						try {
+							rules = RobotsRules.parse(new String(result.getContent(), "UTF-8"), agent);
+						} catch (UnsupportedEncodingException e) {
+							logger.error(e);
+						}
+					}
+					loaded(site, rules, ttl, true);
+				}
+				else if(status >= 400 && status < 500) {
+					loaded(site, RobotsRules.ALLOW_ALL, ttl, true);
+				}
+				else {
+					errors.incrementAndGet();
+					loaded(site, RobotsRules.DISALLOW_ALL, errorTtl, false);
+				}
+			}
+
+			public void failed(FetchRequest request, Exception e) {
+				fetched.incrementAndGet();
+				errors.incrementAndGet();
+				logger.info("Failed to fetch " + request + ": " + e.getMessage());
+				loaded(site, RobotsRules.DISALLOW_ALL, errorTtl, false);
+			}
+		});
+	}
+
+	private void loaded(String site, RobotsRules rules, long ttl, boolean share) {
+		String host = URI.create(site).getHost();
+		Entry entry = new Entry(rules, System.currentTimeMillis() + ttl);
+		synchronized(local) {
+			local.put(site, entry);
+			if(host != null && rules.getCrawlDelay() > 0) {
+				delayed.put(host, entry);
+			}
+			else if(host != null) {
+				delayed.remove(host);
+			}
+		}
+
+		if(host != null && rules.getCrawlDelay() > 0) {
+			engine.getScheduler().setDelay(host, Math.min(MAX_CRAWL_DELAY, rules.getCrawlDelay()));
+		}
+
+		if(share && redisExecutor != null) {
+			putShared(site, rules, ttl);
+		}
+
+		List<Runnable> waiting;
+		synchronized(loading) {
+			waiting = loading.remove(site);
+		}
+		if(waiting != null) {
+			for(Runnable admit : waiting) {
+				admit.run();
+			}
+		}
+	}
+
+	private RobotsRules getCached(String site) {
+		synchronized(local) {
+			Entry entry = local.get(site);
+			if(entry == null) {
+				return null;
+			}
+			if(entry.expires <= System.currentTimeMillis()) {
+				local.remove(site);
+				return null;
+			}
+			return entry.rules;
+		}
+	}
+
+	private RobotsRules getShared(String site) {
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			String compact = jedis.get("robots:" + site);
+			return compact == null ? null : RobotsRules.fromCompactString(compact);
+		}
+		catch(Exception e) {
+			logger.error("Failed to read the robots.txt of " + site + " from Redis: " + e.getMessage());
+			return null;
+		}
+		finally {
+			if(jedis != null) {
+				jedis.close();
+			}
+		}
+	}
+
+	private void putShared(final String site, final RobotsRules rules, final long ttl) {
+		redisExecutor.execute(new Runnable() {
+			public void run() {
+				Jedis jedis = null;
+				try {
+					jedis = pool.getResource();
+					jedis.psetex("robots:" + site, ttl, rules.toCompactString());
+				}
+				catch(Exception e) {
+					logger.error("Failed to write the robots.txt of " + site + " in Redis: " + e.getMessage());
+				}
+				finally {
+					if(jedis != null) {
+						jedis.close();
+					}
+				}
+			}
+		});
+	}
+
+	public void close() {
+		if(redisExecutor != null) {
+			redisExecutor.shutdownNow();
+		}
+		if(pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * scheme://host:port of a uri, the site a robots.txt applies to.
+	 */
+	private static String getSite(URI uri) {
+		String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+		int port = uri.getPort();
+		if(port == -1) {
+			port = "https".equals(scheme) ? 443 : 80;
+		}
+		String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+		return scheme + "://" + host + ":" + port;
+	}
+
+	private static String getPath(URI uri) {
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+		return uri.getRawQuery() == null ? path : path + "?" + uri.getRawQuery();
+	}
+
+	/**
+	 * Metric with the checks and the mean time of a check in microseconds, the disallowed urls,
+	 * the hits of the two tiers, the robots.txt fetched and those that failed, and the number of sites cached.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long count = checks.getAndSet(0);
+				long time = checkTime.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("checks", count);
+				values.put("check_us", count == 0 ? 0d : time / 1000d / count);
+				values.put("disallowed", disallowed.getAndSet(0));
+				values.put("local_hits", localHits.getAndSet(0));
+				values.put("redis_hits", redisHits.getAndSet(0));
+				values.put("fetched", fetched.getAndSet(0));
+				values.put("errors", errors.getAndSet(0));
+				synchronized(local) {
+					values.put("sites", (long) local.size());
+				}
+				return values;
+			}
+		};
+	}
+
+}
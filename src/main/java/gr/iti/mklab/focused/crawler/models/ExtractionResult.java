@@ -0,0 +1,140 @@
+package gr.iti.mklab.focused.crawler.models;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	What the article extraction found in the content of a page: title, text, quality and
+ *	the images of the article. It does not depend on the web page that referenced the
+ *	content, so it can be cached and bound to any web page with the same url.
+ */
+public class ExtractionResult {
+
+	private static final Gson gson = new Gson();
+
+	private String title;
+	private String text;
+	private boolean article;
+
+	private List<ArticleImage> images = new ArrayList<ArticleImage>();
+
+	public static class ArticleImage {
+
+		private String url;
+		private String alt;
+		private int width;
+		private int height;
+
+		public ArticleImage(String url, String alt, int width, int height) {
+			this.url = url;
+			this.alt = alt;
+			this.width = width;
+			this.height = height;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * A media item for the image, as found in the given web page.
+		 */
+		public MediaItem toMediaItem(WebPage webPage) throws MalformedURLException {
+			URL imageUrl = new URL(url);
+			MediaItem mediaItem = new MediaItem(imageUrl);
+
+			// Create image unique id. Is this a good practice?
+			int imageHash = (imageUrl.hashCode() & 0x7FFFFFFF);
+
+			mediaItem.setId("Web#" + imageHash);
+			mediaItem.setSource("Web");
+			mediaItem.setType("image");
+			mediaItem.setThumbnail(url);
+
+			mediaItem.setPageUrl(webPage.getExpandedUrl());
+			mediaItem.setReference(webPage.getReference());
+
+			mediaItem.setShares((long)webPage.getShares());
+
+			mediaItem.setTitle(alt.trim());
+			mediaItem.setDescription(webPage.getTitle());
+
+			if(width != -1 && height != -1)
+				mediaItem.setSize(width, height);
+
+			if(webPage.getDate() != null)
+				mediaItem.setPublicationTime(webPage.getDate().getTime());
+
+			return mediaItem;
+		}
+	}
+
+	public ExtractionResult(String title, String text, boolean article) {
+		this.title = title;
+		this.text = text;
+		this.article = article;
+	}
+
+	public void addImage(ArticleImage image) {
+		images.add(image);
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public boolean isArticle() {
+		return article;
+	}
+
+	public List<ArticleImage> getImages() {
+		return images;
+	}
+
+	/**
+	 * Sets the title, text and media of the web page, and returns its media items.
+	 */
+	public List<MediaItem> bindTo(WebPage webPage) throws MalformedURLException {
+		webPage.setTitle(title);
+		webPage.setText(text);
+		webPage.setArticle(article);
+
+		List<MediaItem> mediaItems = new ArrayList<MediaItem>();
+		for(ArticleImage image : images) {
+			mediaItems.add(image.toMediaItem(webPage));
+		}
+		webPage.setMedia(mediaItems.size());
+
+		List<String> mediaIds = new ArrayList<String>();
+		for(MediaItem mediaItem : mediaItems) {
+			mediaIds.add(mediaItem.getId());
+		}
+		webPage.setMediaIds(mediaIds.toArray(new String[mediaIds.size()]));
+
+		if(mediaItems.size() > 0) {
+			MediaItem mediaItem = mediaItems.get(0);
+			webPage.setMediaThumbnail(mediaItem.getUrl());
+		}
+		return mediaItems;
+	}
+
+	public String toJSONString() {
+		return gson.toJson(this);
+	}
+
+	public static ExtractionResult fromJSONString(String json) {
+		return gson.fromJson(json, ExtractionResult.class);
+	}
+
+}
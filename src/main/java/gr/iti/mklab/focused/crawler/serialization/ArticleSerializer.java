@@ -0,0 +1,48 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import java.util.List;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import gr.iti.mklab.focused.crawler.models.Article;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+
+/**
+ *	Writes title, text, tags, the quality flag and the media items of an Article.
+ *	Media items are written with the serializer registered for MediaItem.
+ */
+public class ArticleSerializer extends Serializer<Article> {
+
+	@Override
+	public void write(Kryo kryo, Output output, Article article) {
+		output.writeString(article.getTitle());
+		output.writeString(article.getText());
+		CompactEncoding.writeStrings(output, article.getTags());
+		output.writeBoolean(article.isLowQuality());
+
+		List<MediaItem> mediaItems = article.getMediaItems();
+		output.writeVarInt(mediaItems.size(), true);
+		for(MediaItem mediaItem : mediaItems) {
+			kryo.writeObjectOrNull(output, mediaItem, MediaItem.class);
+		}
+	}
+
+	@Override
+	public Article read(Kryo kryo, Input input, Class<Article> type) {
+		Article article = new Article(input.readString(), input.readString());
+		kryo.reference(article);
+
+		article.setTags(CompactEncoding.readStrings(input));
+		article.setLowQuality(input.readBoolean());
+
+		int size = input.readVarInt(true);
+		for(int i = 0; i < size; i++) {
+			article.addMediaItem(kryo.readObjectOrNull(input, MediaItem.class));
+		}
+		return article;
+	}
+
+}
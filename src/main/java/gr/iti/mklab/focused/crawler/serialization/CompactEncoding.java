@@ -0,0 +1,64 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ *	Encodings shared by the serializers. Array lengths are written as varint length + 1,
+ *	so that a null array takes a single 0 byte.
+ */
+final class CompactEncoding {
+
+	private CompactEncoding() {
+
+	}
+
+	static void writeLength(Output output, Object array, int length) {
+		output.writeVarInt(array == null ? 0 : length + 1, true);
+	}
+
+	/**
+	 * Returns the length written by writeLength, or -1 for a null array.
+	 */
+	static int readLength(Input input) {
+		return input.readVarInt(true) - 1;
+	}
+
+	static void writeStrings(Output output, String[] strings) {
+		writeLength(output, strings, strings == null ? 0 : strings.length);
+		if(strings != null) {
+			for(String s : strings) {
+				output.writeString(s);
+			}
+		}
+	}
+
+	static String[] readStrings(Input input) {
+		int length = readLength(input);
+		if(length < 0) {
+			return null;
+		}
+
+		String[] strings = new String[length];
+		for(int i = 0; i < length; i++) {
+			strings[i] = input.readString();
+		}
+		return strings;
+	}
+
+	static void writeDoubles(Output output, double[] values) {
+		writeLength(output, values, values == null ? 0 : values.length);
+		if(values != null) {
+			output.writeDoubles(values);
+		}
+	}
+
+	static double[] readDoubles(Input input) {
+		int length = readLength(input);
+		if(length < 0) {
+			return null;
+		}
+		return input.readDoubles(length);
+	}
+
+}
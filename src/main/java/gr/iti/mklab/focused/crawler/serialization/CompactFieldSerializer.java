@@ -0,0 +1,250 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+/**
+ *	Serializer for the domain classes of the framework (WebPage, MediaItem, Item and the
+ *	classes they reference), that we cannot annotate or change.
+ *
+ *	The non static, non transient fields of the class and its superclasses are written in
+ *	name order. A bitmap in front of the fields marks the null ones, so null fields take no
+ *	space. Strings, primitives and their wrappers, dates, enums, String[] and double[] are
+ *	written inline. Collections and maps are written as size and elements, and any other
+ *	value with the serializer registered for its class.
+ */
+public class CompactFieldSerializer<T> extends Serializer<T> {
+
+	private static final int OBJECT = 0, STRING = 1, INT = 2, LONG = 3, DOUBLE = 4, FLOAT = 5,
+			BOOLEAN = 6, SHORT = 7, BYTE = 8, CHAR = 9, DATE = 10, ENUM = 11, STRINGS = 12, DOUBLES = 13,
+			LIST = 14, SET = 15, MAP = 16;
+
+	private final Class<T> type;
+	private final Field[] fields;
+	private final int[] kinds;
+
+	// for classes without a no-arg constructor, e.g. ObjectId
+	private ObjectInstantiator instantiator = null;
+
+	public CompactFieldSerializer(Kryo kryo, Class<T> type) {
+		this.type = type;
+
+		List<Field> fields = fieldsOf(type);
+		this.fields = fields.toArray(new Field[fields.size()]);
+		this.kinds = new int[this.fields.length];
+		for(int i = 0; i < this.fields.length; i++) {
+			this.fields[i].setAccessible(true);
+			kinds[i] = kindOf(this.fields[i].getType());
+		}
+
+		try {
+			type.getDeclaredConstructor();
+		}
+		catch(NoSuchMethodException e) {
+			instantiator = new StdInstantiatorStrategy().newInstantiatorOf(type);
+		}
+	}
+
+	/**
+	 * The serialized fields of a class, in the order they are written.
+	 */
+	static List<Field> fieldsOf(Class<?> type) {
+		List<Field> fields = new ArrayList<Field>();
+		for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for(Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if(!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+					fields.add(field);
+				}
+			}
+		}
+
+		Collections.sort(fields, new Comparator<Field>() {
+			public int compare(Field f1, Field f2) {
+				int c = f1.getName().compareTo(f2.getName());
+				return c != 0 ? c : f1.getDeclaringClass().getName().compareTo(f2.getDeclaringClass().getName());
+			}
+		});
+		return fields;
+	}
+
+	private static int kindOf(Class<?> c) {
+		if(c == String.class) return STRING;
+		if(c == int.class || c == Integer.class) return INT;
+		if(c == long.class || c == Long.class) return LONG;
+		if(c == double.class || c == Double.class) return DOUBLE;
+		if(c == float.class || c == Float.class) return FLOAT;
+		if(c == boolean.class || c == Boolean.class) return BOOLEAN;
+		if(c == short.class || c == Short.class) return SHORT;
+		if(c == byte.class || c == Byte.class) return BYTE;
+		if(c == char.class || c == Character.class) return CHAR;
+		if(c == Date.class) return DATE;
+		if(c.isEnum()) return ENUM;
+		if(c == String[].class) return STRINGS;
+		if(c == double[].class) return DOUBLES;
+		if(List.class.isAssignableFrom(c)) return LIST;
+		if(Set.class.isAssignableFrom(c)) return SET;
+		if(Map.class.isAssignableFrom(c)) return MAP;
+		return OBJECT;
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, T object) {
+		try {
+			Object[] values = new Object[fields.length];
+			long nulls = 0;
+			for(int i = 0; i < fields.length; i++) {
+				values[i] = fields[i].get(object);
+				if(values[i] == null) {
+					nulls |= 1L << (i & 63);
+				}
+				if((i & 63) == 63 || i == fields.length - 1) {
+					output.writeVarLong(nulls, true);
+					nulls = 0;
+				}
+			}
+
+			for(int i = 0; i < fields.length; i++) {
+				if(values[i] != null) {
+					writeValue(kryo, output, kinds[i], values[i]);
+				}
+			}
+		}
+		catch(IllegalAccessException e) {
+			throw new KryoException("Cannot write " + type.getName(), e);
+		}
+	}
+
+	@Override
+	public T read(Kryo kryo, Input input, Class<T> type) {
+		T object = instantiator == null ? kryo.newInstance(type) : type.cast(instantiator.newInstance());
+		kryo.reference(object);
+
+		try {
+			boolean[] isNull = new boolean[fields.length];
+			long nulls = 0;
+			for(int i = 0; i < fields.length; i++) {
+				if((i & 63) == 0) {
+					nulls = input.readVarLong(true);
+				}
+				isNull[i] = (nulls & (1L << (i & 63))) != 0;
+			}
+
+			for(int i = 0; i < fields.length; i++) {
+				if(!isNull[i]) {
+					fields[i].set(object, readValue(kryo, input, kinds[i], fields[i].getType()));
+				}
+			}
+		}
+		catch(IllegalAccessException e) {
+			throw new KryoException("Cannot read " + type.getName(), e);
+		}
+		return object;
+	}
+
+	private static void writeValue(Kryo kryo, Output output, int kind, Object value) {
+		switch(kind) {
+			case STRING: output.writeString((String) value); break;
+			case INT: output.writeVarInt((Integer) value, false); break;
+			case LONG: output.writeVarLong((Long) value, false); break;
+			case DOUBLE: output.writeDouble((Double) value); break;
+			case FLOAT: output.writeFloat((Float) value); break;
+			case BOOLEAN: output.writeBoolean((Boolean) value); break;
+			case SHORT: output.writeShort((Short) value); break;
+			case BYTE: output.writeByte((Byte) value); break;
+			case CHAR: output.writeChar((Character) value); break;
+			case DATE: output.writeLong(((Date) value).getTime()); break;
+			case ENUM: output.writeVarInt(((Enum<?>) value).ordinal(), true); break;
+			case STRINGS: CompactEncoding.writeStrings(output, (String[]) value); break;
+			case DOUBLES: CompactEncoding.writeDoubles(output, (double[]) value); break;
+			case LIST:
+			case SET:
+				Collection<?> collection = (Collection<?>) value;
+				output.writeVarInt(collection.size(), true);
+				for(Object element : collection) {
+					kryo.writeClassAndObject(output, element);
+				}
+				break;
+			case MAP:
+				Map<?, ?> map = (Map<?, ?>) value;
+				output.writeVarInt(map.size(), true);
+				for(Entry<?, ?> entry : map.entrySet()) {
+					kryo.writeClassAndObject(output, entry.getKey());
+					kryo.writeClassAndObject(output, entry.getValue());
+				}
+				break;
+			default:
+				kryo.writeClassAndObject(output, value);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object readValue(Kryo kryo, Input input, int kind, Class<?> fieldType) {
+		switch(kind) {
+			case STRING: return input.readString();
+			case INT: return input.readVarInt(false);
+			case LONG: return input.readVarLong(false);
+			case DOUBLE: return input.readDouble();
+			case FLOAT: return input.readFloat();
+			case BOOLEAN: return input.readBoolean();
+			case SHORT: return input.readShort();
+			case BYTE: return input.readByte();
+			case CHAR: return input.readChar();
+			case DATE: return new Date(input.readLong());
+			case ENUM: return fieldType.getEnumConstants()[input.readVarInt(true)];
+			case STRINGS: return CompactEncoding.readStrings(input);
+			case DOUBLES: return CompactEncoding.readDoubles(input);
+			case LIST:
+			case SET:
+				int size = input.readVarInt(true);
+				Collection collection = newCollection(kryo, kind, fieldType, size);
+				for(int i = 0; i < size; i++) {
+					collection.add(kryo.readClassAndObject(input));
+				}
+				return collection;
+			case MAP:
+				int entries = input.readVarInt(true);
+				Map map = isConcrete(fieldType) ? (Map) kryo.newInstance(fieldType) : new HashMap(entries * 2);
+				for(int i = 0; i < entries; i++) {
+					Object key = kryo.readClassAndObject(input);
+					map.put(key, kryo.readClassAndObject(input));
+				}
+				return map;
+			default:
+				return kryo.readClassAndObject(input);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Collection newCollection(Kryo kryo, int kind, Class<?> fieldType, int size) {
+		if(isConcrete(fieldType)) {
+			return (Collection) kryo.newInstance(fieldType);
+		}
+		return kind == LIST ? new ArrayList(size) : new HashSet(size * 2);
+	}
+
+	private static boolean isConcrete(Class<?> c) {
+		return !c.isInterface() && !Modifier.isAbstract(c.getModifiers());
+	}
+
+}
@@ -0,0 +1,52 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import java.nio.ByteBuffer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
+
+/**
+ *	Storm serializes only the tuples that leave the worker, so this is where a handle
+ *	to the local content store turns into the bytes it points to. The receiving worker
+ *	gets an inline handle. A blob that has already been evicted is sent as empty content.
+ *	Once shipped, the local reference of the handle is released, the consumer on the
+ *	other worker does not release it.
+ */
+public class ContentHandleSerializer extends Serializer<ContentHandle> {
+
+	private static final int CHUNK = 8 * 1024;
+
+	@Override
+	public void write(Kryo kryo, Output output, ContentHandle handle) {
+		ByteBuffer buffer = handle.buffer();
+		if(buffer == null) {
+			output.writeVarInt(0, true);
+			return;
+		}
+
+		try {
+			output.writeVarInt(buffer.remaining(), true);
+
+			byte[] chunk = new byte[Math.min(CHUNK, buffer.remaining())];
+			while(buffer.hasRemaining()) {
+				int length = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, length);
+				output.writeBytes(chunk, 0, length);
+			}
+		}
+		finally {
+			handle.release();
+		}
+	}
+
+	@Override
+	public ContentHandle read(Kryo kryo, Input input, Class<ContentHandle> type) {
+		int length = input.readVarInt(true);
+		return ContentHandle.inline(input.readBytes(length));
+	}
+
+}
@@ -0,0 +1,32 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import gr.iti.mklab.focused.crawler.models.ImageVector;
+
+/**
+ *	Writes the id, the url and the vector of an ImageVector. The vector is written
+ *	as one block of raw doubles.
+ */
+public class ImageVectorSerializer extends Serializer<ImageVector> {
+
+	@Override
+	public void write(Kryo kryo, Output output, ImageVector vector) {
+		output.writeString(vector.id);
+		output.writeString(vector.url);
+		CompactEncoding.writeDoubles(output, vector.v);
+	}
+
+	@Override
+	public ImageVector read(Kryo kryo, Input input, Class<ImageVector> type) {
+		String id = input.readString();
+		String url = input.readString();
+		double[] v = CompactEncoding.readDoubles(input);
+
+		return new ImageVector(id, url, v);
+	}
+
+}
@@ -0,0 +1,131 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.storm.Config;
+
+import com.google.gson.internal.LinkedTreeMap;
+
+import gr.iti.mklab.focused.crawler.models.Article;
+import gr.iti.mklab.focused.crawler.models.ImageVector;
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	Registers the Kryo serializers of the classes carried in tuples.
+ *
+ *	The framework classes are registered with CompactFieldSerializer, together with
+ *	the classes found in their fields, so that nested objects are registered as well.
+ *	Registration order has to be the same in all workers, fields are visited in name order.
+ *	Unlike the classes of this project, they have no hand-written serializer: their fields
+ *	belong to the framework version on the classpath, and a serializer written against one
+ *	version would silently drop the fields added by the next one.
+ *
+ *	Values are written with their runtime class, which may not be the declared one: the
+ *	collections and maps of the JDK that Storm does not register and the maps that Gson
+ *	creates for the JSON messages are registered here, and the subclasses of the domain
+ *	classes that a topology emits (e.g. the items of a social network) are passed to
+ *	register(). There is no fallback to Java serialization, an unregistered class fails
+ *	the emit instead of slowing down every tuple that carries it.
+ */
+public class KryoSerializers {
+
+	public static void register(Config conf) {
+		register(conf, new Class<?>[0]);
+	}
+
+	/**
+	 * Registers the serializers, with the given subclasses of the domain classes emitted
+	 * by the topology.
+	 */
+	public static void register(Config conf, Class<?>... subclasses) {
+		conf.registerSerialization(ImageVector.class, ImageVectorSerializer.class);
+		conf.registerSerialization(Article.class, ArticleSerializer.class);
+		conf.registerSerialization(ContentHandle.class, ContentHandleSerializer.class);
+
+		conf.registerSerialization(Date.class);
+		conf.registerSerialization(String[].class);
+		conf.registerSerialization(double[].class);
+
+		// ArrayList, HashMap and HashSet are registered by Storm
+		conf.registerSerialization(LinkedList.class);
+		conf.registerSerialization(LinkedHashMap.class);
+		conf.registerSerialization(LinkedHashSet.class);
+		conf.registerSerialization(TreeMap.class);
+		conf.registerSerialization(TreeSet.class);
+		conf.registerSerialization(ConcurrentHashMap.class);
+
+		// Map fields of the objects decoded by Gson
+		conf.registerSerialization(LinkedTreeMap.class);
+
+		Set<Class<?>> domain = new LinkedHashSet<Class<?>>();
+		collect(WebPage.class, domain);
+		collect(MediaItem.class, domain);
+		collect(Item.class, domain);
+		for(Class<?> subclass : subclasses) {
+			collect(subclass, domain);
+		}
+
+		for(Class<?> c : domain) {
+			if(c.isArray() || c.isEnum()) {
+				conf.registerSerialization(c);
+			}
+			else {
+				conf.registerSerialization(c, CompactFieldSerializer.class);
+			}
+		}
+
+		conf.setFallBackOnJavaSerialization(false);
+	}
+
+	private static void collect(Class<?> c, Set<Class<?>> domain) {
+		if(c.isArray()) {
+			if(isDomain(c.getComponentType()) && domain.add(c)) {
+				collect(c.getComponentType(), domain);
+			}
+			return;
+		}
+
+		if(!isDomain(c) || !domain.add(c) || c.isEnum()) {
+			return;
+		}
+
+		for(Field field : CompactFieldSerializer.fieldsOf(c)) {
+			collect(field.getType(), domain);
+
+			Type generic = field.getGenericType();
+			if(generic instanceof ParameterizedType) {
+				for(Type argument : ((ParameterizedType) generic).getActualTypeArguments()) {
+					if(argument instanceof Class) {
+						collect((Class<?>) argument, domain);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Concrete classes outside the JDK.
+	 */
+	private static boolean isDomain(Class<?> c) {
+		if(c.isPrimitive() || c.isInterface() || (Modifier.isAbstract(c.getModifiers()) && !c.isArray())) {
+			return false;
+		}
+		String name = c.isArray() ? c.getComponentType().getName() : c.getName();
+		return !name.startsWith("java.") && !name.startsWith("javax.");
+	}
+
+}
@@ -0,0 +1,61 @@
+package gr.iti.mklab.focused.crawler.spouts;
+
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.metric.api.MeanReducer;
+import org.apache.storm.metric.api.ReducedMetric;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.utils.Utils;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Idle strategy of the queue-backed spouts. A spout drains up to a batch of messages
+ *	in each nextTuple() call and reports how many it emitted. The spout sleeps only while
+ *	its queue stays empty, starting from minSleep and doubling up to maxSleep, and goes
+ *	back to full speed as soon as a message arrives.
+ *
+ *	Registers two metrics: emitted tuples per nextTuple() call and milliseconds spent idle.
+ */
+public class AdaptiveBackoff {
+
+	private final long minSleep;
+	private final long maxSleep;
+
+	private long sleep = 0;
+
+	private ReducedMetric emittedPerCall = null;
+	private CountMetric idleTime = null;
+
+	public AdaptiveBackoff(long minSleep, long maxSleep) {
+		this.minSleep = Math.max(1, minSleep);
+		this.maxSleep = Math.max(this.minSleep, maxSleep);
+	}
+
+	public void registerMetrics(TopologyContext context, int timeBucketSizeInSecs) {
+		emittedPerCall = context.registerMetric("emitted_per_call", new ReducedMetric(new MeanReducer()), timeBucketSizeInSecs);
+		idleTime = context.registerMetric("idle_ms", new CountMetric(), timeBucketSizeInSecs);
+	}
+
+	/**
+	 * Called at the end of each nextTuple() with the number of emitted tuples.
+	 * Sleeps if nothing was emitted.
+	 */
+	public void emitted(int emitted) {
+		if(emittedPerCall != null) {
+			emittedPerCall.update(emitted);
+		}
+
+		if(emitted > 0) {
+			sleep = 0;
+			return;
+		}
+
+		sleep = (sleep == 0) ? minSleep : Math.min(2 * sleep, maxSleep);
+		Utils.sleep(sleep);
+
+		if(idleTime != null) {
+			idleTime.incrBy(sleep);
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package gr.iti.mklab.focused.crawler.spouts;
+
+import java.io.Serializable;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.task.TopologyContext;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.JSONable;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Decodes JSON messages inside a spout, on its listener thread, so that the spout emits
+ *	WebPage, MediaItem or Item objects directly and the topology does not need the
+ *	separate deserialization bolts. The output field is the one the corresponding
+ *	deserialization bolt declares. Messages that fail to decode are dropped and counted
+ *	in the deserialization_failures metric.
+ */
+public class Deserializer implements Serializable {
+
+	private static final long serialVersionUID = -5032614447271867046L;
+
+	private final Class<? extends JSONable> type;
+	private final String outputField;
+
+	private transient Logger logger;
+	private transient CountMetric failures;
+
+	public Deserializer(Class<? extends JSONable> type, String outputField) {
+		this.type = type;
+		this.outputField = outputField;
+	}
+
+	/**
+	 * Same output as WebPageDeserializationBolt, that declares the input channel as field.
+	 */
+	public static Deserializer webPages(String channel) {
+		return new Deserializer(WebPage.class, channel);
+	}
+
+	/**
+	 * Same output as MediaItemDeserializationBolt.
+	 */
+	public static Deserializer mediaItems() {
+		return new Deserializer(MediaItem.class, "MediaItem");
+	}
+
+	/**
+	 * Same output as ItemDeserializationBolt.
+	 */
+	public static Deserializer items() {
+		return new Deserializer(Item.class, "Item");
+	}
+
+	public String getOutputField() {
+		return outputField;
+	}
+
+	public void prepare(TopologyContext context) {
+		logger = Logger.getLogger(Deserializer.class);
+		failures = context.registerMetric("deserialization_failures", new CountMetric(), 60);
+
+		if(type == WebPage.class) {
+			JSONable.mapClass(WebPage.class);
+		}
+	}
+
+	/**
+	 * Returns the decoded object, or null if the message cannot be decoded.
+	 */
+	public Object deserialize(String json) {
+		try {
+			Object obj = JSONable.toObject(json, type);
+			if(obj != null) {
+				return obj;
+			}
+		}
+		catch(Exception e) {
+			logger.error("Failed to deserialize " + type.getSimpleName() + ": " + e.getMessage());
+		}
+
+		failures.incr();
+		return null;
+	}
+
+}
@@ -1,24 +1,39 @@
 package gr.iti.mklab.focused.crawler.spouts;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
+import com.mongodb.CursorType;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 
 import static org.apache.storm.utils.Utils.tuple;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.CountMetric;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -26,6 +41,26 @@ import org.apache.storm.topology.base.BaseRichSpout;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.utils.Utils;
 
+/**
+ *	Emits the documents of a collection that match a query.
+ *
+ *	By default the collection is re-polled every 10 seconds for the newest 100 documents.
+ *	In follow mode the spout pages through the collection in _id order and then keeps
+ *	following new documents, either with a tailable cursor (capped collections) or by
+ *	querying for _id greater than the last one read. The _id of the last emitted document
+ *	is stored as resume token in a checkpoint collection, so a restarted spout continues
+ *	from where it stopped. Follow mode expects _id to grow with insertion order, as
+ *	ObjectIds generated by the same writer do.
+ *
+ *	Every document is emitted with its _id as message id. The status of the document is
+ *	set to injected on emission and to processed or failed when the tuple is acked or
+ *	failed. Status updates are written in unordered bulk writes by a background thread,
+ *	through a bounded queue: the spout stops emitting while the writer is behind.
+ *	On startup documents left injected by a previous run are set back to new.
+ *
+ *	With more than one task, the documents are partitioned across the tasks by the hash of
+ *	their _id. Each task emits, resets and keeps the resume token of its own partition only.
+ */
 public class MongoDbSpout extends BaseRichSpout {
 
 	/**
@@ -50,6 +85,40 @@ public class MongoDbSpout extends BaseRichSpout {
 	
 	private MongoCollection<Document> _collection;
 	
+	private int batchSize = 100;
+	private long maxIdleSleep = 100;
+	
+	private List<Document> _batch;
+	private AdaptiveBackoff _backoff;
+	
+	private boolean follow = false;
+	private boolean tailable = false;
+	private int pageSize = 1000;
+	private long pollInterval = 500;
+	private String checkpointCollectionName = "spoutCheckpoints";
+	
+	private Logger _logger;
+	
+	private FollowThread _follower = null;
+	
+	private MongoCollection<Document> _checkpoints;
+	private String _checkpointId;
+	private Object _lastId = null;
+	private boolean _checkpointDirty = false;
+	private long _lastCheckpoint = 0;
+	
+	private int flushSize = 500;
+	private long flushInterval = 1000;
+	private int maxPendingUpdates = 10000;
+	
+	private int _taskIndex = 0;
+	private int _numTasks = 1;
+	
+	private Set<Object> _pending;
+	private LinkedBlockingQueue<Document> _updates;
+	private StatusWriter _statusWriter;
+	private CountMetric _statusUpdates;
+	
 	public MongoDbSpout(String mongoHost, String mongoDbName, String mongoCollectionName, Bson query) {
 		this._mongoHost = mongoHost;
 		this._mongoDbName = mongoDbName;
@@ -58,43 +127,240 @@ public class MongoDbSpout extends BaseRichSpout {
 		this._query = query;
 	}
 
+	/**
+	 * Maximum number of documents emitted in a single nextTuple() call.
+	 */
+	public MongoDbSpout setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+	
+	/**
+	 * Upper bound of the sleep time while the queue stays empty.
+	 */
+	public MongoDbSpout setMaxIdleSleep(long maxIdleSleep) {
+		this.maxIdleSleep = maxIdleSleep;
+		return this;
+	}
+	
+	/**
+	 * Follow the collection in _id order from the stored resume token, 
+	 * instead of re-polling for the newest documents.
+	 */
+	public MongoDbSpout setFollow(boolean follow) {
+		this.follow = follow;
+		return this;
+	}
+	
+	/**
+	 * In follow mode, use a tailable cursor. The collection has to be capped.
+	 */
+	public MongoDbSpout setTailable(boolean tailable) {
+		this.tailable = tailable;
+		return this;
+	}
+	
+	/**
+	 * Number of documents fetched per query while paging through the collection.
+	 */
+	public MongoDbSpout setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+		return this;
+	}
+	
+	/**
+	 * Time to wait before querying again once the spout has caught up with the collection.
+	 */
+	public MongoDbSpout setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+		return this;
+	}
+	
+	/**
+	 * Collection, in the same database, that keeps the resume tokens of the spouts.
+	 */
+	public MongoDbSpout setCheckpointCollection(String checkpointCollectionName) {
+		this.checkpointCollectionName = checkpointCollectionName;
+		return this;
+	}
+	
+	/**
+	 * Maximum number of status updates in a single bulk write.
+	 */
+	public MongoDbSpout setFlushSize(int flushSize) {
+		this.flushSize = flushSize;
+		return this;
+	}
+	
+	/**
+	 * Maximum time a status update waits before it is written.
+	 */
+	public MongoDbSpout setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+		return this;
+	}
+	
+	/**
+	 * Maximum number of status updates waiting for the writer. The spout does not emit
+	 * while there is no room for the updates of a batch.
+	 */
+	public MongoDbSpout setMaxPendingUpdates(int maxPendingUpdates) {
+		this.maxPendingUpdates = maxPendingUpdates;
+		return this;
+	}
+
 	
 	public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
 			SpoutOutputCollector collector) {
 		
+		_logger = Logger.getLogger(MongoDbSpout.class);
+		
+		_taskIndex = context.getThisTaskIndex();
+		_numTasks = context.getComponentTasks(context.getThisComponentId()).size();
+		
 		try {
-			reset(_mongoHost, _mongoDbName, _mongoCollectionName);
+			reset(_mongoHost, _mongoDbName, _mongoCollectionName, _taskIndex, _numTasks);
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		}
 		
 		_collector = collector;
 		_queue = new LinkedBlockingQueue<Document>(10000);
+		_batch = new ArrayList<Document>(batchSize);
+		
+		_backoff = new AdaptiveBackoff(1, maxIdleSleep);
+		_backoff.registerMetrics(context, 60);
 		
 		_mongo = new MongoClient(_mongoHost);
 		_database = _mongo.getDatabase(_mongoDbName);
 		_collection = _database.getCollection(_mongoCollectionName);
 
-		_listener  = new CursorThread(_queue, _database, _mongoCollectionName, _query);
-		_listener.start();
+		_pending = new HashSet<Object>();
+		_updates = new LinkedBlockingQueue<Document>(Math.max(maxPendingUpdates, 2 * batchSize));
+		_statusUpdates = context.registerMetric("status_updates", new CountMetric(), 60);
+		
+		_statusWriter = new StatusWriter();
+		_statusWriter.start();
+		
+		if(follow) {
+			_checkpoints = _database.getCollection(checkpointCollectionName);
+			_checkpointId = _mongoCollectionName + "/" + context.getThisComponentId();
+			if(_numTasks > 1) {
+				_checkpointId += "/" + _taskIndex + "-" + _numTasks;
+			}
+			
+			Document checkpoint = _checkpoints.find(Filters.eq("_id", _checkpointId)).first();
+			if(checkpoint != null) {
+				_lastId = checkpoint.get("lastId");
+				_logger.info("Resume " + _mongoCollectionName + " after _id " + _lastId);
+			}
+			
+			_follower = new FollowThread(_lastId);
+			_follower.start();
+		}
+		else {
+			_listener  = new CursorThread(_queue, _database, _mongoCollectionName, _query);
+			_listener.start();
+		}
+	}
+	
+	@Override
+	public void close() {
+		if(_follower != null) {
+			_follower.terminate();
+			checkpoint();
+		}
+		_statusWriter.terminate();
+		_mongo.close();
 	}
 
 	public void nextTuple() {
 		
-		Document obj = _queue.poll();
-		if(obj == null) {
-            Utils.sleep(100);
-        } else {    	
-        	synchronized(_collector) {
-        		_collector.emit(tuple(obj.toString()));
-        	}
+		if(_updates.remainingCapacity() < batchSize) {
+			// the status writer is behind, e.g. mongo is slow
+			_backoff.emitted(0);
+			return;
+		}
+		
+		_queue.drainTo(_batch, batchSize);
+		int emitted = 0;
+		for(Document obj : _batch) {
+			Object id = obj.get("_id");
+			if(!_pending.add(id)) {
+				// still in flight, queued again by the cursor thread
+				continue;
+			}
+			
+        	_collector.emit(tuple(obj.toString()), id);
+        	emitted++;
         	
-    		_collection.updateOne(
-    			new BasicDBObject("_id", obj.get("_id")),
-    			new BasicDBObject("$set", new BasicDBObject("status", "injected"))
-    		);
+        	setStatus(id, "injected");
+    		
+        	// recovered documents are behind the resume token
+        	if(isAfter(id, _lastId)) {
+        		_lastId = id;
+        		_checkpointDirty = true;
+        	}
         }
 		
+		if(follow && _checkpointDirty && System.currentTimeMillis() - _lastCheckpoint > 1000) {
+			checkpoint();
+		}
+		
+		_backoff.emitted(emitted);
+		_batch.clear();
+	}
+	
+	/**
+	 * True if the document with the given _id is emitted by this task.
+	 */
+	private boolean isMine(Object id) {
+		return _numTasks <= 1 || (id.hashCode() & 0x7FFFFFFF) % _numTasks == _taskIndex;
+	}
+	
+	/**
+	 * True if id comes after lastId, or if there is no lastId.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static boolean isAfter(Object id, Object lastId) {
+		if(lastId == null) {
+			return true;
+		}
+		if(id instanceof Comparable && id.getClass() == lastId.getClass()) {
+			return ((Comparable) id).compareTo(lastId) > 0;
+		}
+		return false;
+	}
+	
+	/**
+	 * Blocks if the queue is full, which only acks and fails can fill.
+	 */
+	private void setStatus(Object id, String status) {
+		try {
+			_updates.put(new Document("_id", id).append("status", status));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Stores the _id of the last emitted document as the resume token of the spout.
+	 */
+	private void checkpoint() {
+		_lastCheckpoint = System.currentTimeMillis();
+		if(!_checkpointDirty) {
+			return;
+		}
+		
+		try {
+			_checkpoints.updateOne(Filters.eq("_id", _checkpointId), 
+					new Document("$set", new Document("lastId", _lastId).append("updated", new Date())),
+					new UpdateOptions().upsert(true));
+			_checkpointDirty = false;
+		}
+		catch(Exception e) {
+			_logger.error("Failed to store resume token of " + _checkpointId, e);
+		}
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -102,13 +368,99 @@ public class MongoDbSpout extends BaseRichSpout {
 	}
 	
 	@Override
-    public void ack(Object url) {
-
+    public void ack(Object id) {
+		_pending.remove(id);
+		setStatus(id, "processed");
     }
 
     @Override
-    public void fail(Object url) {
-
+    public void fail(Object id) {
+    	_pending.remove(id);
+    	setStatus(id, "failed");
+    }
+    
+    /**
+     * Writes the status updates queued by the spout thread. A bulk write is sent when 
+     * flushSize updates are collected or when the oldest of them has waited flushInterval.
+     * Only the latest status of each document is kept, so that the updates of a bulk 
+     * write can be applied in any order.
+     */
+    class StatusWriter extends Thread {
+    	
+    	private volatile boolean running = true;
+    	
+    	public StatusWriter() {
+    		super("MongoDbSpout-status-" + _mongoCollectionName);
+    	}
+    	
+    	public void run() {
+    		Map<Object, String> statuses = new LinkedHashMap<Object, String>();
+    		while(running) {
+    			try {
+    				Document update = _updates.poll(flushInterval, TimeUnit.MILLISECONDS);
+    				if(update == null) {
+    					continue;
+    				}
+    				
+    				long deadline = System.currentTimeMillis() + flushInterval;
+    				while(update != null) {
+    					statuses.put(update.get("_id"), update.getString("status"));
+    					
+    					long wait = deadline - System.currentTimeMillis();
+    					if(statuses.size() >= flushSize || wait <= 0) {
+    						break;
+    					}
+    					update = _updates.poll(wait, TimeUnit.MILLISECONDS);
+    				}
+    				write(statuses);
+    			}
+    			catch(InterruptedException e) {
+    				running = false;
+    			}
+    		}
+    		
+    		// flush what is left on close
+    		List<Document> left = new ArrayList<Document>();
+    		_updates.drainTo(left);
+    		for(Document update : left) {
+    			statuses.put(update.get("_id"), update.getString("status"));
+    		}
+    		write(statuses);
+    	}
+    	
+    	private void write(Map<Object, String> statuses) {
+    		if(statuses.isEmpty()) {
+    			return;
+    		}
+    		
+    		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(statuses.size());
+    		for(Entry<Object, String> status : statuses.entrySet()) {
+    			updates.add(new UpdateOneModel<Document>(Filters.eq("_id", status.getKey()),
+    					new Document("$set", new Document("status", status.getValue()))));
+    		}
+    		
+    		try {
+    			_collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    			_statusUpdates.incrBy(updates.size());
+    		}
+    		catch(MongoBulkWriteException e) {
+    			_logger.error(e.getWriteErrors().size() + " of " + updates.size() + " status updates failed", e);
+    		}
+    		catch(Exception e) {
+    			_logger.error("Failed to write " + updates.size() + " status updates", e);
+    		}
+    		statuses.clear();
+    	}
+    	
+    	public void terminate() {
+    		running = false;
+    		interrupt();
+    		try {
+				join(flushInterval + 5000);
+			} catch (InterruptedException e) {
+				
+			}
+    	}
     }
     
 	class CursorThread extends Thread {
@@ -134,7 +486,7 @@ public class MongoDbSpout extends BaseRichSpout {
 				MongoCursor<Document> it = cursor.iterator();
 				while(it.hasNext()) {			
 					Document obj = it.next();
-					if(obj != null) {
+					if(obj != null && isMine(obj.get("_id"))) {
 						try {
 							queue.put(obj);
 						} catch (InterruptedException e) {
@@ -142,22 +494,197 @@ public class MongoDbSpout extends BaseRichSpout {
 						}
 					}
 				}
-				System.out.println("Injector: " + _queue.size());
 				Utils.sleep(10000);
 			}
 		};
 	}
 	
+	/**
+	 * Reads the backlog page by page in ascending _id order and then keeps following
+	 * the collection. The position advances with every document put in the queue, so
+	 * the same document is never queued twice. A full queue blocks the thread and 
+	 * throttles the reads.
+	 * 
+	 * Before that, the documents up to the resume token that match the query again, 
+	 * e.g. the ones set back to new by reset(), are queued once more.
+	 */
+	class FollowThread extends Thread {
+
+		private volatile boolean running = true;
+		private Object lastId;
+		
+		private Object recoverUpTo;
+		private Object recoverPos = null;
+		
+		public FollowThread(Object lastId) {
+			super("MongoDbSpout-" + _mongoCollectionName);
+			this.lastId = lastId;
+			this.recoverUpTo = lastId;
+		}
+		
+		public void run() {
+			while(running && recoverUpTo != null) {
+				try {
+					if(recover() < pageSize) {
+						recoverUpTo = null;
+					}
+				}
+				catch(InterruptedException e) {
+					running = false;
+				}
+				catch(Exception e) {
+					_logger.error("Failed to recover " + _mongoCollectionName + " after _id " + recoverPos, e);
+					Utils.sleep(1000);
+				}
+			}
+			
+			while(running) {
+				try {
+					int read = tailable ? tail() : page();
+					if(read < pageSize) {
+						// caught up with the collection
+						Utils.sleep(pollInterval);
+					}
+				}
+				catch(InterruptedException e) {
+					running = false;
+				}
+				catch(Exception e) {
+					_logger.error("Failed to read " + _mongoCollectionName + " after _id " + lastId, e);
+					Utils.sleep(1000);
+				}
+			}
+		}
+		
+		private Bson query() {
+			Bson q = (_query == null) ? new BasicDBObject() : _query;
+			if(lastId == null) {
+				return q;
+			}
+			return Filters.and(q, Filters.gt("_id", lastId));
+		}
+		
+		private int page() throws InterruptedException {
+			FindIterable<Document> cursor = _collection.find(query())
+					.sort(Sorts.ascending("_id"))
+					.limit(pageSize)
+					.batchSize(pageSize);
+			
+			return drain(cursor.iterator(), false);
+		}
+		
+		private int recover() throws InterruptedException {
+			Bson q = (_query == null) ? new BasicDBObject() : _query;
+			q = Filters.and(q, Filters.lte("_id", recoverUpTo));
+			if(recoverPos != null) {
+				q = Filters.and(q, Filters.gt("_id", recoverPos));
+			}
+			
+			FindIterable<Document> cursor = _collection.find(q)
+					.sort(Sorts.ascending("_id"))
+					.limit(pageSize)
+					.batchSize(pageSize);
+			
+			return drain(cursor.iterator(), true);
+		}
+		
+		/**
+		 * Tailable cursors return documents in insertion order and stay open at the end of
+		 * a capped collection. Returns when the cursor dies, e.g. when it is overrun.
+		 */
+		private int tail() throws InterruptedException {
+			FindIterable<Document> cursor = _collection.find(query())
+					.cursorType(CursorType.TailableAwait)
+					.noCursorTimeout(true)
+					.batchSize(pageSize);
+			
+			return drain(cursor.iterator(), false);
+		}
+		
+		private int drain(MongoCursor<Document> it, boolean recovering) throws InterruptedException {
+			int read = 0;
+			try {
+				while(running && it.hasNext()) {
+					Document obj = it.next();
+					if(isMine(obj.get("_id"))) {
+						_queue.put(obj);
+					}
+					if(recovering) {
+						recoverPos = obj.get("_id");
+					}
+					else {
+						lastId = obj.get("_id");
+					}
+					read++;
+				}
+			}
+			finally {
+				it.close();
+			}
+			return read;
+		}
+		
+		public void terminate() {
+			running = false;
+			interrupt();
+		}
+	}
+	
+	/**
+	 * Sets the documents left injected, i.e. emitted but never acked or failed, back to new.
+	 */
 	public void reset(String host, String dbName, String collectionName) throws UnknownHostException {
+		reset(host, dbName, collectionName, 0, 1);
+	}
+	
+	/**
+	 * Sets the documents of the partition of the given task that were left injected back to 
+	 * new, without touching the documents in flight in the other tasks.
+	 */
+	public void reset(String host, String dbName, String collectionName, int taskIndex, int numTasks) 
+			throws UnknownHostException {
 		
 		MongoClient client = new MongoClient(host);
-		MongoDatabase db = client.getDatabase(dbName);
-		MongoCollection<Document> collection = db.getCollection(collectionName);
-		
-		DBObject q = new BasicDBObject("status", "injected");
-		DBObject o = new BasicDBObject("$set", new BasicDBObject("status", "new"));
-		//collection.update(q, o, false, true);
+		try {
+			MongoDatabase db = client.getDatabase(dbName);
+			MongoCollection<Document> collection = db.getCollection(collectionName);
 		
+			Bson q = new BasicDBObject("status", "injected");
+			Bson o = new BasicDBObject("$set", new BasicDBObject("status", "new"));
+			
+			long recovered = 0;
+			if(numTasks <= 1) {
+				recovered = collection.updateMany(q, o).getModifiedCount();
+			}
+			else {
+				List<Object> ids = new ArrayList<Object>();
+				MongoCursor<Document> it = collection.find(q).projection(new BasicDBObject("_id", 1)).iterator();
+				try {
+					while(it.hasNext()) {
+						Object id = it.next().get("_id");
+						if((id.hashCode() & 0x7FFFFFFF) % numTasks != taskIndex) {
+							continue;
+						}
+						ids.add(id);
+						if(ids.size() == 1000) {
+							recovered += collection.updateMany(Filters.and(q, Filters.in("_id", ids)), o).getModifiedCount();
+							ids.clear();
+						}
+					}
+				}
+				finally {
+					it.close();
+				}
+				if(!ids.isEmpty()) {
+					recovered += collection.updateMany(Filters.and(q, Filters.in("_id", ids)), o).getModifiedCount();
+				}
+			}
+			
+			_logger.info(recovered + " injected documents of " + collectionName + " set back to new");
+		}
+		finally {
+			client.close();
+		}
 	}
 	
 	
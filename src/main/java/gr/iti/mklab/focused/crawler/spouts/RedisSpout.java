@@ -2,6 +2,8 @@ package gr.iti.mklab.focused.crawler.spouts;
 
 import static org.apache.storm.utils.Utils.tuple;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -17,7 +19,6 @@ import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.base.BaseRichSpout;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.tuple.Fields;
-import org.apache.storm.utils.Utils;
 
 public class RedisSpout extends BaseRichSpout {
 
@@ -31,21 +32,53 @@ public class RedisSpout extends BaseRichSpout {
 	
 	private final String pattern;
 	
-	private LinkedBlockingQueue<String> queue;
+	private LinkedBlockingQueue<Object> queue;
 	private JedisPool pool;
 
+	private int batchSize = 100;
+	private long maxIdleSleep = 50;
+	
+	private List<Object> batch;
+	private AdaptiveBackoff backoff;
+	
+	private Deserializer deserializer = null;
+	
 	public RedisSpout(String host, int port, String pattern) {
 		this.host = host;
 		this.port = port;
 		this.pattern = pattern;
 	}
 
+	/**
+	 * Maximum number of messages emitted in a single nextTuple() call.
+	 */
+	public RedisSpout setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+	
+	/**
+	 * Upper bound of the sleep time while the queue stays empty.
+	 */
+	public RedisSpout setMaxIdleSleep(long maxIdleSleep) {
+		this.maxIdleSleep = maxIdleSleep;
+		return this;
+	}
+	
+	/**
+	 * Decode messages on the listener thread and emit the objects instead of the JSON strings.
+	 */
+	public RedisSpout setDeserializer(Deserializer deserializer) {
+		this.deserializer = deserializer;
+		return this;
+	}
+
 	class ListenerThread extends Thread {
 		
-		private LinkedBlockingQueue<String> queue;
+		private LinkedBlockingQueue<Object> queue;
 		private JedisPool pool;
 			
-		public ListenerThread(LinkedBlockingQueue<String> queue, JedisPool pool) {
+		public ListenerThread(LinkedBlockingQueue<Object> queue, JedisPool pool) {
 			this.queue = queue;
 			this.pool = pool;
 		}
@@ -56,12 +89,12 @@ public class RedisSpout extends BaseRichSpout {
 
 				@Override
 				public void onMessage(String channel, String message) {
-					queue.offer(message);
+					offer(message);
 				}
 
 				@Override
 				public void onPMessage(String pattern, String channel, String message) { 
-					queue.offer(message);
+					offer(message);
 				}
 
 				@Override
@@ -83,7 +116,19 @@ public class RedisSpout extends BaseRichSpout {
 				logger.info("Subscribe on " + pattern);
 				jedis.psubscribe(listener, pattern);
 			} finally {
-				pool.returnResource(jedis);
+				jedis.close();
+			}
+		}
+		
+		private void offer(String message) {
+			if(deserializer == null) {
+				queue.offer(message);
+				return;
+			}
+			
+			Object obj = deserializer.deserialize(message);
+			if(obj != null) {
+				queue.offer(obj);
 			}
 		}
 	};
@@ -93,7 +138,15 @@ public class RedisSpout extends BaseRichSpout {
 		logger = Logger.getLogger(RedisSpout.class);
 		
 		_collector = collector;
-		queue = new LinkedBlockingQueue<String>(10000);
+		queue = new LinkedBlockingQueue<Object>(10000);
+		batch = new ArrayList<Object>(batchSize);
+		
+		backoff = new AdaptiveBackoff(1, maxIdleSleep);
+		backoff.registerMetrics(context, 60);
+		
+		if(deserializer != null) {
+			deserializer.prepare(context);
+		}
 		
 		JedisPoolConfig jedisConf = new JedisPoolConfig();
 		pool = new JedisPool(jedisConf, host, port);
@@ -108,12 +161,13 @@ public class RedisSpout extends BaseRichSpout {
 	}
 
 	public void nextTuple() {
-		String ret = queue.poll();
-        if(ret == null) {
-            Utils.sleep(50);
-        } else {
-            _collector.emit(tuple(ret));            
-        }
+		queue.drainTo(batch, batchSize);
+		for(Object ret : batch) {
+			_collector.emit(tuple(ret));
+		}
+		
+		backoff.emitted(batch.size());
+		batch.clear();
 	}
 
 	public void ack(Object msgId) {
@@ -125,7 +179,7 @@ public class RedisSpout extends BaseRichSpout {
 	}
 
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
-		declarer.declare(new Fields(pattern));
+		declarer.declare(new Fields(deserializer == null ? pattern : deserializer.getOutputField()));
 	}
 
 	public boolean isDistributed() {
@@ -0,0 +1,418 @@
+package gr.iti.mklab.focused.crawler.spouts;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichSpout;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Reliable counterpart of {@link RedisSpout}. Messages are read from a Redis stream
+ *	through a consumer group (XREADGROUP) and every tuple is emitted with the id of its
+ *	stream entry as message id. Entries are acknowledged (XACK) only when Storm acks the
+ *	tuple, failed or timed-out tuples are replayed, and entries left pending by a dead
+ *	consumer are claimed (XCLAIM) after claimIdleTime.
+ *
+ *	All the tasks of the spout join the same consumer group, so the spout can run with
+ *	parallelism greater than 1.
+ */
+public class RedisStreamSpout extends BaseRichSpout {
+
+	private static final long serialVersionUID = 4563221815012385172L;
+
+	public static final String DEFAULT_MESSAGE_FIELD = "message";
+
+	private Logger logger;
+
+	private SpoutOutputCollector _collector;
+
+	private final String host;
+	private final int port;
+
+	private final String stream;
+	private final String group;
+
+	private String messageField = DEFAULT_MESSAGE_FIELD;
+
+	private int batchSize = 100;
+	private long blockTime = 1000;
+	private long claimIdleTime = 5 * 60 * 1000;
+	private int maxRetries = 5;
+	private long maxIdleSleep = 50;
+
+	private String consumer;
+
+	private LinkedBlockingQueue<Message> queue;
+	private JedisPool pool;
+	private ListenerThread listener;
+
+	private List<Message> batch;
+	private AdaptiveBackoff backoff;
+
+	private Deserializer deserializer = null;
+
+	// in-flight entries and their replay counters, touched only by the spout thread
+	private Map<String, Object> pending;
+	private Map<String, Integer> retries;
+	private List<StreamEntryID> acked;
+	private long lastAckFlush = 0;
+
+	public RedisStreamSpout(String host, int port, String stream, String group) {
+		this.host = host;
+		this.port = port;
+		this.stream = stream;
+		this.group = group;
+	}
+
+	public RedisStreamSpout setMessageField(String messageField) {
+		this.messageField = messageField;
+		return this;
+	}
+
+	public RedisStreamSpout setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public RedisStreamSpout setClaimIdleTime(long claimIdleTime) {
+		this.claimIdleTime = claimIdleTime;
+		return this;
+	}
+
+	public RedisStreamSpout setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	public RedisStreamSpout setMaxIdleSleep(long maxIdleSleep) {
+		this.maxIdleSleep = maxIdleSleep;
+		return this;
+	}
+
+	/**
+	 * Decode messages on the listener thread and emit the objects instead of the JSON strings.
+	 */
+	public RedisStreamSpout setDeserializer(Deserializer deserializer) {
+		this.deserializer = deserializer;
+		return this;
+	}
+
+	/**
+	 * A stream entry read by the listener, with its message already extracted and decoded.
+	 */
+	static class Message {
+
+		final StreamEntryID id;
+		final Object value;
+
+		Message(StreamEntryID id, Object value) {
+			this.id = id;
+			this.value = value;
+		}
+	}
+
+	class ListenerThread extends Thread {
+
+		private volatile boolean running = true;
+		private long lastClaim = 0;
+
+		public void run() {
+
+			// Entries delivered to this consumer before a restart and never acked. Nobody
+			// else claims them while this consumer is alive, so keep trying until it succeeds.
+			StreamEntryID history = new StreamEntryID(0, 0);
+			while(running && history != null) {
+				try {
+					history = read(history);
+				}
+				catch(Exception e) {
+					logger.error("Failed to read pending entries of " + consumer, e);
+					Utils.sleep(1000);
+				}
+			}
+
+			while(running) {
+				try {
+					read(StreamEntryID.UNRECEIVED_ENTRY);
+
+					if(System.currentTimeMillis() - lastClaim > claimIdleTime / 2) {
+						claim();
+						lastClaim = System.currentTimeMillis();
+					}
+				}
+				catch(Exception e) {
+					logger.error("Failed to read from stream " + stream, e);
+					Utils.sleep(1000);
+				}
+			}
+		}
+
+		/**
+		 * Reads a batch of entries after the given id. Returns the id to continue from when
+		 * reading the pending history of this consumer, or null when there is nothing left.
+		 */
+		private StreamEntryID read(StreamEntryID from) {
+			Jedis jedis = pool.getResource();
+			try {
+				@SuppressWarnings("unchecked")
+				List<Entry<String, List<StreamEntry>>> response = jedis.xreadGroup(group, consumer, batchSize,
+						from == StreamEntryID.UNRECEIVED_ENTRY ? blockTime : 0, false,
+						new AbstractMap.SimpleImmutableEntry<String, StreamEntryID>(stream, from));
+
+				if(response == null || response.isEmpty()) {
+					return null;
+				}
+
+				StreamEntryID last = null;
+				for(Entry<String, List<StreamEntry>> streamEntries : response) {
+					for(StreamEntry entry : streamEntries.getValue()) {
+						last = entry.getID();
+						queue(jedis, entry);
+					}
+				}
+				return last;
+			}
+			catch (InterruptedException e) {
+				running = false;
+				return null;
+			}
+			finally {
+				jedis.close();
+			}
+		}
+
+		/**
+		 * Walks the whole pending list of the group, a page of batchSize entries at a time,
+		 * and claims the entries of other consumers that have been idle for claimIdleTime.
+		 */
+		private void claim() throws InterruptedException {
+			Jedis jedis = pool.getResource();
+			try {
+				int total = 0;
+				StreamEntryID from = null;
+				while(running) {
+					List<StreamPendingEntry> pendingEntries = jedis.xpending(stream, group, from, null, batchSize, null);
+					if(pendingEntries == null || pendingEntries.isEmpty()) {
+						break;
+					}
+
+					List<StreamEntryID> ids = new ArrayList<StreamEntryID>();
+					for(StreamPendingEntry pendingEntry : pendingEntries) {
+						if(pendingEntry.getIdleTime() >= claimIdleTime && !consumer.equals(pendingEntry.getConsumerName())) {
+							ids.add(pendingEntry.getID());
+						}
+					}
+
+					if(!ids.isEmpty()) {
+						List<StreamEntry> claimed = jedis.xclaim(stream, group, consumer, claimIdleTime, 0, 0, false,
+								ids.toArray(new StreamEntryID[ids.size()]));
+
+						total += claimed.size();
+						for(StreamEntry entry : claimed) {
+							queue(jedis, entry);
+						}
+					}
+
+					if(pendingEntries.size() < batchSize) {
+						break;
+					}
+
+					// XPENDING ranges are inclusive, continue right after the last entry of the page
+					StreamEntryID last = pendingEntries.get(pendingEntries.size() - 1).getID();
+					from = new StreamEntryID(last.getTime(), last.getSequence() + 1);
+				}
+
+				if(total > 0) {
+					logger.info("Claimed " + total + " idle entries of " + stream);
+				}
+			}
+			finally {
+				jedis.close();
+			}
+		}
+
+		/**
+		 * Entries that will never make a valid tuple are acked right away: deleted entries,
+		 * that are still pending but come back without fields, entries without the message
+		 * field and, with a deserializer, messages that cannot be decoded.
+		 */
+		private void queue(Jedis jedis, StreamEntry entry) throws InterruptedException {
+			if(entry.getFields() == null) {
+				jedis.xack(stream, group, entry.getID());
+				return;
+			}
+
+			String message = entry.getFields().get(messageField);
+			if(message == null) {
+				logger.error("Entry " + entry.getID() + " of " + stream + " has no field " + messageField);
+				jedis.xack(stream, group, entry.getID());
+				return;
+			}
+
+			Object value = message;
+			if(deserializer != null) {
+				value = deserializer.deserialize(message);
+				if(value == null) {
+					jedis.xack(stream, group, entry.getID());
+					return;
+				}
+			}
+
+			queue.put(new Message(entry.getID(), value));
+		}
+
+		public void terminate() {
+			running = false;
+			interrupt();
+		}
+	};
+
+	public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, SpoutOutputCollector collector) {
+
+		logger = Logger.getLogger(RedisStreamSpout.class);
+
+		_collector = collector;
+
+		consumer = group + "-" + context.getThisComponentId() + "-" + context.getThisTaskId();
+
+		queue = new LinkedBlockingQueue<Message>(10000);
+		pending = new HashMap<String, Object>();
+		retries = new HashMap<String, Integer>();
+		acked = new ArrayList<StreamEntryID>();
+		batch = new ArrayList<Message>(batchSize);
+
+		backoff = new AdaptiveBackoff(1, maxIdleSleep);
+		backoff.registerMetrics(context, 60);
+
+		if(deserializer != null) {
+			deserializer.prepare(context);
+		}
+
+		JedisPoolConfig jedisConf = new JedisPoolConfig();
+		pool = new JedisPool(jedisConf, host, port, (int) blockTime + 2000);
+
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.xgroupCreate(stream, group, new StreamEntryID(0, 0), true);
+			logger.info("Consumer group " + group + " created on " + stream);
+		}
+		catch(JedisDataException e) {
+			// BUSYGROUP: another task has already created the group
+			logger.info("Join consumer group " + group + " of " + stream + " as " + consumer);
+		}
+		finally {
+			jedis.close();
+		}
+
+		listener = new ListenerThread();
+		listener.start();
+	}
+
+	public void close() {
+		listener.terminate();
+		flushAcks();
+		pool.destroy();
+	}
+
+	public void nextTuple() {
+		if(acked.size() >= batchSize || System.currentTimeMillis() - lastAckFlush > 1000) {
+			flushAcks();
+		}
+
+		queue.drainTo(batch, batchSize);
+
+		int emitted = 0;
+		for(Message message : batch) {
+			if(emit(message)) {
+				emitted++;
+			}
+		}
+
+		backoff.emitted(emitted);
+		batch.clear();
+	}
+
+	private boolean emit(Message message) {
+        String id = message.id.toString();
+        if(pending.containsKey(id)) {
+        	// already in flight, e.g. a redelivery of an entry we have not acked yet
+        	return false;
+        }
+
+        pending.put(id, message.value);
+        _collector.emit(new Values(message.value), id);
+        return true;
+	}
+
+	public void ack(Object msgId) {
+		String id = (String) msgId;
+		pending.remove(id);
+		retries.remove(id);
+		acked.add(new StreamEntryID(id));
+	}
+
+	public void fail(Object msgId) {
+		String id = (String) msgId;
+		Object message = pending.get(id);
+		if(message == null) {
+			return;
+		}
+
+		Integer count = retries.get(id);
+		count = (count == null) ? 1 : count + 1;
+		if(maxRetries >= 0 && count > maxRetries) {
+			logger.error("Entry " + id + " of " + stream + " failed " + maxRetries + " times. Drop it.");
+			ack(id);
+			return;
+		}
+
+		retries.put(id, count);
+		_collector.emit(new Values(message), id);
+	}
+
+	private void flushAcks() {
+		lastAckFlush = System.currentTimeMillis();
+		if(acked.isEmpty()) {
+			return;
+		}
+
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.xack(stream, group, acked.toArray(new StreamEntryID[acked.size()]));
+			acked.clear();
+		}
+		catch(Exception e) {
+			logger.error("XACK failed for " + acked.size() + " entries of " + stream, e);
+		}
+		finally {
+			jedis.close();
+		}
+	}
+
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		declarer.declare(new Fields(deserializer == null ? stream : deserializer.getOutputField()));
+	}
+
+}
@@ -0,0 +1,482 @@
+package gr.iti.mklab.focused.crawler.spouts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichSpout;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+import gr.iti.mklab.focused.crawler.utils.WarcReader;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Replays recorded WebPage, MediaItem or Item JSON messages from local files, in place
+ *	of the Redis spouts, for load tests of a topology in a LocalCluster. The path is either
+ *	a file or a directory and the supported formats are:
+ *
+ *	- JSONL (.json, .jsonl), one message per line, read through a memory mapped file
+ *	- gzipped JSONL (.json.gz, .jsonl.gz)
+ *	- WARC (.warc, .warc.gz), the payload of every record with a JSON content type
+ *
+ *	Messages are emitted at a target rate (messages per second, 0 for as fast as
+ *	possible) with a token bucket of size burst, so a large burst lets the spout send
+ *	short spikes at full speed. With loop the files are replayed again when they end, and
+ *	with shuffle both the file order and the order of messages within a window change
+ *	in every pass.
+ *
+ *	Every message is emitted with its position as message id (pass, file and byte offset,
+ *	line or record number), so topology.max.spout.pending bounds the messages in flight,
+ *	and failed messages are emitted again up to maxRetries times.
+ */
+public class ReplaySpout extends BaseRichSpout {
+
+	private static final long serialVersionUID = -2630839446391727045L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private Logger logger;
+
+	private SpoutOutputCollector _collector;
+
+	private final String path;
+	private final String field;
+
+	private double rate = 0;
+	private int burst = 0;
+	private boolean loop = false;
+	private boolean shuffle = false;
+	private int shuffleWindow = 10000;
+	private int batchSize = 100;
+	private long maxIdleSleep = 100;
+	private int maxRetries = 5;
+
+	private LinkedBlockingQueue<Message> queue;
+	private ReaderThread reader;
+
+	private List<Message> batch;
+	private AdaptiveBackoff backoff;
+	private CountMetric replayed;
+	private CountMetric failed;
+
+	// in-flight messages and their replay counters, touched only by the spout thread
+	private Map<String, Object> pending;
+	private Map<String, Integer> retries;
+
+	private Deserializer deserializer = null;
+
+	private double tokens = 0;
+	private long lastRefill;
+
+	public ReplaySpout(String path, String field) {
+		this.path = path;
+		this.field = field;
+	}
+
+	/**
+	 * Target rate in messages per second. 0 emits as fast as the topology consumes, when
+	 * topology.max.spout.pending is set, else as fast as the files are read.
+	 */
+	public ReplaySpout setRate(double rate) {
+		this.rate = rate;
+		return this;
+	}
+
+	/**
+	 * Maximum number of messages emitted at once after an idle period. Defaults to the batch size.
+	 */
+	public ReplaySpout setBurst(int burst) {
+		this.burst = burst;
+		return this;
+	}
+
+	public ReplaySpout setLoop(boolean loop) {
+		this.loop = loop;
+		return this;
+	}
+
+	public ReplaySpout setShuffle(boolean shuffle) {
+		this.shuffle = shuffle;
+		return this;
+	}
+
+	/**
+	 * Number of messages kept in memory to shuffle their order.
+	 */
+	public ReplaySpout setShuffleWindow(int shuffleWindow) {
+		this.shuffleWindow = shuffleWindow;
+		return this;
+	}
+
+	/**
+	 * Maximum number of messages emitted in a single nextTuple() call.
+	 */
+	public ReplaySpout setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Times a failed message is emitted again before it is dropped, -1 for no limit.
+	 */
+	public ReplaySpout setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/**
+	 * Decode messages on the reader thread and emit the objects instead of the JSON strings.
+	 */
+	public ReplaySpout setDeserializer(Deserializer deserializer) {
+		this.deserializer = deserializer;
+		return this;
+	}
+
+	/**
+	 * A message read from the files, with its position as id.
+	 */
+	static class Message {
+
+		final String id;
+		final Object value;
+
+		Message(String id, Object value) {
+			this.id = id;
+			this.value = value;
+		}
+	}
+
+	class ReaderThread extends Thread {
+
+		private volatile boolean running = true;
+
+		private Random random = new Random();
+		private List<Message> window = new ArrayList<Message>();
+
+		private long records = 0;
+		private int pass = 0;
+
+		public ReaderThread() {
+			super("ReplaySpout-" + field);
+		}
+
+		public void run() {
+			try {
+				do {
+					List<File> files = listFiles();
+					if(shuffle) {
+						Collections.shuffle(files, random);
+					}
+
+					long start = System.currentTimeMillis();
+					for(File file : files) {
+						if(!running) {
+							return;
+						}
+
+						try {
+							read(file);
+						}
+						catch(IOException e) {
+							logger.error("Failed to replay " + file, e);
+						}
+					}
+
+					while(!window.isEmpty()) {
+						queue.put(window.remove(window.size() - 1));
+					}
+
+					logger.info("Replay of " + path + " finished: " + records + " messages in "
+							+ (System.currentTimeMillis() - start) + " ms");
+					records = 0;
+					pass++;
+				} while(running && loop);
+			}
+			catch(InterruptedException e) {
+				running = false;
+			}
+		}
+
+		private void read(File file) throws IOException, InterruptedException {
+			String name = file.getName().toLowerCase();
+			if(name.endsWith(".warc") || name.endsWith(".warc.gz")) {
+				readWarc(file, name.endsWith(".gz"));
+			}
+			else if(name.endsWith(".gz")) {
+				readCompressed(file);
+			}
+			else {
+				readMapped(file);
+			}
+		}
+
+		private void readMapped(File file) throws IOException, InterruptedException {
+			String prefix = pass + ":" + file.getName() + ":";
+			FileInputStream input = new FileInputStream(file);
+			try {
+				FileChannel channel = input.getChannel();
+				long size = channel.size();
+
+				// every window starts at the beginning of a line, so no line is split between two
+				long start = 0;
+				while(start < size && running) {
+					int length = (int) Math.min(MAP_WINDOW, size - start);
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+
+					int line = 0;
+					for(int i = 0; i < length; i++) {
+						if(buffer.get(i) == '\n') {
+							add(prefix + (start + line), decode(buffer, line, i));
+							line = i + 1;
+						}
+					}
+
+					if(start + length == size) {
+						if(line < length) {
+							add(prefix + (start + line), decode(buffer, line, length));
+						}
+						break;
+					}
+					if(line == 0) {
+						throw new IOException("Line at " + start + " of " + file + " is longer than " + MAP_WINDOW + " bytes");
+					}
+					start += line;
+				}
+			}
+			finally {
+				input.close();
+			}
+		}
+
+		// the bytes between from and to, decoded in place
+		private String decode(MappedByteBuffer buffer, int from, int to) {
+			ByteBuffer line = buffer.duplicate();
+			line.limit(to);
+			line.position(from);
+			return UTF8.decode(line).toString();
+		}
+
+		private void readCompressed(File file) throws IOException, InterruptedException {
+			BufferedReader lines = new BufferedReader(new InputStreamReader(open(file, true), UTF8), 64 * 1024);
+			try {
+				String prefix = pass + ":" + file.getName() + ":line-";
+				long number = 0;
+				String line;
+				while(running && (line = lines.readLine()) != null) {
+					add(prefix + (number++), line);
+				}
+			}
+			finally {
+				lines.close();
+			}
+		}
+
+		private void readWarc(File file, boolean compressed) throws IOException, InterruptedException {
+			WarcReader warc = new WarcReader(open(file, compressed));
+			try {
+				String prefix = pass + ":" + file.getName() + ":record-";
+				long number = 0;
+				WarcReader.Record record;
+				while(running && (record = warc.next()) != null) {
+					String contentType = record.getContentType();
+					if(contentType != null && contentType.contains("json")) {
+						add(prefix + number, record.getContentAsString());
+					}
+					number++;
+				}
+			}
+			finally {
+				warc.close();
+			}
+		}
+
+		private InputStream open(File file, boolean compressed) throws IOException {
+			InputStream input = Channels.newInputStream(new FileInputStream(file).getChannel());
+			if(compressed) {
+				return new GZIPInputStream(input, 64 * 1024);
+			}
+			return input;
+		}
+
+		private void add(String id, String message) throws InterruptedException {
+			message = message.trim();
+			if(message.isEmpty()) {
+				return;
+			}
+			records++;
+
+			Object obj = message;
+			if(deserializer != null) {
+				obj = deserializer.deserialize(message);
+				if(obj == null) {
+					return;
+				}
+			}
+
+			if(!shuffle) {
+				queue.put(new Message(id, obj));
+				return;
+			}
+
+			window.add(new Message(id, obj));
+			if(window.size() >= shuffleWindow) {
+				int index = random.nextInt(window.size());
+				Message next = window.get(index);
+				window.set(index, window.get(window.size() - 1));
+				window.remove(window.size() - 1);
+
+				queue.put(next);
+			}
+		}
+
+		public void terminate() {
+			running = false;
+			interrupt();
+		}
+	}
+
+	private List<File> listFiles() {
+		File root = new File(path);
+		if(!root.isDirectory()) {
+			return new ArrayList<File>(Collections.singletonList(root));
+		}
+
+		List<File> files = new ArrayList<File>();
+		File[] children = root.listFiles();
+		if(children != null) {
+			Arrays.sort(children);
+			for(File child : children) {
+				String name = child.getName().toLowerCase();
+				if(child.isFile() && (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".gz") || name.endsWith(".warc"))) {
+					files.add(child);
+				}
+			}
+		}
+		return files;
+	}
+
+	public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, SpoutOutputCollector collector) {
+
+		logger = Logger.getLogger(ReplaySpout.class);
+
+		_collector = collector;
+		queue = new LinkedBlockingQueue<Message>(10000);
+		batch = new ArrayList<Message>(batchSize);
+		pending = new HashMap<String, Object>();
+		retries = new HashMap<String, Integer>();
+
+		if(burst <= 0) {
+			burst = batchSize;
+		}
+		tokens = burst;
+		lastRefill = System.nanoTime();
+
+		backoff = new AdaptiveBackoff(1, maxIdleSleep);
+		backoff.registerMetrics(context, 60);
+		replayed = context.registerMetric("replayed", new CountMetric(), 60);
+		failed = context.registerMetric("failed", new CountMetric(), 60);
+		context.registerMetric("pending", new IMetric() {
+			public Object getValueAndReset() {
+				return pending.size();
+			}
+		}, 60);
+
+		if(deserializer != null) {
+			deserializer.prepare(context);
+		}
+
+		reader = new ReaderThread();
+		reader.start();
+	}
+
+	public void close() {
+		reader.terminate();
+	}
+
+	public void nextTuple() {
+		int allowed = batchSize;
+		if(rate > 0) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+
+			allowed = (int) Math.min(batchSize, tokens);
+			if(allowed == 0) {
+				// wait for the next token
+				Utils.sleep(Math.max(1, (long) ((1 - tokens) * 1000 / rate)));
+				return;
+			}
+		}
+
+		queue.drainTo(batch, allowed);
+		for(Message message : batch) {
+			pending.put(message.id, message.value);
+			_collector.emit(new Values(message.value), message.id);
+		}
+
+		tokens -= batch.size();
+		replayed.incrBy(batch.size());
+
+		backoff.emitted(batch.size());
+		batch.clear();
+	}
+
+	public void ack(Object msgId) {
+		String id = (String) msgId;
+		pending.remove(id);
+		retries.remove(id);
+	}
+
+	public void fail(Object msgId) {
+		String id = (String) msgId;
+		Object message = pending.get(id);
+		if(message == null) {
+			return;
+		}
+		failed.incr();
+
+		Integer count = retries.get(id);
+		count = (count == null) ? 1 : count + 1;
+		if(maxRetries >= 0 && count > maxRetries) {
+			logger.error("Message " + id + " of " + path + " failed " + maxRetries + " times. Drop it.");
+			ack(id);
+			return;
+		}
+
+		retries.put(id, count);
+		_collector.emit(new Values(message), id);
+	}
+
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		declarer.declare(new Fields(deserializer == null ? field : deserializer.getOutputField()));
+	}
+
+}
@@ -0,0 +1,316 @@
+package gr.iti.mklab.focused.crawler.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Worker-local store of fetched content, kept off-heap in memory mapped segments. The
+ *	fetchers put the bytes in the store and emit a small {@link ContentHandle}, that bolts
+ *	in the same worker resolve without copying.
+ *
+ *	Blobs are appended to the current segment. When it is full the next segment is taken,
+ *	a new one while the store is below its capacity, otherwise the oldest one, which is
+ *	reused once none of its blobs is referenced anymore. A segment with a referenced blob
+ *	is never reused: if no segment can be, put() returns an inline handle and the content
+ *	stays on the heap.
+ *
+ *	Every handle holds one reference, dropped by release(), by the serializer when the
+ *	content is shipped to another worker, or, for consumers that never release it, when
+ *	the handle has been garbage collected.
+ *
+ *	One store per worker, created by the first getInstance() call with the settings:
+ *	content.store.capacity.mb (512), content.store.segment.mb (64) and
+ *	content.store.dir (java.io.tmpdir).
+ */
+public class BlobStore {
+
+	private static BlobStore instance = null;
+
+	private Logger logger = Logger.getLogger(BlobStore.class);
+
+	private final int segmentSize;
+	private final int maxSegments;
+	private final File dir;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current = null;
+	private int next = 0;
+
+	private final Map<Long, Blob> blobs = new ConcurrentHashMap<Long, Blob>();
+	private final AtomicLong ids = new AtomicLong(0);
+
+	// the references of the live handles, and those of the handles collected without a release
+	private final Set<Ref> refs = Collections.newSetFromMap(new ConcurrentHashMap<Ref, Boolean>());
+	private final ReferenceQueue<ContentHandle> collected = new ReferenceQueue<ContentHandle>();
+
+	private final AtomicLong stored = new AtomicLong(0);
+	private final AtomicLong storedBytes = new AtomicLong(0);
+	private final AtomicLong inlined = new AtomicLong(0);
+	private final AtomicLong leaked = new AtomicLong(0);
+
+	private static class Segment {
+
+		final MappedByteBuffer buffer;
+
+		int position = 0;
+		List<Blob> blobs = new ArrayList<Blob>();
+
+		Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Blob {
+
+		final long id;
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		final AtomicInteger refs = new AtomicInteger(1);
+
+		Blob(long id, Segment segment, int offset, int length) {
+			this.id = id;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The reference of a handle to its blob, dropped once.
+	 */
+	static class Ref extends PhantomReference<ContentHandle> {
+
+		final long blobId;
+		final AtomicBoolean released = new AtomicBoolean(false);
+
+		Ref(ContentHandle handle, long blobId, ReferenceQueue<ContentHandle> queue) {
+			super(handle, queue);
+			this.blobId = blobId;
+		}
+	}
+
+	public static synchronized BlobStore getInstance(@SuppressWarnings("rawtypes") Map conf) {
+		if(instance == null) {
+			int capacity = getInt(conf, "content.store.capacity.mb", 512);
+			int segmentSize = getInt(conf, "content.store.segment.mb", 64);
+
+			Object dir = conf == null ? null : conf.get("content.store.dir");
+			instance = new BlobStore(segmentSize * 1024 * 1024, Math.max(2, capacity / segmentSize),
+					new File(dir == null ? System.getProperty("java.io.tmpdir") : dir.toString()));
+		}
+		return instance;
+	}
+
+	private static int getInt(@SuppressWarnings("rawtypes") Map conf, String name, int defaultValue) {
+		Object value = conf == null ? null : conf.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value.toString());
+	}
+
+	public BlobStore(int segmentSize, int maxSegments, File dir) {
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.dir = dir;
+	}
+
+	/**
+	 * Copies the bytes in the store and returns a handle with one reference.
+	 */
+	public ContentHandle put(byte[] bytes) {
+		if(bytes == null) {
+			return null;
+		}
+		if(bytes.length == 0) {
+			return ContentHandle.EMPTY;
+		}
+
+		// large blobs would fragment the segments
+		if(bytes.length > segmentSize / 4) {
+			inlined.incrementAndGet();
+			return ContentHandle.inline(bytes);
+		}
+
+		Blob blob;
+		synchronized(this) {
+			if(current == null || current.position + bytes.length > segmentSize) {
+				current = nextSegment();
+				if(current == null) {
+					inlined.incrementAndGet();
+					return ContentHandle.inline(bytes);
+				}
+			}
+
+			blob = new Blob(ids.incrementAndGet(), current, current.position, bytes.length);
+			current.position += bytes.length;
+			current.blobs.add(blob);
+		}
+
+		// the space is reserved, copy outside the lock
+		ByteBuffer view = blob.segment.buffer.duplicate();
+		view.position(blob.offset);
+		view.put(bytes);
+
+		blobs.put(blob.id, blob);
+
+		stored.incrementAndGet();
+		storedBytes.addAndGet(bytes.length);
+
+		return new ContentHandle(this, blob.id, bytes.length);
+	}
+
+	ByteBuffer read(long id) {
+		Blob blob = blobs.get(id);
+		if(blob == null) {
+			return null;
+		}
+
+		ByteBuffer view = blob.segment.buffer.duplicate();
+		view.limit(blob.offset + blob.length);
+		view.position(blob.offset);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Takes a reference to the blob for a new handle, false if it has been evicted.
+	 */
+	boolean retain(long id) {
+		Blob blob = blobs.get(id);
+		if(blob == null) {
+			return false;
+		}
+		blob.refs.incrementAndGet();
+		return true;
+	}
+
+	Ref track(ContentHandle handle, long id) {
+		Ref ref = new Ref(handle, id, collected);
+		refs.add(ref);
+		return ref;
+	}
+
+	/**
+	 * Drops the reference of a handle, false if it had already been dropped.
+	 */
+	boolean release(Ref ref) {
+		if(!ref.released.compareAndSet(false, true)) {
+			return false;
+		}
+		refs.remove(ref);
+
+		Blob blob = blobs.get(ref.blobId);
+		if(blob != null) {
+			blob.refs.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Called holding the lock of the store.
+	 */
+	private Segment nextSegment() {
+		// the handles that have been collected no longer hold their blobs
+		Ref ref;
+		while((ref = (Ref) collected.poll()) != null) {
+			if(release(ref)) {
+				leaked.incrementAndGet();
+			}
+		}
+
+		if(segments.size() < maxSegments) {
+			try {
+				Segment segment = new Segment(map());
+				segments.add(segment);
+				return segment;
+			}
+			catch(IOException e) {
+				logger.error("Failed to map a new segment in " + dir, e);
+			}
+		}
+
+		// try the segments from the oldest one
+		for(int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(next);
+			next = (next + 1) % segments.size();
+
+			if(segment != current && reclaim(segment)) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	private boolean reclaim(Segment segment) {
+		for(Blob blob : segment.blobs) {
+			if(blob.refs.get() > 0) {
+				return false;
+			}
+		}
+
+		for(Blob blob : segment.blobs) {
+			blobs.remove(blob.id);
+		}
+
+		segment.blobs = new ArrayList<Blob>();
+		segment.position = 0;
+		return true;
+	}
+
+	private MappedByteBuffer map() throws IOException {
+		File file = File.createTempFile("content-", ".segment", dir);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		finally {
+			raf.close();
+			// the mapping stays valid, the space is freed when the worker exits
+			if(!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Metric with the state of the store, registered by the bolts that use it.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				Map<String, Long> values = new HashMap<String, Long>();
+				synchronized(BlobStore.this) {
+					values.put("segments", (long) segments.size());
+				}
+				values.put("blobs", (long) blobs.size());
+				values.put("stored", stored.getAndSet(0));
+				values.put("stored_bytes", storedBytes.getAndSet(0));
+				values.put("inlined", inlined.getAndSet(0));
+				values.put("leaked", leaked.getAndSet(0));
+				return values;
+			}
+		};
+	}
+
+}
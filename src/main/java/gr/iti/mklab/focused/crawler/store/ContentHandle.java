@@ -0,0 +1,184 @@
+package gr.iti.mklab.focused.crawler.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ *	Reference to fetched content (page body or image bytes) that is emitted in tuples
+ *	instead of the bytes themselves.
+ *
+ *	A handle created by {@link BlobStore#put(byte[])} points to a blob in the store of
+ *	the worker, and bolts of the same worker read the bytes from the memory mapped segment
+ *	without copying. When the tuple is sent to another worker the serializer of the handle
+ *	(ContentHandleSerializer) ships the bytes, and the receiving side gets an inline handle
+ *	that wraps them.
+ *
+ *	A handle holds one reference to its blob, for one consumer. Consumers call release()
+ *	when they are done with the content, so that the segment of the blob can be reused;
+ *	the serializer releases the handles it ships, and the store releases the handles
+ *	garbage collected without a release. The buffer() of a handle is valid only as long
+ *	as the handle itself is held and not released.
+ */
+public class ContentHandle implements Serializable {
+
+	private static final long serialVersionUID = 2908416355727478601L;
+
+	public static final ContentHandle EMPTY = new ContentHandle(new byte[0]);
+
+	private final transient BlobStore store;
+	private final transient BlobStore.Ref ref;
+	private final long blobId;
+
+	private final int length;
+	private final byte[] inline;
+
+	ContentHandle(BlobStore store, long blobId, int length) {
+		this.store = store;
+		this.ref = store.track(this, blobId);
+		this.blobId = blobId;
+		this.length = length;
+		this.inline = null;
+	}
+
+	private ContentHandle(byte[] bytes) {
+		this.store = null;
+		this.ref = null;
+		this.blobId = -1;
+		this.length = bytes.length;
+		this.inline = bytes;
+	}
+
+	/**
+	 * A handle that carries its bytes, used when the store is full or for content
+	 * received from another worker.
+	 */
+	public static ContentHandle inline(byte[] bytes) {
+		if(bytes == null) {
+			return null;
+		}
+		return bytes.length == 0 ? EMPTY : new ContentHandle(bytes);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	/**
+	 * True if the bytes are in the store of this worker.
+	 */
+	public boolean isStored() {
+		return inline == null && store != null;
+	}
+
+	/**
+	 * Read-only view of the content, without copying. Returns null if the blob has been
+	 * evicted from the store.
+	 */
+	public ByteBuffer buffer() {
+		if(inline != null) {
+			return ByteBuffer.wrap(inline).asReadOnlyBuffer();
+		}
+		if(store == null) {
+			return null;
+		}
+		return store.read(blobId);
+	}
+
+	/**
+	 * A copy of the content on the heap, for APIs that need a byte array. Returns null
+	 * if the blob has been evicted from the store.
+	 */
+	public byte[] getBytes() {
+		if(inline != null) {
+			return inline;
+		}
+
+		ByteBuffer buffer = buffer();
+		if(buffer == null) {
+			return null;
+		}
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	public InputStream openStream() {
+		if(inline != null) {
+			return new ByteArrayInputStream(inline);
+		}
+
+		final ByteBuffer buffer = buffer();
+		if(buffer == null) {
+			return null;
+		}
+
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(!buffer.hasRemaining()) {
+					return -1;
+				}
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+
+	/**
+	 * A new handle with one more reference to the blob, for each further consumer when
+	 * the content is emitted to more than one. Inline handles are returned as they are.
+	 */
+	public ContentHandle retain() {
+		if(!isStored()) {
+			return this;
+		}
+		if(ref.released.get() || !store.retain(blobId)) {
+			throw new IllegalStateException(this + " has already been released");
+		}
+		return new ContentHandle(store, blobId, length);
+	}
+
+	/**
+	 * Drops the reference of this handle, further calls do nothing.
+	 */
+	public void release() {
+		if(isStored()) {
+			store.release(ref);
+		}
+	}
+
+	/**
+	 * Java serialization ships the bytes as well.
+	 */
+	private Object writeReplace() {
+		if(!isStored()) {
+			return this;
+		}
+		byte[] bytes = getBytes();
+		return bytes == null ? EMPTY : new ContentHandle(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return "ContentHandle[" + (isStored() ? "blob " + blobId : "inline") + ", " + length + " bytes]";
+	}
+
+}
@@ -0,0 +1,503 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Cache of extraction results by the content they were extracted from, for the copies
+ *	of the same page under different urls (syndicated stories, mobile and AMP variants,
+ *	tracking parameters), that are extracted once and bound to each web page. Content is
+ *	keyed by the {@link XXHash64} of the body with runs of whitespace collapsed.
+ *
+ *	The urls of the images are resolved against the url of the page. A result with a
+ *	relative image holds only for pages with the same base, the directory of the url or the
+ *	url itself for relative queries, which is cached with it, and get() misses for pages
+ *	with another base.
+ *
+ *	Like the {@link ValidatorCache} it has two tiers: an LRU in the worker, with the
+ *	results serialized in byte arrays up to a capacity in bytes, and Redis
+ *	hashes shared by all workers (one per TTL period, key:period). Neither tier blocks the
+ *	caller: get() reads the local tier only, and reads and writes of the shared tier are
+ *	pipelined by background threads, getShared() calls back with the result.
+ */
+public class ExtractionCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Gson GSON = new Gson();
+
+	private static Map<String, ExtractionCache> instances = new HashMap<String, ExtractionCache>();
+
+	private Logger logger = Logger.getLogger(ExtractionCache.class);
+
+	// serialized entries by digest, in access order
+	private final LinkedHashMap<Long, byte[]> local = new LinkedHashMap<Long, byte[]>(1024, 0.75f, true);
+	private final long capacity;
+	private long localBytes = 0;
+
+	private final long ttl;
+
+	private JedisPool pool = null;
+	private String key;
+
+	private BlockingQueue<String[]> writes = new LinkedBlockingQueue<String[]>(10000);
+	private Thread writer = null;
+
+	private BlockingQueue<Read> reads = new LinkedBlockingQueue<Read>(10000);
+	private Thread reader = null;
+
+	private final AtomicLong lookups = new AtomicLong(0);
+	private final AtomicLong localHits = new AtomicLong(0);
+	private final AtomicLong redisHits = new AtomicLong(0);
+	private final AtomicLong otherBase = new AtomicLong(0);
+
+	/**
+	 * A cached result, with the base its images depend on, if any.
+	 */
+	private static class Entry {
+
+		// the whole url, or only its directory
+		private String base;
+		private boolean exact;
+
+		private long expires;
+		private ExtractionResult result;
+
+		Entry(String base, boolean exact, long expires, ExtractionResult result) {
+			this.base = base;
+			this.exact = exact;
+			this.expires = expires;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Called back with the result found in the shared tier, or null if there is none that
+	 * holds for the page.
+	 */
+	public interface Lookup {
+
+		public void completed(ExtractionResult result);
+	}
+
+	private static class Read {
+
+		final long digest;
+		final String url;
+		final Lookup lookup;
+
+		Read(long digest, String url, Lookup lookup) {
+			this.digest = digest;
+			this.url = url;
+			this.lookup = lookup;
+		}
+	}
+
+	/**
+	 * The cache with the given name in the worker, created by the first call. The shared
+	 * tier is the hash extractions:name in the given Redis, or none if redisHost is null.
+	 */
+	public static synchronized ExtractionCache getInstance(String name, String redisHost, int redisPort) {
+		ExtractionCache instance = instances.get(name);
+		if(instance == null) {
+			instance = new ExtractionCache(64 * 1024 * 1024, 24 * 3600 * 1000L);
+			if(redisHost != null) {
+				instance.connect(redisHost, redisPort, "extractions:" + name);
+			}
+			instances.put(name, instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param capacity	bytes of the serialized results in the local tier
+	 * @param ttl		TTL of the results, in milliseconds
+	 */
+	public ExtractionCache(long capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Adds the shared tier, hashes in Redis named after key.
+	 */
+	public void connect(String redisHost, int redisPort, String key) {
+		this.key = key;
+		this.pool = new JedisPool(new JedisPoolConfig(), redisHost, redisPort);
+
+		writer = new Thread(new Writer(), "extraction-cache-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		reader = new Thread(new Reader(), "extraction-cache-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * True if there is a shared tier to look up with getShared().
+	 */
+	public boolean isShared() {
+		return pool != null;
+	}
+
+	/**
+	 * The XXH64 of the content, with leading and trailing whitespace removed and every
+	 * other run of whitespace replaced by a single space. The normalized content is hashed
+	 * as it is read, without a copy.
+	 */
+	public static long digest(byte[] content) {
+		XXHash64 hash = new XXHash64(0);
+		boolean started = false, space = false;
+		for(byte b : content) {
+			if(b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+				space = started;
+				continue;
+			}
+			if(space) {
+				hash.update((byte) ' ');
+				space = false;
+			}
+			hash.update(b);
+			started = true;
+		}
+		return hash.getValue();
+	}
+
+	/**
+	 * What relative paths in a page depend on: the url without its fragment, query and
+	 * the last segment of its path.
+	 */
+	public static String directory(String url) {
+		String base = withoutFragment(url);
+		if(base.indexOf('?') >= 0) {
+			base = base.substring(0, base.indexOf('?'));
+		}
+
+		int host = base.indexOf("//");
+		if(host >= 0 && base.indexOf('/', host + 2) < 0) {
+			return base + "/";
+		}
+		return base.substring(0, base.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * What relative queries in a page depend on: the url without its fragment.
+	 */
+	public static String withoutFragment(String url) {
+		return url.indexOf('#') < 0 ? url : url.substring(0, url.indexOf('#'));
+	}
+
+	/**
+	 * The result extracted from content with the given digest in the local tier, if it holds
+	 * for a page with the given url, else null. Each call returns a new result.
+	 */
+	public ExtractionResult get(long digest, String url) {
+		lookups.incrementAndGet();
+
+		long now = System.currentTimeMillis();
+		byte[] serialized;
+		synchronized(local) {
+			serialized = local.get(digest);
+		}
+
+		Entry entry = serialized == null ? null : parse(serialized, now);
+		if(serialized != null && entry == null) {
+			// expired
+			synchronized(local) {
+				if(local.get(digest) == serialized) {
+					localBytes -= serialized.length;
+					local.remove(digest);
+				}
+			}
+		}
+
+		if(entry == null) {
+			return null;
+		}
+		localHits.incrementAndGet();
+		return hit(entry, url);
+	}
+
+	/**
+	 * True if the local tier holds a result for the digest, whatever page it holds for.
+	 */
+	public boolean containsLocal(long digest) {
+		synchronized(local) {
+			return local.containsKey(digest);
+		}
+	}
+
+	/**
+	 * Looks up content missing from the local tier in the shared tier, and calls back on the
+	 * reader thread. Calls back at once with null if there is no shared tier or too many
+	 * lookups are pending.
+	 */
+	public void getShared(long digest, String url, Lookup lookup) {
+		if(pool == null || !reads.offer(new Read(digest, url, lookup))) {
+			lookup.completed(null);
+		}
+	}
+
+	private ExtractionResult hit(Entry entry, String url) {
+		if(entry.base != null && !entry.base.equals(entry.exact ? withoutFragment(url) : directory(url))) {
+			otherBase.incrementAndGet();
+			return null;
+		}
+		return entry.result;
+	}
+
+	/**
+	 * Caches the result extracted from content with the given digest, in a page with the
+	 * given url, and whether the urls of its images were relative paths or relative queries.
+	 */
+	public void put(long digest, String url, boolean relativePaths, boolean relativeQueries, ExtractionResult result) {
+		String base = relativeQueries ? withoutFragment(url) : (relativePaths ? directory(url) : null);
+		String value = GSON.toJson(new Entry(base, relativeQueries, System.currentTimeMillis() + ttl, result));
+		putLocal(digest, value);
+
+		if(pool != null && !writes.offer(new String[] {toHex(digest), value})) {
+			logger.warn("Extraction cache write queue is full, " + toHex(digest) + " is cached locally only");
+		}
+	}
+
+	private void putLocal(long digest, String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		if(bytes.length > capacity / 16) {
+			return;
+		}
+
+		synchronized(local) {
+			byte[] previous = local.put(digest, bytes);
+			if(previous != null) {
+				localBytes -= previous.length;
+			}
+			localBytes += bytes.length;
+
+			// least recently used first
+			Iterator<byte[]> it = local.values().iterator();
+			while(localBytes > capacity && it.hasNext()) {
+				localBytes -= it.next().length;
+				it.remove();
+			}
+		}
+	}
+
+	private Entry parse(byte[] serialized, long now) {
+		return parse(new String(serialized, UTF8), now);
+	}
+
+	private Entry parse(String value, long now) {
+		if(value == null) {
+			return null;
+		}
+
+		try {
+			Entry entry = GSON.fromJson(value, Entry.class);
+			return entry != null && entry.result != null && entry.expires > now ? entry : null;
+		}
+		catch(JsonSyntaxException e) {
+			return null;
+		}
+	}
+
+	private static String toHex(long digest) {
+		return String.format("%016x", digest);
+	}
+
+	public void close() {
+		if(reader != null) {
+			reader.interrupt();
+		}
+		if(writer != null) {
+			writer.interrupt();
+			try {
+				writer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(pool != null) {
+			pool.close();
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		public void run() {
+			List<String[]> batch = new ArrayList<String[]>();
+			while(true) {
+				try {
+					String[] first = writes.poll(1, TimeUnit.SECONDS);
+					if(first == null) {
+						continue;
+					}
+					batch.add(first);
+					writes.drainTo(batch, 499);
+				}
+				catch(InterruptedException e) {
+					// flush what is left before exiting
+					writes.drainTo(batch);
+					write(batch);
+					return;
+				}
+
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		private void write(List<String[]> batch) {
+			if(batch.isEmpty()) {
+				return;
+			}
+
+			String hash = key + ":" + (System.currentTimeMillis() / ttl);
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				Pipeline pipeline = jedis.pipelined();
+				for(String[] entry : batch) {
+					pipeline.hset(hash, entry[0], entry[1]);
+				}
+				pipeline.pexpire(hash, 2 * ttl);
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to write " + batch.size() + " results in the extraction cache: " + e.getMessage());
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+		}
+	}
+
+	private class Reader implements Runnable {
+
+		public void run() {
+			List<Read> batch = new ArrayList<Read>();
+			while(true) {
+				try {
+					batch.add(reads.take());
+					reads.drainTo(batch, 499);
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+
+				read(batch);
+				batch.clear();
+			}
+		}
+
+		private void read(List<Read> batch) {
+			long now = System.currentTimeMillis();
+			long period = now / ttl;
+
+			List<Response<String>> current = new ArrayList<Response<String>>(batch.size());
+			List<Response<String>> previous = new ArrayList<Response<String>>(batch.size());
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				// the entry may be in the hash of the previous period
+				Pipeline pipeline = jedis.pipelined();
+				for(Read read : batch) {
+					current.add(pipeline.hget(key + ":" + period, toHex(read.digest)));
+					previous.add(pipeline.hget(key + ":" + (period - 1), toHex(read.digest)));
+				}
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to read " + batch.size() + " results from the extraction cache: " + e.getMessage());
+				current.clear();
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+
+			for(int i = 0; i < batch.size(); i++) {
+				Read read = batch.get(i);
+				ExtractionResult result = null;
+				if(i < current.size()) {
+					String value = current.get(i).get();
+					Entry entry = parse(value, now);
+					if(entry == null) {
+						value = previous.get(i).get();
+						entry = parse(value, now);
+					}
+					if(entry != null) {
+						putLocal(read.digest, value);
+						redisHits.incrementAndGet();
+						result = hit(entry, read.url);
+					}
+				}
+
+				try {
+					read.lookup.completed(result);
+				}
+				catch(Exception e) {
+					logger.error("Lookup of " + toHex(read.digest) + " failed: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Metric with the lookups and hit rates of the cache, the hits for pages with another
+	 * base, and the size of the local tier.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long total = lookups.getAndSet(0);
+				long localTier = localHits.getAndSet(0);
+				long sharedTier = redisHits.getAndSet(0);
+				long mismatches = otherBase.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("lookups", total);
+				values.put("local_hits", localTier);
+				values.put("redis_hits", sharedTier);
+				values.put("other_base", mismatches);
+				values.put("misses", total - localTier - sharedTier + mismatches);
+				values.put("hit_rate", total == 0 ? 0d : (double) (localTier + sharedTier - mismatches) / total);
+				synchronized(local) {
+					values.put("size", (long) local.size());
+					values.put("bytes", localBytes);
+				}
+				return values;
+			}
+		};
+	}
+
+}
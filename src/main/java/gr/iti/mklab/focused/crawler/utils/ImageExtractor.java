@@ -82,6 +82,67 @@ public final class ImageExtractor {
 		return implementation.linksHighlight;
 	}
 	
+	/**
+	 * Processes the given {@link TextDocument} and the images of the page it was
+	 * parsed from, without parsing the page again.
+	 * 
+	 * @param doc
+	 *            The processed {@link TextDocument}, parsed with the images.
+	 * @param html
+	 *            The page as parsed by {@link ParsedHtml}.
+	 * @return A List of enclosed {@link Image}s
+	 */
+	public List<Image> process(final TextDocument doc, final ParsedHtml html) {
+		final BitSet contentBitSet = getContentBitSet(doc);
+		
+		List<Image> linksHighlight = new ArrayList<Image>();
+		List<Image> linksBuffer = new ArrayList<Image>();
+		boolean inHighlight = false;
+		
+		// the text elements and the images in the order of the page, as the SAX events of process(doc, is)
+		List<ParsedHtml.Candidate> candidates = html.getImages();
+		int next = 0;
+		for(int characterElementIdx = 0; characterElementIdx <= html.getTextElements(); characterElementIdx++) {
+			if(characterElementIdx > 0 && html.isVisibleText(characterElementIdx)) {
+				boolean highlight = contentBitSet.get(characterElementIdx);
+				if(highlight || html.isNonBlankText(characterElementIdx)) {
+					inHighlight = highlight;
+					if(inHighlight) {
+						linksHighlight.addAll(linksBuffer);
+						linksBuffer.clear();
+					}
+				}
+			}
+			
+			for(; next < candidates.size() && candidates.get(next).getTextElement() == characterElementIdx; next++) {
+				if(inHighlight) {
+					linksBuffer.add(candidates.get(next).getImage());
+				}
+			}
+		}
+		return linksHighlight;
+	}
+	
+	private static BitSet getContentBitSet(final TextDocument doc) {
+		final BitSet contentBitSet = new BitSet();
+		for (TextBlock block : doc.getTextBlocks()) {
+			if (block.isContent()) {
+				final BitSet bs = block.getContainedTextElements();
+				if (bs != null) {
+					contentBitSet.or(bs);
+				}
+			}
+		}
+		return contentBitSet;
+	}
+	
+	/**
+	 * True for the elements whose content is never an enclosed image.
+	 */
+	static boolean isIgnorable(final String localName) {
+		return TAG_ACTIONS.get(localName) == TA_IGNORABLE_ELEMENT;
+	}
+	
 	/**
 	 * Fetches the given {@link URL} using {@link HTMLFetcher} and processes the
 	 * retrieved HTML using the specified {@link BoilerpipeExtractor}.
@@ -114,7 +175,7 @@ public final class ImageExtractor {
 
 		private int inIgnorableElement = 0;
 		private int characterElementIdx = 0;
-		private final BitSet contentBitSet = new BitSet();
+		private BitSet contentBitSet;
 		
 		private boolean inHighlight = false;
 
@@ -125,14 +186,7 @@ public final class ImageExtractor {
 
 		void process(final TextDocument doc, final InputSource is)
 				throws BoilerpipeProcessingException {
-			for (TextBlock block : doc.getTextBlocks()) {
-				if (block.isContent()) {
-					final BitSet bs = block.getContainedTextElements();
-					if (bs != null) {
-						contentBitSet.or(bs);
-					}
-				}
-			}
+			contentBitSet = getContentBitSet(doc);
 
 			try {
 				parse(is);
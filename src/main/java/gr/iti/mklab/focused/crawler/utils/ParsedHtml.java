@@ -0,0 +1,142 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import de.l3s.boilerpipe.BoilerpipeProcessingException;
+import de.l3s.boilerpipe.document.TextDocument;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLContentHandler;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLParser;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	A page parsed once for both the article and the images. The same NekoHTML pass builds
+ *	the {@link TextDocument} of boilerpipe and records the &lt;img&gt; elements with the
+ *	number of text elements before them, and which text elements are visible and not blank,
+ *	which is all the {@link ImageExtractor} needs to find the images enclosed by the content
+ *	once an extractor has processed the document.
+ */
+public class ParsedHtml {
+
+	private TextDocument document;
+
+	private final List<Candidate> images = new ArrayList<Candidate>();
+
+	// text elements outside of the elements ignored by the ImageExtractor, and those that are not blank
+	private final BitSet visibleText = new BitSet();
+	private final BitSet nonBlankText = new BitSet();
+	private int textElements = 0;
+
+	/**
+	 * An &lt;img&gt; of the page, after the given number of text elements.
+	 */
+	public static class Candidate {
+
+		private final Image image;
+		private final int textElement;
+
+		Candidate(Image image, int textElement) {
+			this.image = image;
+			this.textElement = textElement;
+		}
+
+		public Image getImage() {
+			return image;
+		}
+
+		public int getTextElement() {
+			return textElement;
+		}
+	}
+
+	public static ParsedHtml parse(InputSource is) throws BoilerpipeProcessingException {
+		ParsedHtml html = new ParsedHtml();
+		Handler handler = html.new Handler();
+		try {
+			new BoilerpipeHTMLParser(handler).parse(is);
+		} catch (SAXException e) {
+			throw new BoilerpipeProcessingException(e);
+		} catch (IOException e) {
+			throw new BoilerpipeProcessingException(e);
+		}
+		html.document = handler.toTextDocument();
+		return html;
+	}
+
+	/**
+	 * The text document of the page, as BoilerpipeSAXInput gives it.
+	 */
+	public TextDocument getDocument() {
+		return document;
+	}
+
+	public List<Candidate> getImages() {
+		return images;
+	}
+
+	public boolean isVisibleText(int textElement) {
+		return visibleText.get(textElement);
+	}
+
+	public boolean isNonBlankText(int textElement) {
+		return nonBlankText.get(textElement);
+	}
+
+	public int getTextElements() {
+		return textElements;
+	}
+
+	/**
+	 * The content handler of boilerpipe, that also keeps track of the images and the text elements.
+	 */
+	private class Handler extends BoilerpipeHTMLContentHandler {
+
+		private int inIgnorableElement = 0;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			if(ImageExtractor.isIgnorable(localName)) {
+				inIgnorableElement++;
+			}
+			else if(inIgnorableElement == 0 && "IMG".equalsIgnoreCase(localName)) {
+				String src = atts.getValue("src");
+				if(src != null && src.length() > 0) {
+					images.add(new Candidate(new Image(src, atts.getValue("width"), atts.getValue("height"),
+							atts.getValue("alt")), textElements));
+				}
+			}
+			super.startElement(uri, localName, qName, atts);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			super.endElement(uri, localName, qName);
+			if(ImageExtractor.isIgnorable(localName)) {
+				inIgnorableElement--;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			textElements++;
+			if(inIgnorableElement == 0) {
+				visibleText.set(textElements);
+				for(int i = start; i < start + length; i++) {
+					if(!Character.isWhitespace(ch[i])) {
+						nonBlankText.set(textElements);
+						break;
+					}
+				}
+			}
+			super.characters(ch, start, length);
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Cache of short url expansions, in two tiers: an LRU map in the worker, shared by its
+ *	executors, and a Redis hash shared by all workers. Urls that cannot be expanded are
+ *	cached as well, with a shorter TTL, and returned as {@link #UNRESOLVED}.
+ *
+ *	Redis entries are kept in one hash per TTL period (key:period), that expires after
+ *	two periods, and each value carries its own expiration time (expires|url). Neither
+ *	tier blocks the caller: get() reads the local tier only, and reads and writes of the
+ *	shared tier are pipelined by background threads, getShared() calls back with the result.
+ */
+public class ResolutionCache {
+
+	/**
+	 * Returned by get() for urls that are known to fail.
+	 */
+	public static final String UNRESOLVED = "";
+
+	private static ResolutionCache instance = null;
+
+	private Logger logger = Logger.getLogger(ResolutionCache.class);
+
+	private final Map<String, Entry> local;
+
+	private final long ttl;
+	private final long negativeTtl;
+
+	private JedisPool pool = null;
+	private String key;
+
+	private BlockingQueue<String[]> writes = new LinkedBlockingQueue<String[]>(100000);
+	private Thread writer = null;
+
+	private BlockingQueue<Read> reads = new LinkedBlockingQueue<Read>(10000);
+	private Thread reader = null;
+
+	private final AtomicLong lookups = new AtomicLong(0);
+	private final AtomicLong localHits = new AtomicLong(0);
+	private final AtomicLong redisHits = new AtomicLong(0);
+	private final AtomicLong negativeHits = new AtomicLong(0);
+
+	private static class Entry {
+
+		final String url;
+		final long expires;
+
+		Entry(String url, long expires) {
+			this.url = url;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Called back with the expanded url found in the shared tier, {@link #UNRESOLVED},
+	 * or null if the url is not there.
+	 */
+	public interface Lookup {
+
+		public void completed(String expandedUrl);
+	}
+
+	private static class Read {
+
+		final String shortUrl;
+		final Lookup lookup;
+
+		Read(String shortUrl, Lookup lookup) {
+			this.shortUrl = shortUrl;
+			this.lookup = lookup;
+		}
+	}
+
+	/**
+	 * The cache of the worker, created by the first call. The shared tier is the hash
+	 * expandedUrls in the given Redis, or none if redisHost is null.
+	 */
+	public static synchronized ResolutionCache getInstance(String redisHost, int redisPort) {
+		if(instance == null) {
+			instance = new ResolutionCache(100000, 6 * 3600 * 1000L, 10 * 60 * 1000L);
+			if(redisHost != null) {
+				instance.connect(redisHost, redisPort, "expandedUrls");
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @param capacity	number of urls in the local tier
+	 * @param ttl		TTL of expanded urls, in milliseconds
+	 * @param negativeTtl	TTL of urls that failed, in milliseconds
+	 */
+	@SuppressWarnings("serial")
+	public ResolutionCache(final int capacity, long ttl, long negativeTtl) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		local = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Adds the shared tier, a hash in Redis named after key.
+	 */
+	public void connect(String redisHost, int redisPort, String key) {
+		this.key = key;
+		this.pool = new JedisPool(new JedisPoolConfig(), redisHost, redisPort);
+
+		writer = new Thread(new Writer(), "resolution-cache-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		reader = new Thread(new Reader(), "resolution-cache-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * True if there is a shared tier to look up with getShared().
+	 */
+	public boolean isShared() {
+		return pool != null;
+	}
+
+	/**
+	 * The expanded url in the local tier, {@link #UNRESOLVED} for a url that failed recently,
+	 * or null if the url is not in the local tier.
+	 */
+	public String get(String shortUrl) {
+		lookups.incrementAndGet();
+
+		long now = System.currentTimeMillis();
+		synchronized(local) {
+			Entry entry = local.get(shortUrl);
+			if(entry != null) {
+				if(entry.expires > now) {
+					localHits.incrementAndGet();
+					return hit(entry.url);
+				}
+				local.remove(shortUrl);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up a url missing from the local tier in the shared tier, and calls back on the
+	 * reader thread. Calls back at once with null if there is no shared tier or too many
+	 * lookups are pending.
+	 */
+	public void getShared(String shortUrl, Lookup lookup) {
+		if(pool == null || !reads.offer(new Read(shortUrl, lookup))) {
+			lookup.completed(null);
+		}
+	}
+
+	private String hit(String url) {
+		if(UNRESOLVED.equals(url)) {
+			negativeHits.incrementAndGet();
+		}
+		return url;
+	}
+
+	/**
+	 * Caches the expansion of a url, or a failure if expandedUrl is null. Only failures
+	 * that would happen again are to be cached: a missing page (404 or 410), a redirect
+	 * loop or an invalid url. Other client errors, server errors, timeouts and failed
+	 * connections are not.
+	 */
+	public void put(String shortUrl, String expandedUrl) {
+		long now = System.currentTimeMillis();
+		long expires = now + (expandedUrl == null ? negativeTtl : ttl);
+		String url = expandedUrl == null ? UNRESOLVED : expandedUrl;
+
+		synchronized(local) {
+			local.put(shortUrl, new Entry(url, expires));
+		}
+
+		if(pool != null && !writes.offer(new String[] {shortUrl, expires + "|" + url})) {
+			logger.warn("Resolution cache write queue is full, " + shortUrl + " is cached locally only");
+		}
+	}
+
+	private static Entry parse(String value, long now) {
+		if(value == null) {
+			return null;
+		}
+
+		int separator = value.indexOf('|');
+		if(separator < 0) {
+			return null;
+		}
+
+		try {
+			long expires = Long.parseLong(value.substring(0, separator));
+			return expires > now ? new Entry(value.substring(separator + 1), expires) : null;
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void close() {
+		if(reader != null) {
+			reader.interrupt();
+		}
+		if(writer != null) {
+			writer.interrupt();
+			try {
+				writer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(pool != null) {
+			pool.close();
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		public void run() {
+			List<String[]> batch = new ArrayList<String[]>();
+			while(true) {
+				try {
+					String[] first = writes.poll(1, TimeUnit.SECONDS);
+					if(first == null) {
+						continue;
+					}
+					batch.add(first);
+					writes.drainTo(batch, 999);
+				}
+				catch(InterruptedException e) {
+					// flush what is left before exiting
+					writes.drainTo(batch);
+					write(batch);
+					return;
+				}
+
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		private void write(List<String[]> batch) {
+			if(batch.isEmpty()) {
+				return;
+			}
+
+			String hash = key + ":" + (System.currentTimeMillis() / ttl);
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				Pipeline pipeline = jedis.pipelined();
+				for(String[] entry : batch) {
+					pipeline.hset(hash, entry[0], entry[1]);
+				}
+				pipeline.pexpire(hash, 2 * ttl);
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to write " + batch.size() + " urls in the resolution cache: " + e.getMessage());
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+		}
+	}
+
+	private class Reader implements Runnable {
+
+		public void run() {
+			List<Read> batch = new ArrayList<Read>();
+			while(true) {
+				try {
+					batch.add(reads.take());
+					reads.drainTo(batch, 499);
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+
+				read(batch);
+				batch.clear();
+			}
+		}
+
+		private void read(List<Read> batch) {
+			long now = System.currentTimeMillis();
+			long period = now / ttl;
+
+			List<Response<String>> current = new ArrayList<Response<String>>(batch.size());
+			List<Response<String>> previous = new ArrayList<Response<String>>(batch.size());
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				// the entry may be in the hash of the previous period
+				Pipeline pipeline = jedis.pipelined();
+				for(Read read : batch) {
+					current.add(pipeline.hget(key + ":" + period, read.shortUrl));
+					previous.add(pipeline.hget(key + ":" + (period - 1), read.shortUrl));
+				}
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to read " + batch.size() + " urls from the resolution cache: " + e.getMessage());
+				current.clear();
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+
+			for(int i = 0; i < batch.size(); i++) {
+				String url = null;
+				if(i < current.size()) {
+					Entry entry = parse(current.get(i).get(), now);
+					if(entry == null) {
+						entry = parse(previous.get(i).get(), now);
+					}
+					if(entry != null) {
+						synchronized(local) {
+							local.put(batch.get(i).shortUrl, entry);
+						}
+						redisHits.incrementAndGet();
+						url = hit(entry.url);
+					}
+				}
+
+				try {
+					batch.get(i).lookup.completed(url);
+				}
+				catch(Exception e) {
+					logger.error("Lookup of " + batch.get(i).shortUrl + " failed: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Metric with the lookups and hit rates of the cache.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long total = lookups.getAndSet(0);
+				long localTier = localHits.getAndSet(0);
+				long sharedTier = redisHits.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("lookups", total);
+				values.put("local_hits", localTier);
+				values.put("redis_hits", sharedTier);
+				values.put("negative_hits", negativeHits.getAndSet(0));
+				values.put("misses", total - localTier - sharedTier);
+				values.put("hit_rate", total == 0 ? 0d : (double) (localTier + sharedTier) / total);
+				values.put("local_hit_rate", total == 0 ? 0d : (double) localTier / total);
+				synchronized(local) {
+					values.put("size", (long) local.size());
+				}
+				return values;
+			}
+		};
+	}
+
+}
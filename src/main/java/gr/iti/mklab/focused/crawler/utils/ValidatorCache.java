@@ -0,0 +1,468 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Cache of the validators (ETag, Last-Modified) of fetched urls, together with the
+ *	digest of their content and the result that was extracted from it. A url in the cache
+ *	is fetched with a conditional GET, and a 304 response re-uses the cached result
+ *	instead of downloading and extracting the content again.
+ *
+ *	Like the {@link ResolutionCache} it has two tiers, an LRU map in the worker and Redis
+ *	hashes shared by all workers (one per TTL period, key:period). Urls are cached by their
+ *	canonical form. Neither tier blocks the caller: get() reads the local tier only, and
+ *	reads and writes of the shared tier are pipelined by background threads, getShared()
+ *	calls back with the result.
+ */
+public class ValidatorCache {
+
+	private static Map<String, ValidatorCache> instances = new HashMap<String, ValidatorCache>();
+
+	private Logger logger = Logger.getLogger(ValidatorCache.class);
+
+	private static final Gson GSON = new Gson();
+	private final Map<String, Validators> local;
+
+	private final long ttl;
+
+	private JedisPool pool = null;
+	private String key;
+
+	private BlockingQueue<String[]> writes = new LinkedBlockingQueue<String[]>(10000);
+	private Thread writer = null;
+
+	private BlockingQueue<Read> reads = new LinkedBlockingQueue<Read>(10000);
+	private Thread reader = null;
+
+	private final AtomicLong lookups = new AtomicLong(0);
+	private final AtomicLong localHits = new AtomicLong(0);
+	private final AtomicLong redisHits = new AtomicLong(0);
+	private final AtomicLong notModified = new AtomicLong(0);
+
+	/**
+	 * The validators of a url, and the result extracted from its content.
+	 */
+	public static class Validators {
+
+		private String etag;
+		private String lastModified;
+		private String digest;
+		private String result;
+
+		private long expires;
+
+		public Validators(String etag, String lastModified, String digest, String result) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.digest = digest;
+			this.result = result;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * The md5 of the content, if the caller gave one. Pages leave it out, their unchanged
+		 * content is found by its digest in the {@link ExtractionCache}.
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * The extracted result, in the serialized form given by the caller.
+		 */
+		public String getResult() {
+			return result;
+		}
+
+		/**
+		 * True if there is something to send in a conditional GET.
+		 */
+		public boolean isConditional() {
+			return etag != null || lastModified != null;
+		}
+
+		/**
+		 * The validators as JSON, e.g. to emit them in a tuple from the stage that fetches a
+		 * page to the stage that extracts it.
+		 */
+		public String toJSONString() {
+			return GSON.toJson(this);
+		}
+
+		public static Validators fromJSONString(String json) {
+			return json == null ? null : GSON.fromJson(json, Validators.class);
+		}
+	}
+
+	/**
+	 * Called back with the validators found in the shared tier, or null.
+	 */
+	public interface Lookup {
+
+		public void completed(Validators validators);
+	}
+
+	private static class Read {
+
+		final String url;
+		final Lookup lookup;
+
+		Read(String url, Lookup lookup) {
+			this.url = url;
+			this.lookup = lookup;
+		}
+	}
+
+	/**
+	 * The cache with the given name in the worker, created by the first call. The shared
+	 * tier is the hash validators:name in the given Redis, or none if redisHost is null.
+	 */
+	public static synchronized ValidatorCache getInstance(String name, String redisHost, int redisPort) {
+		ValidatorCache instance = instances.get(name);
+		if(instance == null) {
+			instance = new ValidatorCache(20000, 24 * 3600 * 1000L);
+			if(redisHost != null) {
+				instance.connect(redisHost, redisPort, "validators:" + name);
+			}
+			instances.put(name, instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param capacity	number of urls in the local tier
+	 * @param ttl		TTL of the validators, in milliseconds
+	 */
+	@SuppressWarnings("serial")
+	public ValidatorCache(final int capacity, long ttl) {
+		this.ttl = ttl;
+
+		local = new LinkedHashMap<String, Validators>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Adds the shared tier, hashes in Redis named after key.
+	 */
+	public void connect(String redisHost, int redisPort, String key) {
+		this.key = key;
+		this.pool = new JedisPool(new JedisPoolConfig(), redisHost, redisPort);
+
+		writer = new Thread(new Writer(), "validator-cache-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		reader = new Thread(new Reader(), "validator-cache-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * True if there is a shared tier to look up with getShared().
+	 */
+	public boolean isShared() {
+		return pool != null;
+	}
+
+	/**
+	 * Lower case scheme and host, no default port and no fragment. Returns the url as is if it cannot be parsed.
+	 */
+	public static String canonical(String url) {
+		try {
+			URI uri = new URI(url).normalize();
+			String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase();
+			String host = uri.getHost() == null ? null : uri.getHost().toLowerCase();
+
+			int port = uri.getPort();
+			if(("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+				port = -1;
+			}
+
+			String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+			String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+			return scheme + "://" + host + (port == -1 ? "" : ":" + port) + path + query;
+		}
+		catch(Exception e) {
+			return url;
+		}
+	}
+
+	public static String digest(byte[] content) {
+		return DigestUtils.md5Hex(content);
+	}
+
+	/**
+	 * The validators of a url in the local tier, or null if the url is not there.
+	 */
+	public Validators get(String url) {
+		lookups.incrementAndGet();
+
+		String canonicalUrl = canonical(url);
+		long now = System.currentTimeMillis();
+		synchronized(local) {
+			Validators validators = local.get(canonicalUrl);
+			if(validators != null) {
+				if(validators.expires > now) {
+					localHits.incrementAndGet();
+					return validators;
+				}
+				local.remove(canonicalUrl);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up a url missing from the local tier in the shared tier, and calls back on the
+	 * reader thread. Calls back at once with null if there is no shared tier or too many
+	 * lookups are pending.
+	 */
+	public void getShared(String url, Lookup lookup) {
+		if(pool == null || !reads.offer(new Read(canonical(url), lookup))) {
+			lookup.completed(null);
+		}
+	}
+
+	/**
+	 * Caches the validators of a url. Urls without ETag or Last-Modified are not cached.
+	 */
+	public void put(String url, Validators validators) {
+		if(!validators.isConditional()) {
+			return;
+		}
+
+		String canonicalUrl = canonical(url);
+		validators.expires = System.currentTimeMillis() + ttl;
+		synchronized(local) {
+			local.put(canonicalUrl, validators);
+		}
+
+		if(pool != null && !writes.offer(new String[] {canonicalUrl, GSON.toJson(validators)})) {
+			logger.warn("Validator cache write queue is full, " + url + " is cached locally only");
+		}
+	}
+
+	/**
+	 * Counts a response that re-used a cached result, a 304 or a 200 with the cached digest.
+	 */
+	public void notModified() {
+		notModified.incrementAndGet();
+	}
+
+	private Validators parse(String value, long now) {
+		if(value == null) {
+			return null;
+		}
+
+		try {
+			Validators validators = GSON.fromJson(value, Validators.class);
+			return validators != null && validators.expires > now ? validators : null;
+		}
+		catch(JsonSyntaxException e) {
+			return null;
+		}
+	}
+
+	public void close() {
+		if(reader != null) {
+			reader.interrupt();
+		}
+		if(writer != null) {
+			writer.interrupt();
+			try {
+				writer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(pool != null) {
+			pool.close();
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		public void run() {
+			List<String[]> batch = new ArrayList<String[]>();
+			while(true) {
+				try {
+					String[] first = writes.poll(1, TimeUnit.SECONDS);
+					if(first == null) {
+						continue;
+					}
+					batch.add(first);
+					writes.drainTo(batch, 499);
+				}
+				catch(InterruptedException e) {
+					// flush what is left before exiting
+					writes.drainTo(batch);
+					write(batch);
+					return;
+				}
+
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		private void write(List<String[]> batch) {
+			if(batch.isEmpty()) {
+				return;
+			}
+
+			String hash = key + ":" + (System.currentTimeMillis() / ttl);
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				Pipeline pipeline = jedis.pipelined();
+				for(String[] entry : batch) {
+					pipeline.hset(hash, entry[0], entry[1]);
+				}
+				pipeline.pexpire(hash, 2 * ttl);
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to write " + batch.size() + " urls in the validator cache: " + e.getMessage());
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+		}
+	}
+
+	private class Reader implements Runnable {
+
+		public void run() {
+			List<Read> batch = new ArrayList<Read>();
+			while(true) {
+				try {
+					batch.add(reads.take());
+					reads.drainTo(batch, 499);
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+
+				read(batch);
+				batch.clear();
+			}
+		}
+
+		private void read(List<Read> batch) {
+			long now = System.currentTimeMillis();
+			long period = now / ttl;
+
+			List<Response<String>> current = new ArrayList<Response<String>>(batch.size());
+			List<Response<String>> previous = new ArrayList<Response<String>>(batch.size());
+			Jedis jedis = null;
+			try {
+				jedis = pool.getResource();
+
+				// the entry may be in the hash of the previous period
+				Pipeline pipeline = jedis.pipelined();
+				for(Read read : batch) {
+					current.add(pipeline.hget(key + ":" + period, read.url));
+					previous.add(pipeline.hget(key + ":" + (period - 1), read.url));
+				}
+				pipeline.sync();
+			}
+			catch(Exception e) {
+				logger.error("Failed to read " + batch.size() + " urls from the validator cache: " + e.getMessage());
+				current.clear();
+			}
+			finally {
+				if(jedis != null) {
+					jedis.close();
+				}
+			}
+
+			for(int i = 0; i < batch.size(); i++) {
+				Read read = batch.get(i);
+				Validators validators = null;
+				if(i < current.size()) {
+					validators = parse(current.get(i).get(), now);
+					if(validators == null) {
+						validators = parse(previous.get(i).get(), now);
+					}
+					if(validators != null) {
+						synchronized(local) {
+							local.put(read.url, validators);
+						}
+						redisHits.incrementAndGet();
+					}
+				}
+
+				try {
+					read.lookup.completed(validators);
+				}
+				catch(Exception e) {
+					logger.error("Lookup of " + read.url + " failed: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Metric with the lookups and hit rates of the cache, and the responses that were not modified.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long total = lookups.getAndSet(0);
+				long localTier = localHits.getAndSet(0);
+				long sharedTier = redisHits.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("lookups", total);
+				values.put("local_hits", localTier);
+				values.put("redis_hits", sharedTier);
+				values.put("misses", total - localTier - sharedTier);
+				values.put("not_modified", notModified.getAndSet(0));
+				values.put("hit_rate", total == 0 ? 0d : (double) (localTier + sharedTier) / total);
+				synchronized(local) {
+					values.put("size", (long) local.size());
+				}
+				return values;
+			}
+		};
+	}
+
+}
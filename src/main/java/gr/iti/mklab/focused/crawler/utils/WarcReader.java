@@ -0,0 +1,120 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *	Sequential reader of WARC/1.0 files. The input stream has to be decompressed already,
+ *	a GZIPInputStream reads the concatenated gzip members of a .warc.gz file as one stream.
+ */
+public class WarcReader implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DataInputStream input;
+
+	public WarcReader(InputStream input) {
+		this.input = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+	}
+
+	public static class Record {
+
+		private Map<String, String> headers = new LinkedHashMap<String, String>();
+		private byte[] content;
+
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public String getType() {
+			return getHeader("WARC-Type");
+		}
+
+		public String getContentType() {
+			return getHeader("Content-Type");
+		}
+
+		public String getTargetURI() {
+			return getHeader("WARC-Target-URI");
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getContentAsString() {
+			return new String(content, UTF8);
+		}
+	}
+
+	/**
+	 * Returns the next record, or null at the end of the stream.
+	 */
+	public Record next() throws IOException {
+
+		// skip the blank lines that terminate the previous record
+		String line;
+		do {
+			line = readLine();
+			if(line == null) {
+				return null;
+			}
+		} while(line.isEmpty());
+
+		if(!line.startsWith("WARC/")) {
+			throw new IOException("Invalid WARC record, version line expected but found: " + line);
+		}
+
+		Record record = new Record();
+		while((line = readLine()) != null && !line.isEmpty()) {
+			int index = line.indexOf(':');
+			if(index > 0) {
+				record.headers.put(line.substring(0, index).trim().toLowerCase(), line.substring(index + 1).trim());
+			}
+		}
+
+		String contentLength = record.getHeader("Content-Length");
+		if(contentLength == null) {
+			throw new IOException("WARC record without Content-Length");
+		}
+
+		record.content = new byte[Integer.parseInt(contentLength)];
+		input.readFully(record.content);
+
+		return record;
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while((b = input.read()) != -1) {
+			if(b == '\n') {
+				break;
+			}
+			if(b != '\r') {
+				line.write(b);
+			}
+		}
+
+		if(b == -1 && line.size() == 0) {
+			return null;
+		}
+		return new String(line.toByteArray(), UTF8);
+	}
+
+	public void close() throws IOException {
+		input.close();
+	}
+
+}
@@ -0,0 +1,386 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base32;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.IMetric;
+
+import gr.iti.mklab.focused.crawler.fetch.FetchResult;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Appends fetched responses to rolling WARC/1.0 files on local disk, so that the pages
+ *	of a crawl can be extracted again without fetching them. Every record is a gzip member
+ *	of its own, and the files are read by the {@link WarcReader} as any .warc.gz.
+ *
+ *	A file is written as name.warc.gz.open, and renamed to name.warc.gz when it reaches
+ *	its max size or the writer is closed. Next to it, name.warc.gz.idx has a line per
+ *	response: url, status, mime type, offset and length of its gzip member, tab separated.
+ *
+ *	The body of a response is stored as decoded, without the Content-Encoding and
+ *	Transfer-Encoding of its headers, and with the Content-Length of the decoded body.
+ *
+ *	Responses are captured by capture(), that never blocks: they are written by a thread
+ *	of the writer, and dropped if its queue is full. One writer per directory in a worker.
+ */
+public class WarcWriter implements Closeable {
+
+	public static final long MAX_FILE_SIZE = 1024L * 1024 * 1024;
+
+	public static final String EXTENSION = ".warc.gz";
+	public static final String INDEX_EXTENSION = ".idx";
+	public static final String OPEN_EXTENSION = ".open";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CRLF = "\r\n";
+
+	private static Map<String, WarcWriter> instances = new HashMap<String, WarcWriter>();
+
+	private Logger logger = Logger.getLogger(WarcWriter.class);
+
+	private final File directory;
+	private final String prefix;
+	private final long maxFileSize;
+
+	private int serial = 0;
+	private File file = null;
+	private FileOutputStream output = null;
+	private Writer index = null;
+	private long offset = 0;
+
+	private BlockingQueue<FetchResult> captures = new LinkedBlockingQueue<FetchResult>(1000);
+	private Thread writer = null;
+
+	private final AtomicLong captured = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong written = new AtomicLong(0);
+	private final AtomicLong rawBytes = new AtomicLong(0);
+	private final AtomicLong storedBytes = new AtomicLong(0);
+	private final AtomicLong files = new AtomicLong(0);
+
+	/**
+	 * The writer of the directory in the worker, created and started by the first call.
+	 */
+	public static synchronized WarcWriter getInstance(String directory) {
+		WarcWriter instance = instances.get(directory);
+		if(instance == null) {
+			final WarcWriter writer = new WarcWriter(new File(directory), "crawl", MAX_FILE_SIZE);
+			writer.start();
+
+			// the file being written is completed when the worker exits
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						writer.logger.error(e);
+					}
+				}
+			}));
+			instance = writer;
+			instances.put(directory, instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param directory		where the files are written, created if it does not exist
+	 * @param prefix		of the names of the files, followed by time, serial number, host and process
+	 * @param maxFileSize	size of a file, in bytes, after which the next one is started
+	 */
+	public WarcWriter(File directory, String prefix, long maxFileSize) {
+		this.directory = directory;
+		this.prefix = prefix + "-" + getProcessName();
+		this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Starts the thread that writes the captured responses.
+	 */
+	public void start() {
+		writer = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					FetchResult result;
+					try {
+						result = captures.take();
+					}
+					catch(InterruptedException e) {
+						// write what is left before exiting
+						while((result = captures.poll()) != null) {
+							write(result);
+						}
+						return;
+					}
+					write(result);
+				}
+			}
+		}, "warc-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a response to be written. Returns false if the queue is full and the response is dropped.
+	 */
+	public boolean capture(FetchResult result) {
+		if(result.getContent() == null) {
+			return false;
+		}
+		if(!captures.offer(result)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		captured.incrementAndGet();
+		return true;
+	}
+
+	private void write(FetchResult result) {
+		try {
+			write(result.getRequest().getUri().toString(), result);
+		}
+		catch(IOException e) {
+			logger.error("Failed to write " + result.getRequest() + " in " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a response record, in a new file if the current one is full. Returns the offset of the record in its file.
+	 */
+	public synchronized long write(String uri, FetchResult result) throws IOException {
+		byte[] content = result.getContent();
+		byte[] block = concat(getHttpHeaders(result, content.length), content);
+
+		StringBuilder headers = new StringBuilder();
+		headers.append("WARC/1.0").append(CRLF);
+		headers.append("WARC-Type: response").append(CRLF);
+		headers.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">").append(CRLF);
+		headers.append("WARC-Date: ").append(formatDate(new Date())).append(CRLF);
+		headers.append("WARC-Target-URI: ").append(uri).append(CRLF);
+		headers.append("WARC-Payload-Digest: sha1:").append(new Base32().encodeAsString(DigestUtils.sha(content))).append(CRLF);
+		if(result.isTruncated()) {
+			headers.append("WARC-Truncated: length").append(CRLF);
+		}
+		headers.append("Content-Type: application/http; msgtype=response").append(CRLF);
+		headers.append("Content-Length: ").append(block.length).append(CRLF);
+		headers.append(CRLF);
+
+		long recordOffset = append(headers.toString().getBytes(UTF8), block);
+
+		index.write(uri + "\t" + result.getStatus() + "\t" + result.getMimeType() + "\t" + recordOffset
+				+ "\t" + (offset - recordOffset) + "\n");
+		index.flush();
+
+		written.incrementAndGet();
+		rawBytes.addAndGet(block.length);
+		return recordOffset;
+	}
+
+	/**
+	 * Writes a record as a gzip member at the end of the current file.
+	 */
+	private long append(byte[] headers, byte[] block) throws IOException {
+		if(output == null || offset >= maxFileSize) {
+			roll();
+		}
+
+		ByteArrayOutputStream member = new ByteArrayOutputStream(block.length / 3 + 1024);
+		GZIPOutputStream gzip = new GZIPOutputStream(member, 8192);
+		gzip.write(headers);
+		gzip.write(block);
+		gzip.write((CRLF + CRLF).getBytes(UTF8));
+		gzip.close();
+
+		long recordOffset = offset;
+		member.writeTo(output);
+		offset += member.size();
+		storedBytes.addAndGet(member.size());
+		return recordOffset;
+	}
+
+	/**
+	 * Closes the current file, if any, and starts the next one with a warcinfo record.
+	 */
+	private void roll() throws IOException {
+		closeFile();
+
+		if(!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		String name = prefix + "-" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date())
+				+ "-" + String.format("%05d", serial++) + EXTENSION;
+		file = new File(directory, name);
+		output = new FileOutputStream(new File(directory, name + OPEN_EXTENSION));
+		index = new OutputStreamWriter(new FileOutputStream(new File(directory, name + INDEX_EXTENSION + OPEN_EXTENSION)), UTF8);
+		offset = 0;
+		files.incrementAndGet();
+
+		byte[] info = ("software: mklab-focused-crawler" + CRLF + "format: WARC File Format 1.0" + CRLF).getBytes(UTF8);
+		StringBuilder headers = new StringBuilder();
+		headers.append("WARC/1.0").append(CRLF);
+		headers.append("WARC-Type: warcinfo").append(CRLF);
+		headers.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">").append(CRLF);
+		headers.append("WARC-Date: ").append(formatDate(new Date())).append(CRLF);
+		headers.append("WARC-Filename: ").append(name).append(CRLF);
+		headers.append("Content-Type: application/warc-fields").append(CRLF);
+		headers.append("Content-Length: ").append(info.length).append(CRLF);
+		headers.append(CRLF);
+		append(headers.toString().getBytes(UTF8), info);
+	}
+
+	private void closeFile() throws IOException {
+		if(output == null) {
+			return;
+		}
+
+		output.close();
+		index.close();
+		output = null;
+
+		rename(new File(directory, file.getName() + OPEN_EXTENSION), file);
+		rename(new File(directory, file.getName() + INDEX_EXTENSION + OPEN_EXTENSION),
+				new File(directory, file.getName() + INDEX_EXTENSION));
+	}
+
+	private void rename(File from, File to) throws IOException {
+		if(!from.renameTo(to)) {
+			throw new IOException("Cannot rename " + from + " to " + to);
+		}
+	}
+
+	/**
+	 * The status line and the headers of the response, as they describe the stored body.
+	 */
+	private static byte[] getHttpHeaders(FetchResult result, int length) {
+		StringBuilder sb = new StringBuilder();
+		if(result.getStatusLine() != null) {
+			sb.append(result.getStatusLine().toString());
+		}
+		else {
+			sb.append("HTTP/1.1 ").append(result.getStatus());
+		}
+		sb.append(CRLF);
+
+		boolean hasContentType = false;
+		for(Header header : result.getHeaders()) {
+			String name = header.getName();
+			if(name.equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING) || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)
+					|| name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
+				continue;
+			}
+			hasContentType |= name.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE);
+			sb.append(name).append(": ").append(header.getValue()).append(CRLF);
+		}
+
+		if(!hasContentType && result.getMimeType() != null) {
+			sb.append("Content-Type: ").append(result.getMimeType());
+			if(result.getCharset() != null) {
+				sb.append("; charset=").append(result.getCharset());
+			}
+			sb.append(CRLF);
+		}
+		sb.append("Content-Length: ").append(length).append(CRLF);
+		sb.append(CRLF);
+		return sb.toString().getBytes(UTF8);
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] bytes = new byte[first.length + second.length];
+		System.arraycopy(first, 0, bytes, 0, first.length);
+		System.arraycopy(second, 0, bytes, first.length, second.length);
+		return bytes;
+	}
+
+	private static String formatDate(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	/**
+	 * host-pid of the worker, so that the workers of a host write files of their own.
+	 */
+	private static String getProcessName() {
+		String pid = ManagementFactory.getRuntimeMXBean().getName();
+		int at = pid.indexOf('@');
+		if(at > 0) {
+			pid = pid.substring(0, at);
+		}
+
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		}
+		catch(IOException e) {
+			host = "localhost";
+		}
+		return host.replaceAll("[^A-Za-z0-9.]", "_") + "-" + pid;
+	}
+
+	/**
+	 * Stops the writer, after writing the queued responses, and closes the current file.
+	 */
+	public void close() throws IOException {
+		if(writer != null) {
+			writer.interrupt();
+			try {
+				writer.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(this) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Metric with the responses captured and dropped, the records written, their size before
+	 * and after compression, the files started and the responses waiting in the queue.
+	 */
+	public IMetric getMetric() {
+		return new IMetric() {
+			public Object getValueAndReset() {
+				long raw = rawBytes.getAndSet(0);
+				long stored = storedBytes.getAndSet(0);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("captured", captured.getAndSet(0));
+				values.put("dropped", dropped.getAndSet(0));
+				values.put("written", written.getAndSet(0));
+				values.put("raw_bytes", raw);
+				values.put("stored_bytes", stored);
+				values.put("ratio", raw == 0 ? 0d : (double) stored / raw);
+				values.put("files", files.getAndSet(0));
+				values.put("queued", (long) captures.size());
+				return values;
+			}
+		};
+	}
+
+}
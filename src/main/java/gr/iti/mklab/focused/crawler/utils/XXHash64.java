@@ -0,0 +1,178 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	The 64 bit xxHash of a byte array (XXH64), a non-cryptographic hash that runs at
+ *	several GB/sec, used to key content. Gives the same values as the reference
+ *	implementation.
+ *
+ *	hash() hashes an array at once. An instance hashes bytes as they are given to update(),
+ *	in stripes of 32 bytes, for content that is transformed on the way and never held in full.
+ */
+public class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private final long seed;
+
+	private long v1, v2, v3, v4;
+
+	// bytes of the current stripe
+	private final byte[] stripe = new byte[32];
+	private int buffered = 0;
+
+	private long length = 0;
+
+	public XXHash64(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	/**
+	 * Starts a new hash with the same seed.
+	 */
+	public XXHash64 reset() {
+		v1 = seed + PRIME1 + PRIME2;
+		v2 = seed + PRIME2;
+		v3 = seed;
+		v4 = seed - PRIME1;
+		buffered = 0;
+		length = 0;
+		return this;
+	}
+
+	public XXHash64 update(byte b) {
+		stripe[buffered++] = b;
+		if(buffered == 32) {
+			v1 = round(v1, readLong(stripe, 0));
+			v2 = round(v2, readLong(stripe, 8));
+			v3 = round(v3, readLong(stripe, 16));
+			v4 = round(v4, readLong(stripe, 24));
+			buffered = 0;
+			length += 32;
+		}
+		return this;
+	}
+
+	public XXHash64 update(byte[] data, int offset, int length) {
+		for(int i = offset; i < offset + length; i++) {
+			update(data[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * The hash of the bytes given so far, the same as hash() of all of them at once.
+	 */
+	public long getValue() {
+		long h;
+		if(length > 0) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		}
+		else {
+			h = seed + PRIME5;
+		}
+
+		h += length + buffered;
+		return finish(h, stripe, 0, buffered);
+	}
+
+	public static long hash(byte[] data, long seed) {
+		return hash(data, 0, data.length, seed);
+	}
+
+	public static long hash(byte[] data, int offset, int length, long seed) {
+		int position = offset;
+		int end = offset + length;
+
+		long h;
+		if(length >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+
+			int limit = end - 32;
+			do {
+				v1 = round(v1, readLong(data, position));
+				v2 = round(v2, readLong(data, position + 8));
+				v3 = round(v3, readLong(data, position + 16));
+				v4 = round(v4, readLong(data, position + 24));
+				position += 32;
+			} while(position <= limit);
+
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		}
+		else {
+			h = seed + PRIME5;
+		}
+
+		h += length;
+		return finish(h, data, position, end);
+	}
+
+	/**
+	 * Mixes the last bytes, less than a stripe, in the hash and avalanches it.
+	 */
+	private static long finish(long h, byte[] data, int position, int end) {
+		while(position + 8 <= end) {
+			h ^= round(0, readLong(data, position));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			position += 8;
+		}
+
+		if(position + 4 <= end) {
+			h ^= (readInt(data, position) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			position += 4;
+		}
+
+		while(position < end) {
+			h ^= (data[position] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			position++;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	// little-endian, as in the reference implementation
+	private static long readLong(byte[] data, int i) {
+		return (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 | (data[i + 2] & 0xFFL) << 16 | (data[i + 3] & 0xFFL) << 24
+				| (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40 | (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+	}
+
+	private static int readInt(byte[] data, int i) {
+		return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+	}
+
+}
@@ -0,0 +1,222 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class ContentInflaterTest {
+
+	// gzip header flags (RFC 1952)
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private BodyReader reader;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() {
+		reader = new BodyReader(1024 * 1024, 1024, 4, false);
+
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 2000; i++) {
+			text.append("<p>Paragraph ").append(i).append(" of the page.</p>\n");
+		}
+		content = text.toString().getBytes();
+	}
+
+	/**
+	 * A channel that hands out the bytes a few at a time, as they arrive from the network.
+	 */
+	private static class ChunkedChannel implements ReadableByteChannel {
+
+		private final byte[] bytes;
+		private final int chunk;
+		private int position = 0;
+
+		ChunkedChannel(byte[] bytes, int chunk) {
+			this.bytes = bytes;
+			this.chunk = chunk;
+		}
+
+		public int read(ByteBuffer dst) {
+			if(position == bytes.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(chunk, dst.remaining()), bytes.length - position);
+			dst.put(bytes, position, n);
+			position += n;
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+
+		}
+	}
+
+	private static byte[] deflate(byte[] bytes, boolean nowrap) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+		deflater.setInput(bytes);
+		deflater.finish();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		while(!deflater.finished()) {
+			output.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return output.toByteArray();
+	}
+
+	/**
+	 * A gzip member with the optional header fields of the given flags.
+	 */
+	private static byte[] gzip(byte[] bytes, int flags) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write(0x1f);
+		output.write(0x8b);
+		output.write(8);
+		output.write(flags);
+		for(int i = 0; i < 6; i++) {
+			output.write(0);
+		}
+		if((flags & FEXTRA) != 0) {
+			byte[] extra = new byte[300];
+			output.write(extra.length & 0xff);
+			output.write(extra.length >> 8);
+			output.write(extra, 0, extra.length);
+		}
+		if((flags & FNAME) != 0) {
+			byte[] name = "index.html".getBytes();
+			output.write(name, 0, name.length);
+			output.write(0);
+		}
+		if((flags & FCOMMENT) != 0) {
+			byte[] comment = "a comment".getBytes();
+			output.write(comment, 0, comment.length);
+			output.write(0);
+		}
+		if((flags & FHCRC) != 0) {
+			output.write(0);
+			output.write(0);
+		}
+
+		byte[] deflated = deflate(bytes, true);
+		output.write(deflated, 0, deflated.length);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		writeInt(output, (int) crc.getValue());
+		writeInt(output, bytes.length);
+		return output.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, int value) {
+		for(int i = 0; i < 4; i++) {
+			output.write((value >> (8 * i)) & 0xff);
+		}
+	}
+
+	private byte[] inflate(String encoding, byte[] encoded, int chunk) throws IOException {
+		ContentInflater inflater = ContentInflater.forEncoding(encoding);
+		BodyReader.Body body = reader.open("text/html", -1);
+		try {
+			assertTrue(inflater.inflate(new ChunkedChannel(encoded, chunk), body));
+			assertTrue(inflater.isFinished());
+			assertEquals(encoded.length, inflater.getWireBytes());
+			assertEquals(content.length, inflater.getDecodedBytes());
+			return body.toByteArray();
+		}
+		finally {
+			inflater.end();
+			body.close();
+		}
+	}
+
+	@Test
+	public void testEncodings() throws IOException {
+		assertNull(ContentInflater.forEncoding(null));
+		assertNull(ContentInflater.forEncoding("identity"));
+		assertTrue(ContentInflater.supports("x-gzip"));
+		assertFalse(ContentInflater.supports("br"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnsupportedEncoding() throws IOException {
+		ContentInflater.forEncoding("br");
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		GZIPOutputStream output = new GZIPOutputStream(encoded);
+		output.write(content);
+		output.close();
+
+		assertArrayEquals(content, inflate("gzip", encoded.toByteArray(), 8192));
+	}
+
+	@Test
+	public void testGzipHeaderFields() throws IOException {
+		byte[] encoded = gzip(content, FEXTRA | FNAME | FCOMMENT | FHCRC);
+
+		assertArrayEquals(content, inflate("gzip", encoded, 8192));
+	}
+
+	@Test
+	public void testGzipHeaderAcrossReads() throws IOException {
+		// the extra field and the name arrive in several reads
+		assertArrayEquals(content, inflate("x-gzip", gzip(content, FEXTRA | FNAME), 7));
+		assertArrayEquals(content, inflate("gzip", gzip(content, FNAME), 3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotGzip() throws IOException {
+		inflate("gzip", content, 8192);
+	}
+
+	@Test
+	public void testDeflate() throws IOException {
+		assertArrayEquals(content, inflate("deflate", deflate(content, false), 8192));
+	}
+
+	@Test
+	public void testRawDeflate() throws IOException {
+		assertArrayEquals(content, inflate("deflate", deflate(content, true), 5));
+	}
+
+	@Test
+	public void testCapOfBody() throws IOException {
+		BodyReader small = new BodyReader(1000, 256, 4, false);
+		ContentInflater inflater = ContentInflater.forEncoding("gzip");
+		BodyReader.Body body = small.open("text/html", -1);
+		try {
+			assertFalse(inflater.inflate(new ChunkedChannel(gzip(content, 0), 8192), body));
+			assertEquals(1000, body.size());
+		}
+		finally {
+			inflater.end();
+			body.close();
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class HostSchedulerTest {
+
+	private static HostScheduler.Task add(HostScheduler scheduler, String url) {
+		return scheduler.add(new FetchRequest(URI.create(url)), null);
+	}
+
+	private static List<HostScheduler.Task> start(HostScheduler scheduler) {
+		List<HostScheduler.Task> started = new ArrayList<HostScheduler.Task>();
+		HostScheduler.Task task;
+		while((task = scheduler.next()) != null) {
+			started.add(task);
+		}
+		return started;
+	}
+
+	/**
+	 * Time from now until the host of the next delayed request can be fetched.
+	 */
+	private static long waitTime(HostScheduler scheduler, long now) {
+		return scheduler.nextReadyTime() - now;
+	}
+
+	@Test
+	public void testHostsTakeTurns() {
+		HostScheduler scheduler = new HostScheduler(2, 2, 0, 0, 10000);
+		HostScheduler.Task a1 = add(scheduler, "http://a.com/1");
+		HostScheduler.Task a2 = add(scheduler, "http://a.com/2");
+		HostScheduler.Task b1 = add(scheduler, "http://B.com/1");
+
+		assertEquals(3, scheduler.size());
+		assertSame(a1, scheduler.next());
+		assertSame(b1, scheduler.next());
+		assertSame(a2, scheduler.next());
+		assertNull(scheduler.next());
+		assertEquals("b.com", b1.host);
+		assertEquals(0, scheduler.size());
+	}
+
+	@Test
+	public void testLimitBacksOffAndRecovers() {
+		// no delays, only the limit of the host adapts
+		HostScheduler scheduler = new HostScheduler(4, 8, 0, 0, 10000);
+		for(int i = 0; i < 10; i++) {
+			add(scheduler, "http://a.com/" + i);
+		}
+
+		List<HostScheduler.Task> started = start(scheduler);
+		assertEquals(4, started.size());
+
+		// an error halves the limit, to 2, with 3 requests still in flight
+		scheduler.finished(started.get(0), 100, true);
+		assertNull(scheduler.next());
+		scheduler.finished(started.get(1), 100, false);
+		scheduler.finished(started.get(2), 100, false);
+		scheduler.finished(started.get(3), 100, false);
+
+		// 2 + 1/2 + 1/2.5 + 1/2.9
+		started = start(scheduler);
+		assertEquals(3, started.size());
+
+		// successes raise it again, by 1/limit each
+		for(HostScheduler.Task task : started) {
+			scheduler.finished(task, 100, false);
+		}
+		assertEquals(3, start(scheduler).size());
+	}
+
+	@Test
+	public void testSlowResponsesBackOff() {
+		HostScheduler scheduler = new HostScheduler(4, 8, 0, 0, 1000);
+		for(int i = 0; i < 6; i++) {
+			add(scheduler, "http://a.com/" + i);
+		}
+
+		List<HostScheduler.Task> started = start(scheduler);
+		assertEquals(4, started.size());
+		for(HostScheduler.Task task : started) {
+			scheduler.finished(task, 5000, false);
+		}
+		assertEquals(1, start(scheduler).size());
+	}
+
+	@Test
+	public void testDelayBacksOffAndRecovers() throws InterruptedException {
+		HostScheduler scheduler = new HostScheduler(1, 1, 50, 400, 10000);
+		for(int i = 0; i < 5; i++) {
+			add(scheduler, "http://a.com/" + i);
+		}
+
+		// the delay spaces the starts of the requests
+		HostScheduler.Task task = scheduler.next();
+		long now = System.currentTimeMillis();
+		scheduler.finished(task, 10, false);
+		assertNull(scheduler.next());
+		assertFalse(scheduler.hasReady());
+		assertTrue(waitTime(scheduler, now) <= 50);
+
+		Thread.sleep(60);
+		task = scheduler.next();
+		assertNotNull(task);
+
+		// an error doubles it up to the backoff of 1 second, capped by maxDelay
+		scheduler.finished(task, 10, true);
+		Thread.sleep(60);
+		now = System.currentTimeMillis();
+		task = scheduler.next();
+		assertNotNull(task);
+		scheduler.finished(task, 10, false);
+		long wait = waitTime(scheduler, now);
+		assertTrue(wait >= 390 && wait <= 400);
+
+		// and a success shortens it by a tenth
+		Thread.sleep(410);
+		now = System.currentTimeMillis();
+		task = scheduler.next();
+		assertNotNull(task);
+		scheduler.finished(task, 10, false);
+		wait = waitTime(scheduler, now);
+		assertTrue(wait >= 350 && wait <= 360);
+	}
+
+	@Test
+	public void testDelayOfHost() {
+		HostScheduler scheduler = new HostScheduler(2, 2, 0, 60000, 10000);
+		scheduler.setDelay("A.com", 5000);
+		add(scheduler, "http://a.com/1");
+		add(scheduler, "http://a.com/2");
+
+		long now = System.currentTimeMillis();
+		assertNotNull(scheduler.next());
+		assertNull(scheduler.next());
+		assertTrue(waitTime(scheduler, now) >= 5000);
+	}
+
+	@Test
+	public void testDelayOutlivesTheStateOfTheHost() {
+		final Map<String, Long> crawlDelays = new HashMap<String, Long>();
+		crawlDelays.put("slow.com", 5000L);
+
+		HostScheduler scheduler = new HostScheduler(2, 2, 0, 60000, 10000);
+		scheduler.setDelays(new HostScheduler.Delays() {
+			public long getDelay(String host) {
+				Long delay = crawlDelays.get(host);
+				return delay == null ? 0 : delay;
+			}
+		});
+		scheduler.setDelay("slow.com", 5000);
+
+		// idle hosts are dropped, the eldest first
+		for(int i = 0; i <= 10000; i++) {
+			scheduler.setDelay("host" + i + ".com", 0);
+		}
+
+		add(scheduler, "http://slow.com/1");
+		add(scheduler, "http://slow.com/2");
+
+		long now = System.currentTimeMillis();
+		assertNotNull(scheduler.next());
+		assertNull(scheduler.next());
+		assertTrue(waitTime(scheduler, now) >= 5000);
+	}
+
+}
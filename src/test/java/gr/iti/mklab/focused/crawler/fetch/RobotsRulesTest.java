@@ -0,0 +1,159 @@
+package gr.iti.mklab.focused.crawler.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class RobotsRulesTest {
+
+	private static final String AGENT = "focusedcrawler";
+
+	private static RobotsRules parse(String... lines) {
+		StringBuilder content = new StringBuilder();
+		for(String line : lines) {
+			content.append(line).append('\n');
+		}
+		return RobotsRules.parse(content.toString(), AGENT);
+	}
+
+	@Test
+	public void testLongestMatchWins() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /folder",
+				"Allow: /folder/page");
+
+		assertTrue(rules.isAllowed("/folder/page.html"));
+		assertFalse(rules.isAllowed("/folder/other.html"));
+		assertFalse(rules.isAllowed("/folder"));
+		assertTrue(rules.isAllowed("/"));
+		assertTrue(rules.isAllowed("/other"));
+	}
+
+	@Test
+	public void testAllowWinsTies() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /page",
+				"Allow: /page");
+
+		assertTrue(rules.isAllowed("/page"));
+		assertTrue(rules.isAllowed("/page/1"));
+	}
+
+	@Test
+	public void testWildcard() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /private*/",
+				"Disallow: /*?session=",
+				"Allow: /private-public/");
+
+		assertFalse(rules.isAllowed("/private-stuff/a.html"));
+		assertFalse(rules.isAllowed("/private/"));
+		assertTrue(rules.isAllowed("/private.html"));
+		assertTrue(rules.isAllowed("/private-public/a.html"));
+		assertFalse(rules.isAllowed("/news/story.html?session=1"));
+		assertTrue(rules.isAllowed("/news/story.html?page=1"));
+	}
+
+	@Test
+	public void testEndOfPath() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /*.gif$",
+				"Disallow: /$");
+
+		assertFalse(rules.isAllowed("/images/a.gif"));
+		assertTrue(rules.isAllowed("/images/a.gif?size=large"));
+		assertTrue(rules.isAllowed("/images/a.gifs"));
+		assertFalse(rules.isAllowed("/"));
+		assertTrue(rules.isAllowed("/index.html"));
+	}
+
+	@Test
+	public void testGroupOfTheAgent() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /",
+				"",
+				"User-agent: otherbot",
+				"User-Agent: FocusedCrawler",
+				"Disallow: /private/",
+				"Crawl-delay: 2");
+
+		assertTrue(rules.isAllowed("/news/"));
+		assertFalse(rules.isAllowed("/private/a.html"));
+		assertEquals(2000, rules.getCrawlDelay());
+	}
+
+	@Test
+	public void testGroupsOfTheAgentAreMerged() {
+		RobotsRules rules = parse(
+				"User-agent: focusedcrawler",
+				"Disallow: /a/",
+				"",
+				"User-agent: *",
+				"Disallow: /c/",
+				"",
+				"User-agent: focusedcrawler",
+				"Disallow: /b/");
+
+		assertFalse(rules.isAllowed("/a/1"));
+		assertFalse(rules.isAllowed("/b/1"));
+		assertTrue(rules.isAllowed("/c/1"));
+		assertEquals(2, rules.size());
+	}
+
+	@Test
+	public void testAgentIsMatchedAsAWholeToken() {
+		RobotsRules rules = parse(
+				"User-agent: crawler",
+				"Disallow: /",
+				"",
+				"User-agent: *",
+				"Disallow: /private/");
+
+		assertTrue(rules.isAllowed("/news/"));
+		assertFalse(rules.isAllowed("/private/a.html"));
+	}
+
+	@Test
+	public void testEmptyDisallowAndRobotsTxt() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow:");
+
+		assertTrue(rules.isAllowed("/anything"));
+		assertEquals(0, rules.size());
+		assertTrue(RobotsRules.DISALLOW_ALL.isAllowed("/robots.txt"));
+		assertFalse(RobotsRules.DISALLOW_ALL.isAllowed("/"));
+	}
+
+	@Test
+	public void testCompactStringRoundTrip() {
+		RobotsRules rules = parse(
+				"User-agent: *",
+				"Disallow: /folder  # comment",
+				"Allow: /folder/page",
+				"Disallow: /*.gif$",
+				"Crawl-delay: 0.5");
+
+		RobotsRules copy = RobotsRules.fromCompactString(rules.toCompactString());
+
+		assertEquals(rules.toCompactString(), copy.toCompactString());
+		assertEquals(500, copy.getCrawlDelay());
+		assertEquals(3, copy.size());
+		for(String path : new String[] {"/folder/page.html", "/folder/other", "/a.gif", "/a.gif?x=1", "/"}) {
+			assertEquals(path, rules.isAllowed(path), copy.isAllowed(path));
+		}
+		assertFalse(copy.isAllowed("/folder/other"));
+		assertFalse(copy.isAllowed("/a.gif"));
+	}
+
+}
@@ -0,0 +1,197 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class CompactFieldSerializerTest {
+
+	enum Status { NEW, FETCHED, FAILED }
+
+	static class Location {
+
+		private double latitude;
+		private double longitude;
+		private String name;
+	}
+
+	static class Base {
+
+		String id;
+		long created;
+	}
+
+	static class Sample extends Base {
+
+		private String title;
+		private int count;
+		private Integer boxed;
+		private Long shares;
+		private double score;
+		private float weight;
+		private boolean article;
+		private Boolean flag;
+		private short small;
+		private byte tiny;
+		private char letter;
+		private Date date;
+		private Status status;
+		private String[] tags;
+		private double[] vector;
+		private List<String> links;
+		private Set<String> hosts;
+		private Map<String, Integer> counts;
+		private Location location;
+		private transient String ignored;
+	}
+
+	// more than 64 fields, so that the null bitmap takes two words
+	static class Wide {
+
+		private String f00, f01, f02, f03, f04, f05, f06, f07, f08, f09;
+		private String f10, f11, f12, f13, f14, f15, f16, f17, f18, f19;
+		private String f20, f21, f22, f23, f24, f25, f26, f27, f28, f29;
+		private String f30, f31, f32, f33, f34, f35, f36, f37, f38, f39;
+		private String f40, f41, f42, f43, f44, f45, f46, f47, f48, f49;
+		private String f50, f51, f52, f53, f54, f55, f56, f57, f58, f59;
+		private String f60, f61, f62, f63, f64, f65, f66, f67, f68, f69;
+	}
+
+	private Kryo kryo;
+
+	@Before
+	public void setUp() {
+		kryo = new Kryo();
+		kryo.setRegistrationRequired(true);
+		kryo.register(ArrayList.class);
+		kryo.register(HashSet.class);
+		kryo.register(HashMap.class);
+		kryo.register(Location.class, new CompactFieldSerializer<Location>(kryo, Location.class));
+		kryo.register(Sample.class, new CompactFieldSerializer<Sample>(kryo, Sample.class));
+		kryo.register(Wide.class, new CompactFieldSerializer<Wide>(kryo, Wide.class));
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T copy(T object) {
+		Output output = new Output(256, -1);
+		kryo.writeClassAndObject(output, object);
+		return (T) kryo.readClassAndObject(new Input(output.toBytes()));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Sample sample = new Sample();
+		sample.id = "Web#1";
+		sample.created = 1234567890123L;
+		sample.title = "Title";
+		sample.count = -42;
+		sample.boxed = 7;
+		sample.shares = 100000000000L;
+		sample.score = 0.75;
+		sample.weight = 1.5f;
+		sample.article = true;
+		sample.flag = Boolean.FALSE;
+		sample.small = 300;
+		sample.tiny = -3;
+		sample.letter = 'x';
+		sample.date = new Date(1500000000000L);
+		sample.status = Status.FETCHED;
+		sample.tags = new String[] {"a", null, "c"};
+		sample.vector = new double[] {0.1, -2.5, 3};
+		sample.links = new ArrayList<String>();
+		sample.links.add("http://example.com/a");
+		sample.links.add("http://example.com/b");
+		sample.hosts = new HashSet<String>();
+		sample.hosts.add("example.com");
+		sample.counts = new HashMap<String, Integer>();
+		sample.counts.put("images", 3);
+		sample.location = new Location();
+		sample.location.latitude = 40.6;
+		sample.location.longitude = 22.9;
+		sample.location.name = "Thessaloniki";
+		sample.ignored = "ignored";
+
+		Sample copy = copy(sample);
+
+		assertEquals("Web#1", copy.id);
+		assertEquals(1234567890123L, copy.created);
+		assertEquals("Title", copy.title);
+		assertEquals(-42, copy.count);
+		assertEquals(Integer.valueOf(7), copy.boxed);
+		assertEquals(Long.valueOf(100000000000L), copy.shares);
+		assertEquals(0.75, copy.score, 0);
+		assertEquals(1.5f, copy.weight, 0);
+		assertTrue(copy.article);
+		assertEquals(Boolean.FALSE, copy.flag);
+		assertEquals(300, copy.small);
+		assertEquals(-3, copy.tiny);
+		assertEquals('x', copy.letter);
+		assertEquals(sample.date, copy.date);
+		assertEquals(Status.FETCHED, copy.status);
+		assertArrayEquals(sample.tags, copy.tags);
+		assertArrayEquals(sample.vector, copy.vector, 0);
+		assertEquals(sample.links, copy.links);
+		assertEquals(sample.hosts, copy.hosts);
+		assertEquals(sample.counts, copy.counts);
+		assertEquals(40.6, copy.location.latitude, 0);
+		assertEquals(22.9, copy.location.longitude, 0);
+		assertEquals("Thessaloniki", copy.location.name);
+		assertNull(copy.ignored);
+	}
+
+	@Test
+	public void testNullFields() {
+		Sample sample = new Sample();
+		sample.title = "Only the title";
+
+		Sample copy = copy(sample);
+
+		assertEquals("Only the title", copy.title);
+		assertNull(copy.id);
+		assertNull(copy.boxed);
+		assertNull(copy.date);
+		assertNull(copy.status);
+		assertNull(copy.tags);
+		assertNull(copy.links);
+		assertNull(copy.counts);
+		assertNull(copy.location);
+	}
+
+	@Test
+	public void testMoreThan64Fields() {
+		Wide wide = new Wide();
+		wide.f00 = "first";
+		wide.f63 = "last of the first word";
+		wide.f64 = "first of the second word";
+		wide.f69 = "last";
+
+		Wide copy = copy(wide);
+
+		assertEquals("first", copy.f00);
+		assertNull(copy.f01);
+		assertEquals("last of the first word", copy.f63);
+		assertEquals("first of the second word", copy.f64);
+		assertNull(copy.f65);
+		assertEquals("last", copy.f69);
+	}
+
+}
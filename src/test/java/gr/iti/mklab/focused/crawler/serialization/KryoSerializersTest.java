@@ -0,0 +1,191 @@
+package gr.iti.mklab.focused.crawler.serialization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.storm.Config;
+import org.apache.storm.serialization.SerializableSerializer;
+import org.apache.storm.serialization.SerializationFactory;
+import org.apache.storm.utils.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.gson.Gson;
+import com.google.gson.internal.LinkedTreeMap;
+
+import gr.iti.mklab.focused.crawler.models.ImageVector;
+import gr.iti.mklab.focused.crawler.store.ContentHandle;
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.MediaItem;
+import gr.iti.mklab.framework.common.domain.WebPage;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ *
+ *	Round trips through the Kryo instance Storm builds from the registrations.
+ */
+public class KryoSerializersTest {
+
+	/**
+	 * A subclass of a domain class, as emitted by the sources of a topology.
+	 */
+	public static class TaggedWebPage extends WebPage {
+
+		private LinkedList<String> labels = new LinkedList<String>();
+		private Map<String, Object> properties = new LinkedHashMap<String, Object>();
+	}
+
+	private static final Gson GSON = new Gson();
+
+	private Kryo kryo;
+
+	@Before
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void setUp() {
+		Config conf = new Config();
+		KryoSerializers.register(conf, TaggedWebPage.class);
+
+		Map stormConf = Utils.readDefaultConfig();
+		stormConf.putAll(conf);
+		kryo = SerializationFactory.getKryo(stormConf);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T copy(T object) {
+		Output output = new Output(1024, -1);
+		kryo.writeClassAndObject(output, object);
+		return (T) kryo.readClassAndObject(new Input(output.toBytes()));
+	}
+
+	private void assertRegistered(Class<?> type) {
+		assertFalse(type.getName() + " falls back to Java serialization",
+				kryo.getRegistration(type).getSerializer() instanceof SerializableSerializer);
+	}
+
+	@Test
+	public void testRegistrations() {
+		assertRegistered(WebPage.class);
+		assertRegistered(MediaItem.class);
+		assertRegistered(Item.class);
+		assertRegistered(TaggedWebPage.class);
+		assertRegistered(ImageVector.class);
+		assertRegistered(ContentHandle.class);
+		assertRegistered(LinkedList.class);
+		assertRegistered(LinkedHashMap.class);
+		assertRegistered(LinkedHashSet.class);
+		assertRegistered(TreeMap.class);
+		assertRegistered(LinkedTreeMap.class);
+	}
+
+	@Test
+	public void testNoJavaSerialization() {
+		try {
+			copy(new URL[0]);
+			fail("An unregistered class falls back to Java serialization");
+		}
+		catch(IllegalArgumentException e) {
+			// Class is not registered
+		}
+	}
+
+	@Test
+	public void testWebPage() {
+		WebPage webPage = new WebPage();
+		webPage.setExpandedUrl("http://example.com/2016/05/story.html");
+		webPage.setDomain("example.com");
+		webPage.setTitle("A story");
+		webPage.setText("The text of the story.");
+		webPage.setArticle(true);
+		webPage.setMedia(2);
+		webPage.setMediaIds(new String[] {"Web#1", "Web#2"});
+		webPage.setMediaThumbnail("http://example.com/images/1.jpg");
+
+		WebPage copy = copy(webPage);
+
+		assertSame(WebPage.class, copy.getClass());
+		assertEquals(GSON.toJson(webPage), GSON.toJson(copy));
+		assertEquals(webPage.getExpandedUrl(), copy.getExpandedUrl());
+	}
+
+	@Test
+	public void testMediaItem() throws Exception {
+		MediaItem mediaItem = new MediaItem(new URL("http://example.com/images/1.jpg"));
+		mediaItem.setId("Web#1");
+		mediaItem.setType("image");
+		mediaItem.setSource("Web");
+		mediaItem.setPageUrl("http://example.com/2016/05/story.html");
+		mediaItem.setThumbnail("http://example.com/images/1.jpg");
+		mediaItem.setTitle("An image");
+		mediaItem.setShares(12L);
+		mediaItem.setSize(640, 480);
+		mediaItem.setPublicationTime(1462000000000L);
+
+		MediaItem copy = copy(mediaItem);
+
+		assertSame(MediaItem.class, copy.getClass());
+		assertEquals(GSON.toJson(mediaItem), GSON.toJson(copy));
+		assertEquals(mediaItem.getId(), copy.getId());
+	}
+
+	@Test
+	public void testItem() {
+		Item item = Item.toObject("{\"id\": \"Twitter#1\", \"title\": \"A tweet\", \"tags\": [\"storm\", \"kryo\"], "
+				+ "\"shares\": 3}", Item.class);
+
+		Item copy = copy(item);
+
+		assertSame(Item.class, copy.getClass());
+		assertEquals(GSON.toJson(item), GSON.toJson(copy));
+		assertEquals(item.getId(), copy.getId());
+	}
+
+	@Test
+	public void testSubclassAndConcreteCollections() {
+		TaggedWebPage webPage = new TaggedWebPage();
+		webPage.setTitle("A tagged story");
+		webPage.labels.add("news");
+		webPage.labels.add("sports");
+
+		LinkedHashSet<String> hosts = new LinkedHashSet<String>();
+		hosts.add("example.com");
+		TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+		counts.put("images", 2);
+		webPage.properties.put("hosts", hosts);
+		webPage.properties.put("counts", counts);
+
+		TaggedWebPage copy = copy(webPage);
+
+		assertSame(TaggedWebPage.class, copy.getClass());
+		assertEquals(webPage.labels, copy.labels);
+		assertEquals(hosts, copy.properties.get("hosts"));
+		assertSame(LinkedHashSet.class, copy.properties.get("hosts").getClass());
+		assertEquals(counts, copy.properties.get("counts"));
+		assertEquals(GSON.toJson(webPage), GSON.toJson(copy));
+	}
+
+	@Test
+	public void testDecodedMaps() {
+		TaggedWebPage webPage = GSON.fromJson("{\"title\": \"A decoded story\", "
+				+ "\"properties\": {\"counts\": {\"images\": 2}}}", TaggedWebPage.class);
+
+		TaggedWebPage copy = copy(webPage);
+
+		// the maps nested in the fields are written with their runtime class
+		assertSame(LinkedTreeMap.class, copy.properties.get("counts").getClass());
+		assertEquals(webPage.properties, copy.properties);
+		assertEquals(GSON.toJson(webPage), GSON.toJson(copy));
+	}
+
+}
@@ -0,0 +1,161 @@
+package gr.iti.mklab.focused.crawler.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class BlobStoreTest {
+
+	// two segments of five blobs each
+	private static final int SEGMENT = 1000;
+	private static final int BLOB = 200;
+
+	private BlobStore store;
+
+	@Before
+	public void setUp() {
+		store = new BlobStore(SEGMENT, 2, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	private static byte[] blob(int value) {
+		byte[] bytes = new byte[BLOB];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+	private List<ContentHandle> fill() {
+		List<ContentHandle> handles = new ArrayList<ContentHandle>();
+		for(int i = 0; i < 10; i++) {
+			ContentHandle handle = store.put(blob(i));
+			assertTrue(handle.isStored());
+			handles.add(handle);
+		}
+		return handles;
+	}
+
+	@Test
+	public void testReadsStoredContent() {
+		ContentHandle handle = store.put(blob(7));
+
+		assertTrue(handle.isStored());
+		assertEquals(BLOB, handle.length());
+		assertArrayEquals(blob(7), handle.getBytes());
+		assertEquals(BLOB, handle.buffer().remaining());
+	}
+
+	@Test
+	public void testEmptyAndLargeContent() {
+		assertSame(ContentHandle.EMPTY, store.put(new byte[0]));
+		assertNull(store.put(null));
+
+		ContentHandle large = store.put(new byte[SEGMENT / 2]);
+		assertFalse(large.isStored());
+		assertEquals(SEGMENT / 2, large.getBytes().length);
+	}
+
+	@Test
+	public void testReferencedSegmentIsNotReused() {
+		List<ContentHandle> handles = fill();
+
+		// every blob is referenced, the content stays on the heap
+		ContentHandle inline = store.put(blob(10));
+		assertFalse(inline.isStored());
+		assertArrayEquals(blob(10), inline.getBytes());
+
+		for(int i = 0; i < 10; i++) {
+			assertArrayEquals(blob(i), handles.get(i).getBytes());
+		}
+	}
+
+	@Test
+	public void testReleasedSegmentIsReused() {
+		List<ContentHandle> handles = fill();
+		for(int i = 0; i < 5; i++) {
+			handles.get(i).release();
+		}
+
+		ContentHandle handle = store.put(blob(10));
+		assertTrue(handle.isStored());
+		assertArrayEquals(blob(10), handle.getBytes());
+
+		// the blobs of the reused segment are gone, the others are intact
+		assertNull(handles.get(0).buffer());
+		for(int i = 5; i < 10; i++) {
+			assertArrayEquals(blob(i), handles.get(i).getBytes());
+		}
+	}
+
+	@Test
+	public void testPartiallyReleasedSegmentIsNotReused() {
+		List<ContentHandle> handles = fill();
+		for(int i = 0; i < 4; i++) {
+			handles.get(i).release();
+		}
+
+		assertFalse(store.put(blob(10)).isStored());
+		assertArrayEquals(blob(4), handles.get(4).getBytes());
+	}
+
+	@Test
+	public void testRetainedHandleHoldsTheSegment() {
+		List<ContentHandle> handles = fill();
+		ContentHandle retained = handles.get(0).retain();
+		for(int i = 0; i < 5; i++) {
+			handles.get(i).release();
+		}
+
+		assertFalse(store.put(blob(10)).isStored());
+		assertArrayEquals(blob(0), retained.getBytes());
+
+		retained.release();
+		assertTrue(store.put(blob(10)).isStored());
+	}
+
+	@Test
+	public void testReleaseIsIdempotent() {
+		List<ContentHandle> handles = fill();
+		ContentHandle retained = handles.get(0).retain();
+
+		// a second release of the same handle does not drop the reference of the other
+		handles.get(0).release();
+		handles.get(0).release();
+		for(int i = 1; i < 5; i++) {
+			handles.get(i).release();
+		}
+
+		assertFalse(store.put(blob(10)).isStored());
+		assertArrayEquals(blob(0), retained.getBytes());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRetainAfterRelease() {
+		ContentHandle handle = store.put(blob(1));
+		handle.release();
+		handle.retain();
+	}
+
+	@Test
+	public void testInlineHandles() {
+		ContentHandle inline = ContentHandle.inline(blob(3));
+
+		assertFalse(inline.isStored());
+		assertSame(inline, inline.retain());
+		inline.release();
+		assertArrayEquals(blob(3), inline.getBytes());
+	}
+
+}
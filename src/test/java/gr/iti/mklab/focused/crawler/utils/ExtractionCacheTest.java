@@ -0,0 +1,151 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import gr.iti.mklab.focused.crawler.models.ExtractionResult;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class ExtractionCacheTest {
+
+	private static final String PAGE = "http://example.com/news/2016/story.html";
+
+	private ExtractionCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new ExtractionCache(1024 * 1024, 3600 * 1000L);
+	}
+
+	private static ExtractionResult result(String title) {
+		ExtractionResult result = new ExtractionResult(title, "The text of the story.", true);
+		result.addImage(new ExtractionResult.ArticleImage("http://example.com/images/1.jpg", "An image", 640, 480));
+		return result;
+	}
+
+	@Test
+	public void testDigestNormalizesWhitespace() {
+		long digest = ExtractionCache.digest("<p>The  story,\n\ttold\r\n again.</p>".getBytes());
+
+		assertEquals(XXHash64.hash("<p>The story, told again.</p>".getBytes(), 0), digest);
+		assertEquals(digest, ExtractionCache.digest("\n  <p>The story, told again.</p>\n\n".getBytes()));
+		assertFalse(digest == ExtractionCache.digest("<p>The story,told again.</p>".getBytes()));
+	}
+
+	@Test
+	public void testDigestOfLongContent() {
+		StringBuilder content = new StringBuilder(), normalized = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			content.append("<li>item\t\t").append(i).append("</li>\n  ");
+			normalized.append(i == 0 ? "" : " ").append("<li>item ").append(i).append("</li>");
+		}
+
+		assertEquals(XXHash64.hash(normalized.toString().getBytes(), 0),
+				ExtractionCache.digest(content.toString().getBytes()));
+	}
+
+	@Test
+	public void testBases() {
+		assertEquals("http://example.com/news/2016/", ExtractionCache.directory(PAGE + "?id=1#top"));
+		assertEquals("http://example.com/", ExtractionCache.directory("http://example.com"));
+		assertEquals("http://example.com/a/", ExtractionCache.directory("http://example.com/a/b?next=/c/d"));
+		assertEquals(PAGE + "?id=1", ExtractionCache.withoutFragment(PAGE + "?id=1#top"));
+	}
+
+	@Test
+	public void testAbsoluteImagesHoldForAnyPage() {
+		cache.put(1, PAGE, false, false, result("A story"));
+
+		assertNotNull(cache.get(1, PAGE));
+		assertNotNull(cache.get(1, "http://m.example.org/amp/story"));
+		assertNull(cache.get(2, PAGE));
+	}
+
+	@Test
+	public void testRelativePathsHoldInTheSameDirectory() {
+		cache.put(1, PAGE, true, false, result("A story"));
+
+		assertNotNull(cache.get(1, "http://example.com/news/2016/story.html?utm_source=feed#comments"));
+		assertNotNull(cache.get(1, "http://example.com/news/2016/other.html"));
+		assertNull(cache.get(1, "http://example.com/news/2015/story.html"));
+		assertNull(cache.get(1, "http://mirror.example.org/news/2016/story.html"));
+
+		// held for another base, not worth a lookup in the shared tier
+		assertTrue(cache.containsLocal(1));
+		assertFalse(cache.containsLocal(2));
+	}
+
+	@Test
+	public void testRelativeQueriesHoldForTheSameUrl() {
+		cache.put(1, PAGE + "?page=1#top", true, true, result("A story"));
+
+		assertNotNull(cache.get(1, PAGE + "?page=1"));
+		assertNotNull(cache.get(1, PAGE + "?page=1#comments"));
+		assertNull(cache.get(1, PAGE + "?page=2"));
+		assertNull(cache.get(1, PAGE));
+	}
+
+	@Test
+	public void testEachGetReturnsANewResult() {
+		cache.put(1, PAGE, false, false, result("A story"));
+
+		ExtractionResult first = cache.get(1, PAGE);
+		ExtractionResult second = cache.get(1, PAGE);
+		assertNotSame(first, second);
+		assertEquals("A story", first.getTitle());
+		assertEquals(1, second.getImages().size());
+	}
+
+	@Test
+	public void testExpiredResults() {
+		ExtractionCache expiring = new ExtractionCache(1024 * 1024, 0);
+		expiring.put(1, PAGE, false, false, result("A story"));
+
+		assertNull(expiring.get(1, PAGE));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testLeastRecentlyUsedAreEvicted() {
+		// room for about 16 results
+		ExtractionCache small = new ExtractionCache(16 * result("Story 00").toJSONString().length() + 16 * 100, 3600 * 1000L);
+		small.put(0, PAGE, false, false, result("Story 00"));
+		for(int i = 1; i < 40; i++) {
+			small.put(i, PAGE, false, false, result("Story " + (i < 10 ? "0" : "") + i));
+			assertNotNull(small.get(0, PAGE));
+		}
+
+		assertNotNull(small.get(0, PAGE));
+		assertNotNull(small.get(39, PAGE));
+		assertNull(small.get(1, PAGE));
+
+		Map<String, Object> values = (Map<String, Object>) small.getMetric().getValueAndReset();
+		assertTrue((Long) values.get("size") < 40);
+	}
+
+	@Test
+	public void testNoSharedTier() {
+		final ExtractionResult[] found = new ExtractionResult[] {result("not called back")};
+		cache.put(1, PAGE, false, false, result("A story"));
+
+		assertFalse(cache.isShared());
+		cache.getShared(1, PAGE, new ExtractionCache.Lookup() {
+			public void completed(ExtractionResult result) {
+				found[0] = result;
+			}
+		});
+		assertNull(found[0]);
+	}
+
+}
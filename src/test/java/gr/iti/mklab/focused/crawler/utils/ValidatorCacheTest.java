@@ -0,0 +1,88 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class ValidatorCacheTest {
+
+	private static final String PAGE = "http://example.com/news/2016/story.html";
+
+	private ValidatorCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new ValidatorCache(100, 3600 * 1000L);
+	}
+
+	@Test
+	public void testCanonical() {
+		assertEquals(PAGE, ValidatorCache.canonical("HTTP://Example.COM:80/news/2016/story.html#comments"));
+		assertEquals("https://example.com/?id=1", ValidatorCache.canonical("https://example.com:443?id=1"));
+		assertEquals("http://example.com:8080/a/c", ValidatorCache.canonical("http://example.com:8080/a/b/../c"));
+	}
+
+	@Test
+	public void testLocalTier() {
+		cache.put(PAGE, new ValidatorCache.Validators("\"v1\"", null, null, "{}"));
+
+		ValidatorCache.Validators validators = cache.get("http://EXAMPLE.com/news/2016/story.html#top");
+		assertNotNull(validators);
+		assertEquals("\"v1\"", validators.getETag());
+		assertNull(cache.get("http://example.com/news/2016/other.html"));
+	}
+
+	@Test
+	public void testUnconditionalResponsesAreNotCached() {
+		cache.put(PAGE, new ValidatorCache.Validators(null, null, null, "{}"));
+
+		assertNull(cache.get(PAGE));
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		cache = new ValidatorCache(100, 1);
+		cache.put(PAGE, new ValidatorCache.Validators(null, "Mon, 02 May 2016 10:00:00 GMT", null, "{}"));
+		Thread.sleep(5);
+
+		assertNull(cache.get(PAGE));
+	}
+
+	@Test
+	public void testGetSharedWithoutSharedTier() {
+		final AtomicBoolean called = new AtomicBoolean(false);
+		cache.getShared(PAGE, new ValidatorCache.Lookup() {
+			public void completed(ValidatorCache.Validators validators) {
+				assertNull(validators);
+				called.set(true);
+			}
+		});
+
+		assertFalse(cache.isShared());
+		assertTrue(called.get());
+	}
+
+	@Test
+	public void testJSONRoundTrip() {
+		ValidatorCache.Validators validators = new ValidatorCache.Validators("\"v1\"", "Mon, 02 May 2016 10:00:00 GMT",
+				ValidatorCache.digest(new byte[] {1, 2, 3}), "{\"title\": \"A story\"}");
+
+		ValidatorCache.Validators copy = ValidatorCache.Validators.fromJSONString(validators.toJSONString());
+		assertEquals(validators.getETag(), copy.getETag());
+		assertEquals(validators.getLastModified(), copy.getLastModified());
+		assertEquals(validators.getDigest(), copy.getDigest());
+		assertEquals(validators.getResult(), copy.getResult());
+		assertTrue(copy.isConditional());
+	}
+
+}
@@ -0,0 +1,67 @@
+package gr.iti.mklab.focused.crawler.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *	@author Manos Schinas - manosetro@iti.gr
+ */
+public class XXHash64Test {
+
+	private static long hash(String text) {
+		return XXHash64.hash(text.getBytes(), 0);
+	}
+
+	@Test
+	public void testReferenceValues() {
+		assertEquals(0xef46db3751d8e999L, hash(""));
+		assertEquals(0xd24ec4f1a98c6e5bL, hash("a"));
+		assertEquals(0x44bc2cf5ad770999L, hash("abc"));
+		assertEquals(0xfbcea83c8a378bf1L, hash("Nobody inspects the spammish repetition"));
+	}
+
+	@Test
+	public void testOffset() {
+		byte[] bytes = "__abc__".getBytes();
+		assertEquals(hash("abc"), XXHash64.hash(bytes, 2, 3, 0));
+	}
+
+	@Test
+	public void testStreaming() {
+		assertEquals(hash(""), new XXHash64(0).getValue());
+
+		Random random = new Random(42);
+		for(int length = 0; length <= 200; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			long seed = random.nextLong();
+
+			// a byte at a time, and in pieces across the stripes
+			XXHash64 bytewise = new XXHash64(seed);
+			for(byte b : bytes) {
+				bytewise.update(b);
+			}
+			XXHash64 pieces = new XXHash64(seed);
+			for(int offset = 0; offset < length; offset += 13) {
+				pieces.update(bytes, offset, Math.min(13, length - offset));
+			}
+
+			long expected = XXHash64.hash(bytes, seed);
+			assertEquals("length " + length, expected, bytewise.getValue());
+			assertEquals("length " + length, expected, pieces.getValue());
+		}
+	}
+
+	@Test
+	public void testReset() {
+		XXHash64 hash = new XXHash64(0);
+		hash.update("something else".getBytes(), 0, 14);
+		hash.reset().update("abc".getBytes(), 0, 3);
+
+		assertEquals(0x44bc2cf5ad770999L, hash.getValue());
+	}
+
+}